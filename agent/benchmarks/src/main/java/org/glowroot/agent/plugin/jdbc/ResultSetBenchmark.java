@@ -37,6 +37,13 @@ import org.openjdk.jmh.annotations.TearDown;
 import org.glowroot.agent.plugin.jdbc.support.MockConnection;
 import org.glowroot.microbenchmarks.support.TransactionWorthy;
 
+// results are per row, to compare per row overhead of the jdbc plugin modes, run with each of the
+// following jdbc plugin properties set in config.json:
+//
+// * default (captureResultSetNavigate only)
+// * captureResultSetGet
+// * captureResultSetRowCountOnly
+// * captureResultSetNavigate false (baseline, with no ResultSet timings or row counts)
 @BenchmarkMode(Mode.AverageTime)
 @OutputTimeUnit(TimeUnit.NANOSECONDS)
 @State(Scope.Thread)
@@ -48,6 +55,8 @@ public class ResultSetBenchmark extends TransactionWorthy {
     private Connection connection;
     private PreparedStatement preparedStatement;
 
+    private boolean readValues;
+
     @Setup
     public void setup() throws SQLException {
         switch (database) {
@@ -79,6 +88,14 @@ public class ResultSetBenchmark extends TransactionWorthy {
     @Benchmark
     @OperationsPerInvocation(10000)
     public void next() throws Exception {
+        readValues = false;
+        doSomethingTransactionWorthy();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(10000)
+    public void nextAndGetValues() throws Exception {
+        readValues = true;
         doSomethingTransactionWorthy();
     }
 
@@ -87,6 +104,12 @@ public class ResultSetBenchmark extends TransactionWorthy {
         ResultSet resultSet = preparedStatement.executeQuery();
         for (int i = 0; i < 10000; i++) {
             resultSet.next();
+            if (readValues) {
+                // reading the same column multiple times to simulate reading a wide row
+                for (int j = 0; j < 10; j++) {
+                    resultSet.getString(1);
+                }
+            }
         }
         resultSet.close();
     }
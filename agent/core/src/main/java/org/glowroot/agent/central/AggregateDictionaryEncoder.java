@@ -0,0 +1,122 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.central;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.protobuf.ByteString;
+import org.HdrHistogram.Histogram;
+
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+// encodes aggregates for dictionary encoded aggregate streams (see AggregateStreamHeader), where
+// repetitive strings (transaction types, timer names, and query and service call types) are each
+// sent once per stream and then referenced by index, and histograms are sent in compact form
+//
+// one instance per aggregate stream (and not thread safe)
+class AggregateDictionaryEncoder {
+
+    private final Map<String, Integer> sharedStringIndexes = Maps.newHashMap();
+
+    private List<String> latestSharedStrings = Lists.newArrayList();
+
+    List<String> getAndClearLatestSharedStrings() {
+        List<String> latestSharedStrings = this.latestSharedStrings;
+        this.latestSharedStrings = Lists.newArrayList();
+        return latestSharedStrings;
+    }
+
+    int getSharedStringIndex(String str) {
+        Integer sharedStringIndex = sharedStringIndexes.get(str);
+        if (sharedStringIndex == null) {
+            sharedStringIndex = sharedStringIndexes.size();
+            sharedStringIndexes.put(str, sharedStringIndex);
+            latestSharedStrings.add(str);
+        }
+        return sharedStringIndex;
+    }
+
+    Aggregate encode(Aggregate aggregate) {
+        Aggregate.Builder builder = aggregate.toBuilder()
+                .clearMainThreadRootTimer()
+                .clearAuxThreadRootTimer()
+                .clearAsyncTimer()
+                .clearQueriesByType()
+                .clearServiceCallsByType();
+        for (Aggregate.Timer timer : aggregate.getMainThreadRootTimerList()) {
+            builder.addMainThreadRootTimer(encode(timer));
+        }
+        for (Aggregate.Timer timer : aggregate.getAuxThreadRootTimerList()) {
+            builder.addAuxThreadRootTimer(encode(timer));
+        }
+        for (Aggregate.Timer timer : aggregate.getAsyncTimerList()) {
+            builder.addAsyncTimer(encode(timer));
+        }
+        for (Aggregate.QueriesByType queriesByType : aggregate.getQueriesByTypeList()) {
+            builder.addQueriesByType(queriesByType.toBuilder()
+                    .clearType()
+                    .setTypeIndex(getSharedStringIndex(queriesByType.getType())));
+        }
+        for (Aggregate.ServiceCallsByType serviceCallsByType : aggregate
+                .getServiceCallsByTypeList()) {
+            builder.addServiceCallsByType(serviceCallsByType.toBuilder()
+                    .clearType()
+                    .setTypeIndex(getSharedStringIndex(serviceCallsByType.getType())));
+        }
+        if (aggregate.hasDurationNanosHistogram()) {
+            builder.setDurationNanosHistogram(encode(aggregate.getDurationNanosHistogram()));
+        }
+        return builder.build();
+    }
+
+    private Aggregate.Timer encode(Aggregate.Timer timer) {
+        Aggregate.Timer.Builder builder = Aggregate.Timer.newBuilder()
+                .setNameIndex(getSharedStringIndex(timer.getName()))
+                .setExtended(timer.getExtended())
+                .setTotalNanos(timer.getTotalNanos())
+                .setCount(timer.getCount());
+        for (Aggregate.Timer childTimer : timer.getChildTimerList()) {
+            builder.addChildTimer(encode(childTimer));
+        }
+        return builder.build();
+    }
+
+    private static Aggregate.Histogram encode(Aggregate.Histogram histogram) {
+        Aggregate.Histogram.Builder builder = Aggregate.Histogram.newBuilder();
+        ByteString encodedBytes = histogram.getEncodedBytes();
+        if (encodedBytes.isEmpty()) {
+            // deltas between ordered values are much smaller than the values themselves, and so
+            // take up fewer bytes as protobuf varints
+            long priorValue = 0;
+            for (long value : histogram.getOrderedRawValueList()) {
+                builder.addOrderedRawValueDelta(value - priorValue);
+                priorValue = value;
+            }
+        } else {
+            Histogram hdrHistogram =
+                    Histogram.decodeFromByteBuffer(encodedBytes.asReadOnlyByteBuffer(), 0);
+            ByteBuffer buffer = ByteBuffer.allocate(hdrHistogram.getNeededByteBufferCapacity());
+            int size = hdrHistogram.encodeIntoCompressedByteBuffer(buffer);
+            buffer.flip();
+            builder.setCompressedEncodedBytes(ByteString.copyFrom(buffer, size));
+        }
+        return builder.build();
+    }
+}
@@ -22,18 +22,27 @@ import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
 import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.Parser;
+import io.grpc.Status;
 import io.grpc.stub.StreamObserver;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.glowroot.agent.central.CentralConnection.GrpcCall;
+import org.glowroot.agent.central.SpillBuffer.MessageHandler;
+import org.glowroot.agent.central.SpillBuffer.SpilledItem;
 import org.glowroot.agent.collector.Collector;
 import org.glowroot.agent.live.LiveJvmServiceImpl;
 import org.glowroot.agent.live.LiveTraceRepositoryImpl;
 import org.glowroot.agent.live.LiveWeavingServiceImpl;
+import org.glowroot.agent.util.RateLimitedLogger;
 import org.glowroot.common.util.OnlyUsedByTests;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
@@ -59,6 +68,10 @@ import org.glowroot.wire.api.model.CollectorServiceOuterClass.TransactionAggrega
 import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
 public class CentralCollector implements Collector {
 
     private static final Logger logger = LoggerFactory.getLogger(CentralCollector.class);
@@ -66,10 +79,36 @@ public class CentralCollector implements Collector {
     // log startup messages using logger name "org.glowroot"
     private static final Logger startupLogger = LoggerFactory.getLogger("org.glowroot");
 
+    private static final int DEFAULT_SPILL_BUFFER_MAX_MB = 50;
+
+    // a spilled item is discarded after this many failed replays (each of which is already retried
+    // for up to a minute), so that a single bad item cannot block the replay of all the others
+    private static final int MAX_SPILLED_ITEM_REPLAY_FAILURES = 10;
+
+    // deadline for each attempt, so that a call to an unresponsive central collector fails (and is
+    // then retried or abandoned) instead of leaving the gauge value batch or replay in flight
+    private static final int CALL_DEADLINE_SECONDS = 60;
+
+    // safety net in case a gauge value batch never completes (e.g. retry could not be scheduled),
+    // this is well past the deadline plus the retry period
+    private static final long MAX_GAUGE_VALUE_BATCH_IN_FLIGHT_NANOS = MINUTES.toNanos(5);
+
+    private static final int MAX_PENDING_GAUGE_VALUES = 10000;
+
+    // after a central collector rejects a dictionary encoded aggregate stream (e.g. during a
+    // rolling upgrade or downgrade, when the stream lands on a central collector prior to 0.9.15),
+    // plain aggregate streams are sent for this long before trying dictionary encoding again
+    private static final long DICTIONARY_ENCODING_REJECTED_NANOS = MINUTES.toNanos(60);
+
+    private static final String SPILLED_AGGREGATES = "aggregates";
+    private static final String SPILLED_GAUGE_VALUES = "gauges";
+    private static final String SPILLED_LOG = "log";
+
     private final String agentId;
     private final String agentRollupId;
     private final String collectorHost;
     private final int collectorPort;
+    private final long spillBufferMaxBytes;
     private final CentralConnection centralConnection;
     private final CollectorServiceStub collectorServiceStub;
     private final DownstreamServiceObserver downstreamServiceObserver;
@@ -78,6 +117,27 @@ public class CentralCollector implements Collector {
 
     private volatile int nextAggregateDelayMillis;
 
+    private volatile boolean dictionaryEncodingRejected;
+    private volatile long dictionaryEncodingRejectedNanos;
+
+    // null if the spill buffer directory could not be created
+    private volatile @Nullable SpillBuffer spillBuffer;
+    private final AtomicBoolean replayingSpilledData = new AtomicBoolean();
+
+    // gauge values are sent right away, unless a prior batch is still in flight (e.g. when the
+    // central collector is slow or being restarted), in which case they are coalesced into the
+    // next batch
+    private final Object gaugeValueBatchLock = new Object();
+    @GuardedBy("gaugeValueBatchLock")
+    private boolean gaugeValueBatchInFlight;
+    @GuardedBy("gaugeValueBatchLock")
+    private long gaugeValueBatchStartNanos;
+    @GuardedBy("gaugeValueBatchLock")
+    private List<GaugeValue> pendingGaugeValues = Lists.newArrayList();
+
+    private final RateLimitedLogger gaugeValueBatchLogger =
+            new RateLimitedLogger(CentralCollector.class);
+
     public CentralCollector(Map<String, String> properties, String collectorHost,
             LiveJvmServiceImpl liveJvmService, LiveWeavingServiceImpl liveWeavingService,
             LiveTraceRepositoryImpl liveTraceRepository, AgentConfigUpdater agentConfigUpdater)
@@ -94,10 +154,18 @@ public class CentralCollector implements Collector {
         } else {
             collectorPort = Integer.parseInt(collectorPortStr);
         }
+        String spillMaxMbStr = properties.get("glowroot.collector.spill.max.mb");
+        int spillMaxMb;
+        if (Strings.isNullOrEmpty(spillMaxMbStr)) {
+            spillMaxMb = DEFAULT_SPILL_BUFFER_MAX_MB;
+        } else {
+            spillMaxMb = Integer.parseInt(spillMaxMbStr);
+        }
         this.agentId = agentId;
         this.agentRollupId = Strings.nullToEmpty(properties.get("glowroot.agent.rollup.id"));
         this.collectorHost = collectorHost;
         this.collectorPort = collectorPort;
+        spillBufferMaxBytes = spillMaxMb * 1024L * 1024;
 
         if (agentRollupId.isEmpty()) {
             startupLogger.info("agent id: {}", agentId);
@@ -118,6 +186,12 @@ public class CentralCollector implements Collector {
     @Override
     public void init(File glowrootDir, File agentDir, Environment environment,
             AgentConfig agentConfig, final AgentConfigUpdater agentConfigUpdater) {
+        try {
+            spillBuffer = new SpillBuffer(new File(agentDir, "tmp/central-spill"),
+                    spillBufferMaxBytes);
+        } catch (IOException e) {
+            logger.error(e.getMessage(), e);
+        }
         final InitMessage initMessage = InitMessage.newBuilder()
                 .setAgentId(agentId)
                 .setAgentRollupId(agentRollupId)
@@ -143,6 +217,8 @@ public class CentralCollector implements Collector {
                     }
                 }
                 downstreamServiceObserver.connectAsync();
+                // e.g. data spilled prior to agent restart
+                replaySpilledData();
             }
         });
     }
@@ -156,6 +232,31 @@ public class CentralCollector implements Collector {
 
     @Override
     public void collectGaugeValues(List<GaugeValue> gaugeValues) {
+        synchronized (gaugeValueBatchLock) {
+            if (gaugeValueBatchInFlight && System.nanoTime()
+                    - gaugeValueBatchStartNanos > MAX_GAUGE_VALUE_BATCH_IN_FLIGHT_NANOS) {
+                gaugeValueBatchLogger.warn("gauge value batch sent to the central collector did"
+                        + " not complete after {} minutes, sending the next batch anyways",
+                        NANOSECONDS.toMinutes(MAX_GAUGE_VALUE_BATCH_IN_FLIGHT_NANOS));
+                gaugeValueBatchInFlight = false;
+            }
+            if (gaugeValueBatchInFlight) {
+                if (pendingGaugeValues.size() + gaugeValues.size() > MAX_PENDING_GAUGE_VALUES) {
+                    gaugeValueBatchLogger.warn("not sending gauge values to the central collector"
+                            + " because of an excessive backlog of {} gauge values waiting to be"
+                            + " sent", MAX_PENDING_GAUGE_VALUES);
+                    return;
+                }
+                pendingGaugeValues.addAll(gaugeValues);
+                return;
+            }
+            gaugeValueBatchInFlight = true;
+            gaugeValueBatchStartNanos = System.nanoTime();
+        }
+        sendGaugeValues(gaugeValues);
+    }
+
+    private void sendGaugeValues(List<GaugeValue> gaugeValues) {
         final GaugeValueMessage gaugeValueMessage = GaugeValueMessage.newBuilder()
                 .setAgentId(agentId)
                 .addAllGaugeValues(gaugeValues)
@@ -163,11 +264,38 @@ public class CentralCollector implements Collector {
         centralConnection.callWithAFewRetries(new GrpcCall<EmptyMessage>() {
             @Override
             public void call(StreamObserver<EmptyMessage> responseObserver) {
-                collectorServiceStub.collectGaugeValues(gaugeValueMessage, responseObserver);
+                collectorServiceStub.withDeadlineAfter(CALL_DEADLINE_SECONDS, SECONDS)
+                        .collectGaugeValues(gaugeValueMessage, responseObserver);
+            }
+            @Override
+            void doWithResponse(EmptyMessage response) {
+                sendPendingGaugeValues();
+                // gauge values are sent regularly, so this is a good time to check for data that
+                // was spilled while the central collector was unreachable
+                replaySpilledData();
+            }
+            @Override
+            void doOnAbandon() {
+                spill(SPILLED_GAUGE_VALUES, gaugeValueMessage);
+                sendPendingGaugeValues();
             }
         });
     }
 
+    private void sendPendingGaugeValues() {
+        List<GaugeValue> gaugeValues;
+        synchronized (gaugeValueBatchLock) {
+            if (pendingGaugeValues.isEmpty()) {
+                gaugeValueBatchInFlight = false;
+                return;
+            }
+            gaugeValues = pendingGaugeValues;
+            pendingGaugeValues = Lists.newArrayList();
+            gaugeValueBatchStartNanos = System.nanoTime();
+        }
+        sendGaugeValues(gaugeValues);
+    }
+
     @Override
     public void collectTrace(TraceReader traceReader) {
         if (traceReader.partial()) {
@@ -197,7 +325,117 @@ public class CentralCollector implements Collector {
             public void call(StreamObserver<EmptyMessage> responseObserver) {
                 collectorServiceStub.log(logMessage, responseObserver);
             }
+            @Override
+            void doOnAbandon() {
+                spill(SPILLED_LOG, logMessage);
+            }
+        });
+    }
+
+    private void spill(String kind, MessageLite message) {
+        SpillBuffer spillBuffer = this.spillBuffer;
+        if (spillBuffer == null) {
+            return;
+        }
+        SpillBuffer.Writer writer = null;
+        try {
+            writer = spillBuffer.newWriter(kind);
+            writer.write(message);
+            writer.commit();
+        } catch (IOException e) {
+            logger.error(e.getMessage(), e);
+            if (writer != null) {
+                writer.abort();
+            }
+        }
+    }
+
+    // only one spilled item is replayed at a time, and the next one is only replayed after the
+    // prior one was successfully sent
+    private void replaySpilledData() {
+        SpillBuffer spillBuffer = this.spillBuffer;
+        if (spillBuffer == null || spillBuffer.isEmpty()
+                || !replayingSpilledData.compareAndSet(false, true)) {
+            return;
+        }
+        replayNextSpilledItem(spillBuffer);
+    }
+
+    private void replayNextSpilledItem(SpillBuffer spillBuffer) {
+        SpilledItem item = spillBuffer.peekOldest();
+        if (item == null) {
+            replayingSpilledData.set(false);
+            return;
+        }
+        String kind = item.kind();
+        try {
+            if (kind.equals(SPILLED_AGGREGATES)) {
+                // aggregates are streamed directly from the spilled item
+                centralConnection.callWithAFewRetries(
+                        new ReplaySpilledAggregatesGrpcCall(spillBuffer, item));
+            } else if (kind.equals(SPILLED_GAUGE_VALUES)) {
+                final GaugeValueMessage gaugeValueMessage =
+                        readSpilledMessage(item, GaugeValueMessage.parser());
+                centralConnection.callWithAFewRetries(
+                        new ReplaySpilledGrpcCall<EmptyMessage>(spillBuffer, item) {
+                            @Override
+                            public void call(StreamObserver<EmptyMessage> responseObserver) {
+                                collectorServiceStub
+                                        .withDeadlineAfter(CALL_DEADLINE_SECONDS, SECONDS)
+                                        .collectGaugeValues(gaugeValueMessage, responseObserver);
+                            }
+                        });
+            } else if (kind.equals(SPILLED_LOG)) {
+                final LogMessage logMessage = readSpilledMessage(item, LogMessage.parser());
+                centralConnection.callWithAFewRetries(
+                        new ReplaySpilledGrpcCall<EmptyMessage>(spillBuffer, item) {
+                            @Override
+                            public void call(StreamObserver<EmptyMessage> responseObserver) {
+                                collectorServiceStub
+                                        .withDeadlineAfter(CALL_DEADLINE_SECONDS, SECONDS)
+                                        .log(logMessage, responseObserver);
+                            }
+                        });
+            } else {
+                logger.warn("unexpected spilled data: {}", kind);
+                spillBuffer.remove(item);
+                replayNextSpilledItem(spillBuffer);
+            }
+        } catch (IOException e) {
+            // corrupt spilled item, skip it
+            logger.error(e.getMessage(), e);
+            spillBuffer.remove(item);
+            replayNextSpilledItem(spillBuffer);
+        }
+    }
+
+    // the central collector will reject the same data again for these status codes
+    private static boolean isRetryable(Throwable t) {
+        switch (Status.fromThrowable(t).getCode()) {
+            case INVALID_ARGUMENT:
+            case FAILED_PRECONDITION:
+            case OUT_OF_RANGE:
+            case UNIMPLEMENTED:
+            case DATA_LOSS:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    private static <T extends MessageLite> T readSpilledMessage(SpilledItem item,
+            Parser<T> parser) throws IOException {
+        final List<T> messages = Lists.newArrayList();
+        item.read(parser, new MessageHandler<T>() {
+            @Override
+            public void handle(T message) {
+                messages.add(message);
+            }
         });
+        if (messages.size() != 1) {
+            throw new IOException("Unexpected number of spilled messages: " + messages.size());
+        }
+        return messages.get(0);
     }
 
     @OnlyUsedByTests
@@ -215,12 +453,25 @@ public class CentralCollector implements Collector {
 
         private class AggregateVisitorImpl implements AggregateVisitor {
             private final StreamObserver<AggregateStreamMessage> requestObserver;
-            private AggregateVisitorImpl(StreamObserver<AggregateStreamMessage> requestObserver) {
+            // null if the stream is not dictionary encoded
+            private final @Nullable AggregateDictionaryEncoder encoder;
+            private AggregateVisitorImpl(StreamObserver<AggregateStreamMessage> requestObserver,
+                    @Nullable AggregateDictionaryEncoder encoder) {
                 this.requestObserver = requestObserver;
+                this.encoder = encoder;
             }
             @Override
             public void visitOverallAggregate(String transactionType,
                     List<String> sharedQueryTexts, Aggregate overallAggregate) {
+                OverallAggregate.Builder message = OverallAggregate.newBuilder();
+                if (encoder == null) {
+                    message.setTransactionType(transactionType)
+                            .setAggregate(overallAggregate);
+                } else {
+                    message.setTransactionTypeIndex(encoder.getSharedStringIndex(transactionType))
+                            .setAggregate(encoder.encode(overallAggregate));
+                    sendLatestSharedStrings(encoder);
+                }
                 for (String sharedQueryText : sharedQueryTexts) {
                     Aggregate.SharedQueryText aggregateSharedQueryText = sharedQueryTextLimiter
                             .buildAggregateSharedQueryText(sharedQueryText);
@@ -233,15 +484,23 @@ public class CentralCollector implements Collector {
                             .build());
                 }
                 requestObserver.onNext(AggregateStreamMessage.newBuilder()
-                        .setOverallAggregate(OverallAggregate.newBuilder()
-                                .setTransactionType(transactionType)
-                                .setAggregate(overallAggregate))
+                        .setOverallAggregate(message)
                         .build());
             }
             @Override
             public void visitTransactionAggregate(String transactionType,
                     String transactionName, List<String> sharedQueryTexts,
                     Aggregate transactionAggregate) {
+                TransactionAggregate.Builder message = TransactionAggregate.newBuilder()
+                        .setTransactionName(transactionName);
+                if (encoder == null) {
+                    message.setTransactionType(transactionType)
+                            .setAggregate(transactionAggregate);
+                } else {
+                    message.setTransactionTypeIndex(encoder.getSharedStringIndex(transactionType))
+                            .setAggregate(encoder.encode(transactionAggregate));
+                    sendLatestSharedStrings(encoder);
+                }
                 for (String sharedQueryText : sharedQueryTexts) {
                     requestObserver.onNext(AggregateStreamMessage.newBuilder()
                             .setSharedQueryText(sharedQueryTextLimiter
@@ -249,34 +508,48 @@ public class CentralCollector implements Collector {
                             .build());
                 }
                 requestObserver.onNext(AggregateStreamMessage.newBuilder()
-                        .setTransactionAggregate(TransactionAggregate.newBuilder()
-                                .setTransactionType(transactionType)
-                                .setTransactionName(transactionName)
-                                .setAggregate(transactionAggregate))
+                        .setTransactionAggregate(message)
                         .build());
             }
+            private void sendLatestSharedStrings(AggregateDictionaryEncoder encoder) {
+                for (String sharedString : encoder.getAndClearLatestSharedStrings()) {
+                    requestObserver.onNext(AggregateStreamMessage.newBuilder()
+                            .setSharedString(sharedString)
+                            .build());
+                }
+            }
         }
 
         private final AggregateReader aggregateReader;
         private final List<String> fullTextSha1s = Lists.newArrayList();
 
+        // dictionary encoding is negotiated per stream (instead of once per connection) since
+        // each stream can land on a different central collector (e.g. behind a load balancer)
+        private volatile boolean dictionaryEncoded;
+
         private CollectAggregatesGrpcCall(AggregateReader aggregateReader) {
             this.aggregateReader = aggregateReader;
+            dictionaryEncoded = !dictionaryEncodingRejected || System.nanoTime()
+                    - dictionaryEncodingRejectedNanos > DICTIONARY_ENCODING_REJECTED_NANOS;
         }
 
         @Override
         public void call(StreamObserver<AggregateResponseMessage> responseObserver) {
-            final StreamObserver<AggregateStreamMessage> requestObserver =
-                    collectorServiceStub.collectAggregateStream(responseObserver);
-            requestObserver.onNext(AggregateStreamMessage.newBuilder()
-                    .setStreamHeader(AggregateStreamHeader.newBuilder()
-                            .setAgentId(agentId)
-                            .setCaptureTime(aggregateReader.captureTime()))
-                    .build());
+            final StreamObserver<AggregateStreamMessage> requestObserver;
+            // new encoder is needed in case this is a retry
+            AggregateDictionaryEncoder encoder;
+            if (dictionaryEncoded) {
+                requestObserver = collectorServiceStub
+                        .collectDictionaryEncodedAggregateStream(responseObserver);
+                encoder = new AggregateDictionaryEncoder();
+            } else {
+                requestObserver = collectorServiceStub.collectAggregateStream(responseObserver);
+                encoder = null;
+            }
             // need to clear in case this is a retry
             fullTextSha1s.clear();
             try {
-                aggregateReader.accept(new AggregateVisitorImpl(requestObserver));
+                writeAggregateStream(requestObserver, encoder);
             } catch (Throwable t) {
                 logger.error(t.getMessage(), t);
                 requestObserver.onError(t);
@@ -285,6 +558,50 @@ public class CentralCollector implements Collector {
             requestObserver.onCompleted();
         }
 
+        // central collectors prior to 0.9.15 reject dictionary encoded aggregate streams with
+        // UNIMPLEMENTED, in which case the stream is retried without dictionary encoding
+        @Override
+        boolean shouldRetry(Throwable t) {
+            if (dictionaryEncoded
+                    && Status.fromThrowable(t).getCode() == Status.Code.UNIMPLEMENTED) {
+                dictionaryEncodingRejectedNanos = System.nanoTime();
+                dictionaryEncodingRejected = true;
+                dictionaryEncoded = false;
+            }
+            return true;
+        }
+
+        // spilled aggregates are not dictionary encoded since they are replayed later, possibly to
+        // a different central collector
+        @Override
+        void doOnAbandon() {
+            SpillBuffer spillBuffer = CentralCollector.this.spillBuffer;
+            if (spillBuffer == null) {
+                return;
+            }
+            SpillBuffer.Writer writer = null;
+            try {
+                writer = spillBuffer.newWriter(SPILLED_AGGREGATES);
+                writeAggregateStream(new SpillingStreamObserver(writer), null);
+                writer.commit();
+            } catch (Exception e) {
+                logger.error(e.getMessage(), e);
+                if (writer != null) {
+                    writer.abort();
+                }
+            }
+        }
+
+        private void writeAggregateStream(StreamObserver<AggregateStreamMessage> requestObserver,
+                @Nullable AggregateDictionaryEncoder encoder) throws Exception {
+            requestObserver.onNext(AggregateStreamMessage.newBuilder()
+                    .setStreamHeader(AggregateStreamHeader.newBuilder()
+                            .setAgentId(agentId)
+                            .setCaptureTime(aggregateReader.captureTime()))
+                    .build());
+            aggregateReader.accept(new AggregateVisitorImpl(requestObserver, encoder));
+        }
+
         @Override
         public void doWithResponse(AggregateResponseMessage response) {
             // Math.min is just for safety
@@ -295,6 +612,111 @@ public class CentralCollector implements Collector {
         }
     }
 
+    private abstract class ReplaySpilledGrpcCall<T extends /*@NonNull*/ Object>
+            extends GrpcCall<T> {
+
+        private final SpillBuffer spillBuffer;
+        final SpilledItem item;
+
+        // null if the call was abandoned without being attempted (e.g. during connection failure)
+        private volatile @Nullable Throwable lastError;
+
+        private ReplaySpilledGrpcCall(SpillBuffer spillBuffer, SpilledItem item) {
+            this.spillBuffer = spillBuffer;
+            this.item = item;
+        }
+
+        @Override
+        void doWithResponse(T response) {
+            spillBuffer.remove(item);
+            replayNextSpilledItem(spillBuffer);
+        }
+
+        @Override
+        boolean shouldRetry(Throwable t) {
+            lastError = t;
+            return isRetryable(t);
+        }
+
+        @Override
+        void doOnAbandon() {
+            Throwable lastError = this.lastError;
+            if (lastError == null) {
+                // leave spilled item in place to be replayed later
+                replayingSpilledData.set(false);
+                return;
+            }
+            if (!isRetryable(lastError)) {
+                logger.warn("discarding data that was rejected by the central collector: {}",
+                        lastError.getMessage(), lastError);
+                spillBuffer.remove(item);
+                replayNextSpilledItem(spillBuffer);
+                return;
+            }
+            if (item.incrementReplayFailureCount() >= MAX_SPILLED_ITEM_REPLAY_FAILURES) {
+                logger.warn("discarding data that could not be sent to the central collector"
+                        + " after {} attempts: {}", MAX_SPILLED_ITEM_REPLAY_FAILURES,
+                        lastError.getMessage(), lastError);
+                spillBuffer.remove(item);
+            }
+            // leave remaining spilled items in place to be replayed later
+            replayingSpilledData.set(false);
+        }
+    }
+
+    private class ReplaySpilledAggregatesGrpcCall
+            extends ReplaySpilledGrpcCall<AggregateResponseMessage> {
+
+        private ReplaySpilledAggregatesGrpcCall(SpillBuffer spillBuffer, SpilledItem item) {
+            super(spillBuffer, item);
+        }
+
+        @Override
+        public void call(StreamObserver<AggregateResponseMessage> responseObserver) {
+            final StreamObserver<AggregateStreamMessage> requestObserver = collectorServiceStub
+                    .withDeadlineAfter(CALL_DEADLINE_SECONDS, SECONDS)
+                    .collectAggregateStream(responseObserver);
+            try {
+                item.read(AggregateStreamMessage.parser(),
+                        new MessageHandler<AggregateStreamMessage>() {
+                            @Override
+                            public void handle(AggregateStreamMessage message) {
+                                requestObserver.onNext(message);
+                            }
+                        });
+            } catch (Throwable t) {
+                logger.error(t.getMessage(), t);
+                requestObserver.onError(t);
+                return;
+            }
+            requestObserver.onCompleted();
+        }
+    }
+
+    private static class SpillingStreamObserver implements StreamObserver<AggregateStreamMessage> {
+
+        private final SpillBuffer.Writer writer;
+
+        private SpillingStreamObserver(SpillBuffer.Writer writer) {
+            this.writer = writer;
+        }
+
+        @Override
+        public void onNext(AggregateStreamMessage value) {
+            try {
+                writer.write(value);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {}
+
+        @Override
+        public void onCompleted() {}
+    }
+
     private class CollectTraceGrpcCall extends GrpcCall<EmptyMessage> {
 
         private final TraceReader traceReader;
@@ -131,12 +131,14 @@ class CentralConnection {
             return;
         }
         if (inConnectionFailure.get()) {
+            abandon(call);
             return;
         }
         synchronized (backPressureLogger) {
             if (pendingRequestCount >= PENDING_LIMIT) {
                 backPressureLogger.warn("not sending data to the central collector because of an"
                         + " excessive backlog of {} requests in progress", PENDING_LIMIT);
+                abandon(call);
                 return;
             }
             pendingRequestCount++;
@@ -176,6 +178,24 @@ class CentralConnection {
         call.call(new RetryingStreamObserver<T>(call, 15, -1, true));
     }
 
+    // doOnAbandon() is run on a separate thread since it can be slow (e.g. writing to disk), and
+    // should not block the caller or the grpc executor
+    private void abandon(final GrpcCall<?> call) {
+        if (closed) {
+            return;
+        }
+        retryExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    call.doOnAbandon();
+                } catch (Throwable t) {
+                    logger.error(t.getMessage(), t);
+                }
+            }
+        });
+    }
+
     void suppressLogCollector(Runnable runnable) {
         boolean priorValue = suppressLogCollector.get();
         suppressLogCollector.set(true);
@@ -213,6 +233,13 @@ class CentralConnection {
     static abstract class GrpcCall<T extends /*@NonNull*/ Object> {
         abstract void call(StreamObserver<T> responseObserver);
         void doWithResponse(@SuppressWarnings("unused") T response) {}
+        // returning false abandons the call right away instead of retrying it
+        boolean shouldRetry(@SuppressWarnings("unused") Throwable t) {
+            return true;
+        }
+        // called when the call is given up on (either not attempted at all, or no more retries),
+        // so that the data can be retained elsewhere instead of being lost
+        void doOnAbandon() {}
     }
 
     private class RetryingStreamObserver<T extends /*@NonNull*/ Object>
@@ -254,6 +281,9 @@ class CentralConnection {
             }
             if (inConnectionFailure.get()) {
                 decrementPendingRequestCount();
+                if (!init) {
+                    abandon(grpcCall);
+                }
                 return;
             }
             suppressLogCollector(new Runnable() {
@@ -262,12 +292,18 @@ class CentralConnection {
                     logger.debug(t.getMessage(), t);
                 }
             });
+            if (!init && !grpcCall.shouldRetry(t)) {
+                decrementPendingRequestCount();
+                abandon(grpcCall);
+                return;
+            }
             if (!init && stopwatch.elapsed(SECONDS) > maxTotalInSeconds) {
                 if (initCallSucceeded) {
                     connectionErrorLogger.warn("error sending data to the central collector: {}",
                             t.getMessage(), t);
                 }
                 decrementPendingRequestCount();
+                abandon(grpcCall);
                 return;
             }
 
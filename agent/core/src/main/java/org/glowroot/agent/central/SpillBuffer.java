@@ -0,0 +1,228 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.central;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.collect.Maps;
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.Parser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.agent.util.RateLimitedLogger;
+
+// bounded on-disk buffer for data that could not be sent to the central collector (e.g. during a
+// central collector restart that takes longer than the retry period), which is then replayed
+// (oldest first) once the central collector is reachable again
+//
+// each spilled item is a file of length-delimited protobuf messages, named by a sequence number
+// (for ordering, including across agent restarts) and a kind (so it can be replayed using the
+// appropriate grpc call)
+class SpillBuffer {
+
+    private static final Logger logger = LoggerFactory.getLogger(SpillBuffer.class);
+
+    private static final Pattern FILE_NAME_PATTERN = Pattern.compile("([0-9]+)\\.([a-z]+)");
+
+    private final File dir;
+    private final long maxTotalBytes;
+
+    private final Object lock = new Object();
+
+    @GuardedBy("lock")
+    private final Map<Long, SpilledItem> items = Maps.newTreeMap();
+    @GuardedBy("lock")
+    private long nextSequence;
+    @GuardedBy("lock")
+    private long totalBytes;
+
+    private final RateLimitedLogger evictionLogger = new RateLimitedLogger(SpillBuffer.class);
+
+    SpillBuffer(File dir, long maxTotalBytes) throws IOException {
+        this.dir = dir;
+        this.maxTotalBytes = maxTotalBytes;
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Could not create directory: " + dir.getAbsolutePath());
+        }
+        File[] files = dir.listFiles();
+        if (files == null) {
+            throw new IOException("Could not list directory: " + dir.getAbsolutePath());
+        }
+        synchronized (lock) {
+            for (File file : files) {
+                Matcher matcher = FILE_NAME_PATTERN.matcher(file.getName());
+                if (!matcher.matches()) {
+                    // e.g. partially written file from prior jvm
+                    deleteFile(file);
+                    continue;
+                }
+                long sequence = Long.parseLong(matcher.group(1));
+                items.put(sequence, new SpilledItem(sequence, matcher.group(2), file));
+                totalBytes += file.length();
+                nextSequence = Math.max(nextSequence, sequence + 1);
+            }
+            evictOldestIfNeeded();
+        }
+    }
+
+    boolean isEmpty() {
+        synchronized (lock) {
+            return items.isEmpty();
+        }
+    }
+
+    Writer newWriter(String kind) throws IOException {
+        long sequence;
+        synchronized (lock) {
+            sequence = nextSequence++;
+        }
+        return new Writer(sequence, kind);
+    }
+
+    @Nullable
+    SpilledItem peekOldest() {
+        synchronized (lock) {
+            if (items.isEmpty()) {
+                return null;
+            }
+            return items.values().iterator().next();
+        }
+    }
+
+    void remove(SpilledItem item) {
+        synchronized (lock) {
+            if (items.remove(item.sequence) == null) {
+                // already evicted
+                return;
+            }
+            totalBytes -= item.file.length();
+            deleteFile(item.file);
+        }
+    }
+
+    @GuardedBy("lock")
+    private void evictOldestIfNeeded() {
+        while (totalBytes > maxTotalBytes && !items.isEmpty()) {
+            SpilledItem oldest = items.values().iterator().next();
+            items.remove(oldest.sequence);
+            totalBytes -= oldest.file.length();
+            deleteFile(oldest.file);
+            evictionLogger.warn("discarding data that could not be sent to the central collector"
+                    + " because the spill buffer exceeded {} bytes", maxTotalBytes);
+        }
+    }
+
+    private static void deleteFile(File file) {
+        if (!file.delete() && file.exists()) {
+            logger.warn("could not delete file: {}", file.getAbsolutePath());
+        }
+    }
+
+    class Writer {
+
+        private final long sequence;
+        private final String kind;
+        private final File tmpFile;
+        private final OutputStream out;
+
+        private Writer(long sequence, String kind) throws IOException {
+            this.sequence = sequence;
+            this.kind = kind;
+            tmpFile = new File(dir, sequence + "." + kind + ".tmp");
+            out = new FileOutputStream(tmpFile);
+        }
+
+        void write(MessageLite message) throws IOException {
+            message.writeDelimitedTo(out);
+        }
+
+        void commit() throws IOException {
+            out.close();
+            File file = new File(dir, sequence + "." + kind);
+            if (!tmpFile.renameTo(file)) {
+                deleteFile(tmpFile);
+                throw new IOException("Could not rename file: " + tmpFile.getAbsolutePath());
+            }
+            synchronized (lock) {
+                items.put(sequence, new SpilledItem(sequence, kind, file));
+                totalBytes += file.length();
+                evictOldestIfNeeded();
+            }
+        }
+
+        void abort() {
+            try {
+                out.close();
+            } catch (IOException e) {
+                logger.debug(e.getMessage(), e);
+            }
+            deleteFile(tmpFile);
+        }
+    }
+
+    static class SpilledItem {
+
+        private final long sequence;
+        private final String kind;
+        private final File file;
+
+        // only accessed by the (single) replay in progress, and not retained across agent restarts
+        private int replayFailureCount;
+
+        private SpilledItem(long sequence, String kind, File file) {
+            this.sequence = sequence;
+            this.kind = kind;
+            this.file = file;
+        }
+
+        String kind() {
+            return kind;
+        }
+
+        int incrementReplayFailureCount() {
+            return ++replayFailureCount;
+        }
+
+        <T extends MessageLite> void read(Parser<T> parser, MessageHandler<T> handler)
+                throws IOException {
+            InputStream in = new FileInputStream(file);
+            try {
+                T message;
+                while ((message = parser.parseDelimitedFrom(in)) != null) {
+                    handler.handle(message);
+                }
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    interface MessageHandler<T> {
+        void handle(T message);
+    }
+}
@@ -80,6 +80,14 @@ public abstract class AdvancedConfig {
         return 60;
     }
 
+    // used to limit trace storage (and trace collection overhead) during a flood of slow or error
+    // transactions, zero means no limit (the default, so that existing installs are not affected
+    // unless the limit is opted into)
+    @Value.Default
+    public int maxTracesStoredPerMinute() {
+        return 0;
+    }
+
     public AgentConfig.AdvancedConfig toProto() {
         return AgentConfig.AdvancedConfig.newBuilder()
                 .setWeavingTimer(weavingTimer())
@@ -91,6 +99,7 @@ public abstract class AdvancedConfig {
                 .setMaxTraceEntriesPerTransaction(of(maxTraceEntriesPerTransaction()))
                 .setMaxStackTraceSamplesPerTransaction(of(maxStackTraceSamplesPerTransaction()))
                 .setMbeanGaugeNotFoundDelaySeconds(of(mbeanGaugeNotFoundDelaySeconds()))
+                .setMaxTracesStoredPerMinute(of(maxTracesStoredPerMinute()))
                 .build();
     }
 
@@ -124,6 +133,9 @@ public abstract class AdvancedConfig {
             builder.mbeanGaugeNotFoundDelaySeconds(
                     config.getMbeanGaugeNotFoundDelaySeconds().getValue());
         }
+        if (config.hasMaxTracesStoredPerMinute()) {
+            builder.maxTracesStoredPerMinute(config.getMaxTracesStoredPerMinute().getValue());
+        }
         return builder.build();
     }
 
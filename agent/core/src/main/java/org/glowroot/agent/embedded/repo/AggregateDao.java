@@ -20,6 +20,9 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicLongArray;
 
 import javax.annotation.Nullable;
@@ -31,6 +34,8 @@ import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.Parser;
 import org.checkerframework.checker.tainting.qual.Untainted;
 import org.immutables.value.Value;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import org.glowroot.agent.collector.Collector.AggregateReader;
 import org.glowroot.agent.collector.Collector.AggregateVisitor;
@@ -81,8 +86,15 @@ import static org.glowroot.agent.util.Checkers.castUntainted;
 
 public class AggregateDao implements AggregateRepository {
 
+    private static final Logger logger = LoggerFactory.getLogger(AggregateDao.class);
+
     private static final String AGENT_ID = "";
 
+    // background rollups yield the single jdbc connection to ingestion and the ui between chunks,
+    // but only up to this long per chunk so that they cannot be starved indefinitely
+    private static final long ROLLUP_MAX_YIELD_MILLIS = 1000;
+    private static final long ROLLUP_YIELD_SLEEP_MILLIS = 10;
+
     private static final ImmutableList<Column> overallAggregatePointColumns =
             ImmutableList.<Column>of(
                     ImmutableColumn.of("transaction_type", ColumnType.VARCHAR),
@@ -90,6 +102,7 @@ public class AggregateDao implements AggregateRepository {
                     ImmutableColumn.of("total_duration_nanos", ColumnType.DOUBLE),
                     ImmutableColumn.of("transaction_count", ColumnType.BIGINT),
                     ImmutableColumn.of("error_count", ColumnType.BIGINT),
+                    ImmutableColumn.of("unstored_trace_count", ColumnType.BIGINT),
                     ImmutableColumn.of("async_transactions", ColumnType.BOOLEAN),
                     ImmutableColumn.of("queries_capped_id", ColumnType.BIGINT),
                     ImmutableColumn.of("service_calls_capped_id", ColumnType.BIGINT),
@@ -116,6 +129,7 @@ public class AggregateDao implements AggregateRepository {
                     ImmutableColumn.of("total_duration_nanos", ColumnType.DOUBLE),
                     ImmutableColumn.of("transaction_count", ColumnType.BIGINT),
                     ImmutableColumn.of("error_count", ColumnType.BIGINT),
+                    ImmutableColumn.of("unstored_trace_count", ColumnType.BIGINT),
                     ImmutableColumn.of("async_transactions", ColumnType.BOOLEAN),
                     ImmutableColumn.of("queries_capped_id", ColumnType.BIGINT),
                     ImmutableColumn.of("service_calls_capped_id", ColumnType.BIGINT),
@@ -158,6 +172,16 @@ public class AggregateDao implements AggregateRepository {
 
     private final Object rollupLock = new Object();
 
+    // capture time of the most recently stored level 0 aggregates, which determines which
+    // rollup intervals are safe to roll up
+    private final AtomicLong lastStoredCaptureTime;
+
+    // null until background rollups are started, in which case rollups are performed inline
+    // at the end of store()
+    private volatile @Nullable ExecutorService rollupExecutor;
+    private final AtomicBoolean rollupPending = new AtomicBoolean();
+    private volatile boolean backgroundRollupsStopped;
+
     AggregateDao(DataSource dataSource, List<CappedDatabase> rollupCappedDatabases,
             ConfigRepository configRepository, TransactionTypeDao transactionTypeDao,
             FullQueryTextDao fullQueryTextDao) throws Exception {
@@ -170,10 +194,12 @@ public class AggregateDao implements AggregateRepository {
         List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
         for (int i = 0; i < rollupConfigs.size(); i++) {
             String overallTableName = "aggregate_tt_rollup_" + castUntainted(i);
+            String transactionTableName = "aggregate_tn_rollup_" + castUntainted(i);
+            addUnstoredTraceCountColumnIfNeeded(dataSource, overallTableName);
+            addUnstoredTraceCountColumnIfNeeded(dataSource, transactionTableName);
             dataSource.syncTable(overallTableName, overallAggregatePointColumns);
             dataSource.syncIndexes(overallTableName, ImmutableList.<Index>of(
                     ImmutableIndex.of(overallTableName + "_idx", overallAggregateIndexColumns)));
-            String transactionTableName = "aggregate_tn_rollup_" + castUntainted(i);
             dataSource.syncTable(transactionTableName, transactionAggregateColumns);
             dataSource.syncIndexes(transactionTableName, ImmutableList.<Index>of(ImmutableIndex
                     .of(transactionTableName + "_idx", transactionAggregateIndexColumns)));
@@ -188,8 +214,23 @@ public class AggregateDao implements AggregateRepository {
                     + " from aggregate_tt_rollup_" + castUntainted(i));
         }
         this.lastRollupTimes = new AtomicLongArray(lastRollupTimes);
+        lastStoredCaptureTime = new AtomicLong(dataSource.queryForLong(
+                "select ifnull(max(capture_time), 0) from aggregate_tt_rollup_0"));
+    }
 
-        // TODO initial rollup in case store is not called in a reasonable time
+    // rollups are then performed on the given (ideally low priority) executor, in chunks of one
+    // rollup interval, instead of inline on the aggregate flushing thread
+    void startBackgroundRollups(ExecutorService rollupExecutor) {
+        this.rollupExecutor = rollupExecutor;
+        // catch up on rollups that were not performed prior to the last shutdown, without waiting
+        // for the next store
+        scheduleRollups(rollupExecutor);
+    }
+
+    // the background rollup stops at the end of the current chunk, instead of being interrupted
+    // in the middle of H2 I/O, so that the rollup executor can then be shut down gracefully
+    void stopBackgroundRollups() {
+        backgroundRollupsStopped = true;
     }
 
     public void store(AggregateReader aggregateReader) throws Exception {
@@ -234,18 +275,12 @@ public class AggregateDao implements AggregateRepository {
                 }
             }
         });
-        synchronized (rollupLock) {
-            List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
-            for (int i = 1; i < rollupConfigs.size(); i++) {
-                RollupConfig rollupConfig = rollupConfigs.get(i);
-                long safeRollupTime = RollupLevelService.getSafeRollupTime(captureTime,
-                        rollupConfig.intervalMillis());
-                long lastRollupTime = lastRollupTimes.get(i);
-                if (safeRollupTime > lastRollupTime) {
-                    rollup(lastRollupTime, safeRollupTime, rollupConfig.intervalMillis(), i, i - 1);
-                    lastRollupTimes.set(i, safeRollupTime);
-                }
-            }
+        updateLastStoredCaptureTime(captureTime);
+        ExecutorService rollupExecutor = this.rollupExecutor;
+        if (rollupExecutor == null) {
+            rollup(false);
+        } else {
+            scheduleRollups(rollupExecutor);
         }
     }
 
@@ -422,15 +457,92 @@ public class AggregateDao implements AggregateRepository {
         dataSource.deleteBefore("aggregate_tn_rollup_" + castUntainted(rollupLevel), captureTime);
     }
 
-    private void rollup(long lastRollupTime, long curentRollupTime, long fixedIntervalMillis,
-            int toRollupLevel, int fromRollupLevel) throws Exception {
+    private void updateLastStoredCaptureTime(long captureTime) {
+        while (true) {
+            long lastCaptureTime = lastStoredCaptureTime.get();
+            if (captureTime <= lastCaptureTime
+                    || lastStoredCaptureTime.compareAndSet(lastCaptureTime, captureTime)) {
+                return;
+            }
+        }
+    }
+
+    private void scheduleRollups(ExecutorService rollupExecutor) {
+        if (backgroundRollupsStopped) {
+            return;
+        }
+        if (!rollupPending.compareAndSet(false, true)) {
+            // the pending rollup will pick up the latest capture time
+            return;
+        }
+        rollupExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                // reset prior to rolling up, so that a store during the rollup schedules another
+                rollupPending.set(false);
+                try {
+                    rollup(true);
+                } catch (InterruptedException e) {
+                    // shutdown
+                    Thread.currentThread().interrupt();
+                } catch (Throwable t) {
+                    logger.error(t.getMessage(), t);
+                }
+            }
+        });
+    }
+
+    private void rollup(boolean yieldBetweenChunks) throws Exception {
+        synchronized (rollupLock) {
+            long captureTime = lastStoredCaptureTime.get();
+            List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
+            for (int i = 1; i < rollupConfigs.size(); i++) {
+                RollupConfig rollupConfig = rollupConfigs.get(i);
+                long safeRollupTime = RollupLevelService.getSafeRollupTime(captureTime,
+                        rollupConfig.intervalMillis());
+                long lastRollupTime = lastRollupTimes.get(i);
+                if (safeRollupTime > lastRollupTime) {
+                    if (!rollup(lastRollupTime, safeRollupTime, rollupConfig.intervalMillis(), i,
+                            i - 1, yieldBetweenChunks)) {
+                        // background rollups stopped
+                        return;
+                    }
+                    lastRollupTimes.set(i, safeRollupTime);
+                }
+            }
+        }
+    }
+
+    // returns false if background rollups were stopped before all intervals were rolled up
+    private boolean rollup(long lastRollupTime, long curentRollupTime, long fixedIntervalMillis,
+            int toRollupLevel, int fromRollupLevel, boolean yieldBetweenChunks) throws Exception {
         List<Long> rollupTimes = dataSource.query(new RollupTimeRowMapper(fromRollupLevel,
                 fixedIntervalMillis, lastRollupTime, curentRollupTime));
         for (Long rollupTime : rollupTimes) {
+            if (yieldBetweenChunks) {
+                if (backgroundRollupsStopped) {
+                    return false;
+                }
+                yieldToLockDemand();
+            }
             dataSource.query(new RollupOverallAggregates(rollupTime, fixedIntervalMillis,
                     fromRollupLevel, toRollupLevel));
+            if (yieldBetweenChunks) {
+                yieldToLockDemand();
+            }
             dataSource.query(new RollupTransactionAggregates(rollupTime, fixedIntervalMillis,
                     fromRollupLevel, toRollupLevel));
+            // record progress so that a failed or stopped rollup resumes from here
+            lastRollupTimes.set(toRollupLevel, rollupTime);
+        }
+        return true;
+    }
+
+    private void yieldToLockDemand() throws InterruptedException {
+        long yieldedMillis = 0;
+        while (dataSource.hasLockDemand() && yieldedMillis < ROLLUP_MAX_YIELD_MILLIS) {
+            Thread.sleep(ROLLUP_YIELD_SLEEP_MILLIS);
+            yieldedMillis += ROLLUP_YIELD_SLEEP_MILLIS;
         }
     }
 
@@ -458,6 +570,7 @@ public class AggregateDao implements AggregateRepository {
         double totalDurationNanos = resultSet.getDouble(i++);
         long transactionCount = resultSet.getLong(i++);
         long errorCount = resultSet.getLong(i++);
+        long unstoredTraceCount = resultSet.getLong(i++);
         boolean asyncTransactions = resultSet.getBoolean(i++);
         Long queriesCappedId = RowMappers.getLong(resultSet, i++);
         Long serviceCallsCappedId = RowMappers.getLong(resultSet, i++);
@@ -479,6 +592,7 @@ public class AggregateDao implements AggregateRepository {
         mergedAggregate.addTotalDurationNanos(totalDurationNanos);
         mergedAggregate.addTransactionCount(transactionCount);
         mergedAggregate.addErrorCount(errorCount);
+        mergedAggregate.addUnstoredTraceCount(unstoredTraceCount);
         mergedAggregate.addAsyncTransactions(asyncTransactions);
         if (mainThreadRootTimers != null) {
             mergedAggregate.mergeMainThreadRootTimers(
@@ -558,6 +672,16 @@ public class AggregateDao implements AggregateRepository {
         }
     }
 
+    private static void addUnstoredTraceCountColumnIfNeeded(DataSource dataSource,
+            @Untainted String tableName) throws SQLException {
+        // adding the column up front avoids syncTable() dropping and re-creating the table
+        if (dataSource.tableExists(tableName)
+                && !dataSource.columnExists(tableName, "unstored_trace_count")) {
+            dataSource.execute("alter table " + tableName
+                    + " add column unstored_trace_count bigint");
+        }
+    }
+
     private static @Untainted String getTableName(TransactionQuery query) {
         if (query.transactionName() == null) {
             return "aggregate_tt_rollup_" + castUntainted(query.rollupLevel());
@@ -849,8 +973,8 @@ public class AggregateDao implements AggregateRepository {
             String tableName = getTableName(query);
             String transactionNameCriteria = getTransactionNameCriteria(query);
             return "select capture_time, total_duration_nanos, transaction_count,"
-                    + " async_transactions, main_thread_root_timers, aux_thread_root_timers,"
-                    + " async_root_timers, main_thread_total_cpu_nanos,"
+                    + " unstored_trace_count, async_transactions, main_thread_root_timers,"
+                    + " aux_thread_root_timers, async_root_timers, main_thread_total_cpu_nanos,"
                     + " main_thread_total_blocked_nanos, main_thread_total_waited_nanos,"
                     + " main_thread_total_allocated_bytes, aux_thread_total_cpu_nanos,"
                     + " aux_thread_total_blocked_nanos, aux_thread_total_waited_nanos,"
@@ -871,6 +995,7 @@ public class AggregateDao implements AggregateRepository {
                     .captureTime(resultSet.getLong(i++))
                     .totalDurationNanos(resultSet.getDouble(i++))
                     .transactionCount(resultSet.getLong(i++))
+                    .unstoredTraceCount(resultSet.getLong(i++))
                     .asyncTransactions(resultSet.getBoolean(i++));
             byte[] mainThreadRootTimers = resultSet.getBytes(i++);
             if (mainThreadRootTimers != null) {
@@ -994,8 +1119,9 @@ public class AggregateDao implements AggregateRepository {
         @Override
         public @Untainted String getSql() {
             return "select transaction_type, total_duration_nanos, transaction_count, error_count,"
-                    + " async_transactions, queries_capped_id, service_calls_capped_id,"
-                    + " main_thread_profile_capped_id, aux_thread_profile_capped_id,"
+                    + " unstored_trace_count, async_transactions, queries_capped_id,"
+                    + " service_calls_capped_id, main_thread_profile_capped_id,"
+                    + " aux_thread_profile_capped_id,"
                     + " main_thread_root_timers, aux_thread_root_timers, async_root_timers,"
                     + " main_thread_total_cpu_nanos, main_thread_total_blocked_nanos,"
                     + " main_thread_total_waited_nanos, main_thread_total_allocated_bytes,"
@@ -1064,8 +1190,8 @@ public class AggregateDao implements AggregateRepository {
         @Override
         public @Untainted String getSql() {
             return "select transaction_type, transaction_name, total_duration_nanos,"
-                    + " transaction_count, error_count, async_transactions, queries_capped_id,"
-                    + " service_calls_capped_id, main_thread_profile_capped_id,"
+                    + " transaction_count, error_count, unstored_trace_count, async_transactions,"
+                    + " queries_capped_id, service_calls_capped_id, main_thread_profile_capped_id,"
                     + " aux_thread_profile_capped_id, main_thread_root_timers,"
                     + " aux_thread_root_timers, async_root_timers, main_thread_total_cpu_nanos,"
                     + " main_thread_total_blocked_nanos, main_thread_total_waited_nanos,"
@@ -1228,8 +1354,10 @@ public class AggregateDao implements AggregateRepository {
             // need ".0" to force double result
             String captureTimeSql = castUntainted(
                     "ceil(capture_time / " + fixedIntervalMillis + ".0) * " + fixedIntervalMillis);
+            // ordered since rollup progress is recorded after each rollup time (see rollup())
             return "select distinct " + captureTimeSql + " from aggregate_tt_rollup_"
-                    + castUntainted(rollupLevel) + " where capture_time > ? and capture_time <= ?";
+                    + castUntainted(rollupLevel) + " where capture_time > ? and capture_time <= ?"
+                    + " order by 1";
         }
 
         @Override
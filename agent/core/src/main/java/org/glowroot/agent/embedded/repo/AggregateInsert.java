@@ -1,5 +1,5 @@
 /*
- * Copyright 2016 the original author or authors.
+ * Copyright 2016-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -56,6 +56,7 @@ class AggregateInsert implements JdbcUpdate {
     private final double totalDurationNanos;
     private final long transactionCount;
     private final long errorCount;
+    private final long unstoredTraceCount;
     private final boolean asyncTransactions;
     private final @Nullable Long queriesCappedId;
     private final @Nullable Long serviceCallsCappedId;
@@ -86,6 +87,7 @@ class AggregateInsert implements JdbcUpdate {
         totalDurationNanos = aggregate.getTotalDurationNanos();
         transactionCount = aggregate.getTransactionCount();
         errorCount = aggregate.getErrorCount();
+        unstoredTraceCount = aggregate.getUnstoredTraceCount();
         asyncTransactions = aggregate.getAsyncTransactions();
 
         queriesCappedId = writeQueries(cappedDatabase,
@@ -138,6 +140,7 @@ class AggregateInsert implements JdbcUpdate {
         totalDurationNanos = aggregate.getTotalDurationNanos();
         transactionCount = aggregate.getTransactionCount();
         errorCount = aggregate.getErrorCount();
+        unstoredTraceCount = aggregate.getUnstoredTraceCount();
         asyncTransactions = aggregate.isAsyncTransactions();
 
         queriesCappedId = writeQueries(cappedDatabase, convertToStored(aggregate.getQueries()));
@@ -182,8 +185,9 @@ class AggregateInsert implements JdbcUpdate {
             sb.append(" transaction_name,");
         }
         sb.append(" capture_time, total_duration_nanos, transaction_count, error_count,"
-                + " async_transactions, queries_capped_id, service_calls_capped_id,"
-                + " main_thread_profile_capped_id, aux_thread_profile_capped_id,"
+                + " unstored_trace_count, async_transactions, queries_capped_id,"
+                + " service_calls_capped_id, main_thread_profile_capped_id,"
+                + " aux_thread_profile_capped_id,"
                 + " main_thread_root_timers, aux_thread_root_timers, async_root_timers,"
                 + " main_thread_total_cpu_nanos, main_thread_total_blocked_nanos,"
                 + " main_thread_total_waited_nanos, main_thread_total_allocated_bytes,"
@@ -194,7 +198,7 @@ class AggregateInsert implements JdbcUpdate {
             sb.append(", transaction_name");
         }
         sb.append(", capture_time) values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?,"
-                + " ?, ?, ?");
+                + " ?, ?, ?, ?");
         if (transactionName != null) {
             sb.append(", ?");
         }
@@ -214,6 +218,7 @@ class AggregateInsert implements JdbcUpdate {
         preparedStatement.setDouble(i++, totalDurationNanos);
         preparedStatement.setLong(i++, transactionCount);
         preparedStatement.setLong(i++, errorCount);
+        preparedStatement.setLong(i++, unstoredTraceCount);
         preparedStatement.setBoolean(i++, asyncTransactions);
         RowMappers.setLong(preparedStatement, i++, queriesCappedId);
         RowMappers.setLong(preparedStatement, i++, serviceCallsCappedId);
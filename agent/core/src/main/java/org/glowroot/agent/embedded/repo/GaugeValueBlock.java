@@ -0,0 +1,253 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.repo;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+// compact encoding of a single gauge's values over a block of time, based on the Gorilla paper
+// (http://www.vldb.org/pvldb/vol8/p1816-teller.pdf)
+//
+// capture times are encoded as delta-of-deltas, which is almost always zero since gauges are
+// captured at a fixed interval, and values are encoded as the XOR of the previous value, which
+// has many leading and trailing zeros for slowly changing values
+//
+// weights are encoded as a single bit when unchanged from the previous weight
+class GaugeValueBlock {
+
+    private GaugeValueBlock() {}
+
+    // gauge values must be ordered by capture time
+    static byte[] encode(List<GaugeValue> gaugeValues) {
+        checkArgument(!gaugeValues.isEmpty());
+        BitWriter out = new BitWriter(gaugeValues.size() * 4 + 32);
+        out.writeBits(gaugeValues.size(), 32);
+        GaugeValue first = gaugeValues.get(0);
+        out.writeBits(first.getCaptureTime(), 64);
+        out.writeBits(Double.doubleToRawLongBits(first.getValue()), 64);
+        out.writeBits(first.getWeight(), 64);
+        long prevCaptureTime = first.getCaptureTime();
+        long prevDelta = 0;
+        long prevValueBits = Double.doubleToRawLongBits(first.getValue());
+        int prevLeadingZeros = Integer.MAX_VALUE;
+        int prevTrailingZeros = 0;
+        long prevWeight = first.getWeight();
+        for (int i = 1; i < gaugeValues.size(); i++) {
+            GaugeValue gaugeValue = gaugeValues.get(i);
+            // capture time
+            long delta = gaugeValue.getCaptureTime() - prevCaptureTime;
+            writeDeltaOfDelta(out, delta - prevDelta);
+            prevCaptureTime = gaugeValue.getCaptureTime();
+            prevDelta = delta;
+            // value
+            long valueBits = Double.doubleToRawLongBits(gaugeValue.getValue());
+            long xor = valueBits ^ prevValueBits;
+            if (xor == 0) {
+                out.writeBit(false);
+            } else {
+                out.writeBit(true);
+                int leadingZeros = Math.min(Long.numberOfLeadingZeros(xor), 63);
+                int trailingZeros = Long.numberOfTrailingZeros(xor);
+                if (leadingZeros >= prevLeadingZeros && trailingZeros >= prevTrailingZeros) {
+                    // fits inside previous meaningful bit window
+                    out.writeBit(false);
+                    int meaningfulBits = 64 - prevLeadingZeros - prevTrailingZeros;
+                    out.writeBits(xor >>> prevTrailingZeros, meaningfulBits);
+                } else {
+                    out.writeBit(true);
+                    int meaningfulBits = 64 - leadingZeros - trailingZeros;
+                    out.writeBits(leadingZeros, 6);
+                    // meaningful bits is in range 1..64, so store minus one to fit in 6 bits
+                    out.writeBits(meaningfulBits - 1, 6);
+                    out.writeBits(xor >>> trailingZeros, meaningfulBits);
+                    prevLeadingZeros = leadingZeros;
+                    prevTrailingZeros = trailingZeros;
+                }
+            }
+            prevValueBits = valueBits;
+            // weight
+            if (gaugeValue.getWeight() == prevWeight) {
+                out.writeBit(false);
+            } else {
+                out.writeBit(true);
+                out.writeBits(gaugeValue.getWeight(), 64);
+                prevWeight = gaugeValue.getWeight();
+            }
+        }
+        return out.toByteArray();
+    }
+
+    // from and to are both INCLUSIVE
+    static List<GaugeValue> decode(byte[] bytes, long from, long to) {
+        BitReader in = new BitReader(bytes);
+        int count = (int) in.readBits(32);
+        List<GaugeValue> gaugeValues = Lists.newArrayList();
+        long captureTime = in.readBits(64);
+        long valueBits = in.readBits(64);
+        long weight = in.readBits(64);
+        addIfInRange(gaugeValues, captureTime, valueBits, weight, from, to);
+        long delta = 0;
+        int leadingZeros = 0;
+        int trailingZeros = 0;
+        for (int i = 1; i < count; i++) {
+            delta += readDeltaOfDelta(in);
+            captureTime += delta;
+            if (in.readBit()) {
+                if (in.readBit()) {
+                    leadingZeros = (int) in.readBits(6);
+                    int meaningfulBits = (int) in.readBits(6) + 1;
+                    trailingZeros = 64 - leadingZeros - meaningfulBits;
+                }
+                int meaningfulBits = 64 - leadingZeros - trailingZeros;
+                valueBits ^= in.readBits(meaningfulBits) << trailingZeros;
+            }
+            if (in.readBit()) {
+                weight = in.readBits(64);
+            }
+            if (captureTime > to) {
+                // capture times are ordered, so no need to decode the rest of the block
+                break;
+            }
+            addIfInRange(gaugeValues, captureTime, valueBits, weight, from, to);
+        }
+        return gaugeValues;
+    }
+
+    private static void addIfInRange(List<GaugeValue> gaugeValues, long captureTime,
+            long valueBits, long weight, long from, long to) {
+        if (captureTime >= from && captureTime <= to) {
+            gaugeValues.add(GaugeValue.newBuilder()
+                    .setCaptureTime(captureTime)
+                    .setValue(Double.longBitsToDouble(valueBits))
+                    .setWeight(weight)
+                    .build());
+        }
+    }
+
+    private static void writeDeltaOfDelta(BitWriter out, long deltaOfDelta) {
+        if (deltaOfDelta == 0) {
+            out.writeBit(false);
+        } else if (deltaOfDelta >= -64 && deltaOfDelta <= 63) {
+            out.writeBits(0x2, 2); // 10
+            out.writeBits(deltaOfDelta, 7);
+        } else if (deltaOfDelta >= -256 && deltaOfDelta <= 255) {
+            out.writeBits(0x6, 3); // 110
+            out.writeBits(deltaOfDelta, 9);
+        } else if (deltaOfDelta >= -2048 && deltaOfDelta <= 2047) {
+            out.writeBits(0xE, 4); // 1110
+            out.writeBits(deltaOfDelta, 12);
+        } else {
+            out.writeBits(0xF, 4); // 1111
+            out.writeBits(deltaOfDelta, 64);
+        }
+    }
+
+    private static long readDeltaOfDelta(BitReader in) {
+        if (!in.readBit()) {
+            return 0;
+        }
+        if (!in.readBit()) {
+            return in.readSignedBits(7);
+        }
+        if (!in.readBit()) {
+            return in.readSignedBits(9);
+        }
+        if (!in.readBit()) {
+            return in.readSignedBits(12);
+        }
+        return in.readBits(64);
+    }
+
+    private static class BitWriter {
+
+        private byte[] bytes;
+        private int bitPosition;
+
+        private BitWriter(int initialCapacity) {
+            bytes = new byte[initialCapacity];
+        }
+
+        private void writeBit(boolean bit) {
+            ensureCapacity(1);
+            if (bit) {
+                bytes[bitPosition >>> 3] |= 0x80 >>> (bitPosition & 7);
+            }
+            bitPosition++;
+        }
+
+        // writes the lowest numBits of value, most significant bit first
+        private void writeBits(long value, int numBits) {
+            ensureCapacity(numBits);
+            for (int i = numBits - 1; i >= 0; i--) {
+                if (((value >>> i) & 1) != 0) {
+                    bytes[bitPosition >>> 3] |= 0x80 >>> (bitPosition & 7);
+                }
+                bitPosition++;
+            }
+        }
+
+        private void ensureCapacity(int numBits) {
+            int neededBytes = (bitPosition + numBits + 7) >>> 3;
+            if (neededBytes > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(neededBytes, bytes.length * 2));
+            }
+        }
+
+        private byte[] toByteArray() {
+            return Arrays.copyOf(bytes, (bitPosition + 7) >>> 3);
+        }
+    }
+
+    private static class BitReader {
+
+        private final byte[] bytes;
+        private int bitPosition;
+
+        private BitReader(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        private boolean readBit() {
+            boolean bit = (bytes[bitPosition >>> 3] & (0x80 >>> (bitPosition & 7))) != 0;
+            bitPosition++;
+            return bit;
+        }
+
+        private long readBits(int numBits) {
+            long value = 0;
+            for (int i = 0; i < numBits; i++) {
+                value <<= 1;
+                if (readBit()) {
+                    value |= 1;
+                }
+            }
+            return value;
+        }
+
+        private long readSignedBits(int numBits) {
+            long value = readBits(numBits);
+            // sign extend
+            int shift = 64 - numBits;
+            return (value << shift) >> shift;
+        }
+    }
+}
@@ -25,6 +25,7 @@ import java.util.concurrent.atomic.AtomicLongArray;
 
 import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.primitives.Longs;
@@ -41,11 +42,14 @@ import org.glowroot.agent.embedded.util.Schemas.ColumnType;
 import org.glowroot.agent.embedded.util.Schemas.Index;
 import org.glowroot.common.repo.ConfigRepository.RollupConfig;
 import org.glowroot.common.repo.GaugeValueRepository;
+import org.glowroot.common.repo.Utils;
 import org.glowroot.common.repo.util.Gauges;
 import org.glowroot.common.repo.util.RollupLevelService;
 import org.glowroot.common.util.Clock;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
 
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.HOURS;
 import static org.glowroot.agent.util.Checkers.castUntainted;
 
 public class GaugeValueDao implements GaugeValueRepository {
@@ -59,6 +63,20 @@ public class GaugeValueDao implements GaugeValueRepository {
             // for counters, it is the interval of time that the (averaged) value represents
             ImmutableColumn.of("weight", ColumnType.BIGINT));
 
+    // once level 0 gauge values have been rolled up, they are compacted into one block per gauge
+    // per hour (see GaugeValueBlock), which is much smaller than storing one row per gauge value
+    private static final long BLOCK_MILLIS = HOURS.toMillis(1);
+
+    // bound the amount of catch up work (e.g. after upgrade) performed during a single store
+    private static final int MAX_BLOCKS_PER_STORE = 24;
+
+    private static final ImmutableList<Column> blockColumns = ImmutableList.<Column>of(
+            ImmutableColumn.of("gauge_id", ColumnType.BIGINT),
+            // the block contains gauge values with capture time in
+            // (capture_time - BLOCK_MILLIS, capture_time]
+            ImmutableColumn.of("capture_time", ColumnType.BIGINT),
+            ImmutableColumn.of("block", ColumnType.VARBINARY));
+
     private final GaugeNameDao gaugeNameDao;
     private final DataSource dataSource;
     private final Clock clock;
@@ -67,6 +85,12 @@ public class GaugeValueDao implements GaugeValueRepository {
     // AtomicLongArray used for visibility
     private final AtomicLongArray lastRollupTimes;
 
+    // level 0 gauge values with capture time <= lastBlockTime are read from blocks, and level 0
+    // gauge values with capture time > lastBlockTime are read from gauge_value_rollup_0
+    //
+    // only updated under rollupLock, volatile for visibility to readers
+    private volatile long lastBlockTime;
+
     private final Object rollupLock = new Object();
 
     GaugeValueDao(DataSource dataSource, GaugeNameDao gaugeNameDao, Clock clock) throws Exception {
@@ -95,8 +119,13 @@ public class GaugeValueDao implements GaugeValueRepository {
             columns.add(ImmutableColumn.of("last_rollup_" + i + "_time", ColumnType.BIGINT));
         }
         dataSource.syncTable("gauge_value_last_rollup_times", columns);
+        dataSource.syncTable("gauge_value_block_0", blockColumns);
+        dataSource.syncIndexes("gauge_value_block_0", ImmutableList.<Index>of(
+                ImmutableIndex.of("gauge_value_block_0_idx",
+                        ImmutableList.of("gauge_id", "capture_time"))));
 
         lastRollupTimes = initData(rollupConfigs, dataSource);
+        lastBlockTime = initLastBlockTime(dataSource, clock);
 
         // TODO initial rollup in case store is not called in a reasonable time
     }
@@ -148,6 +177,7 @@ public class GaugeValueDao implements GaugeValueRepository {
                     lastRollupTimes.set(i, safeRollupTime);
                 }
             }
+            compactIntoBlocks();
         }
     }
 
@@ -160,11 +190,27 @@ public class GaugeValueDao implements GaugeValueRepository {
             // not necessarily an error, gauge id not created until first store
             return ImmutableList.of();
         }
-        return dataSource.query(new GaugeValueQuery(gaugeId, from, to, rollupLevel));
+        if (rollupLevel != 0) {
+            return dataSource.query(new GaugeValueQuery(gaugeId, from, to, rollupLevel));
+        }
+        long lastBlockTime = this.lastBlockTime;
+        List<GaugeValue> gaugeValues = Lists.newArrayList();
+        if (from <= lastBlockTime) {
+            gaugeValues.addAll(dataSource.query(
+                    new GaugeValueBlockQuery(gaugeId, from, Math.min(to, lastBlockTime))));
+        }
+        long nonBlockFrom = Math.max(from, lastBlockTime + 1);
+        if (nonBlockFrom <= to) {
+            gaugeValues.addAll(dataSource.query(new GaugeValueQuery(gaugeId, nonBlockFrom, to, 0)));
+        }
+        return gaugeValues;
     }
 
     void deleteBefore(long captureTime, int rollupLevel) throws Exception {
         dataSource.deleteBefore("gauge_value_rollup_" + castUntainted(rollupLevel), captureTime);
+        if (rollupLevel == 0) {
+            dataSource.deleteBefore("gauge_value_block_0", captureTime);
+        }
     }
 
     void reinitAfterDeletingDatabase() throws Exception {
@@ -172,6 +218,35 @@ public class GaugeValueDao implements GaugeValueRepository {
         for (int i = 0; i < lastRollupTimes.length(); i++) {
             this.lastRollupTimes.set(i, lastRollupTimes.get(i));
         }
+        synchronized (rollupLock) {
+            lastBlockTime = initLastBlockTime(dataSource, clock);
+        }
+    }
+
+    // must be called under rollupLock
+    private void compactIntoBlocks() throws Exception {
+        // only compact level 0 gauge values that have already been rolled up to level 1, since
+        // the level 1 rollup reads from gauge_value_rollup_0
+        long safeBlockTime = lastRollupTimes.get(0);
+        long initialLastBlockTime = lastBlockTime;
+        int count = 0;
+        while (lastBlockTime + BLOCK_MILLIS <= safeBlockTime && count++ < MAX_BLOCKS_PER_STORE) {
+            long blockTime = lastBlockTime + BLOCK_MILLIS;
+            Map<Long, List<GaugeValue>> gaugeValues =
+                    dataSource.query(new GaugeValuesForBlockQuery(lastBlockTime, blockTime));
+            if (!gaugeValues.isEmpty()) {
+                dataSource.batchUpdate(new GaugeValueBlocksBinder(blockTime, gaugeValues));
+            }
+            lastBlockTime = blockTime;
+        }
+        if (lastBlockTime != initialLastBlockTime) {
+            // compacted level 0 gauge values are deleted one store behind, so that a concurrent
+            // reader (which captured a prior value of lastBlockTime) can still find them
+            //
+            // this also means that if the JVM terminates in the middle of writing blocks, the
+            // values are still there to be re-compacted (see initLastBlockTime())
+            dataSource.deleteBefore("gauge_value_rollup_0", initialLastBlockTime + 1);
+        }
     }
 
     private void rollup(long lastRollupTime, long safeRollupTime, long fixedIntervalMillis,
@@ -208,6 +283,20 @@ public class GaugeValueDao implements GaugeValueRepository {
         }
     }
 
+    private static long initLastBlockTime(DataSource dataSource, Clock clock) throws Exception {
+        Long maxBlockTime = dataSource
+                .queryForOptionalLong("select max(capture_time) from gauge_value_block_0");
+        if (maxBlockTime != null) {
+            // re-compact the last block in case JVM terminated in the middle of writing blocks
+            // (blocks are merged by key so this is idempotent)
+            return maxBlockTime - BLOCK_MILLIS;
+        }
+        Long minCaptureTime = dataSource
+                .queryForOptionalLong("select min(capture_time) from gauge_value_rollup_0");
+        long captureTime = minCaptureTime == null ? clock.currentTimeMillis() : minCaptureTime;
+        return Utils.getRollupCaptureTime(captureTime, BLOCK_MILLIS) - BLOCK_MILLIS;
+    }
+
     private class GaugeValuesBinder implements JdbcUpdate {
 
         private final Map<GaugeValue, Long> gaugeValueIdMap;
@@ -272,6 +361,129 @@ public class GaugeValueDao implements GaugeValueRepository {
         }
     }
 
+    private static class GaugeValueBlocksBinder implements JdbcUpdate {
+
+        private final long blockTime;
+        private final Map<Long, List<GaugeValue>> gaugeValues;
+
+        private GaugeValueBlocksBinder(long blockTime, Map<Long, List<GaugeValue>> gaugeValues) {
+            this.blockTime = blockTime;
+            this.gaugeValues = gaugeValues;
+        }
+
+        @Override
+        public @Untainted String getSql() {
+            return "merge into gauge_value_block_0 (gauge_id, capture_time, block)"
+                    + " key (gauge_id, capture_time) values (?, ?, ?)";
+        }
+
+        @Override
+        public void bind(PreparedStatement preparedStatement) throws SQLException {
+            for (Entry<Long, List<GaugeValue>> entry : gaugeValues.entrySet()) {
+                int i = 1;
+                preparedStatement.setLong(i++, entry.getKey());
+                preparedStatement.setLong(i++, blockTime);
+                preparedStatement.setBytes(i++, GaugeValueBlock.encode(entry.getValue()));
+                preparedStatement.addBatch();
+            }
+        }
+    }
+
+    private static class GaugeValuesForBlockQuery
+            implements JdbcQuery<Map<Long, List<GaugeValue>>> {
+
+        private final long from;
+        private final long to;
+
+        private GaugeValuesForBlockQuery(long from, long to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public @Untainted String getSql() {
+            return "select gauge_id, capture_time, value, weight from gauge_value_rollup_0"
+                    + " where capture_time > ? and capture_time <= ? order by gauge_id,"
+                    + " capture_time";
+        }
+
+        @Override
+        public void bind(PreparedStatement preparedStatement) throws SQLException {
+            int i = 1;
+            preparedStatement.setLong(i++, from);
+            preparedStatement.setLong(i++, to);
+        }
+
+        @Override
+        public Map<Long, List<GaugeValue>> processResultSet(ResultSet resultSet)
+                throws Exception {
+            Map<Long, List<GaugeValue>> gaugeValues = Maps.newLinkedHashMap();
+            while (resultSet.next()) {
+                int i = 1;
+                long gaugeId = resultSet.getLong(i++);
+                List<GaugeValue> list = gaugeValues.get(gaugeId);
+                if (list == null) {
+                    list = Lists.newArrayList();
+                    gaugeValues.put(gaugeId, list);
+                }
+                list.add(GaugeValue.newBuilder()
+                        .setCaptureTime(resultSet.getLong(i++))
+                        .setValue(resultSet.getDouble(i++))
+                        .setWeight(resultSet.getLong(i++))
+                        .build());
+            }
+            return gaugeValues;
+        }
+
+        @Override
+        public Map<Long, List<GaugeValue>> valueIfDataSourceClosed() {
+            return ImmutableMap.of();
+        }
+    }
+
+    private static class GaugeValueBlockQuery implements JdbcQuery<List<GaugeValue>> {
+
+        private final long gaugeId;
+        private final long from;
+        private final long to;
+
+        private GaugeValueBlockQuery(long gaugeId, long from, long to) {
+            this.gaugeId = gaugeId;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public @Untainted String getSql() {
+            // only read the blocks that overlap the requested range
+            return "select block from gauge_value_block_0 where gauge_id = ? and capture_time >= ?"
+                    + " and capture_time < ? order by capture_time";
+        }
+
+        @Override
+        public void bind(PreparedStatement preparedStatement) throws SQLException {
+            int i = 1;
+            preparedStatement.setLong(i++, gaugeId);
+            preparedStatement.setLong(i++, from);
+            preparedStatement.setLong(i++, to + BLOCK_MILLIS);
+        }
+
+        @Override
+        public List<GaugeValue> processResultSet(ResultSet resultSet) throws Exception {
+            List<GaugeValue> gaugeValues = Lists.newArrayList();
+            while (resultSet.next()) {
+                byte[] block = checkNotNull(resultSet.getBytes(1));
+                gaugeValues.addAll(GaugeValueBlock.decode(block, from, to));
+            }
+            return gaugeValues;
+        }
+
+        @Override
+        public List<GaugeValue> valueIfDataSourceClosed() {
+            return ImmutableList.of();
+        }
+    }
+
     private class GaugeValueQuery implements JdbcRowQuery<GaugeValue> {
 
         private final long gaugeId;
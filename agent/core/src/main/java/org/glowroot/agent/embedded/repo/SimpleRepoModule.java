@@ -18,6 +18,8 @@ package org.glowroot.agent.embedded.repo;
 import java.io.File;
 import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 
 import javax.annotation.Nullable;
@@ -25,6 +27,7 @@ import javax.annotation.Nullable;
 import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import org.glowroot.agent.embedded.util.CappedDatabase;
 import org.glowroot.agent.embedded.util.DataSource;
@@ -39,6 +42,7 @@ import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.OnlyUsedByTests;
 
 import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
 
 public class SimpleRepoModule {
 
@@ -57,6 +61,7 @@ public class SimpleRepoModule {
     private final RepoAdmin repoAdmin;
     private final RollupLevelService rollupLevelService;
     private final @Nullable ReaperRunnable reaperRunnable;
+    private final @Nullable ExecutorService rollupExecutor;
 
     public SimpleRepoModule(DataSource dataSource, File dataDir, Clock clock, Ticker ticker,
             ConfigRepository configRepository,
@@ -85,7 +90,7 @@ public class SimpleRepoModule {
                 transactionTypeDao, fullQueryTextDao);
         traceAttributeNameDao = new TraceAttributeNameDao(dataSource);
         traceDao = new TraceDao(dataSource, traceCappedDatabase, transactionTypeDao,
-                fullQueryTextDao, traceAttributeNameDao);
+                fullQueryTextDao, traceAttributeNameDao, configRepository);
         GaugeNameDao gaugeNameDao = new GaugeNameDao(dataSource);
         gaugeValueDao = new GaugeValueDao(dataSource, gaugeNameDao, clock);
 
@@ -95,11 +100,21 @@ public class SimpleRepoModule {
 
         if (backgroundExecutor == null) {
             reaperRunnable = null;
+            rollupExecutor = null;
         } else {
             reaperRunnable = new ReaperRunnable(configRepository, aggregateDao, traceDao,
                     gaugeValueDao, gaugeNameDao, transactionTypeDao, fullQueryTextDao, clock);
             reaperRunnable.scheduleWithFixedDelay(backgroundExecutor,
                     SNAPSHOT_REAPER_PERIOD_MINUTES, MINUTES);
+            // dedicated low priority thread so that long rollups (e.g. on the hour boundary) do
+            // not delay aggregate flushing or other background tasks
+            rollupExecutor = Executors.newSingleThreadExecutor(
+                    new ThreadFactoryBuilder()
+                            .setDaemon(true)
+                            .setNameFormat("Glowroot-Aggregate-Rollup")
+                            .setPriority(Thread.MIN_PRIORITY)
+                            .build());
+            aggregateDao.startBackgroundRollups(rollupExecutor);
         }
     }
 
@@ -157,6 +172,16 @@ public class SimpleRepoModule {
         if (reaperRunnable != null) {
             reaperRunnable.cancel();
         }
+        if (rollupExecutor != null) {
+            // not using shutdownNow() since interrupting the rollup thread in the middle of H2 I/O
+            // can close the underlying file channel, the rollup stops at the end of its current
+            // chunk instead
+            aggregateDao.stopBackgroundRollups();
+            rollupExecutor.shutdown();
+            if (!rollupExecutor.awaitTermination(10, SECONDS)) {
+                throw new IllegalStateException("Could not terminate executor");
+            }
+        }
         for (CappedDatabase cappedDatabase : rollupCappedDatabases) {
             cappedDatabase.close();
         }
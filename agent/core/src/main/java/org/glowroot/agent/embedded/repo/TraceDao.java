@@ -25,6 +25,7 @@ import java.util.Locale;
 import java.util.Map;
 
 import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
@@ -57,11 +58,16 @@ import org.glowroot.common.live.LiveTraceRepository.TraceKind;
 import org.glowroot.common.live.LiveTraceRepository.TracePoint;
 import org.glowroot.common.live.LiveTraceRepository.TracePointFilter;
 import org.glowroot.common.model.Result;
+import org.glowroot.common.repo.ConfigRepository;
+import org.glowroot.common.repo.ConfigRepository.RollupConfig;
 import org.glowroot.common.repo.ImmutableErrorMessageCount;
 import org.glowroot.common.repo.ImmutableErrorMessagePoint;
 import org.glowroot.common.repo.ImmutableErrorMessageResult;
 import org.glowroot.common.repo.ImmutableHeaderPlus;
 import org.glowroot.common.repo.TraceRepository;
+import org.glowroot.common.repo.util.RollupIntervals;
+import org.glowroot.common.repo.util.RollupIntervals.RollupInterval;
+import org.glowroot.common.repo.util.RollupLevelService;
 import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
@@ -130,22 +136,49 @@ public class TraceDao implements TraceRepository {
     private static final ImmutableList<Index> traceAttributeIndexes = ImmutableList.<Index>of(
             ImmutableIndex.of("trace_attribute_idx", ImmutableList.of("trace_id")));
 
+    // slow and error trace counts are pre-aggregated at each of the aggregate rollup intervals, so
+    // that reading counts over long time ranges does not need to count individual trace rows
+    private static final ImmutableList<Column> overallCountColumns = ImmutableList.<Column>of(
+            ImmutableColumn.of("transaction_type", ColumnType.VARCHAR),
+            ImmutableColumn.of("capture_time", ColumnType.BIGINT),
+            ImmutableColumn.of("slow_count", ColumnType.BIGINT),
+            ImmutableColumn.of("error_count", ColumnType.BIGINT));
+
+    private static final ImmutableList<Column> transactionCountColumns = ImmutableList.<Column>of(
+            ImmutableColumn.of("transaction_type", ColumnType.VARCHAR),
+            ImmutableColumn.of("transaction_name", ColumnType.VARCHAR),
+            ImmutableColumn.of("capture_time", ColumnType.BIGINT),
+            ImmutableColumn.of("slow_count", ColumnType.BIGINT),
+            ImmutableColumn.of("error_count", ColumnType.BIGINT));
+
     private final DataSource dataSource;
     private final CappedDatabase traceCappedDatabase;
     private final TransactionTypeDao transactionTypeDao;
     private final FullQueryTextDao fullQueryTextDao;
     private final TraceAttributeNameDao traceAttributeNameDao;
 
+    private final ImmutableList<Long> rollupIntervalMillis;
+
+    // guards reading prior partial trace and updating counts, so that partial trace updates are
+    // never double counted
+    private final Object countLock = new Object();
+
     TraceDao(DataSource dataSource, CappedDatabase traceCappedDatabase,
             TransactionTypeDao transactionTypeDao, FullQueryTextDao fullQueryTextDao,
-            TraceAttributeNameDao traceAttributeNameDao) throws Exception {
+            TraceAttributeNameDao traceAttributeNameDao, ConfigRepository configRepository)
+            throws Exception {
         this.dataSource = dataSource;
         this.traceCappedDatabase = traceCappedDatabase;
         this.traceAttributeNameDao = traceAttributeNameDao;
         this.transactionTypeDao = transactionTypeDao;
         this.fullQueryTextDao = fullQueryTextDao;
-        if (dataSource.tableExists("trace")
-                && !dataSource.columnExists("trace", "shared_query_texts_capped_id")) {
+        ImmutableList.Builder<Long> rollupIntervalMillis = ImmutableList.builder();
+        for (RollupConfig rollupConfig : configRepository.getRollupConfigs()) {
+            rollupIntervalMillis.add(rollupConfig.intervalMillis());
+        }
+        this.rollupIntervalMillis = rollupIntervalMillis.build();
+        boolean traceTableExists = dataSource.tableExists("trace");
+        if (traceTableExists && !dataSource.columnExists("trace", "shared_query_texts_capped_id")) {
             // upgrade to 0.9.3
             startupLogger.info("upgrading glowroot schema, this may delay glowroot startup for a"
                     + " few minutes (depending on data size)...");
@@ -156,6 +189,14 @@ public class TraceDao implements TraceRepository {
         dataSource.syncIndexes("trace", traceIndexes);
         dataSource.syncTable("trace_attribute", traceAttributeColumns);
         dataSource.syncIndexes("trace_attribute", traceAttributeIndexes);
+        for (int i = 0; i < this.rollupIntervalMillis.size(); i++) {
+            syncCountTable(getOverallCountTableName(i), overallCountColumns,
+                    ImmutableList.of("transaction_type", "capture_time"),
+                    this.rollupIntervalMillis.get(i), traceTableExists);
+            syncCountTable(getTransactionCountTableName(i), transactionCountColumns,
+                    ImmutableList.of("transaction_type", "transaction_name", "capture_time"),
+                    this.rollupIntervalMillis.get(i), traceTableExists);
+        }
     }
 
     public void store(TraceReader traceReader) throws Exception {
@@ -169,7 +210,20 @@ public class TraceDao implements TraceRepository {
         Trace trace = builder.build();
         Trace.Header header = trace.getHeader();
 
-        dataSource.update(new TraceMerge(trace, traceVisitor.sharedQueryTexts));
+        TraceMerge traceMerge = new TraceMerge(trace, traceVisitor.sharedQueryTexts);
+        synchronized (countLock) {
+            CountedTrace priorCountedTrace = null;
+            if (trace.getUpdate()) {
+                priorCountedTrace = dataSource.queryAtMostOne(new CountedTraceQuery(trace.getId()));
+            }
+            dataSource.update(traceMerge);
+            if (priorCountedTrace != null) {
+                updateCounts(priorCountedTrace, -1);
+            }
+            updateCounts(new CountedTrace(header.getTransactionType(),
+                    header.getTransactionName(), header.getCaptureTime(), header.getSlow(),
+                    header.hasError()), 1);
+        }
         if (header.getAttributeCount() > 0) {
             if (trace.getUpdate()) {
                 dataSource.update("delete from trace_attribute where trace_id = ?", trace.getId());
@@ -198,34 +252,12 @@ public class TraceDao implements TraceRepository {
 
     @Override
     public long readSlowCount(String agentRollupId, TraceQuery query) throws Exception {
-        String transactionName = query.transactionName();
-        if (transactionName == null) {
-            return dataSource.queryForLong(
-                    "select count(*) from trace where transaction_type = ? and capture_time > ?"
-                            + " and capture_time <= ? and slow = ?",
-                    query.transactionType(), query.from(), query.to(), true);
-        } else {
-            return dataSource.queryForLong(
-                    "select count(*) from trace where transaction_type = ? and transaction_name = ?"
-                            + " and capture_time > ? and capture_time <= ? and slow = ?",
-                    query.transactionType(), transactionName, query.from(), query.to(), true);
-        }
+        return readCount(query, "slow", "slow_count");
     }
 
     @Override
     public long readErrorCount(String agentRollupId, TraceQuery query) throws Exception {
-        String transactionName = query.transactionName();
-        if (transactionName == null) {
-            return dataSource.queryForLong(
-                    "select count(*) from trace where transaction_type = ? and capture_time > ?"
-                            + " and capture_time <= ? and error = ?",
-                    query.transactionType(), query.from(), query.to(), true);
-        } else {
-            return dataSource.queryForLong(
-                    "select count(*) from trace where transaction_type = ? and transaction_name = ?"
-                            + " and capture_time > ? and capture_time <= ? and error = ?",
-                    query.transactionType(), transactionName, query.from(), query.to(), true);
-        }
+        return readCount(query, "error", "error_count");
     }
 
     @Override
@@ -317,6 +349,104 @@ public class TraceDao implements TraceRepository {
         traceAttributeNameDao.deleteBefore(captureTime);
         dataSource.deleteBefore("trace", captureTime);
         dataSource.deleteBefore("trace_attribute", captureTime);
+        for (int i = 0; i < rollupIntervalMillis.size(); i++) {
+            dataSource.deleteBefore(getOverallCountTableName(i), captureTime);
+            dataSource.deleteBefore(getTransactionCountTableName(i), captureTime);
+        }
+    }
+
+    private void syncCountTable(@Untainted String tableName, List<Column> columns,
+            List<String> indexColumns, long intervalMillis, boolean traceTableExists)
+            throws Exception {
+        boolean populate = traceTableExists && !dataSource.tableExists(tableName);
+        dataSource.syncTable(tableName, columns);
+        dataSource.syncIndexes(tableName,
+                ImmutableList.<Index>of(ImmutableIndex.of(tableName + "_idx", indexColumns)));
+        if (populate) {
+            // upgrade from a version prior to pre-aggregated counts
+            String groupByColumns = indexColumns.size() == 2 ? "transaction_type"
+                    : "transaction_type, transaction_name";
+            String captureTimeSql = "((capture_time + " + (intervalMillis - 1) + ") / "
+                    + intervalMillis + ") * " + intervalMillis;
+            dataSource.update(castUntainted("insert into " + tableName + " ("
+                    + groupByColumns + ", capture_time, slow_count, error_count) select "
+                    + groupByColumns + ", " + captureTimeSql + ", sum(case when slow then 1 else"
+                    + " 0 end), sum(case when error then 1 else 0 end) from trace where slow = ?"
+                    + " or error = ? group by " + groupByColumns + ", " + captureTimeSql),
+                    true, true);
+        }
+    }
+
+    @GuardedBy("countLock")
+    private void updateCounts(CountedTrace countedTrace, int delta) throws SQLException {
+        if (!countedTrace.slow && !countedTrace.error) {
+            return;
+        }
+        int slowDelta = countedTrace.slow ? delta : 0;
+        int errorDelta = countedTrace.error ? delta : 0;
+        for (int i = 0; i < rollupIntervalMillis.size(); i++) {
+            long captureTime = RollupLevelService.getCeilRollupTime(countedTrace.captureTime,
+                    rollupIntervalMillis.get(i));
+            int updated = dataSource.update("update " + getOverallCountTableName(i)
+                    + " set slow_count = slow_count + ?, error_count = error_count + ? where"
+                    + " transaction_type = ? and capture_time = ?", slowDelta, errorDelta,
+                    countedTrace.transactionType, captureTime);
+            if (updated == 0 && delta > 0) {
+                dataSource.update("insert into " + getOverallCountTableName(i)
+                        + " (transaction_type, capture_time, slow_count, error_count) values"
+                        + " (?, ?, ?, ?)", countedTrace.transactionType, captureTime, slowDelta,
+                        errorDelta);
+            }
+            updated = dataSource.update("update " + getTransactionCountTableName(i)
+                    + " set slow_count = slow_count + ?, error_count = error_count + ? where"
+                    + " transaction_type = ? and transaction_name = ? and capture_time = ?",
+                    slowDelta, errorDelta, countedTrace.transactionType,
+                    countedTrace.transactionName, captureTime);
+            if (updated == 0 && delta > 0) {
+                dataSource.update("insert into " + getTransactionCountTableName(i)
+                        + " (transaction_type, transaction_name, capture_time, slow_count,"
+                        + " error_count) values (?, ?, ?, ?, ?)", countedTrace.transactionType,
+                        countedTrace.transactionName, captureTime, slowDelta, errorDelta);
+            }
+        }
+    }
+
+    // the ends of the time range that do not line up with the finest rollup interval are counted
+    // from the trace table, everything else is summed from the coarsest pre-aggregated counts
+    private long readCount(TraceQuery query, @Untainted String flagColumn,
+            @Untainted String countColumn) throws Exception {
+        String transactionName = query.transactionName();
+        long count = 0;
+        for (RollupInterval rollupInterval : RollupIntervals.split(query.from(), query.to(),
+                rollupIntervalMillis)) {
+            Integer rollupLevel = rollupInterval.rollupLevel();
+            if (rollupLevel == null) {
+                if (transactionName == null) {
+                    count += dataSource.queryForLong("select count(*) from trace where"
+                            + " transaction_type = ? and capture_time > ? and capture_time <= ?"
+                            + " and " + flagColumn + " = ?", query.transactionType(),
+                            rollupInterval.from(), rollupInterval.to(), true);
+                } else {
+                    count += dataSource.queryForLong("select count(*) from trace where"
+                            + " transaction_type = ? and transaction_name = ? and capture_time > ?"
+                            + " and capture_time <= ? and " + flagColumn + " = ?",
+                            query.transactionType(), transactionName, rollupInterval.from(),
+                            rollupInterval.to(), true);
+                }
+            } else if (transactionName == null) {
+                count += dataSource.queryForLong("select ifnull(sum(" + countColumn + "), 0) from "
+                        + getOverallCountTableName(rollupLevel) + " where transaction_type = ? and"
+                        + " capture_time > ? and capture_time <= ?", query.transactionType(),
+                        rollupInterval.from(), rollupInterval.to());
+            } else {
+                count += dataSource.queryForLong("select ifnull(sum(" + countColumn + "), 0) from "
+                        + getTransactionCountTableName(rollupLevel) + " where transaction_type = ?"
+                        + " and transaction_name = ? and capture_time > ? and capture_time <= ?",
+                        query.transactionType(), transactionName, rollupInterval.from(),
+                        rollupInterval.to());
+            }
+        }
+        return count;
     }
 
     private Result<TracePoint> readPoints(TraceKind traceKind, TraceQuery query,
@@ -328,6 +458,14 @@ public class TraceDao implements TraceRepository {
         return Result.create(points, limit);
     }
 
+    private static @Untainted String getOverallCountTableName(int rollupLevel) {
+        return "trace_tt_count_rollup_" + castUntainted(rollupLevel);
+    }
+
+    private static @Untainted String getTransactionCountTableName(int rollupLevel) {
+        return "trace_tn_count_rollup_" + castUntainted(rollupLevel);
+    }
+
     private static void appendQueryAndFilter(StringBuilder sql, TraceQuery query,
             ErrorMessageFilter filter) {
         sql.append(" and transaction_type = ?");
@@ -537,6 +675,53 @@ public class TraceDao implements TraceRepository {
         }
     }
 
+    private static class CountedTrace {
+
+        private final String transactionType;
+        private final String transactionName;
+        private final long captureTime;
+        private final boolean slow;
+        private final boolean error;
+
+        private CountedTrace(String transactionType, String transactionName, long captureTime,
+                boolean slow, boolean error) {
+            this.transactionType = transactionType;
+            this.transactionName = transactionName;
+            this.captureTime = captureTime;
+            this.slow = slow;
+            this.error = error;
+        }
+    }
+
+    private static class CountedTraceQuery implements JdbcRowQuery<CountedTrace> {
+
+        private final String traceId;
+
+        private CountedTraceQuery(String traceId) {
+            this.traceId = traceId;
+        }
+
+        @Override
+        public @Untainted String getSql() {
+            return "select transaction_type, transaction_name, capture_time, slow, error from"
+                    + " trace where id = ?";
+        }
+
+        @Override
+        public void bind(PreparedStatement preparedStatement) throws SQLException {
+            preparedStatement.setString(1, traceId);
+        }
+
+        @Override
+        public CountedTrace mapRow(ResultSet resultSet) throws SQLException {
+            int i = 1;
+            String transactionType = checkNotNull(resultSet.getString(i++));
+            String transactionName = checkNotNull(resultSet.getString(i++));
+            return new CountedTrace(transactionType, transactionName, resultSet.getLong(i++),
+                    resultSet.getBoolean(i++), resultSet.getBoolean(i++));
+        }
+    }
+
     private static class TracePointQuery implements JdbcRowQuery<TracePoint> {
 
         private final ParameterizedSql parameterizedSql;
@@ -26,6 +26,7 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
@@ -64,6 +65,10 @@ public class DataSource {
     private final @Nullable File dbFile;
     private final Thread shutdownHookThread;
     private final Object lock = new Object();
+
+    // number of threads holding or waiting on the lock for queries and updates, so that background
+    // work (e.g. aggregate rollups) can yield the single jdbc connection to ingestion and the ui
+    private final AtomicInteger lockDemand = new AtomicInteger();
     @GuardedBy("lock")
     private Connection connection;
     private volatile boolean closed;
@@ -215,6 +220,15 @@ public class DataSource {
     }
 
     public <T> T query(JdbcQuery<T> jdbcQuery) throws Exception {
+        lockDemand.getAndIncrement();
+        try {
+            return queryUnderLock(jdbcQuery);
+        } finally {
+            lockDemand.getAndDecrement();
+        }
+    }
+
+    private <T> T queryUnderLock(JdbcQuery<T> jdbcQuery) throws Exception {
         synchronized (lock) {
             if (closed) {
                 return jdbcQuery.valueIfDataSourceClosed();
@@ -249,6 +263,16 @@ public class DataSource {
 
     public <T extends /*@NonNull*/ Object> List<T> query(JdbcRowQuery<T> jdbcQuery)
             throws SQLException {
+        lockDemand.getAndIncrement();
+        try {
+            return queryUnderLock(jdbcQuery);
+        } finally {
+            lockDemand.getAndDecrement();
+        }
+    }
+
+    private <T extends /*@NonNull*/ Object> List<T> queryUnderLock(JdbcRowQuery<T> jdbcQuery)
+            throws SQLException {
         synchronized (lock) {
             if (closed) {
                 return ImmutableList.of();
@@ -297,14 +321,19 @@ public class DataSource {
             // TransactionCollectorImpl.logPendingLimitWarning())
             return 0;
         }
-        synchronized (lock) {
-            if (closed) {
-                return 0;
+        lockDemand.getAndIncrement();
+        try {
+            synchronized (lock) {
+                if (closed) {
+                    return 0;
+                }
+                PreparedStatement preparedStatement = prepareStatement(jdbcUpdate.getSql(), 0);
+                jdbcUpdate.bind(preparedStatement);
+                return preparedStatement.executeUpdate();
+                // don't need to close statement since they are all cached and used under lock
             }
-            PreparedStatement preparedStatement = prepareStatement(jdbcUpdate.getSql(), 0);
-            jdbcUpdate.bind(preparedStatement);
-            return preparedStatement.executeUpdate();
-            // don't need to close statement since they are all cached and used under lock
+        } finally {
+            lockDemand.getAndDecrement();
         }
     }
 
@@ -316,17 +345,27 @@ public class DataSource {
             // TransactionCollectorImpl.logPendingLimitWarning())
             return new int[0];
         }
-        synchronized (lock) {
-            if (closed) {
-                return new int[0];
+        lockDemand.getAndIncrement();
+        try {
+            synchronized (lock) {
+                if (closed) {
+                    return new int[0];
+                }
+                PreparedStatement preparedStatement = prepareStatement(jdbcUpdate.getSql(), 0);
+                jdbcUpdate.bind(preparedStatement);
+                return preparedStatement.executeBatch();
+                // don't need to close statement since they are all cached and used under lock
             }
-            PreparedStatement preparedStatement = prepareStatement(jdbcUpdate.getSql(), 0);
-            jdbcUpdate.bind(preparedStatement);
-            return preparedStatement.executeBatch();
-            // don't need to close statement since they are all cached and used under lock
+        } finally {
+            lockDemand.getAndDecrement();
         }
     }
 
+    // this is only meaningful when called from outside of any query or update
+    public boolean hasLockDemand() {
+        return lockDemand.get() > 0;
+    }
+
     public void deleteBefore(@Untainted String tableName, long captureTime) throws SQLException {
         // delete 100 at a time, which is both faster than deleting all at once, and doesn't
         // lock the single jdbc connection for one large chunk of time
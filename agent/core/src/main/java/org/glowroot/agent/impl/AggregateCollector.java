@@ -65,6 +65,7 @@ class AggregateCollector {
     private double totalDurationNanos;
     private long transactionCount;
     private long errorCount;
+    private long unstoredTraceCount;
     private boolean asyncTransactions;
     private final RootTimerCollectorImpl mainThreadRootTimers = new RootTimerCollectorImpl();
     private final RootTimerCollectorImpl auxThreadRootTimers = new RootTimerCollectorImpl();
@@ -97,6 +98,9 @@ class AggregateCollector {
         if (transaction.getErrorMessage() != null) {
             errorCount++;
         }
+        if (transaction.isTraceNotStored()) {
+            unstoredTraceCount++;
+        }
         if (transaction.isAsync()) {
             asyncTransactions = true;
         }
@@ -153,12 +157,15 @@ class AggregateCollector {
         return serviceCalls;
     }
 
-    Aggregate build(SharedQueryTextCollector sharedQueryTextCollector,
-            ScratchBuffer scratchBuffer) {
+    // the bulk of the aggregate (everything except queries) is built separately so that it can be
+    // built in parallel, while queries are added later (serially) since shared query text indexes
+    // must be assigned in the same order that the aggregates are visited
+    Aggregate.Builder buildWithoutQueries(ScratchBuffer scratchBuffer) {
         Aggregate.Builder builder = Aggregate.newBuilder()
                 .setTotalDurationNanos(totalDurationNanos)
                 .setTransactionCount(transactionCount)
                 .setErrorCount(errorCount)
+                .setUnstoredTraceCount(unstoredTraceCount)
                 .setAsyncTransactions(asyncTransactions)
                 .addAllMainThreadRootTimer(mainThreadRootTimers.toProto())
                 .addAllAuxThreadRootTimer(auxThreadRootTimers.toProto())
@@ -170,9 +177,6 @@ class AggregateCollector {
         if (!auxThreadStats.isNA()) {
             builder.setAuxThreadStats(auxThreadStats.toProto());
         }
-        if (queries != null) {
-            builder.addAllQueriesByType(queries.toAggregateProto(sharedQueryTextCollector));
-        }
         if (serviceCalls != null) {
             builder.addAllServiceCallsByType(serviceCalls.toProto());
         }
@@ -182,6 +186,14 @@ class AggregateCollector {
         if (auxThreadProfile != null) {
             builder.setAuxThreadProfile(auxThreadProfile.toProto());
         }
+        return builder;
+    }
+
+    Aggregate addQueriesAndBuild(Aggregate.Builder builder,
+            SharedQueryTextCollector sharedQueryTextCollector) {
+        if (queries != null) {
+            builder.addAllQueriesByType(queries.toAggregateProto(sharedQueryTextCollector));
+        }
         return builder.build();
     }
 
@@ -210,6 +222,7 @@ class AggregateCollector {
                 .captureTime(captureTime)
                 .totalDurationNanos(totalDurationNanos)
                 .transactionCount(transactionCount)
+                .unstoredTraceCount(unstoredTraceCount)
                 .asyncTransactions(asyncTransactions)
                 .mainThreadRootTimers(mainThreadRootTimers.toProto())
                 .auxThreadRootTimers(auxThreadRootTimers.toProto())
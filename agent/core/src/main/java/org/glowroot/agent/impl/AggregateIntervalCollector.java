@@ -16,14 +16,21 @@
 package org.glowroot.agent.impl;
 
 import java.io.IOException;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Queues;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -93,7 +100,10 @@ public class AggregateIntervalCollector {
             if (typeCollector == null) {
                 return;
             }
-            typeCollector.overallAggregateCollector.mergeOverallSummaryInto(collector);
+            AggregateCollector aggregateCollector = typeCollector.overallAggregateCollector;
+            synchronized (aggregateCollector) {
+                aggregateCollector.mergeOverallSummaryInto(collector);
+            }
         }
     }
 
@@ -106,7 +116,9 @@ public class AggregateIntervalCollector {
             }
             for (AggregateCollector aggregateCollector : typeCollector.transactionAggregateCollectors
                     .values()) {
-                aggregateCollector.mergeTransactionSummariesInto(collector);
+                synchronized (aggregateCollector) {
+                    aggregateCollector.mergeTransactionSummariesInto(collector);
+                }
             }
         }
     }
@@ -118,7 +130,10 @@ public class AggregateIntervalCollector {
             if (typeCollector == null) {
                 return;
             }
-            typeCollector.overallAggregateCollector.mergeOverallErrorSummaryInto(collector);
+            AggregateCollector aggregateCollector = typeCollector.overallAggregateCollector;
+            synchronized (aggregateCollector) {
+                aggregateCollector.mergeOverallErrorSummaryInto(collector);
+            }
         }
     }
 
@@ -131,7 +146,9 @@ public class AggregateIntervalCollector {
             }
             for (AggregateCollector aggregateCollector : typeCollector.transactionAggregateCollectors
                     .values()) {
-                aggregateCollector.mergeTransactionErrorSummariesInto(collector);
+                synchronized (aggregateCollector) {
+                    aggregateCollector.mergeTransactionErrorSummariesInto(collector);
+                }
             }
         }
     }
@@ -145,7 +162,9 @@ public class AggregateIntervalCollector {
                 return null;
             }
             long liveCaptureTime = Math.min(captureTime, clock.currentTimeMillis());
-            return aggregateCollector.getOverviewAggregate(liveCaptureTime);
+            synchronized (aggregateCollector) {
+                return aggregateCollector.getOverviewAggregate(liveCaptureTime);
+            }
         }
     }
 
@@ -158,7 +177,9 @@ public class AggregateIntervalCollector {
                 return null;
             }
             long liveCaptureTime = Math.min(captureTime, clock.currentTimeMillis());
-            return aggregateCollector.getPercentileAggregate(liveCaptureTime);
+            synchronized (aggregateCollector) {
+                return aggregateCollector.getPercentileAggregate(liveCaptureTime);
+            }
         }
     }
 
@@ -171,7 +192,9 @@ public class AggregateIntervalCollector {
                 return null;
             }
             long liveCaptureTime = Math.min(captureTime, clock.currentTimeMillis());
-            return aggregateCollector.getThroughputAggregate(liveCaptureTime);
+            synchronized (aggregateCollector) {
+                return aggregateCollector.getThroughputAggregate(liveCaptureTime);
+            }
         }
     }
 
@@ -195,7 +218,9 @@ public class AggregateIntervalCollector {
             if (aggregateCollector == null) {
                 return;
             }
-            aggregateCollector.mergeQueriesInto(collector);
+            synchronized (aggregateCollector) {
+                aggregateCollector.mergeQueriesInto(collector);
+            }
         }
     }
 
@@ -207,7 +232,9 @@ public class AggregateIntervalCollector {
             if (aggregateCollector == null) {
                 return;
             }
-            aggregateCollector.mergeServiceCallsInto(collector);
+            synchronized (aggregateCollector) {
+                aggregateCollector.mergeServiceCallsInto(collector);
+            }
         }
     }
 
@@ -219,7 +246,9 @@ public class AggregateIntervalCollector {
             if (aggregateCollector == null) {
                 return;
             }
-            aggregateCollector.mergeMainThreadProfilesInto(collector);
+            synchronized (aggregateCollector) {
+                aggregateCollector.mergeMainThreadProfilesInto(collector);
+            }
         }
     }
 
@@ -231,12 +260,18 @@ public class AggregateIntervalCollector {
             if (aggregateCollector == null) {
                 return;
             }
-            aggregateCollector.mergeAuxThreadProfilesInto(collector);
+            synchronized (aggregateCollector) {
+                aggregateCollector.mergeAuxThreadProfilesInto(collector);
+            }
         }
     }
 
-    void flush(Collector collector) throws Exception {
-        collector.collectAggregates(new AggregatesImpl(captureTime));
+    // aggregates are built in parallel using buildExecutor, with at most maxInFlight aggregates
+    // built ahead of the (serial) aggregate visitor, so that the full payload is never
+    // materialized in memory at once
+    void flush(Collector collector, ExecutorService buildExecutor, int maxInFlight)
+            throws Exception {
+        collector.collectAggregates(new AggregatesImpl(captureTime, buildExecutor, maxInFlight));
     }
 
     void clear() {
@@ -305,6 +340,13 @@ public class AggregateIntervalCollector {
         }
 
         private void merge(Transaction transaction, AggregateCollector aggregateCollector) {
+            synchronized (aggregateCollector) {
+                mergeInternal(transaction, aggregateCollector);
+            }
+        }
+
+        private void mergeInternal(Transaction transaction,
+                AggregateCollector aggregateCollector) {
             aggregateCollector.add(transaction);
             aggregateCollector.getMainThreadRootTimers()
                     .mergeRootTimer(transaction.getMainThreadRootTimer());
@@ -323,26 +365,38 @@ public class AggregateIntervalCollector {
         }
 
         private @Nullable String getFullQueryText(String fullQueryTextSha1) {
-            String fullQueryText = overallAggregateCollector.getFullQueryText(fullQueryTextSha1);
+            String fullQueryText = getFullQueryText(overallAggregateCollector, fullQueryTextSha1);
             if (fullQueryText != null) {
                 return fullQueryText;
             }
             for (AggregateCollector aggregateCollector : transactionAggregateCollectors.values()) {
-                fullQueryText = aggregateCollector.getFullQueryText(fullQueryTextSha1);
+                fullQueryText = getFullQueryText(aggregateCollector, fullQueryTextSha1);
                 if (fullQueryText != null) {
                     return fullQueryText;
                 }
             }
             return null;
         }
+
+        private @Nullable String getFullQueryText(AggregateCollector aggregateCollector,
+                String fullQueryTextSha1) {
+            synchronized (aggregateCollector) {
+                return aggregateCollector.getFullQueryText(fullQueryTextSha1);
+            }
+        }
     }
 
     private class AggregatesImpl implements AggregateReader {
 
         private final long captureTime;
+        private final ExecutorService buildExecutor;
+        private final int maxInFlight;
 
-        private AggregatesImpl(long captureTime) {
+        private AggregatesImpl(long captureTime, ExecutorService buildExecutor,
+                int maxInFlight) {
             this.captureTime = captureTime;
+            this.buildExecutor = buildExecutor;
+            this.maxInFlight = maxInFlight;
         }
 
         @Override
@@ -352,27 +406,103 @@ public class AggregateIntervalCollector {
 
         @Override
         public void accept(AggregateVisitor aggregateVisitor) throws Exception {
+            // the interval lock is only held while grabbing the list of aggregate collectors,
+            // (no more transactions are added once the interval is being flushed) and each
+            // aggregate collector is then locked individually while it is being built, so that
+            // live UI requests are not blocked for the duration of the flush
+            List<PendingAggregate> pendingAggregates = getPendingAggregates();
+            SharedQueryTextCollector sharedQueryTextCollector = new SharedQueryTextCollector();
+            // scratch buffer i % maxInFlight is only re-used after build i has been visited
+            ScratchBuffer[] scratchBuffers = new ScratchBuffer[maxInFlight];
+            for (int i = 0; i < maxInFlight; i++) {
+                scratchBuffers[i] = new ScratchBuffer();
+            }
+            Queue<Future<Aggregate.Builder>> futures = Queues.newArrayDeque();
+            int submittedCount = 0;
+            try {
+                for (PendingAggregate pendingAggregate : pendingAggregates) {
+                    while (submittedCount < pendingAggregates.size()
+                            && futures.size() < maxInFlight) {
+                        futures.add(buildExecutor.submit(new BuildWithoutQueries(
+                                pendingAggregates.get(submittedCount).aggregateCollector,
+                                scratchBuffers[submittedCount % maxInFlight])));
+                        submittedCount++;
+                    }
+                    Aggregate.Builder builder = futures.remove().get();
+                    AggregateCollector aggregateCollector = pendingAggregate.aggregateCollector;
+                    Aggregate aggregate;
+                    synchronized (aggregateCollector) {
+                        aggregate = aggregateCollector.addQueriesAndBuild(builder,
+                                sharedQueryTextCollector);
+                    }
+                    String transactionName = pendingAggregate.transactionName;
+                    if (transactionName == null) {
+                        aggregateVisitor.visitOverallAggregate(pendingAggregate.transactionType,
+                                sharedQueryTextCollector.getAndClearLastestSharedQueryTexts(),
+                                aggregate);
+                    } else {
+                        aggregateVisitor.visitTransactionAggregate(
+                                pendingAggregate.transactionType, transactionName,
+                                sharedQueryTextCollector.getAndClearLastestSharedQueryTexts(),
+                                aggregate);
+                    }
+                }
+            } finally {
+                for (Future<Aggregate.Builder> future : futures) {
+                    future.cancel(false);
+                }
+            }
+        }
+
+        private List<PendingAggregate> getPendingAggregates() {
+            List<PendingAggregate> pendingAggregates = Lists.newArrayList();
             synchronized (lock) {
-                SharedQueryTextCollector sharedQueryTextCollector = new SharedQueryTextCollector();
-                ScratchBuffer scratchBuffer = new ScratchBuffer();
                 for (Entry<String, IntervalTypeCollector> e : typeCollectors.entrySet()) {
                     String transactionType = e.getKey();
                     IntervalTypeCollector intervalTypeCollector = e.getValue();
-                    Aggregate overallAggregate = intervalTypeCollector.overallAggregateCollector
-                            .build(sharedQueryTextCollector, scratchBuffer);
-                    aggregateVisitor.visitOverallAggregate(transactionType,
-                            sharedQueryTextCollector.getAndClearLastestSharedQueryTexts(),
-                            overallAggregate);
+                    pendingAggregates.add(new PendingAggregate(transactionType, null,
+                            intervalTypeCollector.overallAggregateCollector));
                     for (Entry<String, AggregateCollector> f : intervalTypeCollector.transactionAggregateCollectors
                             .entrySet()) {
-                        Aggregate transactionAggregate =
-                                f.getValue().build(sharedQueryTextCollector, scratchBuffer);
-                        aggregateVisitor.visitTransactionAggregate(transactionType, f.getKey(),
-                                sharedQueryTextCollector.getAndClearLastestSharedQueryTexts(),
-                                transactionAggregate);
+                        pendingAggregates.add(
+                                new PendingAggregate(transactionType, f.getKey(), f.getValue()));
                     }
                 }
             }
+            return pendingAggregates;
+        }
+    }
+
+    private static class PendingAggregate {
+
+        private final String transactionType;
+        private final @Nullable String transactionName; // null for overall aggregate
+        private final AggregateCollector aggregateCollector;
+
+        private PendingAggregate(String transactionType, @Nullable String transactionName,
+                AggregateCollector aggregateCollector) {
+            this.transactionType = transactionType;
+            this.transactionName = transactionName;
+            this.aggregateCollector = aggregateCollector;
+        }
+    }
+
+    private static class BuildWithoutQueries implements Callable<Aggregate.Builder> {
+
+        private final AggregateCollector aggregateCollector;
+        private final ScratchBuffer scratchBuffer;
+
+        private BuildWithoutQueries(AggregateCollector aggregateCollector,
+                ScratchBuffer scratchBuffer) {
+            this.aggregateCollector = aggregateCollector;
+            this.scratchBuffer = scratchBuffer;
+        }
+
+        @Override
+        public Aggregate.Builder call() {
+            synchronized (aggregateCollector) {
+                return aggregateCollector.buildWithoutQueries(scratchBuffer);
+            }
         }
     }
 }
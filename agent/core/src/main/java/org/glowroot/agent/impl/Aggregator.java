@@ -46,12 +46,16 @@ public class Aggregator {
     // back pressure on aggregate flushing
     private static final int AGGREGATE_PENDING_LIMIT = 5;
 
+    private static final int FLUSH_BUILD_THREADS =
+            Math.min(4, Runtime.getRuntime().availableProcessors());
+
     private volatile AggregateIntervalCollector activeIntervalCollector;
     private final List<AggregateIntervalCollector> pendingIntervalCollectors =
             Lists.newCopyOnWriteArrayList();
 
     private final ExecutorService processingExecutor;
     private final ExecutorService flushingExecutor;
+    private final ExecutorService flushBuildingExecutor;
     private final Collector collector;
     private final ConfigService configService;
     private final Clock clock;
@@ -87,6 +91,11 @@ public class Aggregator {
                         .setDaemon(true)
                         .setNameFormat("Glowroot-Aggregate-Flushing")
                         .build());
+        flushBuildingExecutor = Executors.newFixedThreadPool(FLUSH_BUILD_THREADS,
+                new ThreadFactoryBuilder()
+                        .setDaemon(true)
+                        .setNameFormat("Glowroot-Aggregate-Flushing-Builder-%d")
+                        .build());
         activeIntervalCollector =
                 new AggregateIntervalCollector(clock.currentTimeMillis(), aggregateIntervalMillis,
                         configService.getAdvancedConfig()
@@ -163,6 +172,10 @@ public class Aggregator {
         if (!flushingExecutor.awaitTermination(10, SECONDS)) {
             throw new IllegalStateException("Could not terminate executor");
         }
+        flushBuildingExecutor.shutdown();
+        if (!flushBuildingExecutor.awaitTermination(10, SECONDS)) {
+            throw new IllegalStateException("Could not terminate executor");
+        }
     }
 
     private class TransactionProcessor implements Runnable {
@@ -254,7 +267,8 @@ public class Aggregator {
                 @Override
                 public void run() {
                     try {
-                        intervalCollector.flush(collector);
+                        intervalCollector.flush(collector, flushBuildingExecutor,
+                                FLUSH_BUILD_THREADS * 2);
                     } catch (Throwable t) {
                         logger.error(t.getMessage(), t);
                     } finally {
@@ -37,6 +37,7 @@ import org.glowroot.agent.model.QueryCollector;
 import org.glowroot.agent.model.QueryData;
 import org.glowroot.agent.model.QueryDataMap;
 import org.glowroot.agent.model.QueryEntryBase;
+import org.glowroot.agent.model.QueryTextNormalizer;
 import org.glowroot.agent.model.ThreadContextPlus;
 import org.glowroot.agent.model.ThreadStats;
 import org.glowroot.agent.model.ThreadStatsComponent;
@@ -265,8 +266,12 @@ public class ThreadContextImpl implements ThreadContextPlus {
     }
 
     // only called by transaction thread
-    private QueryData getOrCreateQueryDataIfPossible(String queryType, String queryText,
+    private QueryData getOrCreateQueryDataIfPossible(String queryType, String originalQueryText,
             boolean bypassLimit) {
+        // aggregated queries are grouped by normalized query text, so that queries which only
+        // differ by inlined literals (or by IN list length) are not each aggregated separately
+        String queryText =
+                QueryTextNormalizer.getAggregateQueryText(queryType, originalQueryText);
         if (headQueryData == null) {
             // the call to allowAnotherAggregateQuery() is needed to increment the counter
             if (!transaction.allowAnotherAggregateQuery(bypassLimit)) {
@@ -322,9 +327,9 @@ public class ThreadContextImpl implements ThreadContextPlus {
 
     private TraceEntryImpl addErrorEntry(long startTick, long endTick,
             @Nullable Object messageSupplier, @Nullable QueryData queryData,
-            ErrorMessage errorMessage) {
+            @Nullable String queryText, ErrorMessage errorMessage) {
         TraceEntryImpl entry = traceEntryComponent.addErrorEntry(startTick, endTick,
-                messageSupplier, queryData, errorMessage);
+                messageSupplier, queryData, queryText, errorMessage);
         // memory barrier write ensures partial trace capture will see data collected up to now
         // memory barrier read ensures timely visibility of detach()
         transaction.memoryBarrierReadWrite();
@@ -334,7 +339,7 @@ public class ThreadContextImpl implements ThreadContextPlus {
     private TraceEntryImpl startAsyncTraceEntry(long startTick, MessageSupplier messageSupplier,
             TimerImpl syncTimer, AsyncTimerImpl asyncTimer) {
         TraceEntryImpl entry = traceEntryComponent.pushEntry(startTick, messageSupplier, syncTimer,
-                asyncTimer, null, 0);
+                asyncTimer, null, null, 0);
         // memory barrier write ensures partial trace capture will see data collected up to now
         // memory barrier read ensures timely visibility of detach()
         transaction.memoryBarrierReadWrite();
@@ -343,10 +348,11 @@ public class ThreadContextImpl implements ThreadContextPlus {
 
     private TraceEntryImpl startAsyncQueryEntry(long startTick,
             QueryMessageSupplier queryMessageSupplier, TimerImpl syncTimer,
-            AsyncTimerImpl asyncTimer, @Nullable QueryData queryData, long queryExecutionCount) {
+            AsyncTimerImpl asyncTimer, QueryData queryData, String queryText,
+            long queryExecutionCount) {
         TraceEntryImpl entry =
                 traceEntryComponent.pushEntry(startTick, queryMessageSupplier, syncTimer,
-                        asyncTimer, queryData, queryExecutionCount);
+                        asyncTimer, queryData, queryText, queryExecutionCount);
         // memory barrier write ensures partial trace capture will see data collected up to now
         // memory barrier read ensures timely visibility of detach()
         transaction.memoryBarrierReadWrite();
@@ -357,7 +363,7 @@ public class ThreadContextImpl implements ThreadContextPlus {
             MessageSupplier messageSupplier, TimerImpl syncTimer, AsyncTimerImpl asyncTimer,
             @Nullable QueryData queryData) {
         TraceEntryImpl entry = traceEntryComponent.pushEntry(startTick, messageSupplier,
-                syncTimer, asyncTimer, queryData, 1);
+                syncTimer, asyncTimer, queryData, null, 1);
         // memory barrier write ensures partial trace capture will see data collected up to now
         // memory barrier read ensures timely visibility of detach()
         transaction.memoryBarrierReadWrite();
@@ -498,9 +504,11 @@ public class ThreadContextImpl implements ThreadContextPlus {
         long startTick = ticker.read();
         TimerImpl timer = startTimer(timerName, startTick);
         if (transaction.allowAnotherEntry()) {
-            return traceEntryComponent.pushEntry(startTick, messageSupplier, timer, null, null, 0);
+            return traceEntryComponent.pushEntry(startTick, messageSupplier, timer, null, null,
+                    null, 0);
         } else {
-            return new DummyTraceEntryOrQuery(timer, null, startTick, messageSupplier, null, 0);
+            return new DummyTraceEntryOrQuery(timer, null, startTick, messageSupplier, null, null,
+                    0);
         }
     }
 
@@ -517,9 +525,11 @@ public class ThreadContextImpl implements ThreadContextPlus {
         long startTick = ticker.read();
         TimerImpl timer = startTimer(timerName, startTick);
         if (transaction.allowAnotherEntry()) {
-            return traceEntryComponent.pushEntry(startTick, messageSupplier, timer, null, null, 0);
+            return traceEntryComponent.pushEntry(startTick, messageSupplier, timer, null, null,
+                    null, 0);
         } else {
-            return new DummyTraceEntryOrQuery(timer, null, startTick, messageSupplier, null, 0);
+            return new DummyTraceEntryOrQuery(timer, null, startTick, messageSupplier, null, null,
+                    0);
         }
     }
 
@@ -541,7 +551,7 @@ public class ThreadContextImpl implements ThreadContextPlus {
             return startAsyncTraceEntry(startTick, messageSupplier, syncTimer, asyncTimer);
         } else {
             return new DummyTraceEntryOrQuery(syncTimer, asyncTimer, startTick, messageSupplier,
-                    null, 0);
+                    null, null, 0);
         }
     }
 
@@ -569,11 +579,11 @@ public class ThreadContextImpl implements ThreadContextPlus {
         if (transaction.allowAnotherEntry()) {
             QueryData queryData = getOrCreateQueryDataIfPossible(queryType, queryText, true);
             return traceEntryComponent.pushEntry(startTick, queryMessageSupplier, timer, null,
-                    queryData, 1);
+                    queryData, queryText, 1);
         } else {
             QueryData queryData = getOrCreateQueryDataIfPossible(queryType, queryText, false);
             return new DummyTraceEntryOrQuery(timer, null, startTick, queryMessageSupplier,
-                    queryData, 1);
+                    queryData, queryText, 1);
         }
     }
 
@@ -601,11 +611,11 @@ public class ThreadContextImpl implements ThreadContextPlus {
         if (transaction.allowAnotherEntry()) {
             QueryData queryData = getOrCreateQueryDataIfPossible(queryType, queryText, true);
             return traceEntryComponent.pushEntry(startTick, queryMessageSupplier, timer, null,
-                    queryData, queryExecutionCount);
+                    queryData, queryText, queryExecutionCount);
         } else {
             QueryData queryData = getOrCreateQueryDataIfPossible(queryType, queryText, false);
             return new DummyTraceEntryOrQuery(timer, null, startTick, queryMessageSupplier,
-                    queryData, queryExecutionCount);
+                    queryData, queryText, queryExecutionCount);
         }
     }
 
@@ -635,11 +645,11 @@ public class ThreadContextImpl implements ThreadContextPlus {
         if (transaction.allowAnotherEntry()) {
             QueryData queryData = getOrCreateQueryDataIfPossible(queryType, queryText, true);
             return startAsyncQueryEntry(startTick, queryMessageSupplier, syncTimer, asyncTimer,
-                    queryData, 1);
+                    queryData, queryText, 1);
         } else {
             QueryData queryData = getOrCreateQueryDataIfPossible(queryType, queryText, false);
             return new DummyTraceEntryOrQuery(syncTimer, asyncTimer, startTick,
-                    queryMessageSupplier, queryData, 1);
+                    queryMessageSupplier, queryData, queryText, 1);
         }
     }
 
@@ -667,10 +677,10 @@ public class ThreadContextImpl implements ThreadContextPlus {
         QueryData queryData = getOrCreateServiceCallDataIfPossible(type, text);
         if (transaction.allowAnotherEntry()) {
             return traceEntryComponent.pushEntry(startTick, messageSupplier, timer, null, queryData,
-                    1);
+                    null, 1);
         } else {
             return new DummyTraceEntryOrQuery(timer, null, startTick, messageSupplier, queryData,
-                    1);
+                    null, 1);
         }
     }
 
@@ -703,7 +713,7 @@ public class ThreadContextImpl implements ThreadContextPlus {
                     queryData);
         } else {
             return new DummyTraceEntryOrQuery(syncTimer, asyncTimer, startTick, messageSupplier,
-                    queryData, 1);
+                    queryData, null, 1);
         }
     }
 
@@ -903,7 +913,7 @@ public class ThreadContextImpl implements ThreadContextPlus {
             ErrorMessage errorMessage =
                     ErrorMessage.create(message, t, transaction.getThrowableFrameLimitCounter());
             org.glowroot.agent.impl.TraceEntryImpl entry =
-                    addErrorEntry(currTick, currTick, null, null, errorMessage);
+                    addErrorEntry(currTick, currTick, null, null, null, errorMessage);
             if (t == null) {
                 StackTraceElement[] stackTrace = Thread.currentThread().getStackTrace();
                 // strip up through this method, plus 2 additional methods:
@@ -968,7 +978,7 @@ public class ThreadContextImpl implements ThreadContextPlus {
             TraceEntryImpl rootEntry = getRootEntry();
             parentChildMap.put(rootEntry,
                     new TraceEntryImpl(this, rootEntry, DETACHED_MESSAGE_SUPPLIER,
-                            null, 0, transaction.getEndTick(), null, null));
+                            null, null, 0, transaction.getEndTick(), null, null));
         }
     }
 
@@ -999,8 +1009,8 @@ public class ThreadContextImpl implements ThreadContextPlus {
 
         public DummyTraceEntryOrQuery(TimerImpl syncTimer, @Nullable AsyncTimerImpl asyncTimer,
                 long startTick, Object messageSupplier, @Nullable QueryData queryData,
-                long queryExecutionCount) {
-            super(queryData);
+                @Nullable String queryText, long queryExecutionCount) {
+            super(queryData, queryText);
             this.syncTimer = syncTimer;
             this.asyncTimer = asyncTimer;
             this.startTick = startTick;
@@ -1055,7 +1065,7 @@ public class ThreadContextImpl implements ThreadContextPlus {
                         transaction.getThrowableFrameLimitCounter());
                 // entry won't be nested properly, but at least the error will get captured
                 org.glowroot.agent.impl.TraceEntryImpl entry = addErrorEntry(startTick, endTick,
-                        messageSupplier, getQueryData(), errorMessage);
+                        messageSupplier, getQueryData(), getQueryText(), errorMessage);
                 if (t == null) {
                     StackTraceElement[] stackTrace = Thread.currentThread().getStackTrace();
                     // strip up through this method, plus 2 additional methods:
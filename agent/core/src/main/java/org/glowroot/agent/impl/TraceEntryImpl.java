@@ -83,9 +83,9 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
 
     TraceEntryImpl(ThreadContextImpl threadContext, @Nullable TraceEntryImpl parentTraceEntry,
             @Nullable Object messageSupplier, @Nullable QueryData queryData,
-            long queryExecutionCount, long startTick, @Nullable TimerImpl syncTimer,
-            @Nullable AsyncTimerImpl asyncTimer) {
-        super(queryData);
+            @Nullable String queryText, long queryExecutionCount, long startTick,
+            @Nullable TimerImpl syncTimer, @Nullable AsyncTimerImpl asyncTimer) {
+        super(queryData, queryText);
         this.threadContext = threadContext;
         this.parentTraceEntry = parentTraceEntry;
         this.messageSupplier = messageSupplier;
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.Map;
+import java.util.Random;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.collect.Maps;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+// limits the number of slow and error traces that are stored per minute
+//
+// traces are stored freely until half of the limit is used up in a given minute, after which
+// traces for a given key (transaction name, or transaction name and error type) are reservoir
+// sampled beyond the first few for that key, and the last quarter of the limit is reserved for
+// those first few, so that a flood of near-identical traces cannot crowd out traces for rarer
+// transaction names and errors
+class TraceStorageSampler {
+
+    static final int GUARANTEED_PER_KEY_PER_MINUTE = 5;
+
+    // used to limit memory requirement when there are lots of unique keys
+    private static final int MAX_KEYS_PER_MINUTE = 1000;
+
+    private static final long WINDOW_MILLIS = MINUTES.toMillis(1);
+
+    private final Random random;
+
+    private final Object lock = new Object();
+
+    @GuardedBy("lock")
+    private long windowEndTime;
+    @GuardedBy("lock")
+    private int storedCount;
+    @GuardedBy("lock")
+    private final Map<String, int[]> countsPerKey = Maps.newHashMap();
+    // used for keys beyond MAX_KEYS_PER_MINUTE
+    @GuardedBy("lock")
+    private int overflowCount;
+
+    TraceStorageSampler() {
+        this(new Random());
+    }
+
+    TraceStorageSampler(Random random) {
+        this.random = random;
+    }
+
+    // maxPerMinute zero means no limit
+    boolean shouldStore(String key, long currentTimeMillis, int maxPerMinute) {
+        if (maxPerMinute <= 0) {
+            return true;
+        }
+        synchronized (lock) {
+            if (currentTimeMillis >= windowEndTime) {
+                windowEndTime = currentTimeMillis - currentTimeMillis % WINDOW_MILLIS
+                        + WINDOW_MILLIS;
+                storedCount = 0;
+                countsPerKey.clear();
+                overflowCount = 0;
+            }
+            if (storedCount >= maxPerMinute) {
+                return false;
+            }
+            int count = incrementCount(key);
+            if (count <= GUARANTEED_PER_KEY_PER_MINUTE || storedCount < maxPerMinute / 2) {
+                storedCount++;
+                return true;
+            }
+            if (storedCount >= maxPerMinute * 3 / 4) {
+                return false;
+            }
+            // reservoir sampling probability, so that each trace for this key in this minute has
+            // roughly equal chance of being stored
+            if (random.nextInt(count) >= GUARANTEED_PER_KEY_PER_MINUTE) {
+                return false;
+            }
+            storedCount++;
+            return true;
+        }
+    }
+
+    @GuardedBy("lock")
+    private int incrementCount(String key) {
+        int[] count = countsPerKey.get(key);
+        if (count == null) {
+            if (countsPerKey.size() >= MAX_KEYS_PER_MINUTE) {
+                return ++overflowCount;
+            }
+            count = new int[1];
+            countsPerKey.put(key, count);
+        }
+        return ++count[0];
+    }
+}
@@ -25,6 +25,8 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.Nullable;
@@ -34,7 +36,6 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Strings;
 import com.google.common.base.Ticker;
 import com.google.common.collect.ArrayListMultimap;
-import com.google.common.collect.HashMultimap;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableListMultimap;
 import com.google.common.collect.ImmutableSetMultimap;
@@ -76,6 +77,7 @@ import org.glowroot.common.util.NotAvailableAware;
 import org.glowroot.common.util.Traverser;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
 import static org.glowroot.agent.util.Checkers.castInitialized;
 
 // contains all data that has been captured for a given transaction (e.g. a servlet request)
@@ -100,6 +102,23 @@ public class Transaction {
     private static final int TRANSACTION_AUX_THREAD_CONTEXT_LIMIT =
             Integer.getInteger("glowroot.transaction.aux.thread.context.limit", 10000);
 
+    // completed aux thread contexts that captured nothing other than timers and thread stats are
+    // merged each time this many aux thread contexts (with hierarchy) have accumulated
+    private static final int AUX_THREAD_CONTEXT_SWEEP_SIZE = Math.min(1000,
+            TRANSACTION_AUX_THREAD_CONTEXT_LIMIT);
+
+    // if nearly all of the aux thread contexts that were swept were mergeable, and on average they
+    // ran for less than this, then the transaction is submitting lots of micro-tasks (e.g. parallel
+    // streams), and the next aux thread contexts are summarized (see startAuxThreadContext())
+    private static final long MICRO_TASK_THRESHOLD_NANOS = MICROSECONDS.toNanos(
+            Long.getLong("glowroot.transaction.aux.thread.context.micro.task.threshold.micros",
+                    1000));
+
+    // number of aux thread contexts that are summarized after micro-tasks are detected, after which
+    // aux thread contexts get their hierarchy back until the next sweep re-evaluates them, so that
+    // a transaction which stops submitting micro-tasks does not stay summarized
+    private static final int AUX_THREAD_CONTEXT_SUMMARIZE_SIZE = 10 * AUX_THREAD_CONTEXT_SWEEP_SIZE;
+
     private static final Random random = new Random();
 
     private volatile @Nullable String traceId;
@@ -120,8 +139,10 @@ public class Transaction {
     private volatile int userPriority = Integer.MIN_VALUE;
 
     // lazy loaded to reduce memory when custom attributes are not used
-    @GuardedBy("attributes")
-    private volatile @MonotonicNonNull SetMultimap<String, String> attributes;
+    //
+    // concurrent map and sets are used (instead of synchronizing on a multimap) since attributes
+    // can be added concurrently from many aux threads of the same transaction
+    private volatile @MonotonicNonNull ConcurrentMap<String, Set<String>> attributes;
 
     // trace-level error
     private volatile @Nullable ErrorMessage errorMessage;
@@ -150,6 +171,9 @@ public class Transaction {
 
     private volatile boolean partiallyStored;
 
+    // this is set by the transaction thread prior to handing the transaction off to the aggregator
+    private boolean traceNotStored;
+
     private long captureTime;
 
     // memory barrier is used to ensure memory visibility of entries and timers at key points,
@@ -202,6 +226,12 @@ public class Transaction {
     private @MonotonicNonNull ThreadStatsCollectorImpl alreadyMergedAuxThreadStats;
     @GuardedBy("mainThreadContext")
     private boolean stopMergingAuxThreadContexts;
+    @GuardedBy("mainThreadContext")
+    private int nextAuxThreadContextSweepSize = AUX_THREAD_CONTEXT_SWEEP_SIZE;
+    @GuardedBy("mainThreadContext")
+    private boolean summarizeAuxThreadContexts;
+    @GuardedBy("mainThreadContext")
+    private int summarizedAuxThreadContextCount;
 
     Transaction(long startTime, long startTick, String transactionType, String transactionName,
             MessageSupplier messageSupplier, TimerName timerName, boolean captureThreadStats,
@@ -286,12 +316,13 @@ public class Transaction {
     }
 
     public ImmutableSetMultimap<String, String> getAttributes() {
+        ConcurrentMap<String, Set<String>> attributes = this.attributes;
         if (attributes == null) {
             return ImmutableSetMultimap.of();
         }
         SetMultimap<String, String> orderedAttributes = TreeMultimap.create();
-        synchronized (attributes) {
-            orderedAttributes.putAll(attributes);
+        for (Entry<String, Set<String>> entry : attributes.entrySet()) {
+            orderedAttributes.putAll(entry.getKey(), entry.getValue());
         }
         return ImmutableSetMultimap.copyOf(orderedAttributes);
     }
@@ -374,16 +405,11 @@ public class Transaction {
 
     public long getTotalCpuNanos() {
         long totalCpuNanos = mainThreadContext.getTotalCpuNanos();
-        synchronized (mainThreadContext) {
-            if (auxThreadContexts == null) {
-                return totalCpuNanos;
-            }
-            for (ThreadContextImpl auxThreadContext : auxThreadContexts) {
-                totalCpuNanos =
-                        NotAvailableAware.add(totalCpuNanos, auxThreadContext.getTotalCpuNanos());
-            }
-            return totalCpuNanos;
+        for (ThreadContextImpl auxThreadContext : getAuxThreadContextsSnapshot()) {
+            totalCpuNanos =
+                    NotAvailableAware.add(totalCpuNanos, auxThreadContext.getTotalCpuNanos());
         }
+        return totalCpuNanos;
     }
 
     void mergeAuxThreadStatsInto(ThreadStatsCollector threadStats) {
@@ -408,24 +434,16 @@ public class Transaction {
     void mergeQueriesInto(QueryCollector queries) {
         memoryBarrierRead();
         mainThreadContext.mergeQueriesInto(queries);
-        synchronized (mainThreadContext) {
-            if (auxThreadContexts != null) {
-                for (ThreadContextImpl auxThreadContext : auxThreadContexts) {
-                    auxThreadContext.mergeQueriesInto(queries);
-                }
-            }
+        for (ThreadContextImpl auxThreadContext : getAuxThreadContextsSnapshot()) {
+            auxThreadContext.mergeQueriesInto(queries);
         }
     }
 
     void mergeServiceCallsInto(ServiceCallCollector serviceCalls) {
         memoryBarrierRead();
         mainThreadContext.mergeServiceCallsInto(serviceCalls);
-        synchronized (mainThreadContext) {
-            if (auxThreadContexts != null) {
-                for (ThreadContextImpl auxThreadContext : auxThreadContexts) {
-                    auxThreadContext.mergeServiceCallsInto(serviceCalls);
-                }
-            }
+        for (ThreadContextImpl auxThreadContext : getAuxThreadContextsSnapshot()) {
+            auxThreadContext.mergeServiceCallsInto(serviceCalls);
         }
     }
 
@@ -458,18 +476,17 @@ public class Transaction {
 
     public void accept(long captureTick, EntryVisitor entryVisitor) throws Exception {
         memoryBarrierRead();
+        // same snapshot is used for both building the map and populating the entries so that the
+        // trace is consistent even if aux thread contexts are being added concurrently
+        List<ThreadContextImpl> auxThreadContexts = getAuxThreadContextsSnapshot();
         ListMultimap<TraceEntryImpl, ThreadContextImpl> priorEntryChildThreadContextMap =
-                buildPriorEntryChildThreadContextMap();
+                buildPriorEntryChildThreadContextMap(auxThreadContexts);
         ListMultimap<TraceEntryImpl, TraceEntryImpl> parentChildMap = ArrayListMultimap.create();
         mainThreadContext.populateParentChildMap(parentChildMap, captureTick,
                 priorEntryChildThreadContextMap);
-        synchronized (mainThreadContext) {
-            if (auxThreadContexts != null) {
-                for (ThreadContextImpl auxThreadContext : auxThreadContexts) {
-                    auxThreadContext.populateParentChildMap(parentChildMap, captureTick,
-                            priorEntryChildThreadContextMap);
-                }
-            }
+        for (ThreadContextImpl auxThreadContext : auxThreadContexts) {
+            auxThreadContext.populateParentChildMap(parentChildMap, captureTick,
+                    priorEntryChildThreadContextMap);
         }
         new ParentChildMapTrimmer(mainThreadContext.getRootEntry(), parentChildMap, captureTick)
                 .traverse();
@@ -544,18 +561,13 @@ public class Transaction {
     }
 
     public List<ThreadContextImpl> getActiveAuxThreadContexts() {
-        synchronized (mainThreadContext) {
-            if (auxThreadContexts == null) {
-                return ImmutableList.of();
-            }
-            List<ThreadContextImpl> activeAuxThreadContexts = Lists.newArrayList();
-            for (ThreadContextImpl auxThreadContext : auxThreadContexts) {
-                if (auxThreadContext.isActive()) {
-                    activeAuxThreadContexts.add(auxThreadContext);
-                }
+        List<ThreadContextImpl> activeAuxThreadContexts = Lists.newArrayList();
+        for (ThreadContextImpl auxThreadContext : getAuxThreadContextsSnapshot()) {
+            if (auxThreadContext.isActive()) {
+                activeAuxThreadContexts.add(auxThreadContext);
             }
-            return activeAuxThreadContexts;
         }
+        return activeAuxThreadContexts;
     }
 
     void setAsync() {
@@ -591,17 +603,19 @@ public class Transaction {
     }
 
     void addAttribute(String name, @Nullable String value) {
-        if (attributes == null) {
-            // no race condition here since only transaction thread calls addAttribute()
-            attributes = HashMultimap.create(ATTRIBUTE_KEYS_INITIAL_CAPACITY, 1);
-        }
-        String val = Strings.nullToEmpty(value);
-        synchronized (attributes) {
-            Collection<String> values = attributes.get(name);
-            if (values.size() < ATTRIBUTE_VALUES_PER_KEY_LIMIT) {
-                values.add(val);
+        ConcurrentMap<String, Set<String>> attributes = getOrCreateAttributes();
+        Set<String> values = attributes.get(name);
+        if (values == null) {
+            values = Sets.newSetFromMap(new ConcurrentHashMap<String, Boolean>(4, 0.75f, 1));
+            Set<String> existingValues = attributes.putIfAbsent(name, values);
+            if (existingValues != null) {
+                values = existingValues;
             }
         }
+        // it's ok if race condition in limit check
+        if (values.size() < ATTRIBUTE_VALUES_PER_KEY_LIMIT) {
+            values.add(Strings.nullToEmpty(value));
+        }
     }
 
     void setError(@Nullable String message, @Nullable Throwable t) {
@@ -639,6 +653,16 @@ public class Transaction {
         partiallyStored = true;
     }
 
+    // called by the transaction thread when a slow or error trace is not stored due to the trace
+    // storage limit
+    void setTraceNotStored() {
+        traceNotStored = true;
+    }
+
+    boolean isTraceNotStored() {
+        return traceNotStored;
+    }
+
     void setTransactionEntry(TransactionEntry transactionEntry) {
         this.transactionEntry = transactionEntry;
     }
@@ -676,6 +700,8 @@ public class Transaction {
                         servletMessageSupplier);
                 auxThreadContexts.add(auxThreadContext);
             } else {
+                // timers and thread stats of summarized (micro-task) and limit exceeded aux thread
+                // contexts are merged into the aux thread totals when they complete
                 auxThreadContext = new ThreadContextImpl(this, mainThreadContext.getRootEntry(),
                         mainThreadContext.getTailEntry(), AuxThreadRootMessageSupplier.INSTANCE,
                         auxTimerName, startTick, mainThreadContext.getCaptureThreadStats(),
@@ -829,6 +855,25 @@ public class Transaction {
         return configService;
     }
 
+    private ConcurrentMap<String, Set<String>> getOrCreateAttributes() {
+        ConcurrentMap<String, Set<String>> attributes = this.attributes;
+        if (attributes == null) {
+            // double-checked locking works here because attributes is volatile
+            //
+            // synchronized on "this" as a micro-optimization just so don't need to create an empty
+            // object to lock on
+            synchronized (this) {
+                attributes = this.attributes;
+                if (attributes == null) {
+                    attributes = new ConcurrentHashMap<String, Set<String>>(
+                            ATTRIBUTE_KEYS_INITIAL_CAPACITY);
+                    this.attributes = attributes;
+                }
+            }
+        }
+        return attributes;
+    }
+
     AtomicInteger getThrowableFrameLimitCounter() {
         if (throwableFrameLimitCounter == null) {
             // double-checked locking works here because throwableFrameLimitCounter is volatile
@@ -858,9 +903,22 @@ public class Transaction {
     }
 
     // must be called under synchronized (mainThreadContext)
+    //
+    // aux thread contexts retain their hierarchy unless either the transaction is detected to be
+    // submitting lots of micro-tasks (in which case the next AUX_THREAD_CONTEXT_SUMMARIZE_SIZE aux
+    // thread contexts are summarized), or the (memory) limit is reached, in which case aux thread
+    // contexts are attached to the main thread context and their timers and thread stats are merged
+    // on completion (unless they captured trace entries)
     @RequiresNonNull("auxThreadContexts")
     private boolean allowAnotherAuxThreadContextWithHierarchy() {
-        if (auxThreadContexts.size() < TRANSACTION_AUX_THREAD_CONTEXT_LIMIT) {
+        if (summarizeAuxThreadContexts) {
+            if (++summarizedAuxThreadContextCount < AUX_THREAD_CONTEXT_SUMMARIZE_SIZE) {
+                return false;
+            }
+            summarizeAuxThreadContexts = false;
+            summarizedAuxThreadContextCount = 0;
+        }
+        if (auxThreadContexts.size() < nextAuxThreadContextSweepSize) {
             return true;
         }
         if (stopMergingAuxThreadContexts) {
@@ -868,15 +926,18 @@ public class Transaction {
         }
         List<ThreadContextImpl> mergeableAuxThreadContexts = Lists.newArrayList();
         List<ThreadContextImpl> nonMergeableAuxThreadContexts = Lists.newArrayList();
+        long mergeableTotalNanos = 0;
         for (Iterator<ThreadContextImpl> i = auxThreadContexts.iterator(); i.hasNext();) {
             ThreadContextImpl loopAuxThreadContext = i.next();
             if (loopAuxThreadContext.isCompleteAndEmptyExceptForTimersAndThreadStats()) {
                 mergeableAuxThreadContexts.add(loopAuxThreadContext);
+                mergeableTotalNanos += loopAuxThreadContext.getRootTimer().getTotalNanos();
             } else {
                 nonMergeableAuxThreadContexts.add(loopAuxThreadContext);
             }
         }
-        if (mergeableAuxThreadContexts.size() < 0.1 * auxThreadContexts.size()) {
+        if (mergeableAuxThreadContexts.size() < 0.1 * auxThreadContexts.size()
+                && auxThreadContexts.size() >= TRANSACTION_AUX_THREAD_CONTEXT_LIMIT) {
             // unable to merge more than 10%
             stopMergingAuxThreadContexts = true;
             return false;
@@ -892,8 +953,17 @@ public class Transaction {
             alreadyMergedAuxThreadStats
                     .mergeThreadStats(mergeableAuxThreadContext.getThreadStats());
         }
+        int mergeableCount = mergeableAuxThreadContexts.size();
+        if (mergeableCount >= 0.9 * auxThreadContexts.size()
+                && mergeableTotalNanos < mergeableCount * MICRO_TASK_THRESHOLD_NANOS) {
+            summarizeAuxThreadContexts = true;
+        }
         auxThreadContexts = nonMergeableAuxThreadContexts;
-        return true;
+        // grow the sweep size along with the non-mergeable aux thread contexts so that sweeping
+        // remains amortized constant time per aux thread context
+        nextAuxThreadContextSweepSize = Math.min(TRANSACTION_AUX_THREAD_CONTEXT_LIMIT,
+                Math.max(AUX_THREAD_CONTEXT_SWEEP_SIZE, 2 * auxThreadContexts.size()));
+        return !summarizeAuxThreadContexts;
     }
 
     private static <T extends Exception> void addProtobufChildEntries(TraceEntryImpl entry,
@@ -918,22 +988,32 @@ public class Transaction {
         }
     }
 
-    private ListMultimap<TraceEntryImpl, ThreadContextImpl> buildPriorEntryChildThreadContextMap() {
+    // the lock on mainThreadContext is only held while copying the list, so that aux threads are
+    // not blocked from starting while the (potentially large number of) aux thread contexts are
+    // being read, e.g. while capturing a partial trace or computing cpu time for the trace view
+    private List<ThreadContextImpl> getAuxThreadContextsSnapshot() {
         synchronized (mainThreadContext) {
             if (auxThreadContexts == null) {
-                return ImmutableListMultimap.of();
-            }
-            ListMultimap<TraceEntryImpl, ThreadContextImpl> parentChildMap =
-                    ArrayListMultimap.create();
-            for (ThreadContextImpl auxThreadContext : auxThreadContexts) {
-                // checkNotNull is safe b/c aux thread contexts have non-null parent thread context
-                // prior entries when they are not limit exceeded aux thread contexts
-                parentChildMap.put(
-                        checkNotNull(auxThreadContext.getParentThreadContextPriorEntry()),
-                        auxThreadContext);
+                return ImmutableList.of();
             }
-            return parentChildMap;
+            return ImmutableList.copyOf(auxThreadContexts);
+        }
+    }
+
+    private static ListMultimap<TraceEntryImpl, ThreadContextImpl>
+            buildPriorEntryChildThreadContextMap(List<ThreadContextImpl> auxThreadContexts) {
+        if (auxThreadContexts.isEmpty()) {
+            return ImmutableListMultimap.of();
+        }
+        ListMultimap<TraceEntryImpl, ThreadContextImpl> parentChildMap =
+                ArrayListMultimap.create();
+        for (ThreadContextImpl auxThreadContext : auxThreadContexts) {
+            // checkNotNull is safe b/c aux thread contexts have non-null parent thread context
+            // prior entries when they are not limit exceeded aux thread contexts
+            parentChildMap.put(checkNotNull(auxThreadContext.getParentThreadContextPriorEntry()),
+                    auxThreadContext);
         }
+        return parentChildMap;
     }
 
     // must be called under synchronized (mainThreadContext)
@@ -30,10 +30,12 @@ import org.slf4j.LoggerFactory;
 import org.glowroot.agent.collector.Collector;
 import org.glowroot.agent.collector.Collector.TraceReader;
 import org.glowroot.agent.config.ConfigService;
+import org.glowroot.agent.model.ErrorMessage;
 import org.glowroot.agent.plugin.api.config.ConfigListener;
 import org.glowroot.agent.util.RateLimitedLogger;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.OnlyUsedByTests;
+import org.glowroot.wire.api.model.Proto;
 
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
@@ -51,11 +53,13 @@ public class TransactionCollector {
     private final Clock clock;
     private final Ticker ticker;
     private final Set<Transaction> pendingTransactions = Sets.newCopyOnWriteArraySet();
+    private final TraceStorageSampler traceStorageSampler = new TraceStorageSampler();
 
     private final RateLimitedLogger backPressureLogger =
             new RateLimitedLogger(TransactionCollector.class);
 
     private volatile long defaultSlowThresholdNanos;
+    private volatile int maxTracesStoredPerMinute;
 
     public TransactionCollector(final ConfigService configService, Collector collector,
             Aggregator aggregator, Clock clock, Ticker ticker) {
@@ -73,6 +77,8 @@ public class TransactionCollector {
             public void onChange() {
                 defaultSlowThresholdNanos = MILLISECONDS
                         .toNanos(configService.getTransactionConfig().slowThresholdMillis());
+                maxTracesStoredPerMinute =
+                        configService.getAdvancedConfig().maxTracesStoredPerMinute();
             }
         });
     }
@@ -110,19 +116,29 @@ public class TransactionCollector {
     }
 
     void onCompletedTransaction(final Transaction transaction) {
+        final boolean slow = shouldStoreSlow(transaction);
+        boolean store = slow || shouldStoreError(transaction);
+        // limits don't apply to transactions that were already (partially) stored to make sure
+        // they don't get left out in case they cause an avalanche of slowness
+        if (store && !transaction.isPartiallyStored()) {
+            // these checks are performed prior to adding the transaction to the aggregator so that
+            // unstored traces are included in the aggregate
+            if (pendingTransactions.size() >= PENDING_LIMIT) {
+                backPressureLogger.warn("not storing a trace because of an excessive backlog of {}"
+                        + " traces already waiting to be stored", PENDING_LIMIT);
+                transaction.setTraceNotStored();
+                store = false;
+            } else if (!traceStorageSampler.shouldStore(getSamplingKey(transaction),
+                    clock.currentTimeMillis(), maxTracesStoredPerMinute)) {
+                transaction.setTraceNotStored();
+                store = false;
+            }
+        }
         // capture time is calculated by the aggregator because it depends on monotonically
         // increasing capture times so it can flush aggregates without concern for new data
         // arriving with a prior capture time
         long captureTime = aggregator.add(transaction);
-        final boolean slow = shouldStoreSlow(transaction);
-        if (!slow && !shouldStoreError(transaction)) {
-            return;
-        }
-        // limit doesn't apply to transactions that were already (partially) stored to make sure
-        // they don't get left out in case they cause an avalanche of slowness
-        if (pendingTransactions.size() >= PENDING_LIMIT && !transaction.isPartiallyStored()) {
-            backPressureLogger.warn("not storing a trace because of an excessive backlog of {}"
-                    + " traces already waiting to be stored", PENDING_LIMIT);
+        if (!store) {
             return;
         }
         pendingTransactions.add(transaction);
@@ -164,6 +180,18 @@ public class TransactionCollector {
         }
     }
 
+    // error traces are sampled separately by error type, so that a new type of error is not
+    // crowded out by a flood of another error in the same transaction
+    private static String getSamplingKey(Transaction transaction) {
+        String key = transaction.getTransactionType() + ':' + transaction.getTransactionName();
+        ErrorMessage errorMessage = transaction.getErrorMessage();
+        if (errorMessage == null) {
+            return key;
+        }
+        Proto.Throwable throwable = errorMessage.throwable();
+        return key + ':' + (throwable == null ? "" : throwable.getClassName());
+    }
+
     static boolean containsIgnoreCase(List<String> list, String test) {
         for (String item : list) {
             if (test.equalsIgnoreCase(item)) {
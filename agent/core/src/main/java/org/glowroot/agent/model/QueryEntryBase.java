@@ -25,14 +25,18 @@ import org.glowroot.agent.plugin.api.QueryEntry;
 public abstract class QueryEntryBase implements QueryEntry {
 
     private final @Nullable QueryData queryData;
+    // this is the original query text, which can differ from the (normalized) aggregated query
+    // text in queryData
+    private final @Nullable String queryText;
 
     // row numbers start at 1
     private long currRow = -1;
 
     private long maxRow;
 
-    protected QueryEntryBase(@Nullable QueryData queryData) {
+    protected QueryEntryBase(@Nullable QueryData queryData, @Nullable String queryText) {
         this.queryData = queryData;
+        this.queryText = queryText;
     }
 
     public void extendQueryData(long startTick) {
@@ -110,6 +114,6 @@ public abstract class QueryEntryBase implements QueryEntry {
     }
 
     protected @Nullable String getQueryText() {
-        return queryData == null ? null : queryData.getQueryText();
+        return queryText;
     }
 }
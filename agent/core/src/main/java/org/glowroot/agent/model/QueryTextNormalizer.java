@@ -0,0 +1,286 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import javax.annotation.Nullable;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+
+// normalizes sql and cql query text for grouping aggregated queries, by replacing string and
+// numeric literals with '?' and by collapsing IN lists of literals/bind markers into 'in (?)'
+//
+// trace entries still display the original query text, only the aggregated query text is
+// normalized
+public class QueryTextNormalizer {
+
+    private static final int MAX_CACHED_QUERY_TEXT_CHARS =
+            Integer.getInteger("glowroot.query.text.normalizer.cache.max.chars", 1000000);
+
+    // caches query text that does not need normalizing (which is typical for prepared statements),
+    // keyed by string equality (String caches its hash code, so repeated lookups with the same
+    // query string instance only hash it once), and bounded by total query text length since query
+    // strings can be very long
+    //
+    // query text that is changed by normalizing is not cached, since it contains literal values
+    // which are often different on every execution (and which may be sensitive)
+    private static final Cache<String, String> cache = CacheBuilder.newBuilder()
+            .maximumWeight(MAX_CACHED_QUERY_TEXT_CHARS)
+            .weigher(new Weigher<String, String>() {
+                @Override
+                public int weigh(String queryText, String normalized) {
+                    return queryText.length();
+                }
+            })
+            .build();
+
+    private QueryTextNormalizer() {}
+
+    public static String getAggregateQueryText(String queryType, String queryText) {
+        if (!queryType.equals("SQL") && !queryType.equals("CQL")) {
+            return queryText;
+        }
+        String normalized = cache.getIfPresent(queryText);
+        if (normalized != null) {
+            return normalized;
+        }
+        normalized = normalize(queryText);
+        if (normalized == queryText) {
+            cache.put(queryText, queryText);
+        }
+        return normalized;
+    }
+
+    @VisibleForTesting
+    static String normalize(String queryText) {
+        int length = queryText.length();
+        // lazily created so that query text without literals does not allocate
+        @Nullable
+        StringBuilder sb = null;
+        // index in queryText up to which has been appended to sb
+        int appendedIndex = 0;
+        int i = 0;
+        while (i < length) {
+            char c = queryText.charAt(i);
+            if (c == '\'') {
+                int end = skipQuoted(queryText, i, '\'');
+                if (end == -1) {
+                    // unterminated string literal
+                    break;
+                }
+                sb = append(sb, queryText, appendedIndex, i);
+                sb.append('?');
+                appendedIndex = end;
+                i = end;
+            } else if (c == '"' || c == '`') {
+                // quoted identifier
+                int end = skipQuoted(queryText, i, c);
+                if (end == -1) {
+                    break;
+                }
+                i = end;
+            } else if (c == '-' && startsWith(queryText, i, "--")) {
+                int end = queryText.indexOf('\n', i);
+                if (end == -1) {
+                    break;
+                }
+                i = end;
+            } else if (c == '/' && startsWith(queryText, i, "/*")) {
+                int end = queryText.indexOf("*/", i + 2);
+                if (end == -1) {
+                    break;
+                }
+                i = end + 2;
+            } else if (isDigit(c) && !isIdentifierPartOrBindMarker(queryText, i - 1)) {
+                int end = skipNumber(queryText, i);
+                sb = append(sb, queryText, appendedIndex, i);
+                sb.append('?');
+                appendedIndex = end;
+                i = end;
+            } else if ((c == 'i' || c == 'I') && isInKeyword(queryText, i)) {
+                int openParen = skipWhitespace(queryText, i + 2);
+                int end = skipInList(queryText, openParen);
+                if (end == -1) {
+                    i += 2;
+                } else {
+                    sb = append(sb, queryText, appendedIndex, openParen);
+                    sb.append("(?)");
+                    appendedIndex = end;
+                    i = end;
+                }
+            } else if (isIdentifierPart(c)) {
+                // skip whole identifier so that e.g. 'min' or 't1' are not mistaken above
+                i++;
+                while (i < length && isIdentifierPart(queryText.charAt(i))) {
+                    i++;
+                }
+            } else {
+                i++;
+            }
+        }
+        if (sb == null) {
+            return queryText;
+        }
+        sb.append(queryText, appendedIndex, length);
+        return sb.toString();
+    }
+
+    private static StringBuilder append(@Nullable StringBuilder sb, String queryText, int start,
+            int end) {
+        if (sb == null) {
+            sb = new StringBuilder(queryText.length());
+        }
+        sb.append(queryText, start, end);
+        return sb;
+    }
+
+    // returns index after closing quote, or -1 if unterminated
+    //
+    // string literals also handle backslash escapes (e.g. mysql 'it\'s'), at the cost of misparsing
+    // string literals that end with a backslash in databases that don't use backslash escapes
+    // (which only affects how the rest of that query text is normalized)
+    private static int skipQuoted(String queryText, int openQuote, char quote) {
+        int length = queryText.length();
+        int i = openQuote + 1;
+        while (i < length) {
+            char c = queryText.charAt(i);
+            if (c == '\\' && quote == '\'') {
+                // escaped character
+                i += 2;
+            } else if (c != quote) {
+                i++;
+            } else if (i + 1 < length && queryText.charAt(i + 1) == quote) {
+                // escaped (doubled) quote
+                i += 2;
+            } else {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    // handles integers, decimals, exponents and hex literals
+    private static int skipNumber(String queryText, int start) {
+        int length = queryText.length();
+        int i = start + 1;
+        while (i < length) {
+            char c = queryText.charAt(i);
+            if (isDigit(c) || c == '.' || Character.isLetter(c)) {
+                i++;
+            } else if ((c == '+' || c == '-') && isExponentMarker(queryText.charAt(i - 1))
+                    && !isHex(queryText, start)) {
+                i++;
+            } else {
+                break;
+            }
+        }
+        return i;
+    }
+
+    private static boolean isInKeyword(String queryText, int i) {
+        int length = queryText.length();
+        return i + 2 < length && (queryText.charAt(i + 1) == 'n' || queryText.charAt(i + 1) == 'N')
+                && !isIdentifierPart(queryText.charAt(i + 2))
+                && (i == 0 || !isIdentifierPart(queryText.charAt(i - 1)));
+    }
+
+    // returns index after closing paren if the IN list consists only of literals and bind markers
+    // (and has more than one element or has a literal element), otherwise returns -1
+    private static int skipInList(String queryText, int openParen) {
+        int length = queryText.length();
+        if (openParen >= length || queryText.charAt(openParen) != '(') {
+            return -1;
+        }
+        int count = 0;
+        boolean literal = false;
+        int i = openParen + 1;
+        while (true) {
+            i = skipWhitespace(queryText, i);
+            if (i >= length) {
+                return -1;
+            }
+            char c = queryText.charAt(i);
+            if (c == '?') {
+                i++;
+            } else if (c == '\'') {
+                i = skipQuoted(queryText, i, '\'');
+                if (i == -1) {
+                    return -1;
+                }
+                literal = true;
+            } else if (isDigit(c) || ((c == '-' || c == '+') && i + 1 < length
+                    && isDigit(queryText.charAt(i + 1)))) {
+                i = skipNumber(queryText, i);
+                literal = true;
+            } else {
+                return -1;
+            }
+            count++;
+            i = skipWhitespace(queryText, i);
+            if (i >= length) {
+                return -1;
+            }
+            c = queryText.charAt(i);
+            if (c == ')') {
+                return count > 1 || literal ? i + 1 : -1;
+            }
+            if (c != ',') {
+                return -1;
+            }
+            i++;
+        }
+    }
+
+    private static int skipWhitespace(String queryText, int i) {
+        int length = queryText.length();
+        while (i < length && Character.isWhitespace(queryText.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean startsWith(String queryText, int i, String prefix) {
+        return queryText.startsWith(prefix, i);
+    }
+
+    private static boolean isHex(String queryText, int start) {
+        return start + 1 < queryText.length() && queryText.charAt(start) == '0'
+                && (queryText.charAt(start + 1) == 'x' || queryText.charAt(start + 1) == 'X');
+    }
+
+    private static boolean isExponentMarker(char c) {
+        return c == 'e' || c == 'E';
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isIdentifierPart(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '$' || c == '#' || c == '@';
+    }
+
+    // e.g. the '1' in ':1' or '?1' or '$1' is part of a bind marker, not a literal
+    private static boolean isIdentifierPartOrBindMarker(String queryText, int i) {
+        if (i < 0) {
+            return false;
+        }
+        char c = queryText.charAt(i);
+        return isIdentifierPart(c) || c == ':' || c == '?' || c == '.';
+    }
+}
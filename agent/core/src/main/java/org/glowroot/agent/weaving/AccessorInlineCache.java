@@ -0,0 +1,74 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.lang.ref.WeakReference;
+
+import javax.annotation.Nullable;
+
+// monomorphic inline cache for a dynamic path element (one whose accessor could not be resolved
+// from the declared type, e.g. a getter that only exists on the runtime subclass), which avoids the
+// two-level cache lookup in Beans on every evaluation as long as the receiver class doesn't change
+//
+// the receiver class and the accessor are only weakly referenced since the message template (and
+// this cache) live as long as the woven class, which may be in a parent class loader of the receiver
+// class (and the accessor has a strong reference to its declaring class), a cleared accessor is
+// treated as a cache miss (the entry itself is strongly referenced, otherwise it would be cleared by
+// every garbage collection)
+class AccessorInlineCache {
+
+    private final String name;
+
+    private volatile @Nullable Entry entry;
+
+    AccessorInlineCache(String name) {
+        this.name = name;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    // returns null if no appropriate accessor found
+    @Nullable
+    Accessor getAccessor(Class<?> receiverClass) {
+        Entry entry = this.entry;
+        if (entry != null && entry.receiverClassRef.get() == receiverClass) {
+            if (entry.accessorRef == null) {
+                return null;
+            }
+            Accessor accessor = entry.accessorRef.get();
+            if (accessor != null) {
+                return accessor;
+            }
+        }
+        Accessor accessor = Beans.getAccessor(receiverClass, name);
+        this.entry = new Entry(receiverClass, accessor);
+        return accessor;
+    }
+
+    private static class Entry {
+
+        private final WeakReference<Class<?>> receiverClassRef;
+        // null if no appropriate accessor found
+        private final @Nullable WeakReference<Accessor> accessorRef;
+
+        private Entry(Class<?> receiverClass, @Nullable Accessor accessor) {
+            receiverClassRef = new WeakReference<Class<?>>(receiverClass);
+            accessorRef = accessor == null ? null : new WeakReference<Accessor>(accessor);
+        }
+    }
+}
@@ -85,7 +85,7 @@ class Beans {
             return value(((Map<?, ?>) obj).get(curr), path, currIndex + 1);
         }
         Accessor accessor = getAccessor(obj.getClass(), curr);
-        if (accessor.equals(SENTINEL_ACCESSOR)) {
+        if (accessor == null) {
             // no appropriate method found, dynamic paths that may or may not resolve
             // correctly are ok, just return null
             return null;
@@ -94,7 +94,8 @@ class Beans {
         return value(currItem, path, currIndex + 1);
     }
 
-    private static Accessor getAccessor(Class<?> clazz, String name) {
+    // returns null if no appropriate accessor found
+    static @Nullable Accessor getAccessor(Class<?> clazz, String name) {
         ConcurrentMap<String, Accessor> accessorsForType = getters.getUnchecked(clazz);
         Accessor accessor = accessorsForType.get(name);
         if (accessor == null) {
@@ -104,7 +105,7 @@ class Beans {
             }
             accessorsForType.put(name, accessor);
         }
-        return accessor;
+        return accessor == SENTINEL_ACCESSOR ? null : accessor;
     }
 
     static @Nullable Accessor loadPossiblyArrayBasedAccessor(Class<?> clazz, String name) {
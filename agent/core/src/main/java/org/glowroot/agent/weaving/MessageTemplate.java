@@ -19,6 +19,7 @@ import java.lang.reflect.Array;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.List;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -243,7 +244,9 @@ public class MessageTemplate {
         private static final Splitter splitter = Splitter.on('.').omitEmptyStrings();
 
         private final Accessor[] accessors;
-        private final String /*@Nullable*/[] remainingPath;
+        // inline caches for the remaining path elements that could not be resolved from the
+        // declared types and so need to be resolved against the runtime types
+        private final AccessorInlineCache[] remainingPathCaches;
 
         PathEvaluator(Class<?> baseClass, String path) {
             List<String> parts = Lists.newArrayList(splitter.split(path));
@@ -260,10 +263,9 @@ public class MessageTemplate {
                 currClass = accessor.getValueType();
             }
             this.accessors = accessors.toArray(new Accessor[accessors.size()]);
-            if (parts.isEmpty()) {
-                remainingPath = null;
-            } else {
-                remainingPath = parts.toArray(new String[parts.size()]);
+            remainingPathCaches = new AccessorInlineCache[parts.size()];
+            for (int i = 0; i < parts.size(); i++) {
+                remainingPathCaches[i] = new AccessorInlineCache(parts.get(i));
             }
         }
 
@@ -276,9 +278,21 @@ public class MessageTemplate {
                     return null;
                 }
             }
-            if (remainingPath != null) {
-                // too bad, revert to slow Beans
-                return Beans.value(curr, remainingPath);
+            for (AccessorInlineCache remainingPathCache : remainingPathCaches) {
+                if (curr instanceof Map) {
+                    curr = ((Map<?, ?>) curr).get(remainingPathCache.getName());
+                } else {
+                    Accessor accessor = remainingPathCache.getAccessor(curr.getClass());
+                    if (accessor == null) {
+                        // no appropriate method found, dynamic paths that may or may not resolve
+                        // correctly are ok, just return null
+                        return null;
+                    }
+                    curr = accessor.evaluate(curr);
+                }
+                if (curr == null) {
+                    return null;
+                }
             }
             return curr;
         }
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.central;
+
+import org.junit.Test;
+
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AggregateDictionaryEncoderTest {
+
+    @Test
+    public void shouldEncode() {
+        // given
+        AggregateDictionaryEncoder encoder = new AggregateDictionaryEncoder();
+        Aggregate aggregate = Aggregate.newBuilder()
+                .addMainThreadRootTimer(Aggregate.Timer.newBuilder()
+                        .setName("http request")
+                        .setCount(1)
+                        .addChildTimer(Aggregate.Timer.newBuilder()
+                                .setName("jdbc query")
+                                .setCount(2)))
+                .addQueriesByType(Aggregate.QueriesByType.newBuilder()
+                        .setType("SQL"))
+                .setDurationNanosHistogram(Aggregate.Histogram.newBuilder()
+                        .addOrderedRawValue(1000)
+                        .addOrderedRawValue(1500)
+                        .addOrderedRawValue(4000))
+                .build();
+
+        // when
+        int transactionTypeIndex = encoder.getSharedStringIndex("Web");
+        Aggregate encoded = encoder.encode(aggregate);
+        Aggregate encodedAgain = encoder.encode(aggregate);
+
+        // then
+        assertThat(transactionTypeIndex).isEqualTo(0);
+        Aggregate.Timer rootTimer = encoded.getMainThreadRootTimer(0);
+        assertThat(rootTimer.getName()).isEmpty();
+        assertThat(rootTimer.getNameIndex()).isEqualTo(1);
+        assertThat(rootTimer.getChildTimer(0).getNameIndex()).isEqualTo(2);
+        assertThat(rootTimer.getChildTimer(0).getCount()).isEqualTo(2);
+        assertThat(encoded.getQueriesByType(0).getType()).isEmpty();
+        assertThat(encoded.getQueriesByType(0).getTypeIndex()).isEqualTo(3);
+        assertThat(encoded.getDurationNanosHistogram().getOrderedRawValueList()).isEmpty();
+        assertThat(encoded.getDurationNanosHistogram().getOrderedRawValueDeltaList())
+                .containsExactly(1000L, 500L, 2500L);
+        assertThat(encodedAgain).isEqualTo(encoded);
+        // shared strings are only returned once per stream
+        assertThat(encoder.getAndClearLatestSharedStrings())
+                .containsExactly("Web", "http request", "jdbc query", "SQL");
+        assertThat(encoder.getAndClearLatestSharedStrings()).isEmpty();
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.central;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.agent.central.SpillBuffer.MessageHandler;
+import org.glowroot.agent.central.SpillBuffer.SpilledItem;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.LogEvent;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.LogMessage;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SpillBufferTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() {
+        dir = Files.createTempDir();
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void shouldReplayOldestFirstAcrossRestart() throws Exception {
+        // given
+        SpillBuffer spillBuffer = new SpillBuffer(dir, 1024 * 1024);
+        spill(spillBuffer, "one");
+        spill(spillBuffer, "two");
+        SpillBuffer.Writer abandoned = spillBuffer.newWriter("log");
+        abandoned.write(newLogMessage("three"));
+
+        // when
+        spillBuffer = new SpillBuffer(dir, 1024 * 1024);
+
+        // then
+        SpilledItem item = spillBuffer.peekOldest();
+        assertThat(item.kind()).isEqualTo("log");
+        assertThat(read(item)).containsExactly("one");
+        spillBuffer.remove(item);
+        item = spillBuffer.peekOldest();
+        assertThat(read(item)).containsExactly("two");
+        spillBuffer.remove(item);
+        assertThat(spillBuffer.isEmpty()).isTrue();
+        assertThat(dir.listFiles()).isEmpty();
+    }
+
+    @Test
+    public void shouldEvictOldestWhenOverLimit() throws Exception {
+        // given
+        SpillBuffer spillBuffer = new SpillBuffer(dir, 100);
+
+        // when
+        for (int i = 0; i < 10; i++) {
+            spill(spillBuffer, "message number " + i);
+        }
+
+        // then
+        List<String> messages = Lists.newArrayList();
+        SpilledItem item;
+        while ((item = spillBuffer.peekOldest()) != null) {
+            messages.addAll(read(item));
+            spillBuffer.remove(item);
+        }
+        assertThat(messages).isNotEmpty();
+        assertThat(messages.size()).isLessThan(10);
+        assertThat(messages.get(messages.size() - 1)).isEqualTo("message number 9");
+    }
+
+    @Test
+    public void shouldTrackReplayFailuresPerItem() throws Exception {
+        // given
+        SpillBuffer spillBuffer = new SpillBuffer(dir, 1024 * 1024);
+        spill(spillBuffer, "one");
+        spill(spillBuffer, "two");
+
+        // when
+        spillBuffer.peekOldest().incrementReplayFailureCount();
+        int failureCount = spillBuffer.peekOldest().incrementReplayFailureCount();
+        SpilledItem item = spillBuffer.peekOldest();
+        spillBuffer.remove(item);
+
+        // then
+        assertThat(failureCount).isEqualTo(2);
+        assertThat(spillBuffer.peekOldest().incrementReplayFailureCount()).isEqualTo(1);
+    }
+
+    private static void spill(SpillBuffer spillBuffer, String message) throws IOException {
+        SpillBuffer.Writer writer = spillBuffer.newWriter("log");
+        writer.write(newLogMessage(message));
+        writer.commit();
+    }
+
+    private static LogMessage newLogMessage(String message) {
+        return LogMessage.newBuilder()
+                .setAgentId("xyz")
+                .setLogEvent(LogEvent.newBuilder()
+                        .setMessage(message))
+                .build();
+    }
+
+    private static List<String> read(SpilledItem item) throws IOException {
+        final List<String> messages = Lists.newArrayList();
+        item.read(LogMessage.parser(), new MessageHandler<LogMessage>() {
+            @Override
+            public void handle(LogMessage message) {
+                messages.add(message.getLogEvent().getMessage());
+            }
+        });
+        return messages;
+    }
+}
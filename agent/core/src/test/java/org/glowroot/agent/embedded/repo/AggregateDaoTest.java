@@ -18,6 +18,8 @@ package org.glowroot.agent.embedded.repo;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableList;
@@ -46,6 +48,7 @@ import org.glowroot.common.util.Styles;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AdvancedConfig;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
@@ -60,6 +63,7 @@ public class AggregateDaoTest {
     private DataSource dataSource;
     private File cappedFile;
     private CappedDatabase cappedDatabase;
+    private ConfigRepository configRepository;
     private AggregateDao aggregateDao;
 
     @Before
@@ -73,7 +77,7 @@ public class AggregateDaoTest {
         }
         cappedFile = File.createTempFile("glowroot-test-", ".capped.db");
         cappedDatabase = new CappedDatabase(cappedFile, 1000000, Ticker.systemTicker());
-        ConfigRepository configRepository = mock(ConfigRepository.class);
+        configRepository = mock(ConfigRepository.class);
         when(configRepository.getAdvancedConfig(AGENT_ID))
                 .thenReturn(AdvancedConfig.getDefaultInstance());
         ImmutableList<RollupConfig> rollupConfigs = ImmutableList.<RollupConfig>of(
@@ -133,6 +137,84 @@ public class AggregateDaoTest {
         assertThat(queryResult.records().get(2).transactionCount()).isEqualTo(2);
     }
 
+    @Test
+    public void shouldRollupInBackground() throws Exception {
+        // given
+        ExecutorService rollupExecutor = Executors.newSingleThreadExecutor();
+        aggregateDao.startBackgroundRollups(rollupExecutor);
+
+        // when
+        populateAggregates();
+        rollupExecutor.shutdown();
+        rollupExecutor.awaitTermination(10, SECONDS);
+
+        // then
+        TransactionQuery query = ImmutableTransactionQuery.builder()
+                .transactionType("a type")
+                .from(0)
+                .to(100000)
+                .rollupLevel(1)
+                .build();
+        List<OverviewAggregate> overallAggregates =
+                aggregateDao.readOverviewAggregates(AGENT_ID, query);
+        assertThat(overallAggregates).hasSize(1);
+        assertThat(overallAggregates.get(0).captureTime()).isEqualTo(15000);
+        assertThat(overallAggregates.get(0).transactionCount()).isEqualTo(10);
+        assertThat(overallAggregates.get(0).unstoredTraceCount()).isEqualTo(3);
+    }
+
+    @Test
+    public void shouldLeaveRollupsConsistentWhenStoppedDuringBackgroundRollup() throws Exception {
+        // given
+        // store level 0 aggregates without rolling them up (as if the agent was shut down before
+        // rolling them up), 40 level 1 intervals of 15 aggregates each
+        ConfigRepository level0OnlyConfigRepository = mock(ConfigRepository.class);
+        when(level0OnlyConfigRepository.getRollupConfigs()).thenReturn(
+                ImmutableList.<RollupConfig>of(ImmutableRollupConfig.of(1000, 0)));
+        AggregateDao level0OnlyAggregateDao = new AggregateDao(dataSource,
+                ImmutableList.<CappedDatabase>of(cappedDatabase), level0OnlyConfigRepository,
+                mock(TransactionTypeDao.class), mock(FullQueryTextDao.class));
+        for (int i = 1; i <= 600; i++) {
+            storeOverallAggregate(level0OnlyAggregateDao, i * 1000);
+        }
+        AggregateDao aggregateDao = newAggregateDao();
+        ExecutorService rollupExecutor = Executors.newSingleThreadExecutor();
+
+        // when
+        aggregateDao.startBackgroundRollups(rollupExecutor);
+        waitForFirstLevel1Rollup();
+        aggregateDao.stopBackgroundRollups();
+        rollupExecutor.shutdown();
+        assertThat(rollupExecutor.awaitTermination(10, SECONDS)).isTrue();
+
+        // then
+        // level 0 is untouched and level 1 only contains complete intervals, with no gaps, so
+        // that reads (and cached reads) of level 1 can be completed from level 0
+        assertThat(sumTransactionCounts(readOverallAggregates(aggregateDao, 0))).isEqualTo(600);
+        List<OverviewAggregate> partiallyRolledUp = readOverallAggregates(aggregateDao, 1);
+        for (int i = 0; i < partiallyRolledUp.size(); i++) {
+            assertThat(partiallyRolledUp.get(i).captureTime()).isEqualTo((i + 1) * 15000);
+            assertThat(partiallyRolledUp.get(i).transactionCount()).isEqualTo(15);
+        }
+
+        // and when the agent restarts, the intervals that were not yet rolled up are caught up
+        // without re-rolling up (and double counting) the ones that were
+        aggregateDao = newAggregateDao();
+        rollupExecutor = Executors.newSingleThreadExecutor();
+        aggregateDao.startBackgroundRollups(rollupExecutor);
+        rollupExecutor.shutdown();
+        assertThat(rollupExecutor.awaitTermination(10, SECONDS)).isTrue();
+        List<OverviewAggregate> rolledUp = readOverallAggregates(aggregateDao, 1);
+        assertThat(rolledUp).hasSize(40);
+        assertThat(sumTransactionCounts(rolledUp)).isEqualTo(600);
+        for (int i = 0; i < partiallyRolledUp.size(); i++) {
+            assertThat(rolledUp.get(i).captureTime())
+                    .isEqualTo(partiallyRolledUp.get(i).captureTime());
+            assertThat(rolledUp.get(i).transactionCount())
+                    .isEqualTo(partiallyRolledUp.get(i).transactionCount());
+        }
+    }
+
     // also used by TransactionCommonServiceTest
     public void populateAggregates() throws Exception {
         aggregateDao.store(new AggregateReader() {
@@ -147,6 +229,7 @@ public class AggregateDaoTest {
                                 .setTotalDurationNanos(1000000)
                                 .setErrorCount(0)
                                 .setTransactionCount(10)
+                                .setUnstoredTraceCount(3)
                                 .setDurationNanosHistogram(getFakeHistogram())
                                 .build());
                 aggregateVisitor.visitTransactionAggregate("a type", "one", new ArrayList<String>(),
@@ -185,6 +268,7 @@ public class AggregateDaoTest {
                                 .setTotalDurationNanos(1000000)
                                 .setErrorCount(0)
                                 .setTransactionCount(10)
+                                .setUnstoredTraceCount(3)
                                 .setDurationNanosHistogram(getFakeHistogram())
                                 .build());
                 aggregateVisitor.visitTransactionAggregate("a type", "one", new ArrayList<String>(),
@@ -217,6 +301,59 @@ public class AggregateDaoTest {
         return aggregateDao;
     }
 
+    private AggregateDao newAggregateDao() throws Exception {
+        return new AggregateDao(dataSource, ImmutableList.<CappedDatabase>of(cappedDatabase,
+                cappedDatabase, cappedDatabase, cappedDatabase), configRepository,
+                mock(TransactionTypeDao.class), mock(FullQueryTextDao.class));
+    }
+
+    private void waitForFirstLevel1Rollup() throws Exception {
+        long startMillis = System.currentTimeMillis();
+        while (dataSource.queryForLong("select count(*) from aggregate_tt_rollup_1") == 0
+                && System.currentTimeMillis() - startMillis < 10000) {
+            Thread.sleep(1);
+        }
+    }
+
+    private static void storeOverallAggregate(AggregateDao aggregateDao, final long captureTime)
+            throws Exception {
+        aggregateDao.store(new AggregateReader() {
+            @Override
+            public long captureTime() {
+                return captureTime;
+            }
+            @Override
+            public void accept(AggregateVisitor aggregateVisitor) throws Exception {
+                aggregateVisitor.visitOverallAggregate("a type", new ArrayList<String>(),
+                        Aggregate.newBuilder()
+                                .setTotalDurationNanos(1000000)
+                                .setErrorCount(0)
+                                .setTransactionCount(1)
+                                .setDurationNanosHistogram(getFakeHistogram())
+                                .build());
+            }
+        });
+    }
+
+    private static List<OverviewAggregate> readOverallAggregates(AggregateDao aggregateDao,
+            int rollupLevel) throws Exception {
+        TransactionQuery query = ImmutableTransactionQuery.builder()
+                .transactionType("a type")
+                .from(0)
+                .to(1000000)
+                .rollupLevel(rollupLevel)
+                .build();
+        return aggregateDao.readOverviewAggregates(AGENT_ID, query);
+    }
+
+    private static long sumTransactionCounts(List<OverviewAggregate> aggregates) {
+        long sum = 0;
+        for (OverviewAggregate aggregate : aggregates) {
+            sum += aggregate.transactionCount();
+        }
+        return sum;
+    }
+
     private static Aggregate.Histogram getFakeHistogram() {
         return Aggregate.Histogram.newBuilder()
                 .addOrderedRawValue(123)
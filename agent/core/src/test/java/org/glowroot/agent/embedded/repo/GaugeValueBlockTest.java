@@ -0,0 +1,90 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.repo;
+
+import java.util.List;
+import java.util.Random;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class GaugeValueBlockTest {
+
+    @Test
+    public void shouldRoundTripRegularValues() {
+        // given
+        List<GaugeValue> gaugeValues = Lists.newArrayList();
+        for (int i = 0; i < 720; i++) {
+            gaugeValues.add(createGaugeValue(1490000000000L + i * 5000, 100.0 + i % 3, 1));
+        }
+        // when
+        byte[] bytes = GaugeValueBlock.encode(gaugeValues);
+        // then
+        assertThat(GaugeValueBlock.decode(bytes, 0, Long.MAX_VALUE)).isEqualTo(gaugeValues);
+        // 720 * (capture_time + value + weight) would be 720 * 24 bytes without compression
+        assertThat(bytes.length).isLessThan(720 * 4);
+    }
+
+    @Test
+    public void shouldRoundTripIrregularValues() {
+        // given
+        Random random = new Random(0);
+        List<GaugeValue> gaugeValues = Lists.newArrayList();
+        long captureTime = 1490000000000L;
+        for (int i = 0; i < 1000; i++) {
+            captureTime += 1 + random.nextInt(10) * random.nextInt(1000);
+            double value;
+            if (i % 10 == 0) {
+                value = Double.NaN;
+            } else if (i % 7 == 0) {
+                value = -random.nextDouble() * 1000000;
+            } else {
+                value = random.nextGaussian();
+            }
+            gaugeValues.add(createGaugeValue(captureTime, value, 1 + random.nextInt(3) * 5000));
+        }
+        // when
+        byte[] bytes = GaugeValueBlock.encode(gaugeValues);
+        // then
+        assertThat(GaugeValueBlock.decode(bytes, 0, Long.MAX_VALUE)).isEqualTo(gaugeValues);
+    }
+
+    @Test
+    public void shouldDecodeOnlyRequestedRange() {
+        // given
+        List<GaugeValue> gaugeValues = Lists.newArrayList();
+        for (int i = 0; i < 10; i++) {
+            gaugeValues.add(createGaugeValue(i * 1000, i, 1));
+        }
+        // when
+        byte[] bytes = GaugeValueBlock.encode(gaugeValues);
+        // then
+        assertThat(GaugeValueBlock.decode(bytes, 3000, 5000))
+                .isEqualTo(gaugeValues.subList(3, 6));
+    }
+
+    private static GaugeValue createGaugeValue(long captureTime, double value, long weight) {
+        return GaugeValue.newBuilder()
+                .setCaptureTime(captureTime)
+                .setValue(value)
+                .setWeight(weight)
+                .build();
+    }
+}
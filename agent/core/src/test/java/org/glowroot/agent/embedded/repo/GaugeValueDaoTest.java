@@ -0,0 +1,93 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.repo;
+
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.agent.embedded.util.DataSource;
+import org.glowroot.common.util.Clock;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
+
+import static java.util.concurrent.TimeUnit.HOURS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+// this is not an integration test (*IT.java) since then it would run against shaded agent and fail
+// due to shading issues
+public class GaugeValueDaoTest {
+
+    private static final String GAUGE_NAME = "java.lang:type=Memory:HeapMemoryUsage.used";
+
+    private static final long START_TIME = HOURS.toMillis(420000);
+
+    private DataSource dataSource;
+    private Clock clock;
+    private GaugeValueDao gaugeValueDao;
+
+    @Before
+    public void beforeEachTest() throws Exception {
+        dataSource = new DataSource();
+        clock = mock(Clock.class);
+        when(clock.currentTimeMillis()).thenReturn(START_TIME + 1);
+        gaugeValueDao = new GaugeValueDao(dataSource, new GaugeNameDao(dataSource), clock);
+    }
+
+    @After
+    public void afterEachTest() throws Exception {
+        dataSource.close();
+    }
+
+    @Test
+    public void shouldReadCompactedAndNonCompactedValues() throws Exception {
+        // given
+        int count = 3 * 720;
+        for (int i = 1; i <= count; i++) {
+            long captureTime = START_TIME + i * 5000;
+            when(clock.currentTimeMillis()).thenReturn(captureTime + 1);
+            gaugeValueDao.store(ImmutableList.of(GaugeValue.newBuilder()
+                    .setGaugeName(GAUGE_NAME)
+                    .setCaptureTime(captureTime)
+                    .setValue(i)
+                    .setWeight(1)
+                    .build()));
+        }
+        // when
+        List<GaugeValue> gaugeValues = gaugeValueDao.readGaugeValues("", GAUGE_NAME,
+                START_TIME, START_TIME + count * 5000, 0);
+        List<GaugeValue> partialGaugeValues = gaugeValueDao.readGaugeValues("", GAUGE_NAME,
+                START_TIME + HOURS.toMillis(1) + 5000, START_TIME + HOURS.toMillis(2) + 10000,
+                0);
+        // then
+        assertThat(gaugeValues).hasSize(count);
+        for (int i = 0; i < count; i++) {
+            assertThat(gaugeValues.get(i).getCaptureTime()).isEqualTo(START_TIME + (i + 1) * 5000);
+            assertThat(gaugeValues.get(i).getValue()).isEqualTo(i + 1);
+        }
+        assertThat(partialGaugeValues).hasSize(722);
+        assertThat(dataSource.queryForLong("select count(*) from gauge_value_block_0"))
+                .isEqualTo(3);
+        // values from the first two blocks have been deleted, values from the last block will be
+        // deleted on the next store
+        assertThat(dataSource.queryForLong("select count(*) from gauge_value_rollup_0"))
+                .isEqualTo(720);
+    }
+}
@@ -24,6 +24,7 @@ import org.slf4j.LoggerFactory;
 
 import org.glowroot.agent.embedded.util.CappedDatabase;
 import org.glowroot.agent.embedded.util.DataSource;
+import org.glowroot.common.repo.ConfigRepository;
 
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static org.mockito.Mockito.mock;
@@ -40,7 +41,7 @@ public class TraceDaoPerformanceMain {
                 new CappedDatabase(new File("glowroot.capped.db"), 1000000, Ticker.systemTicker());
         TraceDao traceDao = new TraceDao(dataSource, cappedDatabase,
                 mock(TransactionTypeDao.class), mock(FullQueryTextDao.class),
-                mock(TraceAttributeNameDao.class));
+                mock(TraceAttributeNameDao.class), mock(ConfigRepository.class));
 
         Stopwatch stopwatch = Stopwatch.createStarted();
         for (int i = 0; i < 1000; i++) {
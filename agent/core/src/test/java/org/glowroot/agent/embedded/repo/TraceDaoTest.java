@@ -30,12 +30,15 @@ import org.glowroot.common.live.LiveTraceRepository.TracePoint;
 import org.glowroot.common.live.LiveTraceRepository.TracePointFilter;
 import org.glowroot.common.live.StringComparator;
 import org.glowroot.common.model.Result;
+import org.glowroot.common.repo.ConfigRepository;
+import org.glowroot.common.repo.ConfigRepository.RollupConfig;
 import org.glowroot.common.repo.ImmutableTraceQuery;
 import org.glowroot.common.repo.TraceRepository.TraceQuery;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 
 // NOTE this is mostly a copy of TraceDaoIT.java in glowroot-central
 //
@@ -59,8 +62,10 @@ public class TraceDaoTest {
         }
         cappedFile = File.createTempFile("glowroot-test-", ".capped.db");
         cappedDatabase = new CappedDatabase(cappedFile, 1000000, Ticker.systemTicker());
+        ConfigRepository configRepository = mock(ConfigRepository.class);
+        when(configRepository.getRollupConfigs()).thenReturn(RollupConfig.buildRollupConfigs());
         traceDao = new TraceDao(dataSource, cappedDatabase, mock(TransactionTypeDao.class),
-                mock(FullQueryTextDao.class), mock(TraceAttributeNameDao.class));
+                mock(FullQueryTextDao.class), mock(TraceAttributeNameDao.class), configRepository);
     }
 
     @After
@@ -217,4 +222,72 @@ public class TraceDaoTest {
         // then
         assertThat(traceDao.readHeaderPlus(AGENT_ROLLUP, AGENT_ID, traceReader.traceId())).isNull();
     }
+
+    @Test
+    public void shouldReadCountsAcrossRollupIntervals() throws Exception {
+        // given
+        for (long captureTime : new long[] {30000, 90000, 3 * 3600000 + 30000, 5 * 86400000}) {
+            traceDao.store(TraceTestData.createTraceReader(TraceTestData.createTraceHeader()
+                    .toBuilder()
+                    .setCaptureTime(captureTime)
+                    .build()));
+        }
+        TraceQuery query = ImmutableTraceQuery.builder()
+                .transactionType("unit test")
+                .from(1)
+                .to(7 * 86400000)
+                .build();
+        TraceQuery transactionQuery = ImmutableTraceQuery.builder()
+                .copyFrom(query)
+                .transactionName("test transaction name")
+                .build();
+        TraceQuery partialRangeQuery = ImmutableTraceQuery.builder()
+                .copyFrom(query)
+                .from(60000)
+                .to(3 * 3600000 + 30000)
+                .build();
+
+        // when
+        long slowCount = traceDao.readSlowCount(AGENT_ROLLUP, query);
+        long transactionSlowCount = traceDao.readSlowCount(AGENT_ROLLUP, transactionQuery);
+        long partialRangeSlowCount = traceDao.readSlowCount(AGENT_ROLLUP, partialRangeQuery);
+        long errorCount = traceDao.readErrorCount(AGENT_ROLLUP, query);
+
+        // then
+        assertThat(slowCount).isEqualTo(4);
+        assertThat(transactionSlowCount).isEqualTo(4);
+        assertThat(partialRangeSlowCount).isEqualTo(2);
+        assertThat(errorCount).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldNotDoubleCountPartialTraceUpdates() throws Exception {
+        // given
+        Trace.Header header = TraceTestData.createTraceHeader().toBuilder()
+                .setPartial(true)
+                .setCaptureTime(30000)
+                .build();
+        traceDao.store(TraceTestData.createTraceReader(header, "abc", false));
+        traceDao.store(TraceTestData.createTraceReader(header.toBuilder()
+                .setPartial(false)
+                .setCaptureTime(3600000 + 30000)
+                .build(), "abc", true));
+        TraceQuery query = ImmutableTraceQuery.builder()
+                .transactionType("unit test")
+                .from(0)
+                .to(86400000)
+                .build();
+        TraceQuery firstMinuteQuery = ImmutableTraceQuery.builder()
+                .copyFrom(query)
+                .to(60000)
+                .build();
+
+        // when
+        long slowCount = traceDao.readSlowCount(AGENT_ROLLUP, query);
+        long firstMinuteSlowCount = traceDao.readSlowCount(AGENT_ROLLUP, firstMinuteQuery);
+
+        // then
+        assertThat(slowCount).isEqualTo(1);
+        assertThat(firstMinuteSlowCount).isEqualTo(0);
+    }
 }
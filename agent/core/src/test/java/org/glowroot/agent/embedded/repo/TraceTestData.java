@@ -28,11 +28,15 @@ import static java.util.concurrent.TimeUnit.MILLISECONDS;
 class TraceTestData {
 
     static TraceReader createTraceReader() {
-        return new TraceReaderImpl(createTraceHeader());
+        return createTraceReader(createTraceHeader());
     }
 
     static TraceReader createTraceReader(Trace.Header header) {
-        return new TraceReaderImpl(header);
+        return new TraceReaderImpl(header, UUID.randomUUID().toString(), false);
+    }
+
+    static TraceReader createTraceReader(Trace.Header header, String traceId, boolean update) {
+        return new TraceReaderImpl(header, traceId, update);
     }
 
     static Trace.Header createTraceHeader() {
@@ -69,10 +73,12 @@ class TraceTestData {
 
         private final String traceId;
         private final Trace.Header header;
+        private final boolean update;
 
-        private TraceReaderImpl(Trace.Header header) {
+        private TraceReaderImpl(Trace.Header header, String traceId, boolean update) {
             this.header = header;
-            traceId = UUID.randomUUID().toString();
+            this.traceId = traceId;
+            this.update = update;
         }
 
         @Override
@@ -92,7 +98,7 @@ class TraceTestData {
 
         @Override
         public boolean update() {
-            return false;
+            return update;
         }
 
         @Override
@@ -54,7 +54,7 @@ public class TraceEntryComponentTest {
         TraceEntryComponent traceEntryComponent =
                 new TraceEntryComponent(threadContext, messageSupplier1, timer1, 0);
         // when
-        traceEntryComponent.pushEntry(0, messageSupplier2, timer2, null, null, 0);
+        traceEntryComponent.pushEntry(0, messageSupplier2, timer2, null, null, null, 0);
         traceEntryComponent.popEntry(traceEntryComponent.getRootEntry(), 0);
         // then
         assertThat(traceEntryComponent.isCompleted()).isTrue();
@@ -73,7 +73,7 @@ public class TraceEntryComponentTest {
         TraceEntryComponent traceEntryComponent =
                 new TraceEntryComponent(threadContext, messageSupplier1, timer1, 0);
         // when
-        traceEntryComponent.pushEntry(0, messageSupplier2, timer2, null, null, 0);
+        traceEntryComponent.pushEntry(0, messageSupplier2, timer2, null, null, null, 0);
         traceEntryComponent.popEntry(mock(TraceEntryImpl.class), 0);
         // then
         assertThat(traceEntryComponent.isCompleted()).isFalse();
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TraceStorageSamplerTest {
+
+    private static final int GUARANTEED = TraceStorageSampler.GUARANTEED_PER_KEY_PER_MINUTE;
+
+    @Test
+    public void shouldStoreAllWhenNoLimit() {
+        // given
+        TraceStorageSampler sampler = new TraceStorageSampler(new Random(0));
+        // when
+        int storedCount = storeMany(sampler, "a", 0, 1000, 0);
+        // then
+        assertThat(storedCount).isEqualTo(1000);
+    }
+
+    @Test
+    public void shouldThrottleRepetitiveKeyButStillStoreRareKey() {
+        // given
+        TraceStorageSampler sampler = new TraceStorageSampler(new Random(0));
+        // when
+        int storedCount = storeMany(sampler, "a", 0, 10000, 100);
+        int rareStoredCount = storeMany(sampler, "b", 0, GUARANTEED, 100);
+        // then
+        assertThat(storedCount).isGreaterThan(50);
+        assertThat(storedCount).isLessThanOrEqualTo(75);
+        assertThat(rareStoredCount).isEqualTo(GUARANTEED);
+    }
+
+    @Test
+    public void shouldNotExceedLimit() {
+        // given
+        TraceStorageSampler sampler = new TraceStorageSampler(new Random(0));
+        // when
+        int storedCount = 0;
+        for (int i = 0; i < 100; i++) {
+            storedCount += storeMany(sampler, "key" + i, 0, GUARANTEED, 100);
+        }
+        // then
+        assertThat(storedCount).isEqualTo(100);
+    }
+
+    @Test
+    public void shouldResetEachMinute() {
+        // given
+        TraceStorageSampler sampler = new TraceStorageSampler(new Random(0));
+        storeMany(sampler, "a", 0, 10000, 10);
+        // when
+        boolean stored = sampler.shouldStore("a", 60000, 10);
+        // then
+        assertThat(stored).isTrue();
+    }
+
+    private static int storeMany(TraceStorageSampler sampler, String key, long currentTimeMillis,
+            int count, int maxPerMinute) {
+        int storedCount = 0;
+        for (int i = 0; i < count; i++) {
+            if (sampler.shouldStore(key, currentTimeMillis, maxPerMinute)) {
+                storedCount++;
+            }
+        }
+        return storedCount;
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class QueryTextNormalizerTest {
+
+    @Test
+    public void shouldReplaceLiterals() {
+        assertThat(QueryTextNormalizer.normalize(
+                "select * from employee where name = 'it''s' and age > 30 and salary < 1.5e+4"))
+                        .isEqualTo("select * from employee where name = ? and age > ?"
+                                + " and salary < ?");
+    }
+
+    @Test
+    public void shouldCollapseInLists() {
+        assertThat(QueryTextNormalizer
+                .normalize("select * from employee where id in (1, 2, 3) or name IN ('a','b')"))
+                        .isEqualTo("select * from employee where id in (?) or name IN (?)");
+        assertThat(QueryTextNormalizer.normalize("select * from employee where id in (?, ?, ?)"))
+                .isEqualTo("select * from employee where id in (?)");
+    }
+
+    @Test
+    public void shouldNotCollapseSubqueryInList() {
+        String queryText = "select * from employee where id in (select id from other where x = ?)";
+        assertThat(QueryTextNormalizer.normalize(queryText)).isSameAs(queryText);
+    }
+
+    @Test
+    public void shouldNotTouchIdentifiersCommentsOrBindMarkers() {
+        String queryText = "select t1.col2, \"col 3\" from tab1 t1 /* 42 */ where a = :1"
+                + " and b = $2 -- 'x'\n and c = ?";
+        assertThat(QueryTextNormalizer.normalize(queryText)).isSameAs(queryText);
+    }
+
+    @Test
+    public void shouldOnlyNormalizeSqlAndCql() {
+        assertThat(QueryTextNormalizer.getAggregateQueryText("SQL", "select 1"))
+                .isEqualTo("select ?");
+        assertThat(QueryTextNormalizer.getAggregateQueryText("CQL", "select 1"))
+                .isEqualTo("select ?");
+        assertThat(QueryTextNormalizer.getAggregateQueryText("HQL", "select 1"))
+                .isEqualTo("select 1");
+    }
+
+    @Test
+    public void shouldReplaceBackslashEscapedLiterals() {
+        assertThat(QueryTextNormalizer.normalize(
+                "select * from employee where name = 'it\\'s' and title = 'a\\\\' and age > 30"))
+                        .isEqualTo("select * from employee where name = ? and title = ?"
+                                + " and age > ?");
+    }
+
+    @Test
+    public void shouldCacheByQueryTextEquality() {
+        String queryText = new String("select x from y where z = ?");
+        assertThat(QueryTextNormalizer.getAggregateQueryText("SQL", queryText))
+                .isSameAs(queryText);
+        assertThat(QueryTextNormalizer.getAggregateQueryText("SQL",
+                new String("select x from y where z = ?"))).isSameAs(queryText);
+    }
+
+    @Test
+    public void shouldNotCacheQueryTextWithLiterals() {
+        String normalized = QueryTextNormalizer.getAggregateQueryText("SQL",
+                new String("select x from y where z = 42"));
+        assertThat(normalized).isEqualTo("select x from y where z = ?");
+        assertThat(QueryTextNormalizer.getAggregateQueryText("SQL",
+                new String("select x from y where z = 42"))).isNotSameAs(normalized);
+    }
+
+    @Test
+    public void shouldLeaveUnterminatedLiteral() {
+        assertThat(QueryTextNormalizer.normalize("select 1 from x where a = 'abc"))
+                .isEqualTo("select ? from x where a = 'abc");
+    }
+}
@@ -121,6 +121,27 @@ public class PathEvaluatorTest {
         assertThat(value).isEqualTo("eeeeee");
     }
 
+    @Test
+    public void shouldTestRemainingPathWithChangingRuntimeType() throws Exception {
+        // given
+        PathEvaluator pathEvaluator = new PathEvaluator(A.class, "b.eee");
+        A a = new A();
+        a.b = new E();
+        A a2 = new A();
+        a2.b = new F();
+        A a3 = new A();
+        // when
+        String value = (String) pathEvaluator.evaluateOnBase(a);
+        String value2 = (String) pathEvaluator.evaluateOnBase(a2);
+        String value3 = (String) pathEvaluator.evaluateOnBase(a3);
+        String value4 = (String) pathEvaluator.evaluateOnBase(a);
+        // then
+        assertThat(value).isEqualTo("eeeeee");
+        assertThat(value2).isEqualTo("ffffff");
+        assertThat(value3).isNull();
+        assertThat(value4).isEqualTo("eeeeee");
+    }
+
     @SuppressWarnings("unused")
     private static class SomeObject {
 
@@ -180,4 +201,11 @@ public class PathEvaluatorTest {
     private static class E extends B {
         private final String eee = "eeeeee";
     }
+
+    @SuppressWarnings("unused")
+    private static class F extends B {
+        public String getEee() {
+            return "ffffff";
+        }
+    }
 }
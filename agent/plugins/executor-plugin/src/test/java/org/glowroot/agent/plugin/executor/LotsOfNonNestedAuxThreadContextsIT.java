@@ -1,5 +1,5 @@
 /*
- * Copyright 2016 the original author or authors.
+ * Copyright 2016-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,6 +15,7 @@
  */
 package org.glowroot.agent.plugin.executor;
 
+import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
@@ -29,6 +30,7 @@ import org.junit.Test;
 
 import org.glowroot.agent.it.harness.AppUnderTest;
 import org.glowroot.agent.it.harness.Container;
+import org.glowroot.agent.it.harness.TraceEntryMarker;
 import org.glowroot.agent.it.harness.TransactionMarker;
 import org.glowroot.agent.it.harness.impl.JavaagentContainer;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
@@ -75,6 +77,38 @@ public class LotsOfNonNestedAuxThreadContextsIT {
         assertThat(auxThreadRootTimer.getChildTimerCount()).isZero();
     }
 
+    @Test
+    public void shouldCaptureTraceEntryAfterLotsOfMicroTasks() throws Exception {
+        // when
+        Trace trace = container.execute(DoSubmitMicroTasksAndThenTraceEntryTask.class);
+
+        // then
+        List<Trace.Timer> auxThreadRootTimers = trace.getHeader().getAuxThreadRootTimerList();
+        assertThat(auxThreadRootTimers).hasSize(1);
+        Trace.Timer auxThreadRootTimer = auxThreadRootTimers.get(0);
+        assertThat(auxThreadRootTimer.getCount()).isEqualTo(100001);
+        assertThat(auxThreadRootTimer.getActive()).isFalse();
+        assertThat(auxThreadRootTimer.getChildTimerCount()).isEqualTo(1);
+        assertThat(auxThreadRootTimer.getChildTimer(0).getName())
+                .isEqualTo("mock trace entry marker");
+        // thread stats of summarized aux thread contexts are still captured
+        assertThat(trace.getHeader().hasAuxThreadStats()).isTrue();
+        assertThat(trace.getHeader().getAuxThreadStats().getTotalCpuNanos().getValue())
+                .isPositive();
+
+        Iterator<Trace.Entry> i = trace.getEntryList().iterator();
+
+        Trace.Entry entry = i.next();
+        assertThat(entry.getDepth()).isEqualTo(0);
+        assertThat(entry.getMessage()).isEqualTo("auxiliary thread");
+
+        entry = i.next();
+        assertThat(entry.getDepth()).isEqualTo(1);
+        assertThat(entry.getMessage()).isEqualTo("trace entry marker / CreateTraceEntry");
+
+        assertThat(i.hasNext()).isFalse();
+    }
+
     public static class DoSubmitCallable implements AppUnderTest, TransactionMarker {
 
         private final ThreadPoolExecutor executor = new ThreadPoolExecutor(100, 100, 0,
@@ -108,4 +142,53 @@ public class LotsOfNonNestedAuxThreadContextsIT {
             executor.awaitTermination(10, SECONDS);
         }
     }
+
+    public static class DoSubmitMicroTasksAndThenTraceEntryTask
+            implements AppUnderTest, TransactionMarker {
+
+        private final ThreadPoolExecutor executor = new ThreadPoolExecutor(100, 100, 0,
+                MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+
+        private final CountDownLatch latch = new CountDownLatch(100001);
+
+        @Override
+        public void executeApp() throws Exception {
+            transactionMarker();
+        }
+
+        @Override
+        public void transactionMarker() throws Exception {
+            for (int i = 0; i < 100000; i++) {
+                while (executor.getQueue().size() > 1000) {
+                    // keep executor backlog from getting too full and adding memory pressure
+                    // (since restricting heap size to test for leaking aux thread contexts)
+                    Thread.sleep(1);
+                }
+                executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        latch.countDown();
+                        return null;
+                    }
+                });
+            }
+            executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    new CreateTraceEntry().traceEntryMarker();
+                    latch.countDown();
+                    return null;
+                }
+            });
+            latch.await();
+            executor.shutdown();
+            executor.awaitTermination(10, SECONDS);
+        }
+    }
+
+    private static class CreateTraceEntry implements TraceEntryMarker {
+
+        @Override
+        public void traceEntryMarker() {}
+    }
 }
@@ -15,14 +15,11 @@
  */
 package org.glowroot.agent.plugin.jdbc;
 
-import java.util.Collection;
-
 import javax.annotation.Nullable;
 
-import com.google.common.collect.ImmutableList;
-import com.google.common.collect.Queues;
 import com.google.common.hash.HashCode;
 
+import org.glowroot.agent.plugin.jdbc.message.BindParameterBatch;
 import org.glowroot.agent.plugin.jdbc.message.BindParameterList;
 
 // used to capture and mirror the state of prepared statements since the underlying
@@ -36,36 +33,34 @@ class PreparedStatementMirror extends StatementMirror {
     private final String sql;
     // ok for this field to be non-volatile since it is only temporary storage for a single thread
     // while that thread is setting parameter values into the prepared statement and executing it
-    private BindParameterList parameters;
+    //
+    // lazy instantiated so that (cached) prepared statements don't retain any memory for
+    // parameters when bind parameter capture is disabled
+    private @Nullable BindParameterList parameters;
     private boolean parametersShared;
     // ok for this field to be non-volatile since it is only temporary storage for a single thread
     // while that thread is setting parameter values into the prepared statement and executing it
-    private @Nullable Collection<BindParameterList> batchedParameters;
+    private @Nullable BindParameterBatch batchedParameters;
     private int batchSize;
 
     PreparedStatementMirror(String sql) {
         this.sql = sql;
-        // TODO delay creation to optimize case when bind parameter capture is disabled
-        parameters = new BindParameterList(PARAMETERS_INITIAL_CAPACITY);
     }
 
-    void addBatch() {
+    void addBatch(boolean captureBindParameters) {
         // synchronization isn't an issue here as this method is called only by the monitored thread
-        if (batchedParameters == null) {
-            batchedParameters = Queues.newConcurrentLinkedQueue();
-        }
-        if (batchSize++ < CAPTURED_BATCH_SIZE_LIMIT) {
+        if (batchSize++ < CAPTURED_BATCH_SIZE_LIMIT && captureBindParameters) {
+            if (batchedParameters == null) {
+                batchedParameters = new BindParameterBatch();
+            }
+            // parameters are copied into the batch, so no need to mark them as shared
             batchedParameters.add(parameters);
-            parametersShared = true;
         }
     }
 
-    Collection<BindParameterList> getBatchedParameters() {
-        if (batchedParameters == null) {
-            return ImmutableList.of();
-        } else {
-            return batchedParameters;
-        }
+    @Nullable
+    BindParameterBatch getBatchedParameters() {
+        return batchedParameters;
     }
 
     @Nullable
@@ -84,19 +79,30 @@ class PreparedStatementMirror extends StatementMirror {
 
     // remember parameterIndex starts at 1 not 0
     void setParameterValue(int parameterIndex, @Nullable Object object) {
-        if (parametersShared) {
+        BindParameterList parameters = this.parameters;
+        if (parameters == null || parametersShared) {
             // separate method for less common path to not impact inlining budget of fast(er) path
-            copyParameters();
+            parameters = createOrCopyParameters();
         }
         parameters.set(parameterIndex - 1, object);
     }
 
-    private void copyParameters() {
-        parameters = BindParameterList.copyOf(parameters);
+    private BindParameterList createOrCopyParameters() {
+        BindParameterList parameters = this.parameters;
+        if (parameters == null) {
+            parameters = new BindParameterList(PARAMETERS_INITIAL_CAPACITY);
+        } else {
+            parameters = BindParameterList.copyOf(parameters);
+        }
+        this.parameters = parameters;
         parametersShared = false;
+        return parameters;
     }
 
     void clearParameters() {
+        if (parameters == null) {
+            return;
+        }
         if (parametersShared) {
             parameters = new BindParameterList(parameters.size());
             parametersShared = false;
@@ -107,12 +113,7 @@ class PreparedStatementMirror extends StatementMirror {
 
     @Override
     public void clearBatch() {
-        if (parametersShared) {
-            parameters = new BindParameterList(parameters.size());
-            parametersShared = false;
-        } else {
-            parameters.clear();
-        }
+        clearParameters();
         batchedParameters = null;
         batchSize = 0;
     }
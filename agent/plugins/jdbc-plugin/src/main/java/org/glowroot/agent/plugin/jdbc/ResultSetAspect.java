@@ -19,6 +19,7 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import org.glowroot.agent.plugin.api.Agent;
 import org.glowroot.agent.plugin.api.Logger;
@@ -41,6 +42,12 @@ public class ResultSetAspect {
     private static final Logger logger = Agent.getLogger(ResultSetAspect.class);
     private static final ConfigService configService = Agent.getConfigService("jdbc");
 
+    // when this is enabled, ResultSet.next() only counts rows (without capturing timings, and
+    // without updating the query entry on every row), and the timers for ResultSet navigation
+    // and ResultSet value retrieval are not captured regardless of their own settings
+    private static final BooleanProperty rowCountOnly =
+            configService.getBooleanProperty("captureResultSetRowCountOnly");
+
     @Pointcut(className = "java.sql.ResultSet", methodName = "next", methodParameterTypes = {},
             nestingGroup = "jdbc")
     public static class NextAdvice {
@@ -48,10 +55,13 @@ public class ResultSetAspect {
                 configService.getBooleanProperty("captureResultSetNavigate");
         @IsEnabled
         public static boolean isEnabled(@BindReceiver HasStatementMirror resultSet) {
-            return timerEnabled.value() && isEnabledCommon(resultSet);
+            return (timerEnabled.value() || rowCountOnly.value()) && isEnabledCommon(resultSet);
         }
         @OnBefore
-        public static Timer onBefore(@BindReceiver HasStatementMirror resultSet) {
+        public static @Nullable Timer onBefore(@BindReceiver HasStatementMirror resultSet) {
+            if (rowCountOnly.value()) {
+                return null;
+            }
             return onBeforeCommon(resultSet);
         }
         @OnReturn
@@ -63,12 +73,21 @@ public class ResultSetAspect {
                 // bizarre concurrent mis-usage of ResultSet
                 return;
             }
+            if (rowCountOnly.value() && currentRowValid) {
+                // this is the common case, so only counting the row here, and applying the count
+                // to the query entry once the result set is exhausted or closed
+                mirror.incrementRowCount();
+                return;
+            }
             QueryEntry lastQueryEntry = mirror.getLastQueryEntry();
             if (lastQueryEntry == null) {
                 // tracing must be disabled (e.g. exceeded trace entry limit)
                 return;
             }
-            if (currentRowValid) {
+            if (rowCountOnly.value()) {
+                mirror.flushRowCount();
+                lastQueryEntry.rowNavigationAttempted();
+            } else if (currentRowValid) {
                 // ResultSet.getRow() is sometimes not super duper fast due to ResultSet
                 // wrapping and other checks, so this optimizes the common case
                 lastQueryEntry.incrementCurrRow();
@@ -77,8 +96,10 @@ public class ResultSetAspect {
             }
         }
         @OnAfter
-        public static void onAfter(@BindTraveler Timer timer) {
-            timer.stop();
+        public static void onAfter(@BindTraveler @Nullable Timer timer) {
+            if (timer != null) {
+                timer.stop();
+            }
         }
     }
 
@@ -90,7 +111,7 @@ public class ResultSetAspect {
                 configService.getBooleanProperty("captureResultSetNavigate");
         @IsEnabled
         public static boolean isEnabled(@BindReceiver HasStatementMirror resultSet) {
-            return timerEnabled.value() && isEnabledCommon(resultSet);
+            return timerEnabled.value() && !rowCountOnly.value() && isEnabledCommon(resultSet);
         }
         @OnBefore
         public static Timer onBefore(@BindReceiver HasStatementMirror resultSet) {
@@ -128,7 +149,7 @@ public class ResultSetAspect {
                 configService.getBooleanProperty("captureResultSetGet");
         @IsEnabled
         public static boolean isEnabled(@BindReceiver HasStatementMirror resultSet) {
-            return timerEnabled.value() && isEnabledCommon(resultSet);
+            return timerEnabled.value() && !rowCountOnly.value() && isEnabledCommon(resultSet);
         }
         @OnBefore
         public static Timer onBefore(@BindReceiver HasStatementMirror resultSet) {
@@ -147,7 +168,7 @@ public class ResultSetAspect {
                 configService.getBooleanProperty("captureResultSetGet");
         @IsEnabled
         public static boolean isEnabled(@BindReceiver HasStatementMirror resultSet) {
-            return timerEnabled.value() && isEnabledCommon(resultSet);
+            return timerEnabled.value() && !rowCountOnly.value() && isEnabledCommon(resultSet);
         }
         @OnBefore
         public static Timer onBefore(@BindReceiver HasStatementMirror resultSet) {
@@ -159,6 +180,24 @@ public class ResultSetAspect {
         }
     }
 
+    @Pointcut(className = "java.sql.ResultSet", methodName = "close", methodParameterTypes = {},
+            nestingGroup = "jdbc")
+    public static class CloseAdvice {
+        @IsEnabled
+        public static boolean isEnabled(@BindReceiver HasStatementMirror resultSet) {
+            return rowCountOnly.value() && isEnabledCommon(resultSet);
+        }
+        @OnReturn
+        public static void onReturn(@BindReceiver HasStatementMirror resultSet) {
+            StatementMirror mirror = resultSet.glowroot$getStatementMirror();
+            if (mirror != null) {
+                // this should always be true since just checked above in isEnabled(), unless some
+                // bizarre concurrent mis-usage of ResultSet
+                mirror.flushRowCount();
+            }
+        }
+    }
+
     private static boolean isEnabledCommon(HasStatementMirror resultSet) {
         StatementMirror mirror = resultSet.glowroot$getStatementMirror();
         return mirror != null && mirror.getLastQueryEntry() != null;
@@ -255,7 +255,7 @@ public class StatementAspect {
             PreparedStatementMirror mirror =
                     (PreparedStatementMirror) preparedStatement.glowroot$getStatementMirror();
             if (mirror != null) {
-                mirror.addBatch();
+                mirror.addBatch(captureBindParameters.value());
             }
         }
     }
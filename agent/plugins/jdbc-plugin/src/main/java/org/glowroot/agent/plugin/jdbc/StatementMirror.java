@@ -40,6 +40,13 @@ public class StatementMirror {
     // while that thread is adding batches into the statement and executing it
     private @Nullable QueryEntry lastQueryEntry;
 
+    // this is only used when capturing result set row counts only (without timings), in which
+    // case rows are counted here and only applied to the last query entry when the result set is
+    // exhausted or closed, see ResultSetAspect
+    //
+    // ok for this field to be non-volatile for the same reason as lastQueryEntry above
+    private long rowCount;
+
     void addBatch(String sql) {
         // synchronization isn't an issue here as this method is called only by
         // the monitored thread
@@ -67,10 +74,26 @@ public class StatementMirror {
     }
 
     void setLastQuery(QueryEntry lastQueryEntry) {
+        flushRowCount();
         this.lastQueryEntry = lastQueryEntry;
+        rowCount = 0;
     }
 
     void clearLastQuery() {
+        flushRowCount();
         lastQueryEntry = null;
+        rowCount = 0;
+    }
+
+    void incrementRowCount() {
+        rowCount++;
+    }
+
+    void flushRowCount() {
+        if (lastQueryEntry != null && rowCount > 0) {
+            // setCurrRow() only applies the difference from the max row already recorded, so it
+            // is ok to flush the same row count more than once
+            lastQueryEntry.setCurrRow(rowCount);
+        }
     }
 }
@@ -15,7 +15,7 @@
  */
 package org.glowroot.agent.plugin.jdbc.message;
 
-import java.util.Collection;
+import javax.annotation.Nullable;
 
 import org.glowroot.agent.plugin.api.QueryMessage;
 import org.glowroot.agent.plugin.api.QueryMessageSupplier;
@@ -28,10 +28,10 @@ public class BatchPreparedStatementMessageSupplier extends QueryMessageSupplier
     private static final int MESSAGE_CHAR_LIMIT =
             Integer.getInteger("glowroot.message.char.limit", 512 * 1024);
 
-    private final Collection<BindParameterList> batchedParameters;
+    private final @Nullable BindParameterBatch batchedParameters;
     private final int batchSize;
 
-    public BatchPreparedStatementMessageSupplier(Collection<BindParameterList> batchedParameters,
+    public BatchPreparedStatementMessageSupplier(@Nullable BindParameterBatch batchedParameters,
             int batchSize) {
         this.batchedParameters = batchedParameters;
         this.batchSize = batchSize;
@@ -39,16 +39,16 @@ public class BatchPreparedStatementMessageSupplier extends QueryMessageSupplier
 
     @Override
     public QueryMessage get() {
-        // not using size() since capturedBatchSize is ConcurrentLinkedQueue
         int capturedBatchSize = 0;
         String suffix;
-        if (batchedParameters.isEmpty()) {
+        if (batchedParameters == null || batchedParameters.getRowCount() == 0) {
             suffix = "";
         } else {
             StringBuilder sb = new StringBuilder();
             boolean exceededMessageCharLimit = false;
-            for (BindParameterList oneParameters : batchedParameters) {
-                PreparedStatementMessageSupplier.appendParameters(sb, oneParameters);
+            int rowCount = batchedParameters.getRowCount();
+            for (int i = 0; i < rowCount; i++) {
+                batchedParameters.appendRow(sb, i);
                 capturedBatchSize++;
                 if (sb.length() > MESSAGE_CHAR_LIMIT) {
                     sb.setLength(MESSAGE_CHAR_LIMIT);
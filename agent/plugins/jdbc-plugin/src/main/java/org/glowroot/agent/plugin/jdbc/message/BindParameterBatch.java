@@ -0,0 +1,100 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.jdbc.message;
+
+import java.util.Arrays;
+
+import javax.annotation.Nullable;
+
+// micro-optimized storage for the bind parameters of the captured rows of a batch, all rows are
+// stored in a single flat array (instead of a list per row) to reduce memory for large batches
+//
+// rows are only added by the thread that is building the batch, but can be read concurrently
+// (e.g. when viewing an active trace)
+//
+// the arrays are published together via the volatile storage field whenever they are grown, and
+// each row is published via the volatile row count (which is always written after the row and
+// after any storage update), so a reader that reads the row count and then the storage sees a
+// storage that contains at least that many rows
+public class BindParameterBatch {
+
+    private volatile Storage storage = new Storage(new Object[16], new int[4]);
+    private int valueCount;
+    private volatile int rowCount;
+
+    public void add(@Nullable BindParameterList parameters) {
+        Storage storage = this.storage;
+        @Nullable Object[] values = storage.values;
+        int[] rowEnds = storage.rowEnds;
+        int size = parameters == null ? 0 : parameters.size();
+        int newValueCount = valueCount + size;
+        int rowCount = this.rowCount;
+        boolean grow = false;
+        if (newValueCount > values.length) {
+            values = Arrays.copyOf(values, Math.max(newValueCount, values.length * 2));
+            grow = true;
+        }
+        if (rowCount == rowEnds.length) {
+            rowEnds = Arrays.copyOf(rowEnds, rowCount * 2);
+            grow = true;
+        }
+        if (parameters != null) {
+            parameters.copyTo(values, valueCount);
+        }
+        rowEnds[rowCount] = newValueCount;
+        valueCount = newValueCount;
+        if (grow) {
+            this.storage = new Storage(values, rowEnds);
+        }
+        // volatile write publishes the row (and is ordered after the storage write above)
+        this.rowCount = rowCount + 1;
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    // row must be less than a value previously returned by getRowCount()
+    void appendRow(StringBuilder sb, int row) {
+        // rows below the row count are never modified, and grown arrays are copies that still
+        // contain them, so the current storage always contains the requested row
+        Storage storage = this.storage;
+        int[] rowEnds = storage.rowEnds;
+        @Nullable Object[] values = storage.values;
+        int start = row == 0 ? 0 : rowEnds[row - 1];
+        int end = rowEnds[row];
+        sb.append(" [");
+        for (int i = start; i < end; i++) {
+            if (i != start) {
+                sb.append(", ");
+            }
+            PreparedStatementMessageSupplier.appendParameter(sb, values[i]);
+        }
+        sb.append("]");
+    }
+
+    private static class Storage {
+
+        private final @Nullable Object[] values;
+        // end index (exclusive) in values of each row
+        private final int[] rowEnds;
+
+        private Storage(@Nullable Object[] values, int[] rowEnds) {
+            this.values = values;
+            this.rowEnds = rowEnds;
+        }
+    }
+}
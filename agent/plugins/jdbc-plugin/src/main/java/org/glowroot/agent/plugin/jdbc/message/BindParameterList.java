@@ -73,6 +73,10 @@ public class BindParameterList implements Iterable</*@Nullable*/ Object> {
         return size == 0;
     }
 
+    void copyTo(@Nullable Object[] dest, int destPos) {
+        System.arraycopy(parameters, 0, dest, destPos, size);
+    }
+
     public void clear() {
         Arrays.fill(parameters, null);
         size = 0;
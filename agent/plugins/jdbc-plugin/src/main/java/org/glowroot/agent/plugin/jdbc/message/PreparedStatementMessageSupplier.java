@@ -47,17 +47,21 @@ public class PreparedStatementMessageSupplier extends QueryMessageSupplier {
             if (!first) {
                 sb.append(", ");
             }
-            if (parameter instanceof String) {
-                sb.append("\'");
-                sb.append((String) parameter);
-                sb.append("\'");
-            } else if (parameter == null) {
-                sb.append("NULL");
-            } else {
-                sb.append(String.valueOf(parameter));
-            }
+            appendParameter(sb, parameter);
             first = false;
         }
         sb.append("]");
     }
+
+    static void appendParameter(StringBuilder sb, @Nullable Object parameter) {
+        if (parameter instanceof String) {
+            sb.append("\'");
+            sb.append((String) parameter);
+            sb.append("\'");
+        } else if (parameter == null) {
+            sb.append("NULL");
+        } else {
+            sb.append(String.valueOf(parameter));
+        }
+    }
 }
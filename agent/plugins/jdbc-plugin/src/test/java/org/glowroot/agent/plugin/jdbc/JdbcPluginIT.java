@@ -176,6 +176,56 @@ public class JdbcPluginIT {
         assertThat(found).isFalse();
     }
 
+    @Test
+    public void testWithResultSetRowCountOnlyUnderSeparateTraceEntry() throws Exception {
+        // given
+        container.getConfigService().setPluginProperty(PLUGIN_ID, "captureResultSetRowCountOnly",
+                true);
+        // when
+        Trace trace = container.execute(IterateOverResultsUnderSeparateTraceEntry.class);
+        // then
+        boolean found = findExtendedTimerName(trace, "jdbc execute");
+        assertThat(found).isFalse();
+    }
+
+    @Test
+    public void testResultSetRowCountOnly() throws Exception {
+        // given
+        container.getConfigService().setPluginProperty(PLUGIN_ID, "captureResultSetRowCountOnly",
+                true);
+
+        // when
+        Trace trace = container.execute(ExecuteStatementAndIterateOverResults.class);
+
+        // then
+        Iterator<Trace.Entry> i = trace.getEntryList().iterator();
+
+        Trace.Entry entry = i.next();
+        assertThat(entry.getDepth()).isEqualTo(0);
+        assertThat(entry.getQueryEntryMessage().getSuffix()).isEqualTo(" => 3 rows");
+
+        assertThat(i.hasNext()).isFalse();
+    }
+
+    @Test
+    public void testResultSetRowCountOnlyWithoutExhaustingResultSet() throws Exception {
+        // given
+        container.getConfigService().setPluginProperty(PLUGIN_ID, "captureResultSetRowCountOnly",
+                true);
+
+        // when
+        Trace trace = container.execute(ExecuteStatementAndReadFirstTwoResults.class);
+
+        // then
+        Iterator<Trace.Entry> i = trace.getEntryList().iterator();
+
+        Trace.Entry entry = i.next();
+        assertThat(entry.getDepth()).isEqualTo(0);
+        assertThat(entry.getQueryEntryMessage().getSuffix()).isEqualTo(" => 2 rows");
+
+        assertThat(i.hasNext()).isFalse();
+    }
+
     @Test
     public void testDefaultStackTraceThreshold() throws Exception {
         // when
@@ -289,6 +339,33 @@ public class JdbcPluginIT {
         }
     }
 
+    public static class ExecuteStatementAndReadFirstTwoResults
+            implements AppUnderTest, TransactionMarker {
+        private Connection connection;
+        @Override
+        public void executeApp() throws Exception {
+            connection = Connections.createConnection();
+            try {
+                transactionMarker();
+            } finally {
+                Connections.closeConnection(connection);
+            }
+        }
+        @Override
+        public void transactionMarker() throws Exception {
+            Statement statement = connection.createStatement();
+            try {
+                statement.execute("select * from employee");
+                ResultSet rs = statement.getResultSet();
+                rs.next();
+                rs.next();
+                rs.close();
+            } finally {
+                statement.close();
+            }
+        }
+    }
+
     public static class ExecuteLotsOfStatementAndIterateOverResults
             implements AppUnderTest, TransactionMarker {
         private Connection connection;
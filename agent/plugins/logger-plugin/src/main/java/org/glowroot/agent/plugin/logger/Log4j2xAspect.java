@@ -18,7 +18,6 @@ package org.glowroot.agent.plugin.logger;
 import javax.annotation.Nullable;
 
 import org.glowroot.agent.plugin.api.Agent;
-import org.glowroot.agent.plugin.api.MessageSupplier;
 import org.glowroot.agent.plugin.api.ThreadContext;
 import org.glowroot.agent.plugin.api.TimerName;
 import org.glowroot.agent.plugin.api.TraceEntry;
@@ -61,6 +60,9 @@ public class Log4j2xAspect {
         String getFormattedMessage();
     }
 
+    @Shim("org.apache.logging.log4j.message.ReusableMessage")
+    public interface ReusableMessage {}
+
     @Pointcut(className = "org.apache.logging.log4j.spi.ExtendedLogger", methodName = "logMessage",
             methodParameterTypes = {"java.lang.String", "org.apache.logging.log4j.Level",
                     "org.apache.logging.log4j.Marker", "org.apache.logging.log4j.message.Message",
@@ -76,17 +78,19 @@ public class Log4j2xAspect {
                 @BindParameter @Nullable Level level,
                 @SuppressWarnings("unused") @BindParameter @Nullable Object marker,
                 @BindParameter @Nullable Message message, @BindParameter @Nullable Throwable t) {
-            String formattedMessage =
-                    message == null ? "" : nullToEmpty(message.getFormattedMessage());
             int lvl = level == null ? 0 : level.intLevel();
+            LogMessageSupplier messageSupplier =
+                    new Log4j2xMessageSupplier(getLevelStr(lvl), logger.getName(), message);
+            if (message instanceof ReusableMessage) {
+                // reusable messages (garbage-free logging) are reused after the logging call
+                // returns, so they cannot be formatted later
+                messageSupplier.getFormattedMessage();
+            }
             if (LoggerPlugin.markTraceAsError(lvl <= ERROR, lvl <= WARN, t != null)) {
-                context.setTransactionError(formattedMessage, t);
+                context.setTransactionError(messageSupplier.getFormattedMessage(), t);
             }
-            String loggerName = LoggerPlugin.getAbbreviatedLoggerName(logger.getName());
-            TraceEntry traceEntry =
-                    context.startTraceEntry(MessageSupplier.create("log {}: {} - {}",
-                            getLevelStr(lvl), loggerName, formattedMessage), timerName);
-            return new LogAdviceTraveler(traceEntry, lvl, formattedMessage, t);
+            TraceEntry traceEntry = context.startTraceEntry(messageSupplier, timerName);
+            return new LogAdviceTraveler(traceEntry, lvl, messageSupplier, t);
         }
 
         @OnAfter
@@ -100,16 +104,12 @@ public class Log4j2xAspect {
                     traveler.traceEntry.endWithInfo(t);
                 }
             } else if (traveler.level <= WARN) {
-                traveler.traceEntry.endWithError(traveler.formattedMessage);
+                traveler.traceEntry.endWithError(traveler.messageSupplier.getFormattedMessage());
             } else {
                 traveler.traceEntry.end();
             }
         }
 
-        private static String nullToEmpty(@Nullable String s) {
-            return s == null ? "" : s;
-        }
-
         private static String getLevelStr(int lvl) {
             switch (lvl) {
                 case ALL:
@@ -138,15 +138,32 @@ public class Log4j2xAspect {
 
         private final TraceEntry traceEntry;
         private final int level;
-        private final String formattedMessage;
+        private final LogMessageSupplier messageSupplier;
         private final @Nullable Throwable throwable;
 
-        private LogAdviceTraveler(TraceEntry traceEntry, int level, String formattedMessage,
-                @Nullable Throwable throwable) {
+        private LogAdviceTraveler(TraceEntry traceEntry, int level,
+                LogMessageSupplier messageSupplier, @Nullable Throwable throwable) {
             this.traceEntry = traceEntry;
             this.level = level;
-            this.formattedMessage = formattedMessage;
+            this.messageSupplier = messageSupplier;
             this.throwable = throwable;
         }
     }
+
+    private static class Log4j2xMessageSupplier extends LogMessageSupplier {
+
+        private final @Nullable Message message;
+
+        private Log4j2xMessageSupplier(String level, @Nullable String loggerName,
+                @Nullable Message message) {
+            super(level, loggerName);
+            this.message = message;
+        }
+
+        @Override
+        @Nullable
+        String formatMessage() {
+            return message == null ? null : message.getFormattedMessage();
+        }
+    }
 }
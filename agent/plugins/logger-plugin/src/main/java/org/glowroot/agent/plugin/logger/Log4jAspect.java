@@ -20,7 +20,6 @@ import java.util.Enumeration;
 import javax.annotation.Nullable;
 
 import org.glowroot.agent.plugin.api.Agent;
-import org.glowroot.agent.plugin.api.MessageSupplier;
 import org.glowroot.agent.plugin.api.ThreadContext;
 import org.glowroot.agent.plugin.api.TimerName;
 import org.glowroot.agent.plugin.api.TraceEntry;
@@ -92,37 +91,35 @@ public class Log4jAspect {
         }
 
         @OnBefore
-        @SuppressWarnings("unused")
-        public static TraceEntry onBefore(ThreadContext context, @BindReceiver Logger logger,
-                @BindParameter @Nullable String fqcn, @BindParameter @Nullable Level level,
-                @BindParameter @Nullable Object message, @BindParameter @Nullable Throwable t) {
-            String messageText = String.valueOf(message);
+        public static LogAdviceTraveler onBefore(ThreadContext context,
+                @BindReceiver Logger logger,
+                @SuppressWarnings("unused") @BindParameter @Nullable String fqcn,
+                @BindParameter @Nullable Level level, @BindParameter @Nullable Object message,
+                @BindParameter @Nullable Throwable t) {
             int lvl = level == null ? 0 : level.toInt();
+            LogMessageSupplier messageSupplier =
+                    new Log4jMessageSupplier(getLevelStr(lvl), logger.getName(), message);
             if (LoggerPlugin.markTraceAsError(lvl >= ERROR_INT, lvl >= WARN_INT, t != null)) {
-                context.setTransactionError(messageText, t);
+                context.setTransactionError(messageSupplier.getFormattedMessage(), t);
             }
-            String loggerName = LoggerPlugin.getAbbreviatedLoggerName(logger.getName());
-            return context.startTraceEntry(MessageSupplier.create("log {}: {} - {}",
-                    getLevelStr(lvl), loggerName, messageText), timerName);
+            TraceEntry traceEntry = context.startTraceEntry(messageSupplier, timerName);
+            return new LogAdviceTraveler(traceEntry, lvl, messageSupplier, t);
         }
 
         @OnAfter
-        @SuppressWarnings("unused")
-        public static void onAfter(@BindTraveler TraceEntry traceEntry,
-                @BindParameter @Nullable String fqcn, @BindParameter @Nullable Level level,
-                @BindParameter @Nullable Object message, @BindParameter @Nullable Throwable t) {
-            int lvl = level == null ? 0 : level.toInt();
+        public static void onAfter(@BindTraveler LogAdviceTraveler traveler) {
+            Throwable t = traveler.throwable;
             if (t != null) {
                 // intentionally not passing message since it is already the trace entry message
-                if (lvl >= WARN_INT) {
-                    traceEntry.endWithError(t);
+                if (traveler.level >= WARN_INT) {
+                    traveler.traceEntry.endWithError(t);
                 } else {
-                    traceEntry.endWithInfo(t);
+                    traveler.traceEntry.endWithInfo(t);
                 }
-            } else if (lvl >= WARN_INT) {
-                traceEntry.endWithError(String.valueOf(message));
+            } else if (traveler.level >= WARN_INT) {
+                traveler.traceEntry.endWithError(traveler.messageSupplier.getFormattedMessage());
             } else {
-                traceEntry.end();
+                traveler.traceEntry.end();
             }
         }
 
@@ -147,4 +144,36 @@ public class Log4jAspect {
             }
         }
     }
+
+    private static class LogAdviceTraveler {
+
+        private final TraceEntry traceEntry;
+        private final int level;
+        private final LogMessageSupplier messageSupplier;
+        private final @Nullable Throwable throwable;
+
+        private LogAdviceTraveler(TraceEntry traceEntry, int level,
+                LogMessageSupplier messageSupplier, @Nullable Throwable throwable) {
+            this.traceEntry = traceEntry;
+            this.level = level;
+            this.messageSupplier = messageSupplier;
+            this.throwable = throwable;
+        }
+    }
+
+    private static class Log4jMessageSupplier extends LogMessageSupplier {
+
+        private final @Nullable Object message;
+
+        private Log4jMessageSupplier(String level, @Nullable String loggerName,
+                @Nullable Object message) {
+            super(level, loggerName);
+            this.message = message;
+        }
+
+        @Override
+        String formatMessage() {
+            return String.valueOf(message);
+        }
+    }
 }
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.logger;
+
+import javax.annotation.Nullable;
+
+import org.glowroot.agent.plugin.api.Message;
+import org.glowroot.agent.plugin.api.MessageSupplier;
+
+// defers formatting the log message and abbreviating the logger name until the trace entry message
+// is actually needed (e.g. when the trace is stored or viewed live), since most log statements are
+// in transactions that are never stored
+//
+// the formatted message is cached since it may be needed eagerly on the logging thread (e.g. to
+// mark the transaction as error) and then again later when the trace is stored
+abstract class LogMessageSupplier extends MessageSupplier {
+
+    private final String level;
+    private final @Nullable String loggerName;
+
+    private volatile @Nullable String formattedMessage;
+
+    LogMessageSupplier(String level, @Nullable String loggerName) {
+        this.level = level;
+        this.loggerName = loggerName;
+    }
+
+    @Override
+    public Message get() {
+        return Message.create("log {}: {} - {}", level,
+                LoggerPlugin.getAbbreviatedLoggerName(loggerName), getFormattedMessage());
+    }
+
+    String getFormattedMessage() {
+        String formattedMessage = this.formattedMessage;
+        if (formattedMessage == null) {
+            // racing threads may both format, but formatting is idempotent
+            formattedMessage = nullToEmpty(formatMessage());
+            this.formattedMessage = formattedMessage;
+        }
+        return formattedMessage;
+    }
+
+    abstract @Nullable String formatMessage();
+
+    private static String nullToEmpty(@Nullable String s) {
+        return s == null ? "" : s;
+    }
+}
@@ -18,7 +18,6 @@ package org.glowroot.agent.plugin.logger;
 import javax.annotation.Nullable;
 
 import org.glowroot.agent.plugin.api.Agent;
-import org.glowroot.agent.plugin.api.MessageSupplier;
 import org.glowroot.agent.plugin.api.ThreadContext;
 import org.glowroot.agent.plugin.api.TimerName;
 import org.glowroot.agent.plugin.api.TraceEntry;
@@ -82,7 +81,6 @@ public class LogbackAspect {
             if (loggingEvent == null) {
                 return null;
             }
-            String formattedMessage = nullToEmpty(loggingEvent.getFormattedMessage());
             Level level = loggingEvent.glowroot$getLevel();
             int lvl = level == null ? 0 : level.toInt();
             Object throwableProxy = loggingEvent.glowroot$getThrowableProxy();
@@ -92,14 +90,13 @@ public class LogbackAspect {
                 // and it is only used for logging exceptions over the wire
                 t = ((ThrowableProxy) throwableProxy).getThrowable();
             }
+            LogMessageSupplier messageSupplier = new LoggingEventMessageSupplier(
+                    getLevelStr(lvl), loggingEvent.getLoggerName(), loggingEvent);
             if (LoggerPlugin.markTraceAsError(lvl >= ERROR_INT, lvl >= WARN_INT, t != null)) {
-                context.setTransactionError(formattedMessage, t);
+                context.setTransactionError(messageSupplier.getFormattedMessage(), t);
             }
-            TraceEntry traceEntry;
-            String loggerName = LoggerPlugin.getAbbreviatedLoggerName(loggingEvent.getLoggerName());
-            traceEntry = context.startTraceEntry(MessageSupplier.create("log {}: {} - {}",
-                    getLevelStr(lvl), loggerName, formattedMessage), timerName);
-            return new LogAdviceTraveler(traceEntry, lvl, formattedMessage, t);
+            TraceEntry traceEntry = context.startTraceEntry(messageSupplier, timerName);
+            return new LogAdviceTraveler(traceEntry, lvl, messageSupplier, t);
         }
 
         @OnAfter
@@ -116,15 +113,11 @@ public class LogbackAspect {
                     traveler.traceEntry.endWithInfo(t);
                 }
             } else if (traveler.level >= WARN_INT) {
-                traveler.traceEntry.endWithError(traveler.formattedMessage);
+                traveler.traceEntry.endWithError(traveler.messageSupplier.getFormattedMessage());
             } else {
                 traveler.traceEntry.end();
             }
         }
-
-        private static String nullToEmpty(@Nullable String s) {
-            return s == null ? "" : s;
-        }
     }
 
     // this is for logback prior to 0.9.16
@@ -142,18 +135,15 @@ public class LogbackAspect {
             if (loggingEvent == null) {
                 return null;
             }
-            String formattedMessage = invoker.getFormattedMessage(loggingEvent);
             int lvl = invoker.getLevel(loggingEvent);
             Throwable t = invoker.getThrowable(loggingEvent);
+            LogMessageSupplier messageSupplier = new LoggingEvent0xMessageSupplier(
+                    getLevelStr(lvl), invoker.getLoggerName(logger), loggingEvent, invoker);
             if (LoggerPlugin.markTraceAsError(lvl >= ERROR_INT, lvl >= WARN_INT, t != null)) {
-                context.setTransactionError(formattedMessage, t);
+                context.setTransactionError(messageSupplier.getFormattedMessage(), t);
             }
-            String loggerName =
-                    LoggerPlugin.getAbbreviatedLoggerName(invoker.getLoggerName(logger));
-            TraceEntry traceEntry =
-                    context.startTraceEntry(MessageSupplier.create("log {}: {} - {}",
-                            getLevelStr(lvl), loggerName, formattedMessage), timerName);
-            return new LogAdviceTraveler(traceEntry, lvl, formattedMessage, t);
+            TraceEntry traceEntry = context.startTraceEntry(messageSupplier, timerName);
+            return new LogAdviceTraveler(traceEntry, lvl, messageSupplier, t);
         }
 
         @OnAfter
@@ -170,7 +160,7 @@ public class LogbackAspect {
                     traveler.traceEntry.endWithInfo(t);
                 }
             } else if (traveler.level >= WARN_INT) {
-                traveler.traceEntry.endWithError(traveler.formattedMessage);
+                traveler.traceEntry.endWithError(traveler.messageSupplier.getFormattedMessage());
             } else {
                 traveler.traceEntry.end();
             }
@@ -202,15 +192,51 @@ public class LogbackAspect {
 
         private final TraceEntry traceEntry;
         private final int level;
-        private final String formattedMessage;
+        private final LogMessageSupplier messageSupplier;
         private final @Nullable Throwable throwable;
 
-        private LogAdviceTraveler(TraceEntry traceEntry, int level, String formattedMessage,
-                @Nullable Throwable throwable) {
+        private LogAdviceTraveler(TraceEntry traceEntry, int level,
+                LogMessageSupplier messageSupplier, @Nullable Throwable throwable) {
             this.traceEntry = traceEntry;
             this.level = level;
-            this.formattedMessage = formattedMessage;
+            this.messageSupplier = messageSupplier;
             this.throwable = throwable;
         }
     }
+
+    // logback logging events are not reused, so they can be formatted later
+    private static class LoggingEventMessageSupplier extends LogMessageSupplier {
+
+        private final ILoggingEvent loggingEvent;
+
+        private LoggingEventMessageSupplier(String level, @Nullable String loggerName,
+                ILoggingEvent loggingEvent) {
+            super(level, loggerName);
+            this.loggingEvent = loggingEvent;
+        }
+
+        @Override
+        @Nullable
+        String formatMessage() {
+            return loggingEvent.getFormattedMessage();
+        }
+    }
+
+    private static class LoggingEvent0xMessageSupplier extends LogMessageSupplier {
+
+        private final Object loggingEvent;
+        private final LoggingEventInvoker invoker;
+
+        private LoggingEvent0xMessageSupplier(String level, @Nullable String loggerName,
+                Object loggingEvent, LoggingEventInvoker invoker) {
+            super(level, loggerName);
+            this.loggingEvent = loggingEvent;
+            this.invoker = invoker;
+        }
+
+        @Override
+        String formatMessage() {
+            return invoker.getFormattedMessage(loggingEvent);
+        }
+    }
 }
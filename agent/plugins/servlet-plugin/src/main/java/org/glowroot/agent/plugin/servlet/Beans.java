@@ -15,19 +15,24 @@
  */
 package org.glowroot.agent.plugin.servlet;
 
+import java.lang.ref.WeakReference;
 import java.lang.reflect.AccessibleObject;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
 import javax.annotation.Nullable;
 
+import com.google.common.base.Splitter;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
 import com.google.common.collect.MapMaker;
 import com.google.common.collect.Maps;
 
@@ -68,6 +73,15 @@ class Beans {
                         }
                     });
 
+    // paths come from configuration, so this is only bounded to guard against lots of changes to
+    // the configuration over the life of the jvm
+    private static final int MAX_CACHED_PATHS = 1000;
+
+    private static final Splitter splitter = Splitter.on('.').omitEmptyStrings();
+
+    private static final ConcurrentMap<String, PathElement[]> pathElementsCache =
+            new ConcurrentHashMap<String, PathElement[]>();
+
     // all getters for an individual class are only needed to handle wildcards at the end of a
     // session attribute path, e.g. "user.*"
     private static final LoadingCache<Class<?>, ImmutableMap<String, Method>> wildcardGetters =
@@ -112,27 +126,39 @@ class Beans {
         if (path.isEmpty()) {
             return obj;
         }
-        int index = path.indexOf('.');
-        String curr;
-        String remaining;
-        if (index == -1) {
-            curr = path;
-            remaining = "";
-        } else {
-            curr = path.substring(0, index);
-            remaining = path.substring(index + 1);
-        }
-        if (obj instanceof Map) {
-            return valueInternal(((Map<?, ?>) obj).get(curr), remaining);
+        Object curr = obj;
+        for (PathElement pathElement : getPathElements(path)) {
+            if (curr instanceof Map) {
+                curr = ((Map<?, ?>) curr).get(pathElement.name);
+            } else {
+                AccessibleObject accessor = pathElement.getAccessor(curr.getClass());
+                if (accessor.equals(SENTINEL_METHOD)) {
+                    // no appropriate method found, dynamic paths that may or may not resolve
+                    // correctly are ok, just return null
+                    return null;
+                }
+                curr = invoke(accessor, curr);
+            }
+            if (curr == null) {
+                return null;
+            }
         }
-        AccessibleObject accessor = getAccessor(obj.getClass(), curr);
-        if (accessor.equals(SENTINEL_METHOD)) {
-            // no appropriate method found, dynamic paths that may or may not resolve
-            // correctly are ok, just return null
-            return null;
+        return curr;
+    }
+
+    private static PathElement[] getPathElements(String path) {
+        PathElement[] pathElements = pathElementsCache.get(path);
+        if (pathElements == null) {
+            List<String> names = Lists.newArrayList(splitter.split(path));
+            pathElements = new PathElement[names.size()];
+            for (int i = 0; i < names.size(); i++) {
+                pathElements[i] = new PathElement(names.get(i));
+            }
+            if (pathElementsCache.size() < MAX_CACHED_PATHS) {
+                pathElementsCache.put(path, pathElements);
+            }
         }
-        Object currItem = invoke(accessor, obj);
-        return valueInternal(currItem, remaining);
+        return pathElements;
     }
 
     private static AccessibleObject getAccessor(Class<?> clazz, String name) {
@@ -212,6 +238,49 @@ class Beans {
     @SuppressWarnings("unused")
     private static void sentinelMethod() {}
 
+    // monomorphic inline cache per path element, which avoids the two-level cache lookup in
+    // getAccessor() on every evaluation as long as the receiver class doesn't change
+    //
+    // path elements are cached in a static map, so the receiver class and the accessor are only
+    // weakly referenced in order to not retain the receiver's class loader (the accessor has a
+    // strong reference to its declaring class), a cleared accessor is treated as a cache miss (the
+    // entry itself is strongly referenced, otherwise it would be cleared by every garbage
+    // collection)
+    private static class PathElement {
+
+        private final String name;
+
+        private volatile @Nullable InlineCacheEntry entry;
+
+        private PathElement(String name) {
+            this.name = name;
+        }
+
+        private AccessibleObject getAccessor(Class<?> receiverClass) {
+            InlineCacheEntry entry = this.entry;
+            if (entry != null && entry.receiverClassRef.get() == receiverClass) {
+                AccessibleObject accessor = entry.accessorRef.get();
+                if (accessor != null) {
+                    return accessor;
+                }
+            }
+            AccessibleObject accessor = Beans.getAccessor(receiverClass, name);
+            this.entry = new InlineCacheEntry(receiverClass, accessor);
+            return accessor;
+        }
+    }
+
+    private static class InlineCacheEntry {
+
+        private final WeakReference<Class<?>> receiverClassRef;
+        private final WeakReference<AccessibleObject> accessorRef;
+
+        private InlineCacheEntry(Class<?> receiverClass, AccessibleObject accessor) {
+            receiverClassRef = new WeakReference<Class<?>>(receiverClass);
+            accessorRef = new WeakReference<AccessibleObject>(accessor);
+        }
+    }
+
     private static class WildcardGettersCacheLoader
             extends CacheLoader<Class<?>, ImmutableMap<String, Method>> {
         @Override
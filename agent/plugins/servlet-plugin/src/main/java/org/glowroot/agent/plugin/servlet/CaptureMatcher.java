@@ -0,0 +1,85 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.servlet;
+
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+// decides whether a request parameter or header name (or response header name) should be captured
+// and/or masked, based on the configured capture and mask wildcard patterns
+//
+// decisions are cached per (case-sensitive) name since the same names (e.g. "Accept", "Host",
+// "User-Agent") appear on nearly every request, which avoids lower casing and pattern matching
+// on every request
+//
+// a new instance is built each time the servlet plugin properties change, so the cache never needs
+// to be invalidated
+class CaptureMatcher {
+
+    static final CaptureMatcher NONE =
+            new CaptureMatcher(WildcardMatcher.NONE, WildcardMatcher.NONE);
+
+    // used to limit memory when there are lots of dynamically named parameters or headers, names
+    // beyond this are still matched correctly, just not cached
+    private static final int MAX_CACHED_NAMES = 500;
+
+    enum Decision {
+        SKIP, CAPTURE, MASK
+    }
+
+    private final WildcardMatcher captureMatcher;
+    private final WildcardMatcher maskMatcher;
+
+    private final ConcurrentMap<String, Decision> decisionCache =
+            new ConcurrentHashMap<String, Decision>();
+
+    CaptureMatcher(WildcardMatcher captureMatcher, WildcardMatcher maskMatcher) {
+        this.captureMatcher = captureMatcher;
+        this.maskMatcher = maskMatcher;
+    }
+
+    boolean isEmpty() {
+        return captureMatcher.isEmpty();
+    }
+
+    boolean capture(String name) {
+        return decide(name) != Decision.SKIP;
+    }
+
+    Decision decide(String name) {
+        if (captureMatcher.isEmpty()) {
+            return Decision.SKIP;
+        }
+        Decision decision = decisionCache.get(name);
+        if (decision != null) {
+            return decision;
+        }
+        // converted to lower case for case-insensitive matching (patterns are lower case)
+        String nameLowerCase = name.toLowerCase(Locale.ENGLISH);
+        if (!captureMatcher.matches(nameLowerCase)) {
+            decision = Decision.SKIP;
+        } else if (maskMatcher.matches(nameLowerCase)) {
+            decision = Decision.MASK;
+        } else {
+            decision = Decision.CAPTURE;
+        }
+        if (decisionCache.size() < MAX_CACHED_NAMES) {
+            decisionCache.put(name, decision);
+        }
+        return decision;
+    }
+}
@@ -19,10 +19,8 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.regex.Pattern;
 
 import javax.annotation.Nullable;
 
@@ -47,8 +45,7 @@ class DetailCapture {
 
     static ImmutableMap<String, Object> captureRequestParameters(
             Map</*@Nullable*/ String, /*@Nullable*/ String /*@Nullable*/[]> requestParameters) {
-        ImmutableList<Pattern> capturePatterns = ServletPluginProperties.captureRequestParameters();
-        ImmutableList<Pattern> maskPatterns = ServletPluginProperties.maskRequestParameters();
+        CaptureMatcher matcher = ServletPluginProperties.requestParameterMatcher();
         ImmutableMap.Builder<String, Object> map = ImmutableMap.builder();
         for (Entry</*@Nullable*/ String, /*@Nullable*/ String /*@Nullable*/[]> entry : requestParameters
                 .entrySet()) {
@@ -56,12 +53,11 @@ class DetailCapture {
             if (name == null) {
                 continue;
             }
-            // converted to lower case for case-insensitive matching (patterns are lower case)
-            String keyLowerCase = name.toLowerCase(Locale.ENGLISH);
-            if (!matchesOneOf(keyLowerCase, capturePatterns)) {
+            CaptureMatcher.Decision decision = matcher.decide(name);
+            if (decision == CaptureMatcher.Decision.SKIP) {
                 continue;
             }
-            if (matchesOneOf(keyLowerCase, maskPatterns)) {
+            if (decision == CaptureMatcher.Decision.MASK) {
                 map.put(name, "****");
                 continue;
             }
@@ -79,8 +75,7 @@ class DetailCapture {
         if (e == null) {
             return ImmutableMap.of();
         }
-        ImmutableList<Pattern> capturePatterns = ServletPluginProperties.captureRequestParameters();
-        ImmutableList<Pattern> maskPatterns = ServletPluginProperties.maskRequestParameters();
+        CaptureMatcher matcher = ServletPluginProperties.requestParameterMatcher();
         ImmutableMap.Builder<String, Object> map = ImmutableMap.builder();
         while (e.hasMoreElements()) {
             Object nameObj = e.nextElement();
@@ -91,12 +86,11 @@ class DetailCapture {
                 continue;
             }
             String name = (String) nameObj;
-            // converted to lower case for case-insensitive matching (patterns are lower case)
-            String keyLowerCase = name.toLowerCase(Locale.ENGLISH);
-            if (!matchesOneOf(keyLowerCase, capturePatterns)) {
+            CaptureMatcher.Decision decision = matcher.decide(name);
+            if (decision == CaptureMatcher.Decision.SKIP) {
                 continue;
             }
-            if (matchesOneOf(keyLowerCase, maskPatterns)) {
+            if (decision == CaptureMatcher.Decision.MASK) {
                 map.put(name, "****");
                 continue;
             }
@@ -128,8 +122,8 @@ class DetailCapture {
     }
 
     static ImmutableMap<String, Object> captureRequestHeaders(HttpServletRequest request) {
-        ImmutableList<Pattern> capturePatterns = ServletPluginProperties.captureRequestHeaders();
-        if (capturePatterns.isEmpty()) {
+        CaptureMatcher matcher = ServletPluginProperties.requestHeaderMatcher();
+        if (matcher.isEmpty()) {
             return ImmutableMap.of();
         }
         Map<String, Object> requestHeaders = Maps.newHashMap();
@@ -142,9 +136,7 @@ class DetailCapture {
             if (name == null) {
                 continue;
             }
-            // converted to lower case for case-insensitive matching (patterns are lower case)
-            String keyLowerCase = name.toLowerCase(Locale.ENGLISH);
-            if (!matchesOneOf(keyLowerCase, capturePatterns)) {
+            if (!matcher.capture(name)) {
                 continue;
             }
             Enumeration</*@Nullable*/ String> values = request.getHeaders(name);
@@ -155,15 +147,6 @@ class DetailCapture {
         return ImmutableMap.copyOf(requestHeaders);
     }
 
-    static boolean matchesOneOf(String key, List<Pattern> patterns) {
-        for (Pattern pattern : patterns) {
-            if (pattern.matcher(key).matches()) {
-                return true;
-            }
-        }
-        return false;
-    }
-
     private static void captureRequestHeader(String name, Enumeration</*@Nullable*/ String> values,
             Map<String, Object> requestHeaders) {
         if (!values.hasMoreElements()) {
@@ -15,14 +15,9 @@
  */
 package org.glowroot.agent.plugin.servlet;
 
-import java.util.List;
-import java.util.Locale;
-import java.util.regex.Pattern;
-
 import com.google.common.base.Splitter;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.Lists;
 
 import org.glowroot.agent.plugin.api.Agent;
 import org.glowroot.agent.plugin.api.config.ConfigListener;
@@ -44,10 +39,9 @@ class ServletPluginProperties {
 
     private static final Splitter splitter = Splitter.on(',').trimResults().omitEmptyStrings();
 
-    private static ImmutableList<Pattern> captureRequestParameters = ImmutableList.of();
-    private static ImmutableList<Pattern> maskRequestParameters = ImmutableList.of();
-    private static ImmutableList<Pattern> captureRequestHeaders = ImmutableList.of();
-    private static ImmutableList<Pattern> captureResponseHeaders = ImmutableList.of();
+    private static CaptureMatcher requestParameterMatcher = CaptureMatcher.NONE;
+    private static CaptureMatcher requestHeaderMatcher = CaptureMatcher.NONE;
+    private static CaptureMatcher responseHeaderMatcher = CaptureMatcher.NONE;
 
     private static boolean captureResponseHeadersNonEmpty;
 
@@ -64,20 +58,16 @@ class ServletPluginProperties {
 
     private ServletPluginProperties() {}
 
-    static ImmutableList<Pattern> captureRequestParameters() {
-        return captureRequestParameters;
-    }
-
-    static ImmutableList<Pattern> maskRequestParameters() {
-        return maskRequestParameters;
+    static CaptureMatcher requestParameterMatcher() {
+        return requestParameterMatcher;
     }
 
-    static ImmutableList<Pattern> captureRequestHeaders() {
-        return captureRequestHeaders;
+    static CaptureMatcher requestHeaderMatcher() {
+        return requestHeaderMatcher;
     }
 
-    static ImmutableList<Pattern> captureResponseHeaders() {
-        return captureResponseHeaders;
+    static CaptureMatcher responseHeaderMatcher() {
+        return responseHeaderMatcher;
     }
 
     static boolean captureResponseHeadersNonEmpty() {
@@ -114,11 +104,14 @@ class ServletPluginProperties {
         }
 
         private static void recalculateProperties() {
-            captureRequestParameters = buildPatternList(CAPTURE_REQUEST_PARAMS_PROPERTY_NAME);
-            maskRequestParameters = buildPatternList(MASK_REQUEST_PARAMS_PROPERTY_NAME);
-            captureRequestHeaders = buildPatternList(CAPTURE_REQUEST_HEADER_PROPERTY_NAME);
-            captureResponseHeaders = buildPatternList(CAPTURE_RESPONSE_HEADER_PROPERTY_NAME);
-            captureResponseHeadersNonEmpty = !captureResponseHeaders.isEmpty();
+            requestParameterMatcher =
+                    new CaptureMatcher(buildMatcher(CAPTURE_REQUEST_PARAMS_PROPERTY_NAME),
+                            buildMatcher(MASK_REQUEST_PARAMS_PROPERTY_NAME));
+            requestHeaderMatcher = new CaptureMatcher(
+                    buildMatcher(CAPTURE_REQUEST_HEADER_PROPERTY_NAME), WildcardMatcher.NONE);
+            responseHeaderMatcher = new CaptureMatcher(
+                    buildMatcher(CAPTURE_RESPONSE_HEADER_PROPERTY_NAME), WildcardMatcher.NONE);
+            captureResponseHeadersNonEmpty = !responseHeaderMatcher.isEmpty();
             sessionUserAttributePath = configService
                     .getStringProperty(SESSION_USER_ATTRIBUTE_PROPERTY_NAME).value();
             sessionUserAttributeIsId = sessionUserAttributePath.equals(HTTP_SESSION_ID_ATTR);
@@ -131,15 +124,9 @@ class ServletPluginProperties {
                     captureSessionAttributeNames.contains(HTTP_SESSION_ID_ATTR);
         }
 
-        private static ImmutableList<Pattern> buildPatternList(String propertyName) {
-            String captureRequestParametersText =
-                    configService.getStringProperty(propertyName).value();
-            List<Pattern> captureParameters = Lists.newArrayList();
-            for (String parameter : splitter.split(captureRequestParametersText)) {
-                // converted to lower case for case-insensitive matching
-                captureParameters.add(buildRegexPattern(parameter.toLowerCase(Locale.ENGLISH)));
-            }
-            return ImmutableList.copyOf(captureParameters);
+        private static WildcardMatcher buildMatcher(String propertyName) {
+            String text = configService.getStringProperty(propertyName).value();
+            return new WildcardMatcher(ImmutableList.copyOf(splitter.split(text)));
         }
 
         private static ImmutableSet<String> buildCaptureSessionAttributeNames() {
@@ -154,13 +141,5 @@ class ServletPluginProperties {
             }
             return names.build();
         }
-
-        private static Pattern buildRegexPattern(String wildcardPattern) {
-            // convert * into .* and quote the rest of the text using \Q...\E
-            String regex = "\\Q" + wildcardPattern.replace("*", "\\E.*\\Q") + "\\E";
-            // strip off unnecessary \\Q\\E in case * appeared at beginning or end of part
-            regex = regex.replace("\\Q\\E", "");
-            return Pattern.compile(regex);
-        }
     }
 }
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.servlet;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+
+// compiled form of a list of case-insensitive wildcard patterns (e.g. "content-*, *-id")
+//
+// the common shapes (literal, prefix*, *suffix, *infix*) are matched with plain string operations,
+// and only patterns with a wildcard in the middle (e.g. "x-*-id") fall back to regex
+class WildcardMatcher {
+
+    static final WildcardMatcher NONE = new WildcardMatcher(ImmutableList.<String>of());
+
+    private final boolean empty;
+    private final boolean matchesAll;
+    private final ImmutableSet<String> literals;
+    private final String[] prefixes;
+    private final String[] suffixes;
+    private final String[] infixes;
+    private final ImmutableList<Pattern> otherPatterns;
+
+    WildcardMatcher(List<String> wildcardPatterns) {
+        boolean matchesAll = false;
+        ImmutableSet.Builder<String> literals = ImmutableSet.builder();
+        List<String> prefixes = Lists.newArrayList();
+        List<String> suffixes = Lists.newArrayList();
+        List<String> infixes = Lists.newArrayList();
+        List<Pattern> otherPatterns = Lists.newArrayList();
+        for (String wildcardPattern : wildcardPatterns) {
+            // converted to lower case for case-insensitive matching
+            String pattern = wildcardPattern.toLowerCase(Locale.ENGLISH);
+            int first = pattern.indexOf('*');
+            if (first == -1) {
+                literals.add(pattern);
+                continue;
+            }
+            String trimmed = trimWildcards(pattern);
+            if (trimmed.isEmpty()) {
+                matchesAll = true;
+                continue;
+            }
+            if (trimmed.indexOf('*') != -1) {
+                otherPatterns.add(buildRegexPattern(pattern));
+                continue;
+            }
+            boolean leading = pattern.charAt(0) == '*';
+            boolean trailing = pattern.charAt(pattern.length() - 1) == '*';
+            if (leading && trailing) {
+                infixes.add(trimmed);
+            } else if (leading) {
+                suffixes.add(trimmed);
+            } else {
+                prefixes.add(trimmed);
+            }
+        }
+        this.matchesAll = matchesAll;
+        this.literals = literals.build();
+        this.prefixes = prefixes.toArray(new String[prefixes.size()]);
+        this.suffixes = suffixes.toArray(new String[suffixes.size()]);
+        this.infixes = infixes.toArray(new String[infixes.size()]);
+        this.otherPatterns = ImmutableList.copyOf(otherPatterns);
+        empty = !matchesAll && this.literals.isEmpty() && prefixes.isEmpty()
+                && suffixes.isEmpty() && infixes.isEmpty() && otherPatterns.isEmpty();
+    }
+
+    boolean isEmpty() {
+        return empty;
+    }
+
+    // name must already be lower case
+    boolean matches(String nameLowerCase) {
+        if (matchesAll || literals.contains(nameLowerCase)) {
+            return true;
+        }
+        for (String prefix : prefixes) {
+            if (nameLowerCase.startsWith(prefix)) {
+                return true;
+            }
+        }
+        for (String suffix : suffixes) {
+            if (nameLowerCase.endsWith(suffix)) {
+                return true;
+            }
+        }
+        for (String infix : infixes) {
+            if (nameLowerCase.contains(infix)) {
+                return true;
+            }
+        }
+        for (Pattern pattern : otherPatterns) {
+            if (pattern.matcher(nameLowerCase).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String trimWildcards(String pattern) {
+        int start = 0;
+        int end = pattern.length();
+        while (start < end && pattern.charAt(start) == '*') {
+            start++;
+        }
+        while (end > start && pattern.charAt(end - 1) == '*') {
+            end--;
+        }
+        return pattern.substring(start, end);
+    }
+
+    private static Pattern buildRegexPattern(String wildcardPattern) {
+        // convert * into .* and quote the rest of the text using \Q...\E
+        String regex = "\\Q" + wildcardPattern.replace("*", "\\E.*\\Q") + "\\E";
+        // strip off unnecessary \\Q\\E in case * appeared at beginning or end of part
+        regex = regex.replace("\\Q\\E", "");
+        return Pattern.compile(regex);
+    }
+}
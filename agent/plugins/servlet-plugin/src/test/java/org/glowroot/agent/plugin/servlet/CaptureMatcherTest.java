@@ -0,0 +1,74 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.servlet;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CaptureMatcherTest {
+
+    @Test
+    public void shouldMatchWildcardPatterns() {
+        WildcardMatcher matcher = new WildcardMatcher(
+                ImmutableList.of("Host", "content-*", "*-id", "*token*", "x-*-key"));
+        assertThat(matcher.matches("host")).isTrue();
+        assertThat(matcher.matches("content-type")).isTrue();
+        assertThat(matcher.matches("session-id")).isTrue();
+        assertThat(matcher.matches("my-token-value")).isTrue();
+        assertThat(matcher.matches("x-api-key")).isTrue();
+        assertThat(matcher.matches("hostname")).isFalse();
+        assertThat(matcher.matches("x-api-keys")).isFalse();
+        assertThat(matcher.matches("accept")).isFalse();
+    }
+
+    @Test
+    public void shouldMatchAll() {
+        WildcardMatcher matcher = new WildcardMatcher(ImmutableList.of("*"));
+        assertThat(matcher.isEmpty()).isFalse();
+        assertThat(matcher.matches("anything")).isTrue();
+        assertThat(matcher.matches("")).isTrue();
+    }
+
+    @Test
+    public void shouldBeEmpty() {
+        WildcardMatcher matcher = new WildcardMatcher(ImmutableList.<String>of());
+        assertThat(matcher.isEmpty()).isTrue();
+        assertThat(matcher.matches("anything")).isFalse();
+    }
+
+    @Test
+    public void shouldDecideCaseInsensitively() {
+        CaptureMatcher matcher = new CaptureMatcher(new WildcardMatcher(ImmutableList.of("*")),
+                new WildcardMatcher(ImmutableList.of("*password*")));
+        for (int i = 0; i < 2; i++) {
+            // second iteration is served from the decision cache
+            assertThat(matcher.decide("Accept")).isEqualTo(CaptureMatcher.Decision.CAPTURE);
+            assertThat(matcher.decide("PassWord")).isEqualTo(CaptureMatcher.Decision.MASK);
+            assertThat(matcher.decide("userPassword")).isEqualTo(CaptureMatcher.Decision.MASK);
+        }
+    }
+
+    @Test
+    public void shouldSkipWhenNotCaptured() {
+        CaptureMatcher matcher = new CaptureMatcher(
+                new WildcardMatcher(ImmutableList.of("content-*")), WildcardMatcher.NONE);
+        assertThat(matcher.capture("Content-Length")).isTrue();
+        assertThat(matcher.capture("Accept")).isFalse();
+        assertThat(CaptureMatcher.NONE.capture("Accept")).isFalse();
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.zip.DataFormatException;
+
+import com.google.common.collect.Lists;
+import com.google.protobuf.ByteString;
+import org.HdrHistogram.Histogram;
+
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+// decodes aggregates from dictionary encoded aggregate streams back into their regular form, so
+// that nothing beyond the grpc layer needs to know about the dictionary encoding
+//
+// one instance per aggregate stream (and not thread safe)
+class AggregateDictionaryDecoder {
+
+    private final List<String> sharedStrings = Lists.newArrayList();
+
+    void addSharedString(String sharedString) {
+        sharedStrings.add(sharedString);
+    }
+
+    String getSharedString(int index) {
+        return sharedStrings.get(index);
+    }
+
+    Aggregate decode(Aggregate aggregate) throws DataFormatException {
+        Aggregate.Builder builder = aggregate.toBuilder()
+                .clearMainThreadRootTimer()
+                .clearAuxThreadRootTimer()
+                .clearAsyncTimer()
+                .clearQueriesByType()
+                .clearServiceCallsByType();
+        for (Aggregate.Timer timer : aggregate.getMainThreadRootTimerList()) {
+            builder.addMainThreadRootTimer(decode(timer));
+        }
+        for (Aggregate.Timer timer : aggregate.getAuxThreadRootTimerList()) {
+            builder.addAuxThreadRootTimer(decode(timer));
+        }
+        for (Aggregate.Timer timer : aggregate.getAsyncTimerList()) {
+            builder.addAsyncTimer(decode(timer));
+        }
+        for (Aggregate.QueriesByType queriesByType : aggregate.getQueriesByTypeList()) {
+            builder.addQueriesByType(queriesByType.toBuilder()
+                    .clearTypeIndex()
+                    .setType(getSharedString(queriesByType.getTypeIndex())));
+        }
+        for (Aggregate.ServiceCallsByType serviceCallsByType : aggregate
+                .getServiceCallsByTypeList()) {
+            builder.addServiceCallsByType(serviceCallsByType.toBuilder()
+                    .clearTypeIndex()
+                    .setType(getSharedString(serviceCallsByType.getTypeIndex())));
+        }
+        if (aggregate.hasDurationNanosHistogram()) {
+            builder.setDurationNanosHistogram(decode(aggregate.getDurationNanosHistogram()));
+        }
+        return builder.build();
+    }
+
+    private Aggregate.Timer decode(Aggregate.Timer timer) {
+        Aggregate.Timer.Builder builder = Aggregate.Timer.newBuilder()
+                .setName(getSharedString(timer.getNameIndex()))
+                .setExtended(timer.getExtended())
+                .setTotalNanos(timer.getTotalNanos())
+                .setCount(timer.getCount());
+        for (Aggregate.Timer childTimer : timer.getChildTimerList()) {
+            builder.addChildTimer(decode(childTimer));
+        }
+        return builder.build();
+    }
+
+    private static Aggregate.Histogram decode(Aggregate.Histogram histogram)
+            throws DataFormatException {
+        Aggregate.Histogram.Builder builder = Aggregate.Histogram.newBuilder();
+        ByteString compressedEncodedBytes = histogram.getCompressedEncodedBytes();
+        if (compressedEncodedBytes.isEmpty()) {
+            long value = 0;
+            for (long delta : histogram.getOrderedRawValueDeltaList()) {
+                value += delta;
+                builder.addOrderedRawValue(value);
+            }
+        } else {
+            Histogram hdrHistogram = Histogram.decodeFromCompressedByteBuffer(
+                    compressedEncodedBytes.asReadOnlyByteBuffer(), 0);
+            ByteBuffer buffer = ByteBuffer.allocate(hdrHistogram.getNeededByteBufferCapacity());
+            int size = hdrHistogram.encodeIntoByteBuffer(buffer);
+            buffer.flip();
+            builder.setEncodedBytes(ByteString.copyFrom(buffer, size));
+        }
+        return builder.build();
+    }
+}
@@ -20,6 +20,9 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
 
 import javax.annotation.Nullable;
 import javax.crypto.SecretKey;
@@ -39,6 +42,7 @@ import com.google.common.base.Strings;
 import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableList;
 import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.checkerframework.checker.nullness.qual.EnsuresNonNull;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 import org.checkerframework.checker.nullness.qual.RequiresNonNull;
@@ -48,6 +52,7 @@ import org.slf4j.LoggerFactory;
 import org.slf4j.bridge.SLF4JBridgeHandler;
 
 import org.glowroot.central.repo.AgentDao;
+import org.glowroot.central.repo.AgentNodeDao;
 import org.glowroot.central.repo.AggregateDao;
 import org.glowroot.central.repo.CentralConfigDao;
 import org.glowroot.central.repo.ConfigDao;
@@ -81,15 +86,23 @@ import org.glowroot.ui.CreateUiModuleBuilder;
 import org.glowroot.ui.UiModule;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
 
 class CentralModule {
 
+    // bounded so that a cassandra slowdown pushes back on agents (which retry) instead of
+    // accumulating unbounded pending work in central
+    private static final int ASYNC_EXECUTOR_THREADS = 16;
+    private static final int ASYNC_EXECUTOR_QUEUE_CAPACITY = 10000;
+
     // need to wait to init logger until after establishing centralDir
     private static volatile @MonotonicNonNull Logger startupLogger;
 
     private final Cluster cluster;
     private final Session session;
+    private final ExecutorService asyncExecutor;
     private final RollupService rollupService;
     private final SyntheticMonitorService pingAndSyntheticAlertService;
     private final GrpcServer server;
@@ -102,6 +115,7 @@ class CentralModule {
     CentralModule(@Nullable ServletConfig config) throws Exception {
         Cluster cluster = null;
         Session session = null;
+        ExecutorService asyncExecutor = null;
         RollupService rollupService = null;
         SyntheticMonitorService pingAndSyntheticAlertService = null;
         GrpcServer server = null;
@@ -184,17 +198,28 @@ class CentralModule {
                 }
             }
 
+            // continuations of cassandra async writes are run on this executor instead of on
+            // cassandra driver I/O threads, since they can block (e.g. reading config)
+            asyncExecutor = new ThreadPoolExecutor(ASYNC_EXECUTOR_THREADS,
+                    ASYNC_EXECUTOR_THREADS, 0, MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(ASYNC_EXECUTOR_QUEUE_CAPACITY),
+                    new ThreadFactoryBuilder()
+                            .setDaemon(true)
+                            .setNameFormat("Glowroot-Async-Executor-%d")
+                            .build());
+
             TransactionTypeDao transactionTypeDao =
                     new TransactionTypeDao(session, configRepository);
             FullQueryTextDao fullQueryTextDao = new FullQueryTextDao(session, configRepository);
             AggregateDao aggregateDao = new AggregateDao(session, agentDao, transactionTypeDao,
-                    fullQueryTextDao, configRepository, clock);
+                    fullQueryTextDao, configRepository, clock, asyncExecutor);
             TraceAttributeNameDao traceAttributeNameDao =
                     new TraceAttributeNameDao(session, configRepository);
             TraceDao traceDao = new TraceDao(session, agentDao, transactionTypeDao,
-                    fullQueryTextDao, traceAttributeNameDao, configRepository, clock);
+                    fullQueryTextDao, traceAttributeNameDao, configRepository, clock,
+                    asyncExecutor);
             GaugeValueDao gaugeValueDao =
-                    new GaugeValueDao(session, agentDao, configRepository, clock);
+                    new GaugeValueDao(session, agentDao, configRepository, clock, asyncExecutor);
             SyntheticResultDao syntheticResultDao =
                     new SyntheticResultDao(session, configRepository, clock);
             EnvironmentDao environmentDao = new EnvironmentDao(session);
@@ -211,9 +236,15 @@ class CentralModule {
                 startupLogger.info("cassandra schema created");
             }
 
+            AgentNodeDao agentNodeDao = new AgentNodeDao(session);
+
             server = new GrpcServer(centralConfig.grpcBindAddress(), centralConfig.grpcPort(),
                     agentDao, configDao, aggregateDao, gaugeValueDao, environmentDao, heartbeatDao,
-                    traceDao, configRepository, alertingService, clock, version);
+                    traceDao, configRepository, alertingService,
+                    centralConfig.grpcClusterAddress(), centralConfig.grpcClusterBindAddress(),
+                    centralConfig.grpcClusterPort(), centralConfig.grpcClusterSecret(),
+                    agentNodeDao,
+                    centralConfig.grpcVirtualThreads(), asyncExecutor, clock, version);
             DownstreamServiceImpl downstreamService = server.getDownstreamService();
             configRepository.addAgentConfigListener(new AgentConfigListener() {
                 @Override
@@ -274,6 +305,9 @@ class CentralModule {
             if (pingAndSyntheticAlertService != null) {
                 pingAndSyntheticAlertService.close();
             }
+            if (asyncExecutor != null) {
+                asyncExecutor.shutdown();
+            }
             if (session != null) {
                 session.close();
             }
@@ -284,6 +318,7 @@ class CentralModule {
         }
         this.cluster = cluster;
         this.session = session;
+        this.asyncExecutor = asyncExecutor;
         this.rollupService = rollupService;
         this.pingAndSyntheticAlertService = pingAndSyntheticAlertService;
         this.server = server;
@@ -303,6 +338,11 @@ class CentralModule {
             server.close();
             rollupService.close();
             pingAndSyntheticAlertService.close();
+            // complete any pending continuations of cassandra writes before closing the session
+            asyncExecutor.shutdown();
+            if (!asyncExecutor.awaitTermination(10, SECONDS)) {
+                throw new IllegalStateException("Could not terminate executor");
+            }
             session.close();
             cluster.close();
             if (startupLogger != null) {
@@ -350,6 +390,29 @@ class CentralModule {
         if (!Strings.isNullOrEmpty(grpcPortText)) {
             builder.grpcPort(Integer.parseInt(grpcPortText));
         }
+        String grpcClusterAddress = props.getProperty("grpc.clusterAddress");
+        if (!Strings.isNullOrEmpty(grpcClusterAddress)) {
+            builder.grpcClusterAddress(grpcClusterAddress);
+        }
+        String grpcClusterBindAddress = props.getProperty("grpc.clusterBindAddress");
+        if (!Strings.isNullOrEmpty(grpcClusterBindAddress)) {
+            builder.grpcClusterBindAddressOverride(grpcClusterBindAddress);
+        }
+        String grpcClusterPortText = props.getProperty("grpc.clusterPort");
+        if (!Strings.isNullOrEmpty(grpcClusterPortText)) {
+            builder.grpcClusterPort(Integer.parseInt(grpcClusterPortText));
+        }
+        String grpcClusterSecret = props.getProperty("grpc.clusterSecret");
+        if (!Strings.isNullOrEmpty(grpcClusterSecret)) {
+            builder.grpcClusterSecret(grpcClusterSecret);
+        } else if (!Strings.isNullOrEmpty(grpcClusterAddress)) {
+            throw new IllegalStateException(
+                    "grpc.clusterSecret is required when grpc.clusterAddress is set");
+        }
+        String grpcVirtualThreads = props.getProperty("grpc.virtualThreads");
+        if (!Strings.isNullOrEmpty(grpcVirtualThreads)) {
+            builder.grpcVirtualThreads(Boolean.parseBoolean(grpcVirtualThreads));
+        }
         String uiBindAddress = props.getProperty("ui.bindAddress");
         if (!Strings.isNullOrEmpty(uiBindAddress)) {
             builder.uiBindAddressOverride(uiBindAddress);
@@ -476,6 +539,27 @@ class CentralModule {
         int grpcPort() {
             return 8181;
         }
+        // address (host:port) that other central nodes use to reach this node's cluster port,
+        // which enables routing of downstream requests across central nodes
+        abstract @Nullable String grpcClusterAddress();
+        abstract @Nullable String grpcClusterBindAddressOverride();
+        String grpcClusterBindAddress() {
+            String grpcClusterBindAddressOverride = grpcClusterBindAddressOverride();
+            return grpcClusterBindAddressOverride == null ? grpcBindAddress()
+                    : grpcClusterBindAddressOverride;
+        }
+        @Value.Default
+        int grpcClusterPort() {
+            return 8182;
+        }
+        // shared secret that the central nodes use to authenticate calls to each other's cluster
+        // port, required when grpc.clusterAddress is set
+        abstract @Nullable String grpcClusterSecret();
+        // run grpc handlers on virtual threads (requires Java 21+)
+        @Value.Default
+        boolean grpcVirtualThreads() {
+            return false;
+        }
         abstract @Nullable String uiBindAddressOverride();
         abstract @Nullable Integer uiPortOverride();
     }
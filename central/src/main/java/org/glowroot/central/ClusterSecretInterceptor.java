@@ -0,0 +1,60 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+import java.security.MessageDigest;
+
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+// rejects calls to the cluster service that do not carry the shared cluster secret, since the
+// cluster service can send arbitrary downstream requests (e.g. heap dumps) to any connected agent
+class ClusterSecretInterceptor implements ServerInterceptor {
+
+    static final Metadata.Key<String> CLUSTER_SECRET_KEY =
+            Metadata.Key.of("glowroot-cluster-secret", Metadata.ASCII_STRING_MARSHALLER);
+
+    private final byte[] clusterSecret;
+
+    ClusterSecretInterceptor(String clusterSecret) {
+        this.clusterSecret = clusterSecret.getBytes(UTF_8);
+    }
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call,
+            Metadata headers, ServerCallHandler<ReqT, RespT> next) {
+        String providedSecret = headers.get(CLUSTER_SECRET_KEY);
+        // constant time comparison
+        if (providedSecret == null
+                || !MessageDigest.isEqual(clusterSecret, providedSecret.getBytes(UTF_8))) {
+            call.close(Status.UNAUTHENTICATED.withDescription("Invalid cluster secret"),
+                    new Metadata());
+            return new ServerCall.Listener<ReqT>() {};
+        }
+        return next.startCall(call, headers);
+    }
+
+    static Metadata createHeaders(String clusterSecret) {
+        Metadata headers = new Metadata();
+        headers.put(CLUSTER_SECRET_KEY, clusterSecret);
+        return headers;
+    }
+}
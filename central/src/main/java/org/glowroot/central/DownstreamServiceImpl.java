@@ -18,6 +18,8 @@ package org.glowroot.central;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Exchanger;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -26,6 +28,12 @@ import javax.annotation.Nullable;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.grpc.ManagedChannel;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.netty.NettyChannelBuilder;
+import io.grpc.stub.MetadataUtils;
 import io.grpc.stub.StreamObserver;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 import org.slf4j.Logger;
@@ -33,6 +41,7 @@ import org.slf4j.LoggerFactory;
 
 import org.glowroot.central.repo.AgentDao;
 import org.glowroot.central.repo.AgentDao.AgentConfigUpdate;
+import org.glowroot.central.repo.AgentNodeRegistry;
 import org.glowroot.central.repo.ConfigDao;
 import org.glowroot.common.live.ImmutableEntries;
 import org.glowroot.common.live.LiveJvmService.AgentNotConnectedException;
@@ -41,7 +50,10 @@ import org.glowroot.common.live.LiveJvmService.DirectoryDoesNotExistException;
 import org.glowroot.common.live.LiveJvmService.UnavailableDueToRunningInIbmJvmException;
 import org.glowroot.common.live.LiveJvmService.UnavailableDueToRunningInJreException;
 import org.glowroot.common.live.LiveTraceRepository.Entries;
-import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig;
+import org.glowroot.wire.api.model.ClusterServiceGrpc;
+import org.glowroot.wire.api.model.ClusterServiceGrpc.ClusterServiceBlockingStub;
+import org.glowroot.wire.api.model.ClusterServiceGrpc.ClusterServiceImplBase;
+import org.glowroot.wire.api.model.ClusterServiceOuterClass.ForwardedDownstreamRequest;
 import org.glowroot.wire.api.model.DownstreamServiceGrpc.DownstreamServiceImplBase;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.AgentConfigUpdateRequest;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.AgentResponse;
@@ -91,8 +103,10 @@ import org.glowroot.wire.api.model.DownstreamServiceOuterClass.ThreadDumpRequest
 import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
+import static com.google.common.base.Preconditions.checkNotNull;
 import static java.util.concurrent.TimeUnit.HOURS;
 import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
 
 class DownstreamServiceImpl extends DownstreamServiceImplBase {
 
@@ -101,13 +115,48 @@ class DownstreamServiceImpl extends DownstreamServiceImplBase {
     // log startup messages using logger name "org.glowroot"
     private static final Logger startupLogger = LoggerFactory.getLogger("org.glowroot");
 
+    // agent node registrations expire (see AgentNodeDao), so they are refreshed periodically while
+    // the agent is connected
+    private static final int AGENT_NODE_REFRESH_INTERVAL_SECONDS = 60;
+
     private final Map<String, ConnectedAgent> connectedAgents = Maps.newConcurrentMap();
     private final AgentDao agentDao;
     private final ConfigDao configDao;
 
+    // null when central is not clustered
+    private final @Nullable String nodeAddress;
+    private final @Nullable String clusterSecret;
+    private final @Nullable AgentNodeRegistry agentNodeRegistry;
+    private final @Nullable ScheduledExecutorService agentNodeRefreshExecutor;
+
+    // channels to other central nodes, keyed by node address
+    private final Map<String, ManagedChannel> nodeChannels = Maps.newConcurrentMap();
+
+    private final ClusterServiceImpl clusterService = new ClusterServiceImpl();
+
     DownstreamServiceImpl(AgentDao agentDao, ConfigDao configDao) {
         this.agentDao = agentDao;
         this.configDao = configDao;
+        nodeAddress = null;
+        clusterSecret = null;
+        agentNodeRegistry = null;
+        agentNodeRefreshExecutor = null;
+    }
+
+    DownstreamServiceImpl(AgentDao agentDao, ConfigDao configDao, String nodeAddress,
+            String clusterSecret, AgentNodeRegistry agentNodeRegistry) {
+        this.agentDao = agentDao;
+        this.configDao = configDao;
+        this.nodeAddress = nodeAddress;
+        this.clusterSecret = clusterSecret;
+        this.agentNodeRegistry = agentNodeRegistry;
+        agentNodeRefreshExecutor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder()
+                        .setDaemon(true)
+                        .setNameFormat("Glowroot-Agent-Node-Refresh")
+                        .build());
+        agentNodeRefreshExecutor.scheduleWithFixedDelay(this::refreshAgentNodes,
+                AGENT_NODE_REFRESH_INTERVAL_SECONDS, AGENT_NODE_REFRESH_INTERVAL_SECONDS, SECONDS);
     }
 
     @Override
@@ -115,205 +164,426 @@ class DownstreamServiceImpl extends DownstreamServiceImplBase {
         return new ConnectedAgent(requestObserver);
     }
 
+    ClusterServiceImplBase getClusterService() {
+        return clusterService;
+    }
+
+    void close() {
+        if (agentNodeRefreshExecutor != null) {
+            agentNodeRefreshExecutor.shutdown();
+        }
+        for (ManagedChannel channel : nodeChannels.values()) {
+            channel.shutdown();
+        }
+    }
+
     void updateAgentConfigIfConnectedAndNeeded(String agentId) throws Exception {
-        ConnectedAgent connectedAgent = connectedAgents.get(agentId);
-        if (connectedAgent != null) {
-            AgentConfigUpdate agentConfigUpdate = configDao.readForUpdate(agentId);
-            if (agentConfigUpdate != null) {
-                connectedAgent.updateAgentConfig(agentConfigUpdate.config());
-                configDao.markUpdated(agentId, agentConfigUpdate.configUpdateToken());
-            }
+        if (isAvailable(agentId)) {
+            updateAgentConfigIfNeeded(agentId);
+        }
+    }
+
+    // this is called periodically on every central node, so only needs to handle the agents that
+    // are connected to this node
+    void updateAgentConfigIfConnectedLocallyAndNeeded(String agentId) throws Exception {
+        if (connectedAgents.containsKey(agentId)) {
+            updateAgentConfigIfNeeded(agentId);
         }
     }
 
     boolean isAvailable(String agentId) {
-        return connectedAgents.containsKey(agentId);
+        if (connectedAgents.containsKey(agentId)) {
+            return true;
+        }
+        try {
+            return getRemoteNodeAddress(agentId) != null;
+        } catch (Exception e) {
+            logger.error("{} - {}", agentId, e.getMessage(), e);
+            return false;
+        }
     }
 
     ThreadDump threadDump(String agentId) throws Exception {
-        ConnectedAgent connectedAgent = connectedAgents.get(agentId);
-        if (connectedAgent == null) {
-            throw new AgentNotConnectedException();
-        }
-        return connectedAgent.threadDump();
+        AgentResponse responseWrapper = sendRequest(agentId, CentralRequest.newBuilder()
+                .setThreadDumpRequest(ThreadDumpRequest.getDefaultInstance())
+                .build());
+        return responseWrapper.getThreadDumpResponse().getThreadDump();
     }
 
     String jstack(String agentId) throws Exception {
-        ConnectedAgent connectedAgent = connectedAgents.get(agentId);
-        if (connectedAgent == null) {
-            throw new AgentNotConnectedException();
+        AgentResponse responseWrapper = sendRequest(agentId, CentralRequest.newBuilder()
+                .setJstackRequest(JstackRequest.getDefaultInstance())
+                .build());
+        JstackResponse response = responseWrapper.getJstackResponse();
+        if (response.getUnavailableDueToRunningInJre()) {
+            throw new UnavailableDueToRunningInJreException();
+        }
+        if (response.getUnavailableDueToRunningInIbmJvm()) {
+            throw new UnavailableDueToRunningInIbmJvmException();
         }
-        return connectedAgent.jstack();
+        return response.getJstack();
     }
 
     long availableDiskSpaceBytes(String agentId, String directory) throws Exception {
-        ConnectedAgent connectedAgent = connectedAgents.get(agentId);
-        if (connectedAgent == null) {
-            throw new AgentNotConnectedException();
-        }
-        return connectedAgent.availableDiskSpaceBytes(directory);
+        AgentResponse responseWrapper = sendRequest(agentId, CentralRequest.newBuilder()
+                .setAvailableDiskSpaceRequest(AvailableDiskSpaceRequest.newBuilder()
+                        .setDirectory(directory))
+                .build());
+        AvailableDiskSpaceResponse response = responseWrapper.getAvailableDiskSpaceResponse();
+        if (response.getDirectoryDoesNotExist()) {
+            throw new DirectoryDoesNotExistException();
+        }
+        return response.getAvailableBytes();
     }
 
     HeapDumpFileInfo heapDump(String agentId, String directory) throws Exception {
-        ConnectedAgent connectedAgent = connectedAgents.get(agentId);
-        if (connectedAgent == null) {
-            throw new AgentNotConnectedException();
-        }
-        return connectedAgent.heapDump(directory);
+        AgentResponse responseWrapper = sendRequest(agentId, CentralRequest.newBuilder()
+                .setHeapDumpRequest(HeapDumpRequest.newBuilder()
+                        .setDirectory(directory))
+                .build());
+        HeapDumpResponse response = responseWrapper.getHeapDumpResponse();
+        if (response.getDirectoryDoesNotExist()) {
+            throw new DirectoryDoesNotExistException();
+        }
+        return response.getHeapDumpFileInfo();
     }
 
     HeapHistogram heapHistogram(String agentId) throws Exception {
-        ConnectedAgent connectedAgent = connectedAgents.get(agentId);
-        if (connectedAgent == null) {
-            throw new AgentNotConnectedException();
+        AgentResponse responseWrapper = sendRequest(agentId, CentralRequest.newBuilder()
+                .setHeapHistogramRequest(HeapHistogramRequest.newBuilder())
+                .build());
+        HeapHistogramResponse response = responseWrapper.getHeapHistogramResponse();
+        if (response.getUnavailableDueToRunningInJre()) {
+            throw new UnavailableDueToRunningInJreException();
         }
-        return connectedAgent.heapHistogram();
+        if (response.getUnavailableDueToRunningInIbmJvm()) {
+            throw new UnavailableDueToRunningInIbmJvmException();
+        }
+        return response.getHeapHistogram();
     }
 
     void gc(String agentId) throws Exception {
-        ConnectedAgent connectedAgent = connectedAgents.get(agentId);
-        if (connectedAgent == null) {
-            throw new AgentNotConnectedException();
-        }
-        connectedAgent.gc();
+        sendRequest(agentId, CentralRequest.newBuilder()
+                .setGcRequest(GcRequest.getDefaultInstance())
+                .build());
     }
 
     MBeanDump mbeanDump(String agentId, MBeanDumpKind mbeanDumpKind, List<String> objectNames)
             throws Exception {
-        ConnectedAgent connectedAgent = connectedAgents.get(agentId);
-        if (connectedAgent == null) {
-            throw new AgentNotConnectedException();
-        }
-        return connectedAgent.mbeanDump(mbeanDumpKind, objectNames);
+        AgentResponse responseWrapper = sendRequest(agentId, CentralRequest.newBuilder()
+                .setMbeanDumpRequest(MBeanDumpRequest.newBuilder()
+                        .setKind(mbeanDumpKind)
+                        .addAllObjectName(objectNames))
+                .build());
+        return responseWrapper.getMbeanDumpResponse().getMbeanDump();
     }
 
     List<String> matchingMBeanObjectNames(String agentId, String partialObjectName, int limit)
             throws Exception {
-        ConnectedAgent connectedAgent = connectedAgents.get(agentId);
-        if (connectedAgent == null) {
-            throw new AgentNotConnectedException();
-        }
-        return connectedAgent.matchingMBeanObjectNames(partialObjectName, limit);
+        AgentResponse responseWrapper = sendRequest(agentId, CentralRequest.newBuilder()
+                .setMatchingMbeanObjectNamesRequest(MatchingMBeanObjectNamesRequest.newBuilder()
+                        .setPartialObjectName(partialObjectName)
+                        .setLimit(limit))
+                .build());
+        return responseWrapper.getMatchingMbeanObjectNamesResponse().getObjectNameList();
     }
 
     MBeanMeta mbeanMeta(String agentId, String objectName) throws Exception {
-        ConnectedAgent connectedAgent = connectedAgents.get(agentId);
-        if (connectedAgent == null) {
-            throw new AgentNotConnectedException();
-        }
-        return connectedAgent.mbeanMeta(objectName);
+        AgentResponse responseWrapper = sendRequest(agentId, CentralRequest.newBuilder()
+                .setMbeanMetaRequest(MBeanMetaRequest.newBuilder()
+                        .setObjectName(objectName))
+                .build());
+        return responseWrapper.getMbeanMetaResponse().getMbeanMeta();
     }
 
     Map<String, String> systemProperties(String agentId) throws Exception {
-        ConnectedAgent connectedAgent = connectedAgents.get(agentId);
-        if (connectedAgent == null) {
-            throw new AgentNotConnectedException();
-        }
-        return connectedAgent.systemProperties();
+        AgentResponse responseWrapper = sendRequest(agentId, CentralRequest.newBuilder()
+                .setSystemPropertiesRequest(SystemPropertiesRequest.getDefaultInstance())
+                .build());
+        return responseWrapper.getSystemPropertiesResponse().getSystemPropertiesMap();
     }
 
     Capabilities capabilities(String agentId) throws Exception {
-        ConnectedAgent connectedAgent = connectedAgents.get(agentId);
-        if (connectedAgent == null) {
-            throw new AgentNotConnectedException();
-        }
-        return connectedAgent.capabilities();
+        AgentResponse responseWrapper = sendRequest(agentId, CentralRequest.newBuilder()
+                .setCapabilitiesRequest(CapabilitiesRequest.getDefaultInstance())
+                .build());
+        return responseWrapper.getCapabilitiesResponse().getCapabilities();
     }
 
     GlobalMeta globalMeta(String agentId) throws Exception {
-        ConnectedAgent connectedAgent = connectedAgents.get(agentId);
-        if (connectedAgent == null) {
-            throw new AgentNotConnectedException();
-        }
-        return connectedAgent.globalMeta();
+        AgentResponse responseWrapper = sendRequest(agentId, CentralRequest.newBuilder()
+                .setGlobalMetaRequest(GlobalMetaRequest.getDefaultInstance())
+                .build());
+        return responseWrapper.getGlobalMetaResponse().getGlobalMeta();
     }
 
     void preloadClasspathCache(String agentId) throws Exception {
-        ConnectedAgent connectedAgent = connectedAgents.get(agentId);
-        if (connectedAgent == null) {
-            throw new AgentNotConnectedException();
-        }
-        connectedAgent.preloadClasspathCache();
+        sendRequest(agentId, CentralRequest.newBuilder()
+                .setPreloadClasspathCacheRequest(PreloadClasspathCacheRequest.getDefaultInstance())
+                .build());
     }
 
     List<String> matchingClassNames(String agentId, String partialClassName, int limit)
             throws Exception {
-        ConnectedAgent connectedAgent = connectedAgents.get(agentId);
-        if (connectedAgent == null) {
-            throw new AgentNotConnectedException();
-        }
-        return connectedAgent.matchingClassNames(partialClassName, limit);
+        AgentResponse responseWrapper = sendRequest(agentId, CentralRequest.newBuilder()
+                .setMatchingClassNamesRequest(MatchingClassNamesRequest.newBuilder()
+                        .setPartialClassName(partialClassName)
+                        .setLimit(limit))
+                .build());
+        return responseWrapper.getMatchingClassNamesResponse().getClassNameList();
     }
 
     List<String> matchingMethodNames(String agentId, String className, String partialMethodName,
             int limit) throws Exception {
-        ConnectedAgent connectedAgent = connectedAgents.get(agentId);
-        if (connectedAgent == null) {
-            throw new AgentNotConnectedException();
-        }
-        return connectedAgent.matchingMethodNames(className, partialMethodName, limit);
+        AgentResponse responseWrapper = sendRequest(agentId, CentralRequest.newBuilder()
+                .setMatchingMethodNamesRequest(MatchingMethodNamesRequest.newBuilder()
+                        .setClassName(className)
+                        .setPartialMethodName(partialMethodName)
+                        .setLimit(limit))
+                .build());
+        return responseWrapper.getMatchingMethodNamesResponse().getMethodNameList();
     }
 
     List<MethodSignature> methodSignatures(String agentId, String className, String methodName)
             throws Exception {
-        ConnectedAgent connectedAgent = connectedAgents.get(agentId);
-        if (connectedAgent == null) {
-            throw new AgentNotConnectedException();
-        }
-        return connectedAgent.methodSignatures(className, methodName);
+        AgentResponse responseWrapper = sendRequest(agentId, CentralRequest.newBuilder()
+                .setMethodSignaturesRequest(MethodSignaturesRequest.newBuilder()
+                        .setClassName(className)
+                        .setMethodName(methodName))
+                .build());
+        return responseWrapper.getMethodSignaturesResponse().getMethodSignatureList();
     }
 
     int reweave(String agentId) throws Exception {
-        ConnectedAgent connectedAgent = connectedAgents.get(agentId);
-        if (connectedAgent == null) {
-            throw new AgentNotConnectedException();
-        }
-        return connectedAgent.reweave();
+        AgentResponse responseWrapper = sendRequest(agentId, CentralRequest.newBuilder()
+                .setReweaveRequest(ReweaveRequest.getDefaultInstance())
+                .build());
+        return responseWrapper.getReweaveResponse().getClassUpdateCount();
     }
 
     @Nullable
     Trace.Header getHeader(String agentId, String traceId) throws Exception {
-        ConnectedAgent connectedAgent = connectedAgents.get(agentId);
-        if (connectedAgent == null) {
-            throw new AgentNotConnectedException();
+        AgentResponse responseWrapper = sendRequest(agentId, CentralRequest.newBuilder()
+                .setHeaderRequest(HeaderRequest.newBuilder()
+                        .setTraceId(traceId))
+                .build());
+        HeaderResponse response = responseWrapper.getHeaderResponse();
+        if (response.hasHeader()) {
+            return response.getHeader();
+        } else {
+            return null;
         }
-        return connectedAgent.getHeader(traceId);
     }
 
     @Nullable
     Entries getEntries(String agentId, String traceId) throws Exception {
-        ConnectedAgent connectedAgent = connectedAgents.get(agentId);
-        if (connectedAgent == null) {
-            throw new AgentNotConnectedException();
-        }
-        return connectedAgent.getEntries(traceId);
+        AgentResponse responseWrapper = sendRequest(agentId, CentralRequest.newBuilder()
+                .setEntriesRequest(EntriesRequest.newBuilder()
+                        .setTraceId(traceId))
+                .build());
+        EntriesResponse response = responseWrapper.getEntriesResponse();
+        List<Trace.Entry> entries = response.getEntryList();
+        if (entries.isEmpty()) {
+            return null;
+        }
+        return ImmutableEntries.builder()
+                .addAllEntries(entries)
+                .addAllSharedQueryTexts(response.getSharedQueryTextList())
+                .build();
     }
 
     @Nullable
     Profile getMainThreadProfile(String agentId, String traceId) throws Exception {
-        ConnectedAgent connectedAgent = connectedAgents.get(agentId);
-        if (connectedAgent == null) {
-            throw new AgentNotConnectedException();
+        AgentResponse responseWrapper = sendRequest(agentId, CentralRequest.newBuilder()
+                .setMainThreadProfileRequest(MainThreadProfileRequest.newBuilder()
+                        .setTraceId(traceId))
+                .build());
+        MainThreadProfileResponse response = responseWrapper.getMainThreadProfileResponse();
+        if (response.hasProfile()) {
+            return response.getProfile();
+        } else {
+            return null;
         }
-        return connectedAgent.getMainThreadProfile(traceId);
     }
 
     @Nullable
     Profile getAuxThreadProfile(String agentId, String traceId) throws Exception {
-        ConnectedAgent connectedAgent = connectedAgents.get(agentId);
-        if (connectedAgent == null) {
-            throw new AgentNotConnectedException();
+        AgentResponse responseWrapper = sendRequest(agentId, CentralRequest.newBuilder()
+                .setAuxThreadProfileRequest(AuxThreadProfileRequest.newBuilder()
+                        .setTraceId(traceId))
+                .build());
+        AuxThreadProfileResponse response = responseWrapper.getAuxThreadProfileResponse();
+        if (response.hasProfile()) {
+            return response.getProfile();
+        } else {
+            return null;
         }
-        return connectedAgent.getAuxThreadProfile(traceId);
     }
 
     @Nullable
     Trace getFullTrace(String agentId, String traceId) throws Exception {
+        AgentResponse responseWrapper = sendRequest(agentId, CentralRequest.newBuilder()
+                .setFullTraceRequest(FullTraceRequest.newBuilder()
+                        .setTraceId(traceId))
+                .build());
+        FullTraceResponse response = responseWrapper.getFullTraceResponse();
+        if (response.hasTrace()) {
+            return response.getTrace();
+        } else {
+            return null;
+        }
+    }
+
+    private void updateAgentConfigIfNeeded(String agentId) throws Exception {
+        AgentConfigUpdate agentConfigUpdate = configDao.readForUpdate(agentId);
+        if (agentConfigUpdate == null) {
+            return;
+        }
+        try {
+            sendRequest(agentId, CentralRequest.newBuilder()
+                    .setAgentConfigUpdateRequest(AgentConfigUpdateRequest.newBuilder()
+                            .setAgentConfig(agentConfigUpdate.config()))
+                    .build());
+        } catch (AgentNotConnectedException e) {
+            // agent disconnected in the meantime, config will be updated when it reconnects
+            logger.debug(e.getMessage(), e);
+            return;
+        }
+        configDao.markUpdated(agentId, agentConfigUpdate.configUpdateToken());
+    }
+
+    private AgentResponse sendRequest(String agentId, CentralRequest request) throws Exception {
         ConnectedAgent connectedAgent = connectedAgents.get(agentId);
+        AgentResponse response;
         if (connectedAgent == null) {
+            response = forwardRequest(agentId, request);
+        } else {
+            response = connectedAgent.sendRequest(request);
+        }
+        if (response.getMessageCase() == MessageCase.UNKNOWN_REQUEST_RESPONSE) {
+            throw new AgentUnsupportedOperationException();
+        }
+        if (response.getMessageCase() == MessageCase.EXCEPTION_RESPONSE) {
+            throw new AgentException();
+        }
+        return response;
+    }
+
+    private AgentResponse forwardRequest(String agentId, CentralRequest request)
+            throws Exception {
+        String remoteNodeAddress = getRemoteNodeAddress(agentId);
+        if (remoteNodeAddress == null) {
             throw new AgentNotConnectedException();
         }
-        return connectedAgent.getFullTrace(traceId);
+        ClusterServiceBlockingStub stub = MetadataUtils.attachHeaders(
+                ClusterServiceGrpc.newBlockingStub(getNodeChannel(remoteNodeAddress)),
+                ClusterSecretInterceptor.createHeaders(checkNotNull(clusterSecret)))
+                // the remote node waits up to 1 minute for the agent to respond
+                .withDeadlineAfter(2, MINUTES);
+        try {
+            return stub.forwardDownstreamRequest(ForwardedDownstreamRequest.newBuilder()
+                    .setAgentId(agentId)
+                    .setRequest(request)
+                    .build());
+        } catch (StatusRuntimeException e) {
+            Status.Code code = e.getStatus().getCode();
+            if (code == Status.Code.NOT_FOUND || code == Status.Code.UNAVAILABLE) {
+                // agent disconnected from the remote node, or remote node is down (in which case
+                // the agent will reconnect to a different node)
+                logger.debug(e.getMessage(), e);
+                checkNotNull(agentNodeRegistry).invalidate(agentId);
+                throw new AgentNotConnectedException();
+            }
+            throw e;
+        }
+    }
+
+    private @Nullable String getRemoteNodeAddress(String agentId) throws Exception {
+        if (agentNodeRegistry == null) {
+            return null;
+        }
+        String agentNodeAddress = agentNodeRegistry.getNodeAddress(agentId);
+        if (agentNodeAddress == null || agentNodeAddress.equals(nodeAddress)) {
+            // registered to this node, but no longer connected
+            return null;
+        }
+        return agentNodeAddress;
+    }
+
+    private ManagedChannel getNodeChannel(String remoteNodeAddress) {
+        ManagedChannel channel = nodeChannels.get(remoteNodeAddress);
+        if (channel != null) {
+            return channel;
+        }
+        channel = NettyChannelBuilder.forTarget(remoteNodeAddress)
+                .usePlaintext(true)
+                // same max message size as the grpc server, since this carries the same responses
+                .maxMessageSize(64 * 1024 * 1024)
+                .build();
+        ManagedChannel existingChannel = nodeChannels.putIfAbsent(remoteNodeAddress, channel);
+        if (existingChannel != null) {
+            channel.shutdown();
+            return existingChannel;
+        }
+        return channel;
+    }
+
+    private void registerAgentNode(String agentId) {
+        if (agentNodeRegistry == null || nodeAddress == null) {
+            return;
+        }
+        try {
+            agentNodeRegistry.register(agentId, nodeAddress);
+        } catch (Exception e) {
+            logger.error("{} - {}", agentId, e.getMessage(), e);
+        }
+    }
+
+    private void refreshAgentNodes() {
+        for (String agentId : connectedAgents.keySet()) {
+            registerAgentNode(agentId);
+        }
+    }
+
+    private void unregisterAgentNode(String agentId) {
+        if (agentNodeRegistry == null || nodeAddress == null) {
+            return;
+        }
+        try {
+            agentNodeRegistry.unregister(agentId, nodeAddress);
+        } catch (Exception e) {
+            logger.error("{} - {}", agentId, e.getMessage(), e);
+        }
+    }
+
+    private class ClusterServiceImpl extends ClusterServiceImplBase {
+
+        @Override
+        public void forwardDownstreamRequest(ForwardedDownstreamRequest request,
+                StreamObserver<AgentResponse> responseObserver) {
+            // forwarded requests are never forwarded again, in order to avoid forwarding loops
+            // while the agent node registry is out of date
+            ConnectedAgent connectedAgent = connectedAgents.get(request.getAgentId());
+            if (connectedAgent == null) {
+                responseObserver.onError(Status.NOT_FOUND.asRuntimeException());
+                return;
+            }
+            AgentResponse response;
+            try {
+                response = connectedAgent.sendRequest(request.getRequest());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                responseObserver.onError(Status.CANCELLED.asRuntimeException());
+                return;
+            } catch (Throwable t) {
+                logger.error("{} - {}", request.getAgentId(), t.getMessage(), t);
+                responseObserver.onError(
+                        Status.INTERNAL.withDescription(t.getMessage()).asRuntimeException());
+                return;
+            }
+            responseObserver.onNext(response);
+            responseObserver.onCompleted();
+        }
     }
 
     private class ConnectedAgent implements StreamObserver<AgentResponse> {
@@ -338,6 +608,7 @@ class DownstreamServiceImpl extends DownstreamServiceImplBase {
             if (value.getMessageCase() == MessageCase.HELLO) {
                 agentId = value.getHello().getAgentId();
                 connectedAgents.put(agentId, ConnectedAgent.this);
+                registerAgentNode(agentId);
                 synchronized (requestObserver) {
                     requestObserver.onNext(CentralRequest.newBuilder()
                             .setHelloAck(HelloAck.getDefaultInstance())
@@ -375,7 +646,9 @@ class DownstreamServiceImpl extends DownstreamServiceImplBase {
             if (agentId != null) {
                 startupLogger.info("downstream connection lost with agent: {}",
                         getDisplayForLogging(agentId));
-                connectedAgents.remove(agentId, ConnectedAgent.this);
+                if (connectedAgents.remove(agentId, ConnectedAgent.this)) {
+                    unregisterAgentNode(agentId);
+                }
             }
         }
 
@@ -385,285 +658,26 @@ class DownstreamServiceImpl extends DownstreamServiceImplBase {
                 requestObserver.onCompleted();
             }
             if (agentId != null) {
-                connectedAgents.remove(agentId, ConnectedAgent.this);
-            }
-        }
-
-        private void updateAgentConfig(AgentConfig agentConfig) throws Exception {
-            sendRequest(CentralRequest.newBuilder()
-                    .setRequestId(nextRequestId.getAndIncrement())
-                    .setAgentConfigUpdateRequest(AgentConfigUpdateRequest.newBuilder()
-                            .setAgentConfig(agentConfig))
-                    .build());
-        }
-
-        private ThreadDump threadDump() throws Exception {
-            AgentResponse responseWrapper = sendRequest(CentralRequest.newBuilder()
-                    .setRequestId(nextRequestId.getAndIncrement())
-                    .setThreadDumpRequest(ThreadDumpRequest.getDefaultInstance())
-                    .build());
-            return responseWrapper.getThreadDumpResponse().getThreadDump();
-        }
-
-        private String jstack() throws Exception {
-            AgentResponse responseWrapper = sendRequest(CentralRequest.newBuilder()
-                    .setRequestId(nextRequestId.getAndIncrement())
-                    .setJstackRequest(JstackRequest.getDefaultInstance())
-                    .build());
-            JstackResponse response = responseWrapper.getJstackResponse();
-            if (response.getUnavailableDueToRunningInJre()) {
-                throw new UnavailableDueToRunningInJreException();
-            }
-            if (response.getUnavailableDueToRunningInIbmJvm()) {
-                throw new UnavailableDueToRunningInIbmJvmException();
-            }
-            return response.getJstack();
-        }
-
-        private long availableDiskSpaceBytes(String directory) throws Exception {
-            AgentResponse responseWrapper = sendRequest(CentralRequest.newBuilder()
-                    .setRequestId(nextRequestId.getAndIncrement())
-                    .setAvailableDiskSpaceRequest(AvailableDiskSpaceRequest.newBuilder()
-                            .setDirectory(directory))
-                    .build());
-            AvailableDiskSpaceResponse response = responseWrapper.getAvailableDiskSpaceResponse();
-            if (response.getDirectoryDoesNotExist()) {
-                throw new DirectoryDoesNotExistException();
-            }
-            return response.getAvailableBytes();
-        }
-
-        private HeapDumpFileInfo heapDump(String directory) throws Exception {
-            AgentResponse responseWrapper = sendRequest(CentralRequest.newBuilder()
-                    .setRequestId(nextRequestId.getAndIncrement())
-                    .setHeapDumpRequest(HeapDumpRequest.newBuilder()
-                            .setDirectory(directory))
-                    .build());
-            HeapDumpResponse response = responseWrapper.getHeapDumpResponse();
-            if (response.getDirectoryDoesNotExist()) {
-                throw new DirectoryDoesNotExistException();
-            }
-            return response.getHeapDumpFileInfo();
-        }
-
-        private HeapHistogram heapHistogram() throws Exception {
-            AgentResponse responseWrapper = sendRequest(CentralRequest.newBuilder()
-                    .setRequestId(nextRequestId.getAndIncrement())
-                    .setHeapHistogramRequest(HeapHistogramRequest.newBuilder())
-                    .build());
-            HeapHistogramResponse response = responseWrapper.getHeapHistogramResponse();
-            if (response.getUnavailableDueToRunningInJre()) {
-                throw new UnavailableDueToRunningInJreException();
-            }
-            if (response.getUnavailableDueToRunningInIbmJvm()) {
-                throw new UnavailableDueToRunningInIbmJvmException();
-            }
-            return response.getHeapHistogram();
-        }
-
-        private void gc() throws Exception {
-            sendRequest(CentralRequest.newBuilder()
-                    .setRequestId(nextRequestId.getAndIncrement())
-                    .setGcRequest(GcRequest.getDefaultInstance())
-                    .build());
-        }
-
-        private MBeanDump mbeanDump(MBeanDumpKind mbeanDumpKind, List<String> objectNames)
-                throws Exception {
-            AgentResponse responseWrapper = sendRequest(CentralRequest.newBuilder()
-                    .setRequestId(nextRequestId.getAndIncrement())
-                    .setMbeanDumpRequest(MBeanDumpRequest.newBuilder()
-                            .setKind(mbeanDumpKind)
-                            .addAllObjectName(objectNames))
-                    .build());
-            return responseWrapper.getMbeanDumpResponse().getMbeanDump();
-        }
-
-        private List<String> matchingMBeanObjectNames(String partialObjectName, int limit)
-                throws Exception {
-            AgentResponse responseWrapper = sendRequest(CentralRequest.newBuilder()
-                    .setRequestId(nextRequestId.getAndIncrement())
-                    .setMatchingMbeanObjectNamesRequest(MatchingMBeanObjectNamesRequest.newBuilder()
-                            .setPartialObjectName(partialObjectName)
-                            .setLimit(limit))
-                    .build());
-            return responseWrapper.getMatchingMbeanObjectNamesResponse().getObjectNameList();
-        }
-
-        private MBeanMeta mbeanMeta(String objectName) throws Exception {
-            AgentResponse responseWrapper = sendRequest(CentralRequest.newBuilder()
-                    .setRequestId(nextRequestId.getAndIncrement())
-                    .setMbeanMetaRequest(MBeanMetaRequest.newBuilder()
-                            .setObjectName(objectName))
-                    .build());
-            return responseWrapper.getMbeanMetaResponse().getMbeanMeta();
-        }
-
-        private Map<String, String> systemProperties() throws Exception {
-            AgentResponse responseWrapper = sendRequest(CentralRequest.newBuilder()
-                    .setRequestId(nextRequestId.getAndIncrement())
-                    .setSystemPropertiesRequest(SystemPropertiesRequest.getDefaultInstance())
-                    .build());
-            return responseWrapper.getSystemPropertiesResponse().getSystemPropertiesMap();
-        }
-
-        private Capabilities capabilities() throws Exception {
-            AgentResponse responseWrapper = sendRequest(CentralRequest.newBuilder()
-                    .setRequestId(nextRequestId.getAndIncrement())
-                    .setCapabilitiesRequest(CapabilitiesRequest.getDefaultInstance())
-                    .build());
-            return responseWrapper.getCapabilitiesResponse().getCapabilities();
-        }
-
-        private GlobalMeta globalMeta() throws Exception {
-            AgentResponse responseWrapper = sendRequest(CentralRequest.newBuilder()
-                    .setRequestId(nextRequestId.getAndIncrement())
-                    .setGlobalMetaRequest(GlobalMetaRequest.getDefaultInstance())
-                    .build());
-            return responseWrapper.getGlobalMetaResponse().getGlobalMeta();
-        }
-
-        private void preloadClasspathCache() throws Exception {
-            sendRequest(CentralRequest.newBuilder()
-                    .setRequestId(nextRequestId.getAndIncrement())
-                    .setPreloadClasspathCacheRequest(
-                            PreloadClasspathCacheRequest.getDefaultInstance())
-                    .build());
-        }
-
-        private List<String> matchingClassNames(String partialClassName, int limit)
-                throws Exception {
-            AgentResponse responseWrapper = sendRequest(CentralRequest.newBuilder()
-                    .setRequestId(nextRequestId.getAndIncrement())
-                    .setMatchingClassNamesRequest(MatchingClassNamesRequest.newBuilder()
-                            .setPartialClassName(partialClassName)
-                            .setLimit(limit))
-                    .build());
-            return responseWrapper.getMatchingClassNamesResponse().getClassNameList();
-        }
-
-        private List<String> matchingMethodNames(String className, String partialMethodName,
-                int limit) throws Exception {
-            AgentResponse responseWrapper = sendRequest(CentralRequest.newBuilder()
-                    .setRequestId(nextRequestId.getAndIncrement())
-                    .setMatchingMethodNamesRequest(MatchingMethodNamesRequest.newBuilder()
-                            .setClassName(className)
-                            .setPartialMethodName(partialMethodName)
-                            .setLimit(limit))
-                    .build());
-            return responseWrapper.getMatchingMethodNamesResponse().getMethodNameList();
-        }
-
-        private List<MethodSignature> methodSignatures(String className, String methodName)
-                throws Exception {
-            AgentResponse responseWrapper = sendRequest(CentralRequest.newBuilder()
-                    .setRequestId(nextRequestId.getAndIncrement())
-                    .setMethodSignaturesRequest(MethodSignaturesRequest.newBuilder()
-                            .setClassName(className)
-                            .setMethodName(methodName))
-                    .build());
-            return responseWrapper.getMethodSignaturesResponse().getMethodSignatureList();
-        }
-
-        private int reweave() throws Exception {
-            AgentResponse responseWrapper = sendRequest(CentralRequest.newBuilder()
-                    .setRequestId(nextRequestId.getAndIncrement())
-                    .setReweaveRequest(ReweaveRequest.getDefaultInstance())
-                    .build());
-            return responseWrapper.getReweaveResponse().getClassUpdateCount();
-        }
-
-        private @Nullable Trace.Header getHeader(String traceId) throws Exception {
-            AgentResponse responseWrapper = sendRequest(CentralRequest.newBuilder()
-                    .setRequestId(nextRequestId.getAndIncrement())
-                    .setHeaderRequest(HeaderRequest.newBuilder()
-                            .setTraceId(traceId))
-                    .build());
-            HeaderResponse response = responseWrapper.getHeaderResponse();
-            if (response.hasHeader()) {
-                return response.getHeader();
-            } else {
-                return null;
-            }
-        }
-
-        private @Nullable Entries getEntries(String traceId) throws Exception {
-            AgentResponse responseWrapper = sendRequest(CentralRequest.newBuilder()
-                    .setRequestId(nextRequestId.getAndIncrement())
-                    .setEntriesRequest(EntriesRequest.newBuilder()
-                            .setTraceId(traceId))
-                    .build());
-            EntriesResponse response = responseWrapper.getEntriesResponse();
-            List<Trace.Entry> entries = response.getEntryList();
-            if (entries.isEmpty()) {
-                return null;
-            }
-            return ImmutableEntries.builder()
-                    .addAllEntries(entries)
-                    .addAllSharedQueryTexts(response.getSharedQueryTextList())
-                    .build();
-        }
-
-        private @Nullable Profile getMainThreadProfile(String traceId) throws Exception {
-            AgentResponse responseWrapper = sendRequest(CentralRequest.newBuilder()
-                    .setRequestId(nextRequestId.getAndIncrement())
-                    .setMainThreadProfileRequest(MainThreadProfileRequest.newBuilder()
-                            .setTraceId(traceId))
-                    .build());
-            MainThreadProfileResponse response = responseWrapper.getMainThreadProfileResponse();
-            if (response.hasProfile()) {
-                return response.getProfile();
-            } else {
-                return null;
-            }
-        }
-
-        private @Nullable Profile getAuxThreadProfile(String traceId) throws Exception {
-            AgentResponse responseWrapper = sendRequest(CentralRequest.newBuilder()
-                    .setRequestId(nextRequestId.getAndIncrement())
-                    .setAuxThreadProfileRequest(AuxThreadProfileRequest.newBuilder()
-                            .setTraceId(traceId))
-                    .build());
-            AuxThreadProfileResponse response = responseWrapper.getAuxThreadProfileResponse();
-            if (response.hasProfile()) {
-                return response.getProfile();
-            } else {
-                return null;
-            }
-        }
-
-        private @Nullable Trace getFullTrace(String traceId) throws Exception {
-            AgentResponse responseWrapper = sendRequest(CentralRequest.newBuilder()
-                    .setRequestId(nextRequestId.getAndIncrement())
-                    .setFullTraceRequest(FullTraceRequest.newBuilder()
-                            .setTraceId(traceId))
-                    .build());
-            FullTraceResponse response = responseWrapper.getFullTraceResponse();
-            if (response.hasTrace()) {
-                return response.getTrace();
-            } else {
-                return null;
+                if (connectedAgents.remove(agentId, ConnectedAgent.this)) {
+                    unregisterAgentNode(agentId);
+                }
             }
         }
 
         private AgentResponse sendRequest(CentralRequest request) throws Exception {
+            long requestId = nextRequestId.getAndIncrement();
             ResponseHolder responseHolder = new ResponseHolder();
-            responseHolders.put(request.getRequestId(), responseHolder);
+            responseHolders.put(requestId, responseHolder);
             // synchronization required since individual StreamObservers are not thread-safe
             synchronized (requestObserver) {
-                requestObserver.onNext(request);
+                requestObserver.onNext(request.toBuilder()
+                        .setRequestId(requestId)
+                        .build());
             }
             // timeout is in case agent never responds
             // passing AgentResponse.getDefaultInstance() is just dummy (non-null) value
-            AgentResponse response = responseHolder.response
-                    .exchange(AgentResponse.getDefaultInstance(), 1, MINUTES);
-            if (response.getMessageCase() == MessageCase.UNKNOWN_REQUEST_RESPONSE) {
-                throw new AgentUnsupportedOperationException();
-            }
-            if (response.getMessageCase() == MessageCase.EXCEPTION_RESPONSE) {
-                throw new AgentException();
-            }
-            return response;
+            return responseHolder.response.exchange(AgentResponse.getDefaultInstance(), 1,
+                    MINUTES);
         }
 
         private String getDisplayForLogging(String agentRollupId) {
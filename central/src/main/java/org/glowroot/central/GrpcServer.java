@@ -16,17 +16,32 @@
 package org.glowroot.central;
 
 import java.io.IOException;
+import java.lang.reflect.Method;
 import java.net.InetSocketAddress;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+
+import javax.annotation.Nullable;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import io.grpc.ServerInterceptors;
+import io.grpc.Status;
 import io.grpc.internal.ServerImpl;
 import io.grpc.netty.NettyServerBuilder;
 import io.grpc.stub.StreamObserver;
@@ -37,6 +52,7 @@ import org.slf4j.LoggerFactory;
 
 import org.glowroot.agent.api.Instrumentation;
 import org.glowroot.central.repo.AgentDao;
+import org.glowroot.central.repo.AgentNodeRegistry;
 import org.glowroot.central.repo.AggregateDao;
 import org.glowroot.central.repo.ConfigDao;
 import org.glowroot.central.repo.ConfigRepositoryImpl;
@@ -44,6 +60,7 @@ import org.glowroot.central.repo.EnvironmentDao;
 import org.glowroot.central.repo.GaugeValueDao;
 import org.glowroot.central.repo.HeartbeatDao;
 import org.glowroot.central.repo.TraceDao;
+import org.glowroot.central.util.MoreFutures;
 import org.glowroot.common.util.Clock;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig;
@@ -76,6 +93,7 @@ import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
 class GrpcServer {
 
@@ -84,6 +102,10 @@ class GrpcServer {
     // log startup messages using logger name "org.glowroot"
     private static final Logger startupLogger = LoggerFactory.getLogger("org.glowroot");
 
+    // alert checks that do not fit are dropped, since alerts are also checked periodically by the
+    // rollup service, and this way a reconnect storm cannot build up an unbounded backlog
+    private static final int ALERT_CHECK_QUEUE_CAPACITY = 10000;
+
     private final AgentDao agentDao;
     private final ConfigDao configDao;
     private final EnvironmentDao environmentDao;
@@ -100,15 +122,27 @@ class GrpcServer {
 
     private final ServerImpl server;
 
+    // null when central is not clustered
+    private final @Nullable ServerImpl clusterServer;
+
+    // null unless handlers are run on virtual threads
+    private final @Nullable ExecutorService handlerExecutor;
+
     private final ExecutorService alertCheckingExecutor;
 
+    // completes agent requests once their cassandra writes complete
+    private final Executor asyncExecutor;
+
     private volatile long currentMinute;
     private final AtomicInteger nextDelay = new AtomicInteger();
 
     GrpcServer(String bindAddress, int port, AgentDao agentDao, ConfigDao configDao,
             AggregateDao aggregateDao, GaugeValueDao gaugeValueDao, EnvironmentDao environmentDao,
             HeartbeatDao heartbeatDao, TraceDao traceDao, ConfigRepositoryImpl configRepository,
-            AlertingService alertingService, Clock clock, String version) throws IOException {
+            AlertingService alertingService, @Nullable String clusterAddress,
+            String clusterBindAddress, int clusterPort, @Nullable String clusterSecret,
+            AgentNodeRegistry agentNodeRegistry, boolean virtualThreads, Executor asyncExecutor,
+            Clock clock, String version) throws IOException {
         this.agentDao = agentDao;
         this.configDao = configDao;
         this.environmentDao = environmentDao;
@@ -118,13 +152,24 @@ class GrpcServer {
         this.traceDao = traceDao;
         this.configRepository = configRepository;
         this.alertingService = alertingService;
+        this.asyncExecutor = asyncExecutor;
         this.clock = clock;
         this.version = version;
 
-        downstreamService = new DownstreamServiceImpl(agentDao, configDao);
+        if (clusterAddress == null) {
+            downstreamService = new DownstreamServiceImpl(agentDao, configDao);
+        } else {
+            downstreamService = new DownstreamServiceImpl(agentDao, configDao, clusterAddress,
+                    checkNotNull(clusterSecret), agentNodeRegistry);
+        }
 
-        server = NettyServerBuilder.forAddress(new InetSocketAddress(bindAddress, port))
-                .addService(new CollectorServiceImpl().bindService())
+        handlerExecutor = virtualThreads ? createVirtualThreadExecutor() : null;
+        NettyServerBuilder serverBuilder =
+                NettyServerBuilder.forAddress(new InetSocketAddress(bindAddress, port));
+        if (handlerExecutor != null) {
+            serverBuilder.executor(handlerExecutor);
+        }
+        server = serverBuilder.addService(new CollectorServiceImpl().bindService())
                 .addService(downstreamService.bindService())
                 // need to override default max message size of 4mb until streaming is implemented
                 // for DownstreamService.EntriesResponse and FullTraceResponse
@@ -132,9 +177,31 @@ class GrpcServer {
                 .build()
                 .start();
 
-        alertCheckingExecutor = Executors.newSingleThreadExecutor();
+        if (clusterAddress == null) {
+            clusterServer = null;
+        } else {
+            // the cluster service is served on its own port (ideally bound to an interface that is
+            // only reachable by the other central nodes) and requires the shared cluster secret,
+            // since it can send any downstream request to any agent connected to this node
+            clusterServer = NettyServerBuilder
+                    .forAddress(new InetSocketAddress(clusterBindAddress, clusterPort))
+                    .addService(ServerInterceptors.intercept(
+                            downstreamService.getClusterService().bindService(),
+                            new ClusterSecretInterceptor(checkNotNull(clusterSecret))))
+                    // same max message size as above, since this carries the same responses
+                    .maxMessageSize(64 * 1024 * 1024)
+                    .build()
+                    .start();
+        }
+
+        alertCheckingExecutor = new ThreadPoolExecutor(1, 1, 0, MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(ALERT_CHECK_QUEUE_CAPACITY));
 
         startupLogger.info("gRPC listening on {}:{}", bindAddress, port);
+        if (clusterServer != null) {
+            startupLogger.info("gRPC cluster service listening on {}:{}", clusterBindAddress,
+                    clusterPort);
+        }
     }
 
     DownstreamServiceImpl getDownstreamService() {
@@ -144,10 +211,30 @@ class GrpcServer {
     void close() {
         // shutdown server first to complete existing requests and prevent new requests
         server.shutdown();
+        if (clusterServer != null) {
+            clusterServer.shutdown();
+        }
+        downstreamService.close();
+        if (handlerExecutor != null) {
+            handlerExecutor.shutdown();
+        }
         // then shutdown alert checking executor
         alertCheckingExecutor.shutdown();
     }
 
+    // virtual threads are only available on Java 21+, while central still runs on Java 8
+    private static @Nullable ExecutorService createVirtualThreadExecutor() {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (Exception e) {
+            logger.debug(e.getMessage(), e);
+            startupLogger.warn("grpc.virtualThreads is enabled, but virtual threads are not"
+                    + " supported by this JVM, falling back to the default gRPC executor");
+            return null;
+        }
+    }
+
     @VisibleForTesting
     static String trimSpacesAroundAgentRollupIdSeparator(String agentRollupId) {
         return agentRollupId.replaceAll(" */ *", "/").trim();
@@ -155,7 +242,12 @@ class GrpcServer {
 
     @FunctionalInterface
     interface AlertConfigConsumer {
-        void accept(AlertConfig alertConfig) throws Exception;
+        void accept(String agentDisplay, AlertConfig alertConfig) throws Exception;
+    }
+
+    @FunctionalInterface
+    interface ResponseSupplier<T> {
+        T get();
     }
 
     private class CollectorServiceImpl extends CollectorServiceImplBase {
@@ -195,7 +287,20 @@ class GrpcServer {
 
         @Override
         public StreamObserver<AggregateStreamMessage> collectAggregateStream(
-                final StreamObserver<AggregateResponseMessage> responseObserver) {
+                StreamObserver<AggregateResponseMessage> responseObserver) {
+            return newAggregateStreamObserver(responseObserver, null);
+        }
+
+        @Override
+        public StreamObserver<AggregateStreamMessage> collectDictionaryEncodedAggregateStream(
+                StreamObserver<AggregateResponseMessage> responseObserver) {
+            return newAggregateStreamObserver(responseObserver, new AggregateDictionaryDecoder());
+        }
+
+        // decoder is null unless the stream is dictionary encoded
+        private StreamObserver<AggregateStreamMessage> newAggregateStreamObserver(
+                final StreamObserver<AggregateResponseMessage> responseObserver,
+                final @Nullable AggregateDictionaryDecoder decoder) {
             return new StreamObserver<AggregateStreamMessage>() {
 
                 private @MonotonicNonNull AggregateStreamHeader streamHeader;
@@ -205,29 +310,58 @@ class GrpcServer {
 
                 @Override
                 public void onNext(AggregateStreamMessage value) {
+                    try {
+                        onNextInternal(value);
+                    } catch (DataFormatException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+
+                private void onNextInternal(AggregateStreamMessage value)
+                        throws DataFormatException {
                     switch (value.getMessageCase()) {
                         case STREAM_HEADER:
                             streamHeader = value.getStreamHeader();
                             break;
+                        case SHARED_STRING:
+                            checkNotNull(decoder).addSharedString(value.getSharedString());
+                            break;
                         case SHARED_QUERY_TEXT:
                             sharedQueryTexts.add(value.getSharedQueryText());
                             break;
                         case OVERALL_AGGREGATE:
                             OverallAggregate overallAggregate = value.getOverallAggregate();
-                            String transactionType = overallAggregate.getTransactionType();
+                            String transactionType;
+                            Aggregate aggregate;
+                            if (decoder == null) {
+                                transactionType = overallAggregate.getTransactionType();
+                                aggregate = overallAggregate.getAggregate();
+                            } else {
+                                transactionType = decoder.getSharedString(
+                                        overallAggregate.getTransactionTypeIndex());
+                                aggregate = decoder.decode(overallAggregate.getAggregate());
+                            }
                             aggregatesByTypeMap.put(transactionType,
                                     OldAggregatesByType.newBuilder()
                                             .setTransactionType(transactionType)
-                                            .setOverallAggregate(overallAggregate.getAggregate()));
+                                            .setOverallAggregate(aggregate));
                             break;
                         case TRANSACTION_AGGREGATE:
                             TransactionAggregate transactionAggregate =
                                     value.getTransactionAggregate();
-                            OldAggregatesByType.Builder builder = checkNotNull(aggregatesByTypeMap
-                                    .get(transactionAggregate.getTransactionType()));
+                            if (decoder == null) {
+                                transactionType = transactionAggregate.getTransactionType();
+                                aggregate = transactionAggregate.getAggregate();
+                            } else {
+                                transactionType = decoder.getSharedString(
+                                        transactionAggregate.getTransactionTypeIndex());
+                                aggregate = decoder.decode(transactionAggregate.getAggregate());
+                            }
+                            OldAggregatesByType.Builder builder =
+                                    checkNotNull(aggregatesByTypeMap.get(transactionType));
                             builder.addTransactionAggregate(OldTransactionAggregate.newBuilder()
                                     .setTransactionName(transactionAggregate.getTransactionName())
-                                    .setAggregate(transactionAggregate.getAggregate())
+                                    .setAggregate(aggregate)
                                     .build());
                             break;
                         default:
@@ -292,9 +426,12 @@ class GrpcServer {
                 List<Aggregate.SharedQueryText> sharedQueryTexts,
                 List<OldAggregatesByType> aggregatesByTypeList,
                 StreamObserver<AggregateResponseMessage> responseObserver) {
-            if (!aggregatesByTypeList.isEmpty()) {
+            ListenableFuture<?> future;
+            if (aggregatesByTypeList.isEmpty()) {
+                future = Futures.immediateFuture(null);
+            } else {
                 try {
-                    aggregateDao.store(agentId, captureTime, aggregatesByTypeList,
+                    future = aggregateDao.store(agentId, captureTime, aggregatesByTypeList,
                             sharedQueryTexts);
                 } catch (Throwable t) {
                     logger.error("{} - {}", getDisplayForLogging(agentId), t.getMessage(), t);
@@ -302,21 +439,14 @@ class GrpcServer {
                     return;
                 }
             }
-            String agentDisplay;
-            try {
-                agentDisplay = agentDao.readAgentRollupDisplay(agentId);
-            } catch (Exception e) {
-                logger.error("{} - {}", getDisplayForLogging(agentId), e.getMessage(), e);
-                responseObserver.onError(e);
-                return;
-            }
-            checkAlerts(agentId, agentDisplay, AlertKind.TRANSACTION,
-                    alertConfig -> checkTransactionAlert(agentId, agentDisplay, alertConfig,
-                            captureTime));
-            responseObserver.onNext(AggregateResponseMessage.newBuilder()
-                    .setNextDelayMillis(getNextDelayMillis())
-                    .build());
-            responseObserver.onCompleted();
+            onComplete(future, agentId, responseObserver, () -> {
+                checkAlerts(agentId, AlertKind.TRANSACTION,
+                        (agentDisplay, alertConfig) -> checkTransactionAlert(agentId, agentDisplay,
+                                alertConfig, captureTime));
+                return AggregateResponseMessage.newBuilder()
+                        .setNextDelayMillis(getNextDelayMillis())
+                        .build();
+            });
         }
 
         private int getNextDelayMillis() {
@@ -337,39 +467,29 @@ class GrpcServer {
                 StreamObserver<EmptyMessage> responseObserver) {
             String agentId = request.getAgentId();
             long maxCaptureTime = 0;
-            try {
-                gaugeValueDao.store(agentId, request.getGaugeValuesList());
-                for (GaugeValue gaugeValue : request.getGaugeValuesList()) {
-                    maxCaptureTime = Math.max(maxCaptureTime, gaugeValue.getCaptureTime());
-                }
-            } catch (Throwable t) {
-                logger.error("{} - {}", getDisplayForLogging(agentId), t.getMessage(), t);
-                responseObserver.onError(t);
-                return;
-            }
-            try {
-                heartbeatDao.store(agentId);
-            } catch (Throwable t) {
-                logger.error("{} - {}", getDisplayForLogging(agentId), t.getMessage(), t);
-                responseObserver.onError(t);
-                return;
+            for (GaugeValue gaugeValue : request.getGaugeValuesList()) {
+                maxCaptureTime = Math.max(maxCaptureTime, gaugeValue.getCaptureTime());
             }
-            String agentDisplay;
+            ListenableFuture<?> future;
             try {
-                agentDisplay = agentDao.readAgentRollupDisplay(agentId);
+                future = MoreFutures.allAsync(ImmutableList.of(
+                        gaugeValueDao.store(agentId, request.getGaugeValuesList()),
+                        heartbeatDao.store(agentId)));
             } catch (Throwable t) {
                 logger.error("{} - {}", getDisplayForLogging(agentId), t.getMessage(), t);
                 responseObserver.onError(t);
                 return;
             }
             final long captureTime = maxCaptureTime;
-            checkAlerts(agentId, agentDisplay, AlertKind.GAUGE,
-                    alertConfig -> checkGaugeAlert(agentId, agentDisplay, alertConfig,
-                            captureTime));
-            checkAlerts(agentId, agentDisplay, AlertKind.HEARTBEAT,
-                    alertConfig -> checkHeartbeatAlert(agentId, agentDisplay, alertConfig));
-            responseObserver.onNext(EmptyMessage.getDefaultInstance());
-            responseObserver.onCompleted();
+            onComplete(future, agentId, responseObserver, () -> {
+                checkAlerts(agentId, AlertKind.GAUGE,
+                        (agentDisplay, alertConfig) -> checkGaugeAlert(agentId, agentDisplay,
+                                alertConfig, captureTime));
+                checkAlerts(agentId, AlertKind.HEARTBEAT,
+                        (agentDisplay, alertConfig) -> checkHeartbeatAlert(agentId, agentDisplay,
+                                alertConfig));
+                return EmptyMessage.getDefaultInstance();
+            });
         }
 
         @Override
@@ -463,16 +583,7 @@ class GrpcServer {
                                 .addAllSharedQueryText(sharedQueryTexts)
                                 .build();
                     }
-                    try {
-                        traceDao.store(streamHeader.getAgentId(), trace);
-                    } catch (Throwable t) {
-                        logger.error("{} - {}", getDisplayForLogging(streamHeader.getAgentId()),
-                                t.getMessage(), t);
-                        responseObserver.onError(t);
-                        return;
-                    }
-                    responseObserver.onNext(EmptyMessage.getDefaultInstance());
-                    responseObserver.onCompleted();
+                    storeTrace(streamHeader.getAgentId(), trace, responseObserver);
                 }
 
                 @RequiresNonNull({"streamHeader", "streamCounts"})
@@ -511,15 +622,63 @@ class GrpcServer {
         @Override
         public void collectTrace(OldTraceMessage request,
                 StreamObserver<EmptyMessage> responseObserver) {
-            String agentId = request.getAgentId();
+            storeTrace(request.getAgentId(), request.getTrace(), responseObserver);
+        }
+
+        private void storeTrace(String agentId, Trace trace,
+                StreamObserver<EmptyMessage> responseObserver) {
+            ListenableFuture<?> future;
             try {
-                traceDao.store(agentId, request.getTrace());
+                future = traceDao.store(agentId, trace);
             } catch (Throwable t) {
                 logger.error("{} - {}", getDisplayForLogging(agentId), t.getMessage(), t);
                 responseObserver.onError(t);
                 return;
             }
-            responseObserver.onNext(EmptyMessage.getDefaultInstance());
+            onComplete(future, agentId, responseObserver, EmptyMessage::getDefaultInstance);
+        }
+
+        // the response is sent from the async executor once the future completes, so that gRPC
+        // executor threads are not blocked waiting on cassandra, and so that the response
+        // supplier (which can block, e.g. reading alert configs) does not run on the thread that
+        // completes the future (typically a cassandra driver I/O thread)
+        private <T> void onComplete(ListenableFuture<?> future, String agentId,
+                StreamObserver<T> responseObserver, ResponseSupplier<T> responseSupplier) {
+            future.addListener(() -> {
+                try {
+                    asyncExecutor.execute(
+                            () -> complete(future, agentId, responseObserver, responseSupplier));
+                } catch (RejectedExecutionException e) {
+                    // async executor queue is full (or shutdown has been requested), the agent
+                    // will retry
+                    logger.debug(e.getMessage(), e);
+                    responseObserver.onError(Status.RESOURCE_EXHAUSTED
+                            .withDescription("central is overloaded").asRuntimeException());
+                }
+            }, MoreExecutors.directExecutor());
+        }
+
+        private <T> void complete(ListenableFuture<?> future, String agentId,
+                StreamObserver<T> responseObserver, ResponseSupplier<T> responseSupplier) {
+            try {
+                // the future is already complete at this point
+                future.get();
+            } catch (InterruptedException | ExecutionException e) {
+                Throwable cause = e.getCause();
+                Throwable t = cause == null ? e : cause;
+                logger.error("{} - {}", getDisplayForLogging(agentId), t.getMessage(), t);
+                responseObserver.onError(t);
+                return;
+            }
+            T response;
+            try {
+                response = responseSupplier.get();
+            } catch (Throwable t) {
+                logger.error("{} - {}", getDisplayForLogging(agentId), t.getMessage(), t);
+                responseObserver.onError(t);
+                return;
+            }
+            responseObserver.onNext(response);
             responseObserver.onCompleted();
         }
 
@@ -549,40 +708,45 @@ class GrpcServer {
             responseObserver.onCompleted();
         }
 
-        private void checkAlerts(String agentId, String agentDisplay, AlertKind alertKind,
-                AlertConfigConsumer check) {
+        private void checkAlerts(String agentId, AlertKind alertKind, AlertConfigConsumer check) {
             List<AlertConfig> alertConfigs;
             try {
                 alertConfigs = configRepository.getAlertConfigs(agentId, alertKind);
             } catch (Exception e) {
-                logger.error("{} - {}", agentDisplay, e.getMessage(), e);
+                logger.error("{} - {}", agentId, e.getMessage(), e);
                 return;
             }
             if (alertConfigs.isEmpty()) {
                 return;
             }
-            alertCheckingExecutor.execute(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        runInternal();
-                    } catch (Throwable t) {
-                        logger.error("{} - {}", agentDisplay, t.getMessage(), t);
-                    }
-                }
-                private void runInternal() throws InterruptedException {
-                    for (AlertConfig alertConfig : alertConfigs) {
+            try {
+                alertCheckingExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
                         try {
-                            check.accept(alertConfig);
-                        } catch (InterruptedException e) {
-                            // shutdown requested
-                            throw e;
-                        } catch (Exception e) {
-                            logger.error("{} - {}", agentDisplay, e.getMessage(), e);
+                            runInternal();
+                        } catch (Throwable t) {
+                            logger.error("{} - {}", agentId, t.getMessage(), t);
                         }
                     }
-                }
-            });
+                    private void runInternal() throws Exception {
+                        String agentDisplay = agentDao.readAgentRollupDisplay(agentId);
+                        for (AlertConfig alertConfig : alertConfigs) {
+                            try {
+                                check.accept(agentDisplay, alertConfig);
+                            } catch (InterruptedException e) {
+                                // shutdown requested
+                                throw e;
+                            } catch (Exception e) {
+                                logger.error("{} - {}", agentDisplay, e.getMessage(), e);
+                            }
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // alert checking queue is full (or shutdown has been requested)
+                logger.debug(e.getMessage(), e);
+            }
         }
 
         @Instrumentation.Transaction(transactionType = "Background",
@@ -229,7 +229,7 @@ class RollupService implements Runnable {
             return;
         }
         try {
-            downstreamService.updateAgentConfigIfConnectedAndNeeded(agentRollup.id());
+            downstreamService.updateAgentConfigIfConnectedLocallyAndNeeded(agentRollup.id());
         } catch (InterruptedException e) {
             // shutdown requested
             throw e;
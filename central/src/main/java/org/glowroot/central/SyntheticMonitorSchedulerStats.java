@@ -0,0 +1,91 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+import javax.annotation.concurrent.GuardedBy;
+
+class SyntheticMonitorSchedulerStats implements SyntheticMonitorSchedulerStatsMXBean {
+
+    private final Object lock = new Object();
+
+    @GuardedBy("lock")
+    private long scheduleLagMillis;
+    @GuardedBy("lock")
+    private long maxScheduleLagMillis;
+    @GuardedBy("lock")
+    private long priorRoundMaxScheduleLagMillis;
+    @GuardedBy("lock")
+    private int checkCount;
+    @GuardedBy("lock")
+    private int priorRoundCheckCount;
+    @GuardedBy("lock")
+    private int skippedCheckCount;
+    @GuardedBy("lock")
+    private int priorRoundSkippedCheckCount;
+
+    void startRound() {
+        synchronized (lock) {
+            priorRoundMaxScheduleLagMillis = maxScheduleLagMillis;
+            priorRoundCheckCount = checkCount;
+            priorRoundSkippedCheckCount = skippedCheckCount;
+            maxScheduleLagMillis = 0;
+            checkCount = 0;
+            skippedCheckCount = 0;
+        }
+    }
+
+    void recordScheduleLag(long lagMillis) {
+        synchronized (lock) {
+            scheduleLagMillis = lagMillis;
+            maxScheduleLagMillis = Math.max(maxScheduleLagMillis, lagMillis);
+            checkCount++;
+        }
+    }
+
+    void recordSkippedCheck() {
+        synchronized (lock) {
+            skippedCheckCount++;
+        }
+    }
+
+    @Override
+    public long getScheduleLagMillis() {
+        synchronized (lock) {
+            return scheduleLagMillis;
+        }
+    }
+
+    @Override
+    public long getMaxScheduleLagMillis() {
+        synchronized (lock) {
+            return priorRoundMaxScheduleLagMillis;
+        }
+    }
+
+    @Override
+    public int getChecksPerMinute() {
+        synchronized (lock) {
+            return priorRoundCheckCount;
+        }
+    }
+
+    @Override
+    public int getSkippedChecksPerMinute() {
+        synchronized (lock) {
+            return priorRoundSkippedCheckCount;
+        }
+    }
+}
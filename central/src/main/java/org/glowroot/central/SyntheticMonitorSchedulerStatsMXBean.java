@@ -0,0 +1,28 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+public interface SyntheticMonitorSchedulerStatsMXBean {
+
+    // delay between when the most recent check was scheduled to run and when it actually ran
+    long getScheduleLagMillis();
+    // max schedule lag of checks from the most recently completed round (minute)
+    long getMaxScheduleLagMillis();
+    int getChecksPerMinute();
+    // checks from the most recently completed round that were skipped because they could not be
+    // started in time (currently only synthetic user tests, which run on a small bounded pool)
+    int getSkippedChecksPerMinute();
+}
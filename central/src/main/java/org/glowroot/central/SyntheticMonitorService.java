@@ -15,24 +15,37 @@
  */
 package org.glowroot.central;
 
+import java.lang.management.ManagementFactory;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Method;
 import java.net.URI;
+import java.nio.channels.ClosedChannelException;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.TimeoutException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import javax.annotation.Nullable;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.net.ssl.SSLException;
 
-import com.google.common.base.Stopwatch;
 import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
@@ -43,32 +56,34 @@ import com.machinepublishers.jbrowserdriver.RequestHeaders;
 import com.machinepublishers.jbrowserdriver.Settings;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.channel.Channel;
-import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.pool.AbstractChannelPoolHandler;
+import io.netty.channel.pool.AbstractChannelPoolMap;
+import io.netty.channel.pool.SimpleChannelPool;
 import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.handler.codec.http.HttpClientCodec;
-import io.netty.handler.codec.http.HttpContent;
 import io.netty.handler.codec.http.HttpHeaderNames;
-import io.netty.handler.codec.http.HttpHeaderValues;
 import io.netty.handler.codec.http.HttpMethod;
-import io.netty.handler.codec.http.HttpObject;
 import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.HttpRequest;
-import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
 import io.netty.handler.codec.http.HttpVersion;
 import io.netty.handler.ssl.SslContext;
 import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.handler.timeout.IdleStateHandler;
 import io.netty.util.CharsetUtil;
-import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.FutureListener;
 import org.immutables.value.Value;
 import org.openqa.selenium.WebDriver;
 import org.slf4j.Logger;
@@ -91,6 +106,8 @@ import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.SyntheticMo
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 class SyntheticMonitorService implements Runnable {
@@ -99,6 +116,23 @@ class SyntheticMonitorService implements Runnable {
 
     private static final Pattern encryptedPattern = Pattern.compile("\"ENCRYPTED:([^\"]*)\"");
 
+    private static final long CHECK_INTERVAL_MILLIS = MINUTES.toMillis(1);
+
+    // checks only block briefly (ping checks are asynchronous, and java checks run on their own
+    // pool), so a small fixed pool is enough to dispatch even hundreds of checks per minute
+    private static final int CHECK_THREADS = 8;
+    private static final int SYNTHETIC_USER_TEST_THREADS = 4;
+    // synthetic user tests (which can each take many seconds) that cannot be queued, or that
+    // cannot start within the check interval, are skipped and counted in the scheduler stats
+    private static final int SYNTHETIC_USER_TEST_QUEUE_CAPACITY = 100;
+
+    private static final int PING_CONNECT_TIMEOUT_MILLIS = 30000;
+    // pooled ping connections are kept alive across checks (which run once a minute), and closed
+    // once idle for longer than this, which also bounds how long a single ping can hang
+    private static final int PING_IDLE_TIMEOUT_SECONDS = 120;
+
+    private static final String MBEAN_OBJECT_NAME = "org.glowroot:type=SyntheticMonitorScheduler";
+
     public static final RequestHeaders REQUEST_HEADERS;
 
     static {
@@ -130,19 +164,31 @@ class SyntheticMonitorService implements Runnable {
     private final Clock clock;
 
     private final ExecutorService mainLoopExecutor;
-    private final ExecutorService checkExecutor;
+    // used both to run checks at their scheduled time within the minute, and to check alert
+    // thresholds for checks that have not completed in time
+    private final ScheduledExecutorService checkExecutor;
 
     private final Set<SyntheticMonitorUniqueKey> activeSyntheticMonitors =
             Sets.newConcurrentHashSet();
 
     private final ListeningExecutorService syntheticUserTestExecutor =
-            MoreExecutors.listeningDecorator(Executors.newCachedThreadPool());
+            MoreExecutors.listeningDecorator(new ThreadPoolExecutor(SYNTHETIC_USER_TEST_THREADS,
+                    SYNTHETIC_USER_TEST_THREADS, 0, MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(SYNTHETIC_USER_TEST_QUEUE_CAPACITY)));
+
+    // shared by all ping checks, instead of an event loop group (and connection) per check
+    private final EventLoopGroup pingEventLoopGroup = new NioEventLoopGroup();
+    private final SslContext pingSslContext;
+    private final AbstractChannelPoolMap<PingTarget, SimpleChannelPool> pingChannelPools;
+
+    private final SyntheticMonitorSchedulerStats stats = new SyntheticMonitorSchedulerStats();
 
     private volatile boolean closed;
 
     SyntheticMonitorService(AgentDao agentDao, ConfigRepositoryImpl configRepository,
             TriggeredAlertDao triggeredAlertDao, AlertingService alertingService,
-            SyntheticResultDao syntheticResponseDao, Ticker ticker, Clock clock) {
+            SyntheticResultDao syntheticResponseDao, Ticker ticker, Clock clock)
+            throws SSLException {
         this.agentDao = agentDao;
         this.configRepository = configRepository;
         this.triggeredAlertDao = triggeredAlertDao;
@@ -150,8 +196,22 @@ class SyntheticMonitorService implements Runnable {
         this.syntheticResponseDao = syntheticResponseDao;
         this.ticker = ticker;
         this.clock = clock;
+        pingSslContext = SslContextBuilder.forClient().build();
+        Bootstrap bootstrap = new Bootstrap()
+                .group(pingEventLoopGroup)
+                .channel(NioSocketChannel.class)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, PING_CONNECT_TIMEOUT_MILLIS);
+        pingChannelPools = new AbstractChannelPoolMap<PingTarget, SimpleChannelPool>() {
+            @Override
+            protected SimpleChannelPool newPool(PingTarget target) {
+                return new SimpleChannelPool(
+                        bootstrap.clone().remoteAddress(target.host(), target.port()),
+                        new PingChannelPoolHandler(pingSslContext, target));
+            }
+        };
+        registerMBean(stats);
         mainLoopExecutor = Executors.newSingleThreadExecutor();
-        checkExecutor = Executors.newCachedThreadPool();
+        checkExecutor = Executors.newScheduledThreadPool(CHECK_THREADS);
         mainLoopExecutor.execute(castInitialized(this));
     }
 
@@ -159,8 +219,7 @@ class SyntheticMonitorService implements Runnable {
     public void run() {
         while (!closed) {
             try {
-                // FIXME spread out agent checks over the minute
-                Thread.sleep(60000);
+                Thread.sleep(CHECK_INTERVAL_MILLIS);
                 runInternal();
             } catch (InterruptedException e) {
                 continue;
@@ -177,6 +236,11 @@ class SyntheticMonitorService implements Runnable {
         if (!mainLoopExecutor.awaitTermination(10, SECONDS)) {
             throw new IllegalStateException("Could not terminate executor");
         }
+        checkExecutor.shutdownNow();
+        syntheticUserTestExecutor.shutdownNow();
+        pingChannelPools.close();
+        pingEventLoopGroup.shutdownGracefully();
+        unregisterMBean();
     }
 
     @Instrumentation.Transaction(transactionType = "Background",
@@ -185,8 +249,20 @@ class SyntheticMonitorService implements Runnable {
             timer = "outer synthetic monitor loop")
     private void runInternal() throws Exception {
         Glowroot.setTransactionOuter();
+        List<SyntheticMonitorCheck> checks = Lists.newArrayList();
         for (AgentRollup agentRollup : agentDao.readAgentRollups()) {
-            consumeAgentRollups(agentRollup, this::runSyntheticMonitors);
+            consumeAgentRollups(agentRollup,
+                    childAgentRollup -> collectSyntheticMonitors(childAgentRollup, checks));
+        }
+        stats.startRound();
+        // spread checks evenly over the minute, instead of starting them all at once
+        long startTime = clock.currentTimeMillis();
+        for (int i = 0; i < checks.size(); i++) {
+            SyntheticMonitorCheck check = checks.get(i);
+            long delayMillis = i * CHECK_INTERVAL_MILLIS / checks.size();
+            long scheduledTime = startTime + delayMillis;
+            checkExecutor.schedule(() -> runCheck(check, scheduledTime), delayMillis,
+                    MILLISECONDS);
         }
     }
 
@@ -198,7 +274,8 @@ class SyntheticMonitorService implements Runnable {
         agentRollupConsumer.accept(agentRollup);
     }
 
-    private void runSyntheticMonitors(AgentRollup agentRollup) throws InterruptedException {
+    private void collectSyntheticMonitors(AgentRollup agentRollup,
+            List<SyntheticMonitorCheck> checks) {
         List<SyntheticMonitorConfig> syntheticMonitorConfigs;
         try {
             syntheticMonitorConfigs = configRepository.getSyntheticMonitorConfigs(agentRollup.id());
@@ -218,27 +295,29 @@ class SyntheticMonitorService implements Runnable {
                 logger.error(e.getMessage(), e);
                 continue;
             }
-            checkExecutor.execute(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        switch (syntheticMonitorConfig.getKind()) {
-                            case PING:
-                                runPing(agentRollup, syntheticMonitorConfig, alertConfigs);
-                                break;
-                            case JAVA:
-                                runJava(agentRollup, syntheticMonitorConfig, alertConfigs);
-                                break;
-                            default:
-                                throw new IllegalStateException(
-                                        "Unexpected synthetic kind: "
-                                                + syntheticMonitorConfig.getKind());
-                        }
-                    } catch (Exception e) {
-                        logger.error("{} - {}", agentRollup.display(), e.getMessage(), e);
-                    }
-                }
-            });
+            checks.add(ImmutableSyntheticMonitorCheck.of(agentRollup, syntheticMonitorConfig,
+                    alertConfigs));
+        }
+    }
+
+    private void runCheck(SyntheticMonitorCheck check, long scheduledTime) {
+        stats.recordScheduleLag(clock.currentTimeMillis() - scheduledTime);
+        AgentRollup agentRollup = check.agentRollup();
+        SyntheticMonitorConfig syntheticMonitorConfig = check.syntheticMonitorConfig();
+        try {
+            switch (syntheticMonitorConfig.getKind()) {
+                case PING:
+                    runPing(agentRollup, syntheticMonitorConfig, check.alertConfigs());
+                    break;
+                case JAVA:
+                    runJava(agentRollup, syntheticMonitorConfig, check.alertConfigs());
+                    break;
+                default:
+                    throw new IllegalStateException(
+                            "Unexpected synthetic kind: " + syntheticMonitorConfig.getKind());
+            }
+        } catch (Exception e) {
+            logger.error("{} - {}", agentRollup.display(), e.getMessage(), e);
         }
     }
 
@@ -248,9 +327,10 @@ class SyntheticMonitorService implements Runnable {
     public void runPing(AgentRollup agentRollup, SyntheticMonitorConfig syntheticMonitorConfig,
             List<AlertConfig> alertConfigs) throws Exception {
         runSyntheticMonitor(agentRollup, syntheticMonitorConfig, alertConfigs,
-                new Callable<ListenableFuture<?>>() {
+                new SyntheticMonitorRunner() {
                     @Override
-                    public ListenableFuture<?> call() throws Exception {
+                    public ListenableFuture<?> run(Runnable onStart) throws Exception {
+                        onStart.run();
                         return runPing(syntheticMonitorConfig.getPingUrl());
                     }
                 });
@@ -271,32 +351,60 @@ class SyntheticMonitorService implements Runnable {
         }
         matcher.appendTail(sb);
         runSyntheticMonitor(agentRollup, syntheticMonitorConfig, alertConfigs,
-                new Callable<ListenableFuture<?>>() {
+                new SyntheticMonitorRunner() {
                     @Override
-                    public ListenableFuture<?> call() throws Exception {
-                        return runJava(sb.toString());
+                    public ListenableFuture<?> run(Runnable onStart) {
+                        return runJava(sb.toString(), onStart);
                     }
                 });
     }
 
+    // the duration (and the alert threshold timeout) is measured from when the check actually
+    // starts running, since java checks can wait in the synthetic user test executor's queue
     private void runSyntheticMonitor(AgentRollup agentRollup,
             SyntheticMonitorConfig syntheticMonitorConfig, List<AlertConfig> alertConfigs,
-            Callable<ListenableFuture<?>> callable) throws Exception {
+            SyntheticMonitorRunner runner) throws Exception {
         final SyntheticMonitorUniqueKey uniqueKey =
                 ImmutableSyntheticMonitorUniqueKey.of(agentRollup.id(),
                         syntheticMonitorConfig.getId());
         if (!activeSyntheticMonitors.add(uniqueKey)) {
             return;
         }
-        long startTime = ticker.read();
-        Stopwatch stopwatch = Stopwatch.createStarted();
+        AtomicLong startTime = new AtomicLong(ticker.read());
+        // alerts are checked either on completion or once the max threshold is exceeded,
+        // whichever comes first, without blocking a check thread while waiting
+        AtomicBoolean alertsChecked = new AtomicBoolean(alertConfigs.isEmpty());
+        AtomicReference</*@Nullable*/ ScheduledFuture<?>> timeoutFuture =
+                new AtomicReference<>();
+        Runnable onStart = new Runnable() {
+            @Override
+            public void run() {
+                startTime.set(ticker.read());
+                if (alertConfigs.isEmpty()) {
+                    return;
+                }
+                timeoutFuture.set(checkExecutor.schedule(() -> {
+                    if (alertsChecked.compareAndSet(false, true)) {
+                        // max threshold exceeded, so all alerts are triggered
+                        checkAlerts(agentRollup, syntheticMonitorConfig, alertConfigs, false, 0,
+                                null);
+                    }
+                }, getMaxThresholdMillis(alertConfigs), MILLISECONDS));
+            }
+        };
         final ListenableFuture<?> future;
         try {
-            future = callable.call();
+            future = runner.run(onStart);
+        } catch (RejectedExecutionException e) {
+            // synthetic user test queue is full (or shutdown has been requested)
+            logger.debug(e.getMessage(), e);
+            activeSyntheticMonitors.remove(uniqueKey);
+            stats.recordSkippedCheck();
+            return;
         } catch (Exception e) {
             logger.debug(e.getMessage(), e);
             activeSyntheticMonitors.remove(uniqueKey);
-            long durationNanos = ticker.read() - startTime;
+            long durationNanos = ticker.read() - startTime.get();
             long captureTime = clock.currentTimeMillis();
             syntheticResponseDao.store(agentRollup.id(), syntheticMonitorConfig.getId(),
                     captureTime, durationNanos, true);
@@ -311,53 +419,85 @@ class SyntheticMonitorService implements Runnable {
             public void run() {
                 // remove "lock" after completion, not just after possible timeout
                 activeSyntheticMonitors.remove(uniqueKey);
-                long durationNanos = ticker.read() - startTime;
+                long durationNanos = ticker.read() - startTime.get();
                 long captureTime = clock.currentTimeMillis();
-                boolean error = false;
+                ScheduledFuture<?> timeout = timeoutFuture.get();
+                if (timeout != null) {
+                    timeout.cancel(false);
+                }
+                boolean success;
+                String errorMessage;
                 try {
                     future.get();
-                } catch (InterruptedException | ExecutionException e) {
-                    error = true;
+                    success = true;
+                    errorMessage = null;
+                } catch (InterruptedException e) {
+                    // future is already done, so this should not happen
+                    return;
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof SyntheticMonitorNotStartedException) {
+                        stats.recordSkippedCheck();
+                        return;
+                    }
+                    logger.debug(e.getMessage(), e);
+                    success = false;
+                    errorMessage = getRootCause(e).getMessage();
                 }
+                boolean checkAlerts = alertsChecked.compareAndSet(false, true);
+                boolean successFinal = success;
+                String errorMessageFinal = errorMessage;
                 try {
-                    syntheticResponseDao.store(agentRollup.id(), syntheticMonitorConfig.getId(),
-                            captureTime, durationNanos, error);
-                } catch (Exception e) {
-                    logger.error(e.getMessage(), e);
+                    // the result is not stored (and alerts are not checked) on the completing
+                    // thread, since that may be a netty event loop thread, and both perform
+                    // blocking i/o
+                    checkExecutor.execute(() -> completeCheck(agentRollup, syntheticMonitorConfig,
+                            alertConfigs, captureTime, durationNanos, successFinal,
+                            errorMessageFinal, checkAlerts));
+                } catch (RejectedExecutionException e) {
+                    // shutdown has been requested
+                    logger.debug(e.getMessage(), e);
                 }
             }
         }, MoreExecutors.directExecutor());
-        int maxThresholdMillis = Integer.MAX_VALUE;
+    }
+
+    private void completeCheck(AgentRollup agentRollup,
+            SyntheticMonitorConfig syntheticMonitorConfig, List<AlertConfig> alertConfigs,
+            long captureTime, long durationNanos, boolean success, @Nullable String errorMessage,
+            boolean checkAlerts) {
+        try {
+            syntheticResponseDao.store(agentRollup.id(), syntheticMonitorConfig.getId(),
+                    captureTime, durationNanos, !success);
+        } catch (Exception e) {
+            logger.error(e.getMessage(), e);
+        }
+        if (checkAlerts) {
+            checkAlerts(agentRollup, syntheticMonitorConfig, alertConfigs, success,
+                    NANOSECONDS.toMillis(durationNanos), errorMessage);
+        }
+    }
+
+    private static int getMaxThresholdMillis(List<AlertConfig> alertConfigs) {
+        int maxThresholdMillis = 0;
         for (AlertConfig alertConfig : alertConfigs) {
             maxThresholdMillis =
                     Math.max(maxThresholdMillis, alertConfig.getThresholdMillis().getValue());
         }
-        boolean success;
-        String errorMessage;
-        try {
-            future.get(maxThresholdMillis, MILLISECONDS);
-            success = true;
-            errorMessage = null;
-        } catch (TimeoutException e) {
-            logger.debug(e.getMessage(), e);
-            success = false;
-            errorMessage = null;
-        } catch (ExecutionException e) {
-            logger.debug(e.getMessage(), e);
-            success = false;
-            errorMessage = getRootCause(e).getMessage();
-        }
-        if (success) {
-            for (AlertConfig alertConfig : alertConfigs) {
-                boolean currentlyTriggered = stopwatch.elapsed(MILLISECONDS) >= alertConfig
-                        .getThresholdMillis().getValue();
-                sendPingOrSyntheticAlertIfStatusChanged(agentRollup, syntheticMonitorConfig,
-                        alertConfig, currentlyTriggered, null);
-            }
-        } else {
-            for (AlertConfig alertConfig : alertConfigs) {
+        return maxThresholdMillis;
+    }
+
+    // durationMillis is only used when success is true
+    private void checkAlerts(AgentRollup agentRollup,
+            SyntheticMonitorConfig syntheticMonitorConfig, List<AlertConfig> alertConfigs,
+            boolean success, long durationMillis, @Nullable String errorMessage) {
+        for (AlertConfig alertConfig : alertConfigs) {
+            boolean currentlyTriggered = !success
+                    || durationMillis >= alertConfig.getThresholdMillis().getValue();
+            try {
                 sendPingOrSyntheticAlertIfStatusChanged(agentRollup, syntheticMonitorConfig,
-                        alertConfig, true, errorMessage);
+                        alertConfig, currentlyTriggered, errorMessage);
+            } catch (Exception e) {
+                logger.error("{} - {}", agentRollup.display(), e.getMessage(), e);
             }
         }
     }
@@ -378,10 +518,16 @@ class SyntheticMonitorService implements Runnable {
         }
     }
 
-    private ListenableFuture<?> runJava(final String javaSource) {
+    private ListenableFuture<?> runJava(final String javaSource, Runnable onStart) {
+        long submitTime = ticker.read();
         return syntheticUserTestExecutor.submit(new Callable</*@Nullable*/ Void>() {
             @Override
             public @Nullable Void call() throws Exception {
+                if (ticker.read() - submitTime > MILLISECONDS.toNanos(CHECK_INTERVAL_MILLIS)) {
+                    // the next round of checks has already been scheduled
+                    throw new SyntheticMonitorNotStartedException();
+                }
+                onStart.run();
                 Class<?> syntheticUserTestClass = Compilations.compile(javaSource);
                 // validation for default constructor and test method occurs on save
                 Constructor<?> defaultConstructor = syntheticUserTestClass.getConstructor();
@@ -444,75 +590,92 @@ class SyntheticMonitorService implements Runnable {
         return obj;
     }
 
-    private static ListenableFuture<HttpResponseStatus> runPing(String url) throws Exception {
+    private ListenableFuture<HttpResponseStatus> runPing(String url) throws Exception {
         URI uri = new URI(url);
         String scheme = uri.getScheme();
         if (scheme == null) {
             throw new IllegalStateException("URI missing scheme");
         }
-        final boolean ssl = uri.getScheme().equalsIgnoreCase("https");
-        final String host = uri.getHost();
+        boolean ssl = uri.getScheme().equalsIgnoreCase("https");
+        String host = uri.getHost();
         if (host == null) {
             throw new IllegalStateException("URI missing host");
         }
-        final int port;
+        int port;
         if (uri.getPort() == -1) {
             port = ssl ? 443 : 80;
         } else {
             port = uri.getPort();
         }
-        final EventLoopGroup group = new NioEventLoopGroup();
-        final HttpClientHandler httpClientHandler = new HttpClientHandler();
-        Bootstrap bootstrap = new Bootstrap();
-        bootstrap.group(group)
-                .channel(NioSocketChannel.class)
-                .handler(new ChannelInitializer<SocketChannel>() {
-                    @Override
-                    protected void initChannel(SocketChannel ch) throws Exception {
-                        ChannelPipeline p = ch.pipeline();
-                        if (ssl) {
-                            SslContext sslContext = SslContextBuilder.forClient().build();
-                            p.addLast(sslContext.newHandler(ch.alloc(), host, port));
-                        }
-                        p.addLast(new HttpClientCodec());
-                        p.addLast(new HttpObjectAggregator(1048576));
-                        p.addLast(httpClientHandler);
-                    }
-                });
-        final HttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET,
-                uri.getRawPath());
-        request.headers().set(HttpHeaderNames.HOST, host);
-        request.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
-        request.headers().set("Glowroot-Transaction-Type", "Synthetic");
-        ChannelFuture future = bootstrap.connect(host, port);
-        final SettableFuture<HttpResponseStatus> settableFuture = SettableFuture.create();
-        future.addListener(new ChannelFutureListener() {
+        SettableFuture<HttpResponseStatus> settableFuture = SettableFuture.create();
+        sendPingRequest(ImmutablePingTarget.of(ssl, host, port), uri.getRawPath(), settableFuture,
+                true);
+        return settableFuture;
+    }
+
+    private void sendPingRequest(PingTarget target, String path,
+            SettableFuture<HttpResponseStatus> settableFuture, boolean retryIfStale) {
+        SimpleChannelPool pool = pingChannelPools.get(target);
+        pool.acquire().addListener(new FutureListener<Channel>() {
             @Override
-            public void operationComplete(ChannelFuture future) {
-                Channel ch = future.channel();
-                if (future.isSuccess()) {
-                    ch.writeAndFlush(request);
+            public void operationComplete(Future<Channel> future) {
+                if (!future.isSuccess()) {
+                    settableFuture.setException(future.cause());
+                    return;
                 }
-                ch.closeFuture().addListener(new ChannelFutureListener() {
+                Channel ch = future.getNow();
+                HttpClientHandler httpClientHandler = ch.pipeline().get(HttpClientHandler.class);
+                boolean reused = httpClientHandler.requestCount++ > 0;
+                SettableFuture<HttpResponseStatus> responseFuture = SettableFuture.create();
+                httpClientHandler.responseFuture = responseFuture;
+                HttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1,
+                        HttpMethod.GET, path);
+                request.headers().set(HttpHeaderNames.HOST, target.host());
+                request.headers().set("Glowroot-Transaction-Type", "Synthetic");
+                ch.writeAndFlush(request).addListener(ChannelFutureListener.CLOSE_ON_FAILURE);
+                responseFuture.addListener(new Runnable() {
                     @Override
-                    public void operationComplete(ChannelFuture future) {
-                        if (future.isSuccess()) {
-                            HttpResponseStatus responseStatus = httpClientHandler.responseStatus;
-                            if (HttpResponseStatus.OK.equals(responseStatus)) {
-                                settableFuture.set(responseStatus);
+                    public void run() {
+                        // the pool discards the channel if it is no longer active
+                        pool.release(ch);
+                        try {
+                            settableFuture.set(responseFuture.get());
+                        } catch (InterruptedException e) {
+                            // future is already done, so this should not happen
+                            settableFuture.setException(e);
+                        } catch (ExecutionException e) {
+                            Throwable cause = e.getCause();
+                            if (reused && retryIfStale
+                                    && cause instanceof ClosedChannelException) {
+                                // the remote server closed the pooled connection before it was
+                                // reused (e.g. due to its own keep-alive timeout)
+                                sendPingRequest(target, path, settableFuture, false);
                             } else {
-                                settableFuture.setException(new Exception(
-                                        "Unexpected http response status: " + responseStatus));
+                                settableFuture.setException(cause == null ? e : cause);
                             }
-                        } else {
-                            settableFuture.setException(future.cause());
                         }
-                        group.shutdownGracefully();
                     }
-                });
+                }, MoreExecutors.directExecutor());
             }
         });
-        return settableFuture;
+    }
+
+    private static void registerMBean(SyntheticMonitorSchedulerStats stats) {
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        try {
+            mbeanServer.registerMBean(stats, new ObjectName(MBEAN_OBJECT_NAME));
+        } catch (JMException e) {
+            logger.warn(e.getMessage(), e);
+        }
+    }
+
+    private static void unregisterMBean() {
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        try {
+            mbeanServer.unregisterMBean(new ObjectName(MBEAN_OBJECT_NAME));
+        } catch (JMException e) {
+            logger.debug(e.getMessage(), e);
+        }
     }
 
     @Value.Immutable
@@ -522,30 +685,113 @@ class SyntheticMonitorService implements Runnable {
         String syntheticMonitorId();
     }
 
-    private static class HttpClientHandler extends SimpleChannelInboundHandler<HttpObject> {
+    @Value.Immutable
+    @Styles.AllParameters
+    interface SyntheticMonitorCheck {
+        AgentRollup agentRollup();
+        SyntheticMonitorConfig syntheticMonitorConfig();
+        List<AlertConfig> alertConfigs();
+    }
 
-        private volatile @MonotonicNonNull HttpResponseStatus responseStatus;
+    @Value.Immutable
+    @Styles.AllParameters
+    interface PingTarget {
+        boolean ssl();
+        String host();
+        int port();
+    }
+
+    private interface SyntheticMonitorRunner {
+        // onStart must be run when the check actually starts running
+        ListenableFuture<?> run(Runnable onStart) throws Exception;
+    }
+
+    @SuppressWarnings("serial")
+    private static class SyntheticMonitorNotStartedException extends Exception {}
+
+    private static class PingChannelPoolHandler extends AbstractChannelPoolHandler {
+
+        private final SslContext sslContext;
+        private final PingTarget target;
+
+        private PingChannelPoolHandler(SslContext sslContext, PingTarget target) {
+            this.sslContext = sslContext;
+            this.target = target;
+        }
+
+        @Override
+        public void channelCreated(Channel ch) {
+            ChannelPipeline p = ch.pipeline();
+            if (target.ssl()) {
+                p.addLast(sslContext.newHandler(ch.alloc(), target.host(), target.port()));
+            }
+            p.addLast(new IdleStateHandler(0, 0, PING_IDLE_TIMEOUT_SECONDS));
+            p.addLast(new HttpClientCodec());
+            p.addLast(new HttpObjectAggregator(1048576));
+            p.addLast(new HttpClientHandler());
+        }
+    }
+
+    // one instance per pooled connection
+    private static class HttpClientHandler extends SimpleChannelInboundHandler<FullHttpResponse> {
+
+        // only accessed by the current holder of the pooled connection
+        private int requestCount;
+        // set before each request is written
+        private volatile @Nullable SettableFuture<HttpResponseStatus> responseFuture;
 
         @Override
-        public void channelRead0(ChannelHandlerContext ctx, HttpObject msg) {
-            if (msg instanceof HttpResponse) {
-                HttpResponse response = (HttpResponse) msg;
-                responseStatus = response.status();
-                if (!responseStatus.equals(HttpResponseStatus.OK) && logger.isDebugEnabled()
-                        && msg instanceof HttpContent) {
-                    HttpContent httpContent = (HttpContent) msg;
-                    String content = httpContent.content().toString(CharsetUtil.UTF_8);
+        public void channelRead0(ChannelHandlerContext ctx, FullHttpResponse response) {
+            HttpResponseStatus responseStatus = response.status();
+            if (!HttpUtil.isKeepAlive(response)) {
+                ctx.close();
+            }
+            SettableFuture<HttpResponseStatus> responseFuture = this.responseFuture;
+            if (responseFuture == null) {
+                logger.error("unexpected response: {}", response);
+                return;
+            }
+            this.responseFuture = null;
+            if (HttpResponseStatus.OK.equals(responseStatus)) {
+                responseFuture.set(responseStatus);
+            } else {
+                if (logger.isDebugEnabled()) {
+                    String content = response.content().toString(CharsetUtil.UTF_8);
                     logger.debug("unexpected response status: {}, content: {}", responseStatus,
                             content);
                 }
+                responseFuture.setException(
+                        new Exception("Unexpected http response status: " + responseStatus));
+            }
+        }
+
+        @Override
+        public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+            if (evt instanceof IdleStateEvent) {
+                ctx.close();
             } else {
-                logger.error("unexpected response: {}", msg);
+                super.userEventTriggered(ctx, evt);
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            SettableFuture<HttpResponseStatus> responseFuture = this.responseFuture;
+            if (responseFuture != null) {
+                this.responseFuture = null;
+                responseFuture.setException(new ClosedChannelException());
             }
+            super.channelInactive(ctx);
         }
 
         @Override
         public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
-            logger.error(cause.getMessage(), cause);
+            logger.debug(cause.getMessage(), cause);
+            SettableFuture<HttpResponseStatus> responseFuture = this.responseFuture;
+            if (responseFuture != null) {
+                this.responseFuture = null;
+                responseFuture.setException(cause);
+            }
             ctx.close();
         }
     }
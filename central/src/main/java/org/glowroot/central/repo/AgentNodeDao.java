@@ -0,0 +1,113 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import javax.annotation.Nullable;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.google.common.base.Optional;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+public class AgentNodeDao implements AgentNodeRegistry {
+
+    // registrations are refreshed every minute while the agent is connected (see
+    // DownstreamServiceImpl), so this only expires registrations of central nodes that went away
+    // without unregistering their agents (e.g. crashed)
+    private static final int TTL_SECONDS = (int) MINUTES.toSeconds(5);
+
+    // node address lookups are performed on every downstream request (and availability check) for
+    // agents that are not connected to this node, the cache is invalidated when the agent is not
+    // found on the cached node, so staleness is mostly bounded by this when an agent first connects
+    private static final int CACHE_EXPIRATION_SECONDS = 15;
+
+    private final Session session;
+
+    private final PreparedStatement insertPS;
+    private final PreparedStatement deletePS;
+    private final PreparedStatement readPS;
+
+    private final LoadingCache<String, Optional<String>> cache = CacheBuilder.newBuilder()
+            .expireAfterWrite(CACHE_EXPIRATION_SECONDS, SECONDS)
+            .build(new NodeAddressCacheLoader());
+
+    public AgentNodeDao(Session session) {
+        this.session = session;
+
+        session.execute("create table if not exists agent_node (agent_id varchar, node_address"
+                + " varchar, primary key (agent_id))");
+
+        insertPS = session.prepare("insert into agent_node (agent_id, node_address) values (?, ?)"
+                + " using ttl ?");
+        // lightweight transaction so that a late disconnect from the prior node does not remove
+        // the registration of a newer connection to a different node
+        deletePS = session.prepare("delete from agent_node where agent_id = ? if node_address = ?");
+        readPS = session.prepare("select node_address from agent_node where agent_id = ?");
+    }
+
+    @Override
+    public void register(String agentId, String nodeAddress) {
+        BoundStatement boundStatement = insertPS.bind();
+        int i = 0;
+        boundStatement.setString(i++, agentId);
+        boundStatement.setString(i++, nodeAddress);
+        boundStatement.setInt(i++, TTL_SECONDS);
+        session.execute(boundStatement);
+        cache.invalidate(agentId);
+    }
+
+    @Override
+    public void unregister(String agentId, String nodeAddress) {
+        BoundStatement boundStatement = deletePS.bind();
+        int i = 0;
+        boundStatement.setString(i++, agentId);
+        boundStatement.setString(i++, nodeAddress);
+        session.execute(boundStatement);
+        cache.invalidate(agentId);
+    }
+
+    @Override
+    public @Nullable String getNodeAddress(String agentId) throws Exception {
+        return cache.get(agentId).orNull();
+    }
+
+    @Override
+    public void invalidate(String agentId) {
+        cache.invalidate(agentId);
+    }
+
+    private class NodeAddressCacheLoader extends CacheLoader<String, Optional<String>> {
+        @Override
+        public Optional<String> load(String agentId) throws Exception {
+            BoundStatement boundStatement = readPS.bind();
+            boundStatement.setString(0, agentId);
+            ResultSet results = session.execute(boundStatement);
+            Row row = results.one();
+            if (row == null) {
+                return Optional.absent();
+            }
+            return Optional.fromNullable(row.getString(0));
+        }
+    }
+}
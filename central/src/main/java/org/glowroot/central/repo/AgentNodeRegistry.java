@@ -0,0 +1,38 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import javax.annotation.Nullable;
+
+// records which central node holds the downstream connection of each agent, so that downstream
+// requests (e.g. thread dumps) can be routed to that node when central is load balanced across
+// multiple nodes
+public interface AgentNodeRegistry {
+
+    void register(String agentId, String nodeAddress) throws Exception;
+
+    // only unregisters if the agent is still registered to the given node, since the agent may
+    // have already reconnected to a different node
+    void unregister(String agentId, String nodeAddress) throws Exception;
+
+    // may return a (briefly) cached node address
+    @Nullable
+    String getNodeAddress(String agentId) throws Exception;
+
+    // called when the agent was not found on the node returned by getNodeAddress(), so that the
+    // next lookup is not served from cache
+    void invalidate(String agentId);
+}
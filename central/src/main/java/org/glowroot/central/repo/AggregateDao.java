@@ -18,12 +18,14 @@ package org.glowroot.central.repo;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Executor;
 import java.util.stream.Collectors;
 
 import javax.annotation.Nullable;
@@ -46,6 +48,7 @@ import com.google.common.collect.Multimap;
 import com.google.common.collect.Sets;
 import com.google.common.hash.Hashing;
 import com.google.common.primitives.Ints;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.protobuf.AbstractMessage;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.InvalidProtocolBufferException;
@@ -59,6 +62,7 @@ import org.glowroot.central.util.MoreFutures;
 import org.glowroot.central.util.Sessions;
 import org.glowroot.common.config.ConfigDefaults;
 import org.glowroot.common.config.StorageConfig;
+import org.glowroot.common.live.ImmutableOverallQuery;
 import org.glowroot.common.live.ImmutableOverviewAggregate;
 import org.glowroot.common.live.ImmutablePercentileAggregate;
 import org.glowroot.common.live.ImmutableThroughputAggregate;
@@ -108,6 +112,10 @@ public class AggregateDao implements AggregateRepository {
 
     private static final String LCS = "compaction = { 'class' : 'LeveledCompactionStrategy' }";
 
+    // number of transaction names (for each sort order) that are materialized into the summary
+    // "top" tables for each rolled up interval
+    private static final int SUMMARY_TOP_N = 500;
+
     private static final Table summaryTable = ImmutableTable.builder()
             .partialName("summary")
             .addColumns(ImmutableColumn.of("total_duration_nanos", "double"))
@@ -128,6 +136,7 @@ public class AggregateDao implements AggregateRepository {
             .partialName("overview")
             .addColumns(ImmutableColumn.of("total_duration_nanos", "double"))
             .addColumns(ImmutableColumn.of("transaction_count", "bigint"))
+            .addColumns(ImmutableColumn.of("unstored_trace_count", "bigint"))
             .addColumns(ImmutableColumn.of("async_transactions", "boolean"))
             .addColumns(ImmutableColumn.of("main_thread_root_timers", "blob"))
             .addColumns(ImmutableColumn.of("aux_thread_root_timers", "blob"))
@@ -209,6 +218,7 @@ public class AggregateDao implements AggregateRepository {
     private final FullQueryTextDao fullQueryTextDao;
     private final ConfigRepository configRepository;
     private final Clock clock;
+    private final Executor asyncExecutor;
 
     // list index is rollupLevel
     private final Map<Table, List<PreparedStatement>> insertOverallPS;
@@ -220,6 +230,10 @@ public class AggregateDao implements AggregateRepository {
     private final Map<Table, List<PreparedStatement>> readTransactionForRollupPS;
     private final Map<Table, PreparedStatement> readTransactionForRollupFromChildPS;
 
+    // list index is rollupLevel - 1 (there is no level 0 summary "top" table)
+    private final List<PreparedStatement> insertSummaryTopPS;
+    private final List<PreparedStatement> readSummaryTopPS;
+
     private final List<PreparedStatement> existsMainThreadProfileOverallPS;
     private final List<PreparedStatement> existsMainThreadProfileTransactionPS;
     private final List<PreparedStatement> existsAuxThreadProfileOverallPS;
@@ -236,14 +250,15 @@ public class AggregateDao implements AggregateRepository {
     private final ImmutableList<Table> allTables;
 
     public AggregateDao(Session session, AgentDao agentDao, TransactionTypeDao transactionTypeDao,
-            FullQueryTextDao fullQueryTextDao, ConfigRepository configRepository, Clock clock)
-            throws Exception {
+            FullQueryTextDao fullQueryTextDao, ConfigRepository configRepository, Clock clock,
+            Executor asyncExecutor) throws Exception {
         this.session = session;
         this.agentDao = agentDao;
         this.transactionTypeDao = transactionTypeDao;
         this.fullQueryTextDao = fullQueryTextDao;
         this.configRepository = configRepository;
         this.clock = clock;
+        this.asyncExecutor = asyncExecutor;
 
         int count = configRepository.getRollupConfigs().size();
         List<Integer> rollupExpirationHours =
@@ -329,6 +344,29 @@ public class AggregateDao implements AggregateRepository {
         this.readTransactionForRollupFromChildPS =
                 ImmutableMap.copyOf(readTransactionForRollupFromChildMap);
 
+        List<PreparedStatement> insertSummaryTopPS = Lists.newArrayList();
+        List<PreparedStatement> readSummaryTopPS = Lists.newArrayList();
+        for (int i = 1; i < count; i++) {
+            Sessions.createTableWithTWCS(session, "create table if not exists "
+                    + getSummaryTopTableName(i) + " (agent_rollup varchar, transaction_type"
+                    + " varchar, capture_time timestamp, transaction_name varchar,"
+                    + " total_duration_nanos double, transaction_count bigint,"
+                    + " cutoff_total_duration_nanos double, cutoff_transaction_count bigint,"
+                    + " primary key ((agent_rollup, transaction_type), capture_time,"
+                    + " transaction_name))",
+                    rollupExpirationHours.get(i));
+            insertSummaryTopPS.add(session.prepare("insert into " + getSummaryTopTableName(i)
+                    + " (agent_rollup, transaction_type, capture_time, transaction_name,"
+                    + " total_duration_nanos, transaction_count, cutoff_total_duration_nanos,"
+                    + " cutoff_transaction_count) values (?, ?, ?, ?, ?, ?, ?, ?) using TTL ?"));
+            readSummaryTopPS.add(session.prepare("select capture_time, transaction_name,"
+                    + " total_duration_nanos, transaction_count from "
+                    + getSummaryTopTableName(i) + " where agent_rollup = ? and transaction_type"
+                    + " = ? and capture_time > ? and capture_time <= ?"));
+        }
+        this.insertSummaryTopPS = insertSummaryTopPS;
+        this.readSummaryTopPS = readSummaryTopPS;
+
         List<PreparedStatement> existsMainThreadProfileOverallPS = Lists.newArrayList();
         List<PreparedStatement> existsMainThreadProfileTransactionPS = Lists.newArrayList();
         List<PreparedStatement> existsAuxThreadProfileOverallPS = Lists.newArrayList();
@@ -396,12 +434,11 @@ public class AggregateDao implements AggregateRepository {
                 + " where agent_rollup = ? and capture_time = ? and uniqueness = ?");
     }
 
-    public void store(String agentId, long captureTime,
+    public ListenableFuture<?> store(String agentId, long captureTime,
             List<OldAggregatesByType> aggregatesByTypeList,
             List<Aggregate.SharedQueryText> initialSharedQueryTexts) throws Exception {
         if (aggregatesByTypeList.isEmpty()) {
-            agentDao.updateLastCaptureTime(agentId, captureTime).get();
-            return;
+            return agentDao.updateLastCaptureTime(agentId, captureTime);
         }
         List<String> agentRollupIds = agentDao.readAgentRollupIds(agentId);
         int adjustedTTL = getAdjustedTTL(getTTLs().get(0), captureTime, clock);
@@ -431,9 +468,16 @@ public class AggregateDao implements AggregateRepository {
 
         // wait for success before proceeding in order to ensure cannot end up with orphaned
         // fullTextSha1
-        MoreFutures.waitForAll(futures);
-        futures.clear();
+        return MoreFutures.transformAsync(MoreFutures.allAsync(futures),
+                ignored -> storeAggregates(agentId, captureTime, aggregatesByTypeList,
+                        sharedQueryTexts, agentRollupIds, adjustedTTL), asyncExecutor);
+    }
 
+    private ListenableFuture<?> storeAggregates(String agentId, long captureTime,
+            List<OldAggregatesByType> aggregatesByTypeList,
+            List<Aggregate.SharedQueryText> sharedQueryTexts, List<String> agentRollupIds,
+            int adjustedTTL) throws Exception {
+        List<ResultSetFuture> futures = Lists.newArrayList();
         for (OldAggregatesByType aggregatesByType : aggregatesByTypeList) {
             String transactionType = aggregatesByType.getTransactionType();
             Aggregate overallAggregate = aggregatesByType.getOverallAggregate();
@@ -449,9 +493,15 @@ public class AggregateDao implements AggregateRepository {
         }
         futures.add(agentDao.updateLastCaptureTime(agentId, captureTime));
         // wait for success before inserting "needs rollup" records
-        MoreFutures.waitForAll(futures);
-        futures.clear();
+        return MoreFutures.transformAsync(MoreFutures.allAsync(futures),
+                ignored -> storeNeedsRollup(agentId, captureTime, aggregatesByTypeList,
+                        agentRollupIds, adjustedTTL), asyncExecutor);
+    }
 
+    private ListenableFuture<?> storeNeedsRollup(String agentId, long captureTime,
+            List<OldAggregatesByType> aggregatesByTypeList, List<String> agentRollupIds,
+            int adjustedTTL) {
+        List<ResultSetFuture> futures = Lists.newArrayList();
         List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
         // TODO report checker framework issue that occurs without this suppression
         @SuppressWarnings("assignment.type.incompatible")
@@ -481,7 +531,7 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setSet(i++, transactionTypes);
         boundStatement.setInt(i++, needsRollupAdjustedTTL);
         futures.add(session.executeAsync(boundStatement));
-        MoreFutures.waitForAll(futures);
+        return MoreFutures.allAsync(futures);
     }
 
     // query.from() is non-inclusive
@@ -500,14 +550,38 @@ public class AggregateDao implements AggregateRepository {
         }
     }
 
-    // sortOrder and limit are only used by embedded H2 repository, while the central cassandra
-    // repository which currently has to pull in all records anyways just delegates ordering and
-    // limit to TransactionSummaryCollector
+    // sortOrder is only used by embedded H2 repository, while the central cassandra repository
+    // delegates ordering and limit to TransactionSummaryCollector
+    //
+    // limit is used to decide whether the pre-sorted summary "top" table (which is maintained
+    // during rollup) can be read instead of reading all transaction summary records
     //
     // query.from() is non-inclusive
     @Override
     public void mergeTransactionSummariesInto(String agentRollupId, OverallQuery query,
-            SummarySortOrder sortOrder, int limit, TransactionSummaryCollector collector) {
+            SummarySortOrder sortOrder, int limit, TransactionSummaryCollector collector)
+            throws Exception {
+        if (query.rollupLevel() == 0 || limit > SUMMARY_TOP_N) {
+            mergeAllTransactionSummariesInto(agentRollupId, query, collector);
+            return;
+        }
+        long earliestCaptureTime =
+                mergeTopTransactionSummariesInto(agentRollupId, query, collector);
+        long intervalMillis =
+                configRepository.getRollupConfigs().get(query.rollupLevel()).intervalMillis();
+        if (earliestCaptureTime - intervalMillis > query.from()) {
+            // summary "top" records are missing for the beginning of the range (e.g. data that
+            // was rolled up prior to the summary "top" tables being introduced)
+            mergeAllTransactionSummariesInto(agentRollupId, ImmutableOverallQuery.builder()
+                    .copyFrom(query)
+                    .to(Math.min(earliestCaptureTime - 1, query.to()))
+                    .build(), collector);
+        }
+    }
+
+    // query.from() is non-inclusive
+    private void mergeAllTransactionSummariesInto(String agentRollupId, OverallQuery query,
+            TransactionSummaryCollector collector) {
         // currently have to do group by / sort / limit client-side
         BoundStatement boundStatement =
                 checkNotNull(readTransactionPS.get(summaryTable)).get(query.rollupLevel()).bind();
@@ -523,6 +597,34 @@ public class AggregateDao implements AggregateRepository {
         }
     }
 
+    // returns the earliest capture time found, or Long.MAX_VALUE if no records were found
+    //
+    // the merged summaries are exact except for transaction names that fell out of the top N in
+    // some (truncated) intervals, and each of those intervals undercounts such a transaction name
+    // by at most that interval's cutoff (see storeSummaryTop())
+    //
+    // query.from() is non-inclusive
+    private long mergeTopTransactionSummariesInto(String agentRollupId, OverallQuery query,
+            TransactionSummaryCollector collector) {
+        BoundStatement boundStatement = readSummaryTopPS.get(query.rollupLevel() - 1).bind();
+        bindQuery(boundStatement, agentRollupId, query);
+        ResultSet results = session.execute(boundStatement);
+        long earliestCaptureTime = Long.MAX_VALUE;
+        for (Row row : results) {
+            int i = 0;
+            long captureTime = checkNotNull(row.getTimestamp(i++)).getTime();
+            // results are ordered by capture time so Math.min() is not needed here
+            if (earliestCaptureTime == Long.MAX_VALUE) {
+                earliestCaptureTime = captureTime;
+            }
+            String transactionName = checkNotNull(row.getString(i++));
+            double totalDurationNanos = row.getDouble(i++);
+            long transactionCount = row.getLong(i++);
+            collector.collect(transactionName, totalDurationNanos, transactionCount, captureTime);
+        }
+        return earliestCaptureTime;
+    }
+
     // query.from() is non-inclusive
     @Override
     public void mergeOverallErrorSummaryInto(String agentRollupId, OverallQuery query,
@@ -574,6 +676,7 @@ public class AggregateDao implements AggregateRepository {
             long captureTime = checkNotNull(row.getTimestamp(i++)).getTime();
             double totalDurationNanos = row.getDouble(i++);
             long transactionCount = row.getLong(i++);
+            long unstoredTraceCount = row.getLong(i++);
             boolean asyncTransactions = row.getBool(i++);
             List<Aggregate.Timer> mainThreadRootTimers =
                     Messages.parseDelimitedFrom(row.getBytes(i++), Aggregate.Timer.parser());
@@ -585,6 +688,7 @@ public class AggregateDao implements AggregateRepository {
                     .captureTime(captureTime)
                     .totalDurationNanos(totalDurationNanos)
                     .transactionCount(transactionCount)
+                    .unstoredTraceCount(unstoredTraceCount)
                     .asyncTransactions(asyncTransactions)
                     .addAllMainThreadRootTimers(mainThreadRootTimers)
                     .addAllAuxThreadRootTimers(auxThreadRootTimers)
@@ -778,6 +882,7 @@ public class AggregateDao implements AggregateRepository {
             }
         }
         for (int i = 1; i < configRepository.getRollupConfigs().size(); i++) {
+            session.execute("truncate " + getSummaryTopTableName(i));
             session.execute("truncate aggregate_needs_rollup_" + i);
         }
         session.execute("truncate aggregate_needs_rollup_from_child");
@@ -1119,10 +1224,66 @@ public class AggregateDao implements AggregateRepository {
             boundStatement.setInt(i++, rollup.adjustedTTL());
             futures.add(session.executeAsync(boundStatement));
         }
+        if (rollup.rollupLevel() > 0) {
+            futures.addAll(storeSummaryTop(rollup, query, summaries));
+        }
         transactionNames.addAll(summaries.keySet());
         return futures;
     }
 
+    // the summary "top" table holds the union of the top N transaction names for each sort order,
+    // so that the transaction summary sidebar doesn't need to read (and sort) every transaction
+    // name over long time ranges
+    //
+    // for intervals with more than N transaction names, each record also holds the interval's
+    // cutoff, which is the largest total duration and the largest transaction count of any
+    // transaction name that was left out, so that the error from summing "top" records across
+    // intervals is bounded (the cutoffs are zero when no transaction names were left out)
+    private List<ResultSetFuture> storeSummaryTop(RollupParams rollup, TransactionQuery query,
+            Map<String, MutableSummary> summaries) {
+        Set<String> topTransactionNames;
+        double cutoffTotalDurationNanos = 0;
+        long cutoffTransactionCount = 0;
+        if (summaries.size() <= SUMMARY_TOP_N) {
+            topTransactionNames = summaries.keySet();
+        } else {
+            topTransactionNames = Sets.newHashSet();
+            topTransactionNames.addAll(getTopN(summaries,
+                    Comparator.comparingDouble(summary -> summary.totalDurationNanos)));
+            topTransactionNames.addAll(getTopN(summaries, Comparator.comparingDouble(
+                    summary -> summary.totalDurationNanos / summary.transactionCount)));
+            topTransactionNames.addAll(getTopN(summaries,
+                    Comparator.comparingLong(summary -> summary.transactionCount)));
+            for (Entry<String, MutableSummary> entry : summaries.entrySet()) {
+                if (!topTransactionNames.contains(entry.getKey())) {
+                    MutableSummary summary = entry.getValue();
+                    cutoffTotalDurationNanos =
+                            Math.max(cutoffTotalDurationNanos, summary.totalDurationNanos);
+                    cutoffTransactionCount =
+                            Math.max(cutoffTransactionCount, summary.transactionCount);
+                }
+            }
+        }
+        List<ResultSetFuture> futures = Lists.newArrayList();
+        PreparedStatement preparedStatement = insertSummaryTopPS.get(rollup.rollupLevel() - 1);
+        for (String transactionName : topTransactionNames) {
+            MutableSummary summary = checkNotNull(summaries.get(transactionName));
+            BoundStatement boundStatement = preparedStatement.bind();
+            int i = 0;
+            boundStatement.setString(i++, rollup.agentRollupId());
+            boundStatement.setString(i++, query.transactionType());
+            boundStatement.setTimestamp(i++, new Date(query.to()));
+            boundStatement.setString(i++, transactionName);
+            boundStatement.setDouble(i++, summary.totalDurationNanos);
+            boundStatement.setLong(i++, summary.transactionCount);
+            boundStatement.setDouble(i++, cutoffTotalDurationNanos);
+            boundStatement.setLong(i++, cutoffTransactionCount);
+            boundStatement.setInt(i++, rollup.adjustedTTL());
+            futures.add(session.executeAsync(boundStatement));
+        }
+        return futures;
+    }
+
     private List<ResultSetFuture> rollupTransactionErrorSummary(RollupParams rollup,
             TransactionQuery query) {
         BoundStatement boundStatement =
@@ -1209,6 +1370,7 @@ public class AggregateDao implements AggregateRepository {
             TransactionQuery query, Iterable<Row> rows) throws IOException {
         double totalDurationNanos = 0;
         long transactionCount = 0;
+        long unstoredTraceCount = 0;
         boolean asyncTransactions = false;
         List<MutableTimer> mainThreadRootTimers = Lists.newArrayList();
         List<MutableTimer> auxThreadRootTimers = Lists.newArrayList();
@@ -1219,6 +1381,7 @@ public class AggregateDao implements AggregateRepository {
             int i = 0;
             totalDurationNanos += row.getDouble(i++);
             transactionCount += row.getLong(i++);
+            unstoredTraceCount += row.getLong(i++);
             if (row.getBool(i++)) {
                 asyncTransactions = true;
             }
@@ -1255,6 +1418,7 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setTimestamp(i++, new Date(query.to()));
         boundStatement.setDouble(i++, totalDurationNanos);
         boundStatement.setLong(i++, transactionCount);
+        boundStatement.setLong(i++, unstoredTraceCount);
         boundStatement.setBool(i++, asyncTransactions);
         boundStatement.setBytes(i++,
                 Messages.toByteBuffer(MutableAggregate.toProto(mainThreadRootTimers)));
@@ -1476,11 +1640,13 @@ public class AggregateDao implements AggregateRepository {
     private List<ResultSetFuture> rollupThreadProfileFromRows(RollupParams rollup,
             TransactionQuery query, Iterable<Row> rows, Table table)
             throws InvalidProtocolBufferException {
-        MutableProfile profile = new MutableProfile();
+        // pruned as merged, so that rolled up profiles are stored pre-pruned
+        ProfileCollector collector = new ProfileCollector();
         for (Row row : rows) {
             ByteBuffer bytes = checkNotNull(row.getBytes(0));
-            profile.merge(Profile.parseFrom(ByteString.copyFrom(bytes)));
+            collector.mergeProfile(Profile.parseFrom(ByteString.copyFrom(bytes)));
         }
+        MutableProfile profile = collector.getProfile();
         BoundStatement boundStatement;
         if (query.transactionName() == null) {
             boundStatement = getInsertOverallPS(table, rollup.rollupLevel()).bind();
@@ -1834,6 +2000,7 @@ public class AggregateDao implements AggregateRepository {
         int i = startIndex;
         boundStatement.setDouble(i++, aggregate.getTotalDurationNanos());
         boundStatement.setLong(i++, aggregate.getTransactionCount());
+        boundStatement.setLong(i++, aggregate.getUnstoredTraceCount());
         boundStatement.setBool(i++, aggregate.getAsyncTransactions());
         List<Aggregate.Timer> mainThreadRootTimers = aggregate.getMainThreadRootTimerList();
         if (!mainThreadRootTimers.isEmpty()) {
@@ -2362,6 +2529,19 @@ public class AggregateDao implements AggregateRepository {
         return sb.toString();
     }
 
+    private static List<String> getTopN(Map<String, MutableSummary> summaries,
+            Comparator<MutableSummary> comparator) {
+        return summaries.entrySet().stream()
+                .sorted(Entry.<String, MutableSummary>comparingByValue(comparator).reversed())
+                .limit(SUMMARY_TOP_N)
+                .map(Entry::getKey)
+                .collect(Collectors.toList());
+    }
+
+    private static String getSummaryTopTableName(int i) {
+        return "aggregate_tn_summary_top_rollup_" + i;
+    }
+
     private static String getTableName(String partialName, boolean transaction, int i) {
         StringBuilder sb = new StringBuilder();
         sb.append("aggregate_");
@@ -20,6 +20,7 @@ import java.util.Date;
 import java.util.List;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.Executor;
 
 import javax.annotation.Nullable;
 
@@ -71,6 +72,7 @@ public class GaugeValueDao implements GaugeValueRepository {
     private final AgentDao agentDao;
     private final ConfigRepository configRepository;
     private final Clock clock;
+    private final Executor asyncExecutor;
 
     private final GaugeNameDao gaugeNameDao;
 
@@ -89,11 +91,12 @@ public class GaugeValueDao implements GaugeValueRepository {
     private final PreparedStatement deleteNeedsRollupFromChild;
 
     public GaugeValueDao(Session session, AgentDao agentDao, ConfigRepository configRepository,
-            Clock clock) throws Exception {
+            Clock clock, Executor asyncExecutor) throws Exception {
         this.session = session;
         this.agentDao = agentDao;
         this.configRepository = configRepository;
         this.clock = clock;
+        this.asyncExecutor = asyncExecutor;
 
         gaugeNameDao = new GaugeNameDao(session, configRepository);
 
@@ -170,9 +173,10 @@ public class GaugeValueDao implements GaugeValueRepository {
                 + " where agent_rollup = ? and capture_time = ? and uniqueness = ?");
     }
 
-    public void store(String agentId, List<GaugeValue> gaugeValues) throws Exception {
+    public ListenableFuture<?> store(String agentId, List<GaugeValue> gaugeValues)
+            throws Exception {
         if (gaugeValues.isEmpty()) {
-            return;
+            return Futures.immediateFuture(null);
         }
         List<String> agentRollupIds = agentDao.readAgentRollupIds(agentId);
         int ttl = getTTLs().get(0);
@@ -198,9 +202,13 @@ public class GaugeValueDao implements GaugeValueRepository {
         }
 
         // wait for success before inserting "needs rollup" records
-        MoreFutures.waitForAll(futures);
-        futures.clear();
+        return MoreFutures.transformAsync(MoreFutures.allAsync(futures),
+                ignored -> storeNeedsRollup(agentId, gaugeValues, ttl), asyncExecutor);
+    }
 
+    private ListenableFuture<?> storeNeedsRollup(String agentId, List<GaugeValue> gaugeValues,
+            int ttl) {
+        List<ResultSetFuture> futures = Lists.newArrayList();
         // insert into gauge_needs_rollup_1
         SetMultimap<Long, String> rollupCaptureTimes = getRollupCaptureTimes(gaugeValues);
         for (Entry<Long, Set<String>> entry : Multimaps.asMap(rollupCaptureTimes).entrySet()) {
@@ -217,7 +225,7 @@ public class GaugeValueDao implements GaugeValueRepository {
             boundStatement.setInt(i++, needsRollupAdjustedTTL);
             futures.add(session.executeAsync(boundStatement));
         }
-        MoreFutures.waitForAll(futures);
+        return MoreFutures.allAsync(futures);
     }
 
     @Override
@@ -20,8 +20,12 @@ import java.util.List;
 
 import com.datastax.driver.core.BoundStatement;
 import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSetFuture;
 import com.datastax.driver.core.Session;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
 
+import org.glowroot.central.util.MoreFutures;
 import org.glowroot.central.util.Sessions;
 import org.glowroot.common.util.Clock;
 
@@ -54,16 +58,18 @@ public class HeartbeatDao {
                 + " and central_capture_time > ? and central_capture_time <= ? limit 1");
     }
 
-    public void store(String agentId) throws Exception {
+    public ListenableFuture<?> store(String agentId) throws Exception {
         List<String> agentRollupIds = agentDao.readAgentRollupIds(agentId);
+        List<ResultSetFuture> futures = Lists.newArrayList();
         for (String agentRollupId : agentRollupIds) {
             BoundStatement boundStatement = insertPS.bind();
             int i = 0;
             boundStatement.setString(i++, agentRollupId);
             boundStatement.setTimestamp(i++, new Date(clock.currentTimeMillis()));
             boundStatement.setInt(i++, TTL);
-            session.execute(boundStatement);
+            futures.add(session.executeAsync(boundStatement));
         }
+        return MoreFutures.allAsync(futures);
     }
 
     public boolean exists(String agentRollupId, long centralCaptureFrom, long centralCaptureTo) {
@@ -16,8 +16,11 @@
 package org.glowroot.central.repo;
 
 import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.UUID;
@@ -28,14 +31,18 @@ import com.datastax.driver.core.BoundStatement;
 import com.datastax.driver.core.KeyspaceMetadata;
 import com.datastax.driver.core.PreparedStatement;
 import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
 import com.datastax.driver.core.Row;
 import com.datastax.driver.core.Session;
 import com.datastax.driver.core.TableMetadata;
+import com.datastax.driver.core.TableOptionsMetadata;
 import com.datastax.driver.core.exceptions.InvalidConfigurationInQueryException;
 import com.datastax.driver.core.exceptions.NoHostAvailableException;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Joiner;
 import com.google.common.base.Stopwatch;
 import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Multimap;
@@ -46,6 +53,8 @@ import com.google.protobuf.InvalidProtocolBufferException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.glowroot.central.util.Messages;
+import org.glowroot.central.util.MoreFutures;
 import org.glowroot.common.config.CentralStorageConfig;
 import org.glowroot.common.config.ConfigDefaults;
 import org.glowroot.common.config.PermissionParser;
@@ -54,6 +63,7 @@ import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AdvancedCon
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.UiConfig;
 import org.glowroot.wire.api.model.Proto.OptionalInt32;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static java.util.concurrent.TimeUnit.DAYS;
@@ -67,7 +77,7 @@ public class SchemaUpgrade {
     // log startup messages using logger name "org.glowroot"
     private static final Logger startupLogger = LoggerFactory.getLogger("org.glowroot");
 
-    private static final int CURR_SCHEMA_VERSION = 19;
+    private static final int CURR_SCHEMA_VERSION = 23;
 
     private static final String WITH_LCS =
             "with compaction = { 'class' : 'LeveledCompactionStrategy' }";
@@ -93,7 +103,7 @@ public class SchemaUpgrade {
         return initialSchemaVersion;
     }
 
-    public void upgrade() throws InterruptedException {
+    public void upgrade() throws Exception {
         checkNotNull(initialSchemaVersion);
         if (initialSchemaVersion == CURR_SCHEMA_VERSION) {
             return;
@@ -170,6 +180,22 @@ public class SchemaUpgrade {
             anotherRedoOnTriggeredAlertTable();
             updateSchemaVersion(19);
         }
+        if (initialSchemaVersion < 20) {
+            populateTraceAttributeIndex();
+            updateSchemaVersion(20);
+        }
+        if (initialSchemaVersion < 21) {
+            populateTimeBucketedTraceTables();
+            updateSchemaVersion(21);
+        }
+        if (initialSchemaVersion < 22) {
+            addUnstoredTraceCountColumns();
+            updateSchemaVersion(22);
+        }
+        if (initialSchemaVersion < 23) {
+            moveTraceAttributeIndexIntoTimeBuckets();
+            updateSchemaVersion(23);
+        }
 
         // when adding new schema upgrade, make sure to update CURR_SCHEMA_VERSION above
         startupLogger.info("upgraded cassandra schema to version {}", CURR_SCHEMA_VERSION);
@@ -680,6 +706,238 @@ public class SchemaUpgrade {
                 + " alert_id varchar, primary key (agent_rollup_id, alert_id)) " + WITH_LCS);
     }
 
+    private void populateTraceAttributeIndex() throws Exception {
+        if (!tableExists("trace_tn_slow_point")) {
+            // no existing traces to index
+            return;
+        }
+        startupLogger.info("populating trace attribute index...");
+        if (!tableExists("trace_attribute_index_bucketed")) {
+            session.execute(TraceDao.CREATE_ATTRIBUTE_INDEX_TABLE + " "
+                    + getTraceTableOptions("trace_tn_slow_point"));
+        }
+        populateTraceAttributeIndex("trace_tn_slow_point", true);
+        populateTraceAttributeIndex("trace_tn_error_point", false);
+    }
+
+    private void populateTraceAttributeIndex(String tableName, boolean slow) throws Exception {
+        ResultSet results = session.execute("select agent_rollup, transaction_type,"
+                + " transaction_name, capture_time, agent_id, trace_id, duration_nanos, partial, "
+                + (slow ? "error" : "error_message") + ", headline, user, attributes,"
+                + " ttl(duration_nanos) from " + tableName);
+        PreparedStatement insertPS = session.prepare("insert into trace_attribute_index_bucketed"
+                + " (agent_rollup, transaction_type, attribute_name, attribute_value, time_bucket,"
+                + " capture_time, agent_id, trace_id, transaction_name, duration_nanos, partial, "
+                + (slow ? "slow, error" : "error, error_message") + ", headline, user) values"
+                + " (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?) using ttl ?");
+        List<ResultSetFuture> futures = Lists.newArrayList();
+        for (Row row : results) {
+            ByteBuffer attributeBytes = row.getBytes(11);
+            if (attributeBytes == null) {
+                continue;
+            }
+            List<Trace.Attribute> attributes =
+                    Messages.parseDelimitedFrom(attributeBytes, Trace.Attribute.parser());
+            // ttl is null when the trace point was stored without expiration
+            int ttl = row.isNull(12) ? 0 : row.getInt(12);
+            for (TraceDao.AttributeKey attributeKey : TraceDao.getIndexedAttributes(attributes)) {
+                BoundStatement boundStatement = insertPS.bind();
+                int i = 0;
+                boundStatement.setString(i++, row.getString(0));
+                boundStatement.setString(i++, row.getString(1));
+                boundStatement.setString(i++, attributeKey.name());
+                boundStatement.setString(i++, attributeKey.value());
+                Date captureTime = checkNotNull(row.getTimestamp(3));
+                boundStatement.setTimestamp(i++,
+                        new Date(TraceDao.getTimeBucket(captureTime.getTime())));
+                boundStatement.setTimestamp(i++, captureTime);
+                boundStatement.setString(i++, row.getString(4));
+                boundStatement.setString(i++, row.getString(5));
+                boundStatement.setString(i++, row.getString(2));
+                boundStatement.setLong(i++, row.getLong(6));
+                boundStatement.setBool(i++, row.getBool(7));
+                // slow for trace points from the slow point table, error for trace points from
+                // the error point table
+                boundStatement.setBool(i++, true);
+                if (slow) {
+                    boundStatement.setBool(i++, row.getBool(8));
+                } else {
+                    boundStatement.setString(i++, row.getString(8));
+                }
+                boundStatement.setString(i++, row.getString(9));
+                boundStatement.setString(i++, row.getString(10));
+                boundStatement.setInt(i++, ttl);
+                futures.add(session.executeAsync(boundStatement));
+            }
+            // limit the number of outstanding inserts
+            if (futures.size() >= 1000) {
+                MoreFutures.waitForAll(futures);
+                futures.clear();
+            }
+        }
+        MoreFutures.waitForAll(futures);
+    }
+
+    private void populateTimeBucketedTraceTables() throws Exception {
+        String pointColumns = ", duration_nanos bigint, partial boolean, error boolean,"
+                + " headline varchar, user varchar, attributes blob";
+        String errorPointColumns = ", duration_nanos bigint, partial boolean,"
+                + " error_message varchar, headline varchar, user varchar, attributes blob";
+        List<String> pointColumnNames = ImmutableList.of("duration_nanos", "partial", "error",
+                "headline", "user", "attributes");
+        List<String> errorPointColumnNames = ImmutableList.of("duration_nanos", "partial",
+                "error_message", "headline", "user", "attributes");
+        for (String prefix : ImmutableList.of("trace_tt_", "trace_tn_")) {
+            boolean transaction = prefix.equals("trace_tn_");
+            String slowPointTableName = prefix + "slow_point";
+            String errorPointTableName = prefix + "error_point";
+            String errorMessageTableName = prefix + "error_message";
+            if (tableExists(slowPointTableName)) {
+                // using the same compaction (and therefore the same time windows) as the existing
+                // trace tables since trace expiration is not known here
+                String tableOptions = getTraceTableOptions(slowPointTableName);
+                startupLogger.info("moving {} into time bucketed partitions...",
+                        slowPointTableName);
+                createTimeBucketedTraceTable(prefix + "slow_point_bucketed", transaction,
+                        pointColumns, tableOptions);
+                copyToTimeBucketedTraceTable(slowPointTableName, prefix + "slow_point_bucketed",
+                        transaction, pointColumnNames, "duration_nanos");
+                // slow counts are derived from slow points since count rows have no regular
+                // column to read the remaining ttl from
+                createTimeBucketedTraceTable(prefix + "slow_count_bucketed", transaction, "",
+                        tableOptions);
+                copyToTimeBucketedTraceTable(slowPointTableName, prefix + "slow_count_bucketed",
+                        transaction, ImmutableList.<String>of(), "duration_nanos");
+            }
+            if (tableExists(errorPointTableName)) {
+                String tableOptions = getTraceTableOptions(errorPointTableName);
+                startupLogger.info("moving {} into time bucketed partitions...",
+                        errorPointTableName);
+                createTimeBucketedTraceTable(prefix + "error_point_bucketed", transaction,
+                        errorPointColumns, tableOptions);
+                copyToTimeBucketedTraceTable(errorPointTableName, prefix + "error_point_bucketed",
+                        transaction, errorPointColumnNames, "duration_nanos");
+                createTimeBucketedTraceTable(prefix + "error_count_bucketed", transaction, "",
+                        tableOptions);
+                copyToTimeBucketedTraceTable(errorPointTableName, prefix + "error_count_bucketed",
+                        transaction, ImmutableList.<String>of(), "duration_nanos");
+            }
+            if (tableExists(errorMessageTableName)) {
+                String tableOptions = getTraceTableOptions(errorMessageTableName);
+                startupLogger.info("moving {} into time bucketed partitions...",
+                        errorMessageTableName);
+                createTimeBucketedTraceTable(prefix + "error_message_bucketed", transaction,
+                        ", error_message varchar", tableOptions);
+                copyToTimeBucketedTraceTable(errorMessageTableName,
+                        prefix + "error_message_bucketed", transaction,
+                        ImmutableList.of("error_message"), "error_message");
+            }
+        }
+        // the unbucketed tables are no longer read or written, but are not dropped in the same
+        // startup as the copy, so that nothing is lost if the copy is interrupted (the copy only
+        // overwrites rows with identical values, so it is safe to re-run), their rows expire via
+        // ttl and the tables are dropped by a later schema upgrade
+    }
+
+    private void moveTraceAttributeIndexIntoTimeBuckets() throws Exception {
+        if (!tableExists("trace_attribute_index")) {
+            return;
+        }
+        startupLogger.info("moving trace_attribute_index into time bucketed partitions...");
+        session.execute(TraceDao.CREATE_ATTRIBUTE_INDEX_TABLE + " "
+                + getTraceTableOptions("trace_attribute_index"));
+        copyToTimeBucketedTable("trace_attribute_index", "trace_attribute_index_bucketed",
+                ImmutableList.of("agent_rollup", "transaction_type", "attribute_name",
+                        "attribute_value"),
+                ImmutableList.of("transaction_name", "duration_nanos", "partial", "slow", "error",
+                        "error_message", "headline", "user"),
+                "duration_nanos");
+        // same as for the other unbucketed trace tables, this is not dropped in the same startup
+        // as the copy, see populateTimeBucketedTraceTables()
+    }
+
+    private void addUnstoredTraceCountColumns() {
+        for (TableMetadata table : keyspace.getTables()) {
+            String tableName = table.getName();
+            if (tableName.startsWith("aggregate_tt_overview_rollup_")
+                    || tableName.startsWith("aggregate_tn_overview_rollup_")) {
+                addColumnIfNotExists(tableName, "unstored_trace_count", "bigint");
+            }
+        }
+    }
+
+    private void createTimeBucketedTraceTable(String tableName, boolean transaction,
+            String columnDefinitions, String tableOptions) {
+        session.execute("create table if not exists " + tableName + " (agent_rollup varchar,"
+                + " transaction_type varchar, " + (transaction ? "transaction_name varchar, " : "")
+                + "time_bucket timestamp, capture_time timestamp, agent_id varchar,"
+                + " trace_id varchar" + columnDefinitions + ", primary key ((agent_rollup,"
+                + " transaction_type, " + (transaction ? "transaction_name, " : "")
+                + "time_bucket), capture_time, agent_id, trace_id)) " + tableOptions);
+    }
+
+    private void copyToTimeBucketedTraceTable(String fromTableName, String toTableName,
+            boolean transaction, List<String> columnNames, String ttlColumnName)
+            throws Exception {
+        List<String> partitionColumnNames = Lists.newArrayList("agent_rollup", "transaction_type");
+        if (transaction) {
+            partitionColumnNames.add("transaction_name");
+        }
+        copyToTimeBucketedTable(fromTableName, toTableName, partitionColumnNames, columnNames,
+                ttlColumnName);
+    }
+
+    // the time bucket is added as the last partition key column, and derived from capture_time
+    // which must be the first clustering column
+    private void copyToTimeBucketedTable(String fromTableName, String toTableName,
+            List<String> partitionColumnNames, List<String> columnNames, String ttlColumnName)
+            throws Exception {
+        List<String> selectColumnNames = Lists.newArrayList(partitionColumnNames);
+        selectColumnNames.addAll(ImmutableList.of("capture_time", "agent_id", "trace_id"));
+        selectColumnNames.addAll(columnNames);
+        List<String> insertColumnNames = Lists.newArrayList(partitionColumnNames);
+        insertColumnNames.add("time_bucket");
+        insertColumnNames.addAll(selectColumnNames.subList(partitionColumnNames.size(),
+                selectColumnNames.size()));
+        ResultSet results = session.execute("select " + Joiner.on(", ").join(selectColumnNames)
+                + ", ttl(" + ttlColumnName + ") from " + fromTableName);
+        PreparedStatement insertPS = session.prepare("insert into " + toTableName + " ("
+                + Joiner.on(", ").join(insertColumnNames) + ") values ("
+                + Joiner.on(", ").join(Collections.nCopies(insertColumnNames.size(), "?"))
+                + ") using ttl ?");
+        int captureTimeIndex = partitionColumnNames.size();
+        List<ResultSetFuture> futures = Lists.newArrayList();
+        for (Row row : results) {
+            BoundStatement boundStatement = insertPS.bind();
+            int i = 0;
+            // values are copied in their serialized form since column types are unchanged
+            for (int j = 0; j < selectColumnNames.size(); j++) {
+                if (j == captureTimeIndex) {
+                    long captureTime = checkNotNull(row.getTimestamp(j)).getTime();
+                    boundStatement.setTimestamp(i++,
+                            new Date(TraceDao.getTimeBucket(captureTime)));
+                }
+                boundStatement.setBytesUnsafe(i++, row.getBytesUnsafe(j));
+            }
+            // ttl is null when the row was stored without expiration
+            int ttlIndex = selectColumnNames.size();
+            boundStatement.setInt(i++, row.isNull(ttlIndex) ? 0 : row.getInt(ttlIndex));
+            futures.add(session.executeAsync(boundStatement));
+            // limit the number of outstanding inserts
+            if (futures.size() >= 1000) {
+                MoreFutures.waitForAll(futures);
+                futures.clear();
+            }
+        }
+        MoreFutures.waitForAll(futures);
+    }
+
+    private String getTraceTableOptions(String tableName) {
+        TableOptionsMetadata options = keyspace.getTable(tableName).getOptions();
+        return "with compaction = " + toCqlMap(options.getCompaction())
+                + " and gc_grace_seconds = " + options.getGcGraceInSeconds();
+    }
+
     private void addColumnIfNotExists(String tableName, String columnName, String cqlType) {
         if (!columnExists(tableName, columnName)) {
             session.execute("alter table " + tableName + " add " + columnName + " " + cqlType);
@@ -711,6 +969,22 @@ public class SchemaUpgrade {
         session.execute("drop table if exists " + tableName);
     }
 
+    private static String toCqlMap(Map<String, String> map) {
+        StringBuilder sb = new StringBuilder("{ ");
+        for (Entry<String, String> entry : map.entrySet()) {
+            if (sb.length() > 2) {
+                sb.append(", ");
+            }
+            sb.append('\'');
+            sb.append(entry.getKey());
+            sb.append("' : '");
+            sb.append(entry.getValue());
+            sb.append('\'');
+        }
+        sb.append(" }");
+        return sb.toString();
+    }
+
     private static int getExpirationHoursForTable(String tableName,
             CentralStorageConfig storageConfig) {
         if (tableName.startsWith("trace_")) {
@@ -17,13 +17,18 @@ package org.glowroot.central.repo;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Locale;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.function.LongFunction;
 import java.util.stream.Collectors;
 
 import javax.annotation.Nullable;
@@ -36,11 +41,15 @@ import com.datastax.driver.core.Row;
 import com.datastax.driver.core.Session;
 import com.google.common.base.Charsets;
 import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.common.hash.Hashing;
 import com.google.common.primitives.Ints;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.InvalidProtocolBufferException;
 import org.immutables.value.Value;
@@ -55,14 +64,20 @@ import org.glowroot.common.live.LiveTraceRepository.Entries;
 import org.glowroot.common.live.LiveTraceRepository.Existence;
 import org.glowroot.common.live.LiveTraceRepository.TracePoint;
 import org.glowroot.common.live.LiveTraceRepository.TracePointFilter;
+import org.glowroot.common.live.StringComparator;
 import org.glowroot.common.model.Result;
 import org.glowroot.common.repo.ConfigRepository;
+import org.glowroot.common.repo.ConfigRepository.RollupConfig;
 import org.glowroot.common.repo.ImmutableErrorMessageCount;
 import org.glowroot.common.repo.ImmutableErrorMessagePoint;
 import org.glowroot.common.repo.ImmutableErrorMessageResult;
 import org.glowroot.common.repo.ImmutableHeaderPlus;
+import org.glowroot.common.repo.ImmutableTraceQuery;
 import org.glowroot.common.repo.TraceRepository;
 import org.glowroot.common.repo.Utils;
+import org.glowroot.common.repo.util.RollupIntervals;
+import org.glowroot.common.repo.util.RollupIntervals.RollupInterval;
+import org.glowroot.common.repo.util.RollupLevelService;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.Styles;
 import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
@@ -72,9 +87,35 @@ import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MINUTES;
 
 public class TraceDao implements TraceRepository {
 
+    // trace point partitions (and count partitions) only contain trace points captured within the
+    // same time bucket
+    static final long TIME_BUCKET_MILLIS = HOURS.toMillis(1);
+
+    private static final int MAX_CONCURRENT_TIME_BUCKET_READS = 16;
+
+    // slow and error counts are only cached for rollup intervals that ended at least this long
+    // ago, since more recent intervals are still receiving traces
+    private static final long COUNT_ROLLUP_SETTLE_MILLIS = MINUTES.toMillis(5);
+
+    // attribute values longer than this are not indexed since they are part of the partition key,
+    // searches for longer values fall back to reading all trace points in the time range
+    static final int MAX_INDEXED_ATTRIBUTE_VALUE_LENGTH = 1024;
+
+    // attribute index partitions are time bucketed the same as trace point partitions, so that
+    // frequently repeated attribute values do not grow unbounded partitions
+    static final String CREATE_ATTRIBUTE_INDEX_TABLE = "create table if not exists"
+            + " trace_attribute_index_bucketed (agent_rollup varchar, transaction_type varchar,"
+            + " attribute_name varchar, attribute_value varchar, time_bucket timestamp,"
+            + " capture_time timestamp, agent_id varchar, trace_id varchar,"
+            + " transaction_name varchar, duration_nanos bigint, partial boolean, slow boolean,"
+            + " error boolean, error_message varchar, headline varchar, user varchar,"
+            + " primary key ((agent_rollup, transaction_type, attribute_name, attribute_value,"
+            + " time_bucket), capture_time, agent_id, trace_id))";
+
     private final Session session;
     private final AgentDao agentDao;
     private final TransactionTypeDao transactionTypeDao;
@@ -82,6 +123,9 @@ public class TraceDao implements TraceRepository {
     private final TraceAttributeNameDao traceAttributeNameDao;
     private final ConfigRepository configRepository;
     private final Clock clock;
+    private final Executor asyncExecutor;
+
+    private final ImmutableList<Long> rollupIntervalMillis;
 
     private final PreparedStatement insertCheck;
 
@@ -100,6 +144,8 @@ public class TraceDao implements TraceRepository {
     private final PreparedStatement insertOverallErrorMessage;
     private final PreparedStatement insertTransactionErrorMessage;
 
+    private final PreparedStatement insertAttributeIndex;
+
     private final PreparedStatement insertHeader;
     private final PreparedStatement insertEntry;
     private final PreparedStatement insertSharedQueryText;
@@ -113,9 +159,16 @@ public class TraceDao implements TraceRepository {
     private final PreparedStatement readOverallErrorPoint;
     private final PreparedStatement readTransactionErrorPoint;
 
+    private final PreparedStatement readOverallSlowCount;
+    private final PreparedStatement readTransactionSlowCount;
+    private final PreparedStatement readOverallErrorCount;
+    private final PreparedStatement readTransactionErrorCount;
+
     private final PreparedStatement readOverallErrorMessage;
     private final PreparedStatement readTransactionErrorMessage;
 
+    private final PreparedStatement readAttributeIndex;
+
     private final PreparedStatement readHeader;
     private final PreparedStatement readEntries;
     private final PreparedStatement readSharedQueryTexts;
@@ -128,9 +181,20 @@ public class TraceDao implements TraceRepository {
     private final PreparedStatement deletePartialOverallSlowCount;
     private final PreparedStatement deletePartialTransactionSlowCount;
 
+    private final PreparedStatement deletePartialAttributeIndex;
+
+    // list index is rollupLevel
+    private final List<PreparedStatement> insertOverallCountRollup;
+    private final List<PreparedStatement> insertTransactionCountRollup;
+    private final List<PreparedStatement> readOverallCountRollup;
+    private final List<PreparedStatement> readTransactionCountRollup;
+    private final List<PreparedStatement> deleteOverallCountRollup;
+    private final List<PreparedStatement> deleteTransactionCountRollup;
+
     public TraceDao(Session session, AgentDao agentDao, TransactionTypeDao transactionTypeDao,
             FullQueryTextDao fullQueryTextDao, TraceAttributeNameDao traceAttributeNameDao,
-            ConfigRepository configRepository, Clock clock) throws Exception {
+            ConfigRepository configRepository, Clock clock, Executor asyncExecutor)
+            throws Exception {
         this.session = session;
         this.agentDao = agentDao;
         this.transactionTypeDao = transactionTypeDao;
@@ -138,6 +202,13 @@ public class TraceDao implements TraceRepository {
         this.traceAttributeNameDao = traceAttributeNameDao;
         this.configRepository = configRepository;
         this.clock = clock;
+        this.asyncExecutor = asyncExecutor;
+
+        ImmutableList.Builder<Long> rollupIntervalMillis = ImmutableList.builder();
+        for (RollupConfig rollupConfig : configRepository.getRollupConfigs()) {
+            rollupIntervalMillis.add(rollupConfig.intervalMillis());
+        }
+        this.rollupIntervalMillis = rollupIntervalMillis.build();
 
         int expirationHours = configRepository.getStorageConfig().traceExpirationHours();
 
@@ -145,46 +216,59 @@ public class TraceDao implements TraceRepository {
                 + " (agent_rollup varchar, agent_id varchar, trace_id varchar, primary key"
                 + " ((agent_rollup, agent_id), trace_id))", expirationHours);
 
-        Sessions.createTableWithTWCS(session, "create table if not exists trace_tt_slow_point"
-                + " (agent_rollup varchar, transaction_type varchar, capture_time timestamp,"
+        // trace point partitions are bucketed by capture time (see TIME_BUCKET_MILLIS) so that
+        // partition size is bounded on high volume agents, instead of growing over the entire
+        // retention period
+        Sessions.createTableWithTWCS(session, "create table if not exists"
+                + " trace_tt_slow_point_bucketed (agent_rollup varchar, transaction_type varchar,"
+                + " time_bucket timestamp, capture_time timestamp, agent_id varchar,"
+                + " trace_id varchar, duration_nanos bigint, partial boolean, error boolean,"
+                + " headline varchar, user varchar, attributes blob, primary key ((agent_rollup,"
+                + " transaction_type, time_bucket), capture_time, agent_id, trace_id))",
+                expirationHours);
+
+        Sessions.createTableWithTWCS(session, "create table if not exists"
+                + " trace_tn_slow_point_bucketed (agent_rollup varchar, transaction_type varchar,"
+                + " transaction_name varchar, time_bucket timestamp, capture_time timestamp,"
                 + " agent_id varchar, trace_id varchar, duration_nanos bigint, partial boolean,"
                 + " error boolean, headline varchar, user varchar, attributes blob, primary key"
-                + " ((agent_rollup, transaction_type), capture_time, agent_id, trace_id))",
-                expirationHours);
+                + " ((agent_rollup, transaction_type, transaction_name, time_bucket),"
+                + " capture_time, agent_id, trace_id))", expirationHours);
 
-        Sessions.createTableWithTWCS(session, "create table if not exists trace_tn_slow_point"
-                + " (agent_rollup varchar, transaction_type varchar, transaction_name varchar,"
-                + " capture_time timestamp, agent_id varchar, trace_id varchar,"
-                + " duration_nanos bigint, partial boolean, error boolean, headline varchar,"
-                + " user varchar, attributes blob, primary key ((agent_rollup, transaction_type,"
-                + " transaction_name), capture_time, agent_id, trace_id))", expirationHours);
+        Sessions.createTableWithTWCS(session, "create table if not exists"
+                + " trace_tt_error_point_bucketed (agent_rollup varchar, transaction_type varchar,"
+                + " time_bucket timestamp, capture_time timestamp, agent_id varchar,"
+                + " trace_id varchar, duration_nanos bigint, partial boolean,"
+                + " error_message varchar, headline varchar, user varchar, attributes blob,"
+                + " primary key ((agent_rollup, transaction_type, time_bucket), capture_time,"
+                + " agent_id, trace_id))", expirationHours);
 
-        Sessions.createTableWithTWCS(session, "create table if not exists trace_tt_error_point"
-                + " (agent_rollup varchar, transaction_type varchar, capture_time timestamp,"
+        Sessions.createTableWithTWCS(session, "create table if not exists"
+                + " trace_tn_error_point_bucketed (agent_rollup varchar, transaction_type varchar,"
+                + " transaction_name varchar, time_bucket timestamp, capture_time timestamp,"
                 + " agent_id varchar, trace_id varchar, duration_nanos bigint, partial boolean,"
                 + " error_message varchar, headline varchar, user varchar, attributes blob,"
-                + " primary key ((agent_rollup, transaction_type), capture_time, agent_id,"
-                + " trace_id))", expirationHours);
-
-        Sessions.createTableWithTWCS(session, "create table if not exists trace_tn_error_point"
-                + " (agent_rollup varchar, transaction_type varchar, transaction_name varchar,"
-                + " capture_time timestamp, agent_id varchar, trace_id varchar,"
-                + " duration_nanos bigint, partial boolean, error_message varchar,"
-                + " headline varchar, user varchar, attributes blob, primary key ((agent_rollup,"
-                + " transaction_type, transaction_name), capture_time, agent_id, trace_id))",
-                expirationHours);
+                + " primary key ((agent_rollup, transaction_type, transaction_name,"
+                + " time_bucket), capture_time, agent_id, trace_id))", expirationHours);
 
-        Sessions.createTableWithTWCS(session, "create table if not exists trace_tt_error_message"
-                + " (agent_rollup varchar, transaction_type varchar, capture_time timestamp,"
+        Sessions.createTableWithTWCS(session, "create table if not exists"
+                + " trace_tt_error_message_bucketed (agent_rollup varchar,"
+                + " transaction_type varchar, time_bucket timestamp, capture_time timestamp,"
                 + " agent_id varchar, trace_id varchar, error_message varchar, primary key"
-                + " ((agent_rollup, transaction_type), capture_time, agent_id, trace_id))",
-                expirationHours);
+                + " ((agent_rollup, transaction_type, time_bucket), capture_time, agent_id,"
+                + " trace_id))", expirationHours);
 
-        Sessions.createTableWithTWCS(session, "create table if not exists trace_tn_error_message"
-                + " (agent_rollup varchar, transaction_type varchar, transaction_name varchar,"
+        Sessions.createTableWithTWCS(session, "create table if not exists"
+                + " trace_tn_error_message_bucketed (agent_rollup varchar,"
+                + " transaction_type varchar, transaction_name varchar, time_bucket timestamp,"
                 + " capture_time timestamp, agent_id varchar, trace_id varchar,"
                 + " error_message varchar, primary key ((agent_rollup, transaction_type,"
-                + " transaction_name), capture_time, agent_id, trace_id))", expirationHours);
+                + " transaction_name, time_bucket), capture_time, agent_id, trace_id))",
+                expirationHours);
+
+        // inverted index so that exact match attribute searches are single partition reads, the
+        // index rows contain everything needed to filter and display the trace points
+        Sessions.createTableWithTWCS(session, CREATE_ATTRIBUTE_INDEX_TABLE, expirationHours);
 
         Sessions.createTableWithTWCS(session, "create table if not exists trace_header"
                 + " (agent_id varchar, trace_id varchar, header blob, primary key (agent_id,"
@@ -216,75 +300,86 @@ public class TraceDao implements TraceRepository {
         // using a counter would be nice since only need sum over capture_time range
         // but counter has no TTL, see https://issues.apache.org/jira/browse/CASSANDRA-2103
         // so adding trace_id to provide uniqueness
-        Sessions.createTableWithTWCS(session, "create table if not exists trace_tt_slow_count"
-                + " (agent_rollup varchar, transaction_type varchar, capture_time timestamp,"
+        Sessions.createTableWithTWCS(session, "create table if not exists"
+                + " trace_tt_slow_count_bucketed (agent_rollup varchar, transaction_type varchar,"
+                + " time_bucket timestamp, capture_time timestamp, agent_id varchar,"
+                + " trace_id varchar, primary key ((agent_rollup, transaction_type, time_bucket),"
+                + " capture_time, agent_id, trace_id))", expirationHours);
+
+        Sessions.createTableWithTWCS(session, "create table if not exists"
+                + " trace_tn_slow_count_bucketed (agent_rollup varchar, transaction_type varchar,"
+                + " transaction_name varchar, time_bucket timestamp, capture_time timestamp,"
                 + " agent_id varchar, trace_id varchar, primary key ((agent_rollup,"
-                + " transaction_type), capture_time, agent_id, trace_id))", expirationHours);
-
-        Sessions.createTableWithTWCS(session, "create table if not exists trace_tn_slow_count"
-                + " (agent_rollup varchar, transaction_type varchar, transaction_name varchar,"
-                + " capture_time timestamp, agent_id varchar, trace_id varchar, primary key"
-                + " ((agent_rollup, transaction_type, transaction_name), capture_time, agent_id,"
+                + " transaction_type, transaction_name, time_bucket), capture_time, agent_id,"
                 + " trace_id))", expirationHours);
 
-        Sessions.createTableWithTWCS(session, "create table if not exists trace_tt_error_count"
-                + " (agent_rollup varchar, transaction_type varchar, capture_time timestamp,"
-                + " agent_id varchar, trace_id varchar, primary key ((agent_rollup,"
-                + " transaction_type), capture_time, agent_id, trace_id))", expirationHours);
+        Sessions.createTableWithTWCS(session, "create table if not exists"
+                + " trace_tt_error_count_bucketed (agent_rollup varchar, transaction_type varchar,"
+                + " time_bucket timestamp, capture_time timestamp, agent_id varchar,"
+                + " trace_id varchar, primary key ((agent_rollup, transaction_type, time_bucket),"
+                + " capture_time, agent_id, trace_id))", expirationHours);
 
-        Sessions.createTableWithTWCS(session, "create table if not exists trace_tn_error_count"
-                + " (agent_rollup varchar, transaction_type varchar, transaction_name varchar,"
-                + " capture_time timestamp, agent_id varchar, trace_id varchar, primary key"
-                + " ((agent_rollup, transaction_type, transaction_name), capture_time, agent_id,"
+        Sessions.createTableWithTWCS(session, "create table if not exists"
+                + " trace_tn_error_count_bucketed (agent_rollup varchar, transaction_type varchar,"
+                + " transaction_name varchar, time_bucket timestamp, capture_time timestamp,"
+                + " agent_id varchar, trace_id varchar, primary key ((agent_rollup,"
+                + " transaction_type, transaction_name, time_bucket), capture_time, agent_id,"
                 + " trace_id))", expirationHours);
 
         insertCheck = session.prepare("insert into trace_check (agent_rollup, agent_id, trace_id)"
                 + " values (?, ?, ?) using ttl ?");
 
-        insertOverallSlowPoint = session.prepare("insert into trace_tt_slow_point (agent_rollup,"
-                + " transaction_type, capture_time, agent_id, trace_id, duration_nanos, partial,"
-                + " error, headline, user, attributes) values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)"
-                + " using ttl ?");
-
-        insertTransactionSlowPoint = session.prepare("insert into trace_tn_slow_point"
-                + " (agent_rollup, transaction_type, transaction_name, capture_time, agent_id,"
+        insertOverallSlowPoint = session.prepare("insert into trace_tt_slow_point_bucketed"
+                + " (agent_rollup, transaction_type, time_bucket, capture_time, agent_id,"
                 + " trace_id, duration_nanos, partial, error, headline, user, attributes) values"
                 + " (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?) using ttl ?");
 
-        insertOverallSlowCount = session.prepare("insert into trace_tt_slow_count (agent_rollup,"
-                + " transaction_type, capture_time, agent_id, trace_id) values (?, ?, ?, ?, ?)"
-                + " using ttl ?");
+        insertTransactionSlowPoint = session.prepare("insert into trace_tn_slow_point_bucketed"
+                + " (agent_rollup, transaction_type, transaction_name, time_bucket, capture_time,"
+                + " agent_id, trace_id, duration_nanos, partial, error, headline, user,"
+                + " attributes) values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?) using ttl ?");
 
-        insertTransactionSlowCount = session.prepare("insert into trace_tn_slow_count"
-                + " (agent_rollup, transaction_type, transaction_name, capture_time, agent_id,"
+        insertOverallSlowCount = session.prepare("insert into trace_tt_slow_count_bucketed"
+                + " (agent_rollup, transaction_type, time_bucket, capture_time, agent_id,"
                 + " trace_id) values (?, ?, ?, ?, ?, ?) using ttl ?");
 
-        insertOverallErrorPoint = session.prepare("insert into trace_tt_error_point (agent_rollup,"
-                + " transaction_type, capture_time, agent_id, trace_id, duration_nanos, partial,"
-                + " error_message, headline, user, attributes) values"
-                + " (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?) using ttl ?");
+        insertTransactionSlowCount = session.prepare("insert into trace_tn_slow_count_bucketed"
+                + " (agent_rollup, transaction_type, transaction_name, time_bucket, capture_time,"
+                + " agent_id, trace_id) values (?, ?, ?, ?, ?, ?, ?) using ttl ?");
 
-        insertTransactionErrorPoint = session.prepare("insert into trace_tn_error_point"
-                + " (agent_rollup, transaction_type, transaction_name, capture_time, agent_id,"
+        insertOverallErrorPoint = session.prepare("insert into trace_tt_error_point_bucketed"
+                + " (agent_rollup, transaction_type, time_bucket, capture_time, agent_id,"
                 + " trace_id, duration_nanos, partial, error_message, headline, user, attributes)"
                 + " values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?) using ttl ?");
 
-        insertOverallErrorCount = session.prepare("insert into trace_tt_error_count (agent_rollup,"
-                + " transaction_type, capture_time, agent_id, trace_id) values (?, ?, ?, ?, ?)"
-                + " using ttl ?");
+        insertTransactionErrorPoint = session.prepare("insert into trace_tn_error_point_bucketed"
+                + " (agent_rollup, transaction_type, transaction_name, time_bucket, capture_time,"
+                + " agent_id, trace_id, duration_nanos, partial, error_message, headline, user,"
+                + " attributes) values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?) using ttl ?");
 
-        insertTransactionErrorCount = session.prepare("insert into trace_tn_error_count"
-                + " (agent_rollup, transaction_type, transaction_name, capture_time, agent_id,"
+        insertOverallErrorCount = session.prepare("insert into trace_tt_error_count_bucketed"
+                + " (agent_rollup, transaction_type, time_bucket, capture_time, agent_id,"
                 + " trace_id) values (?, ?, ?, ?, ?, ?) using ttl ?");
 
-        insertOverallErrorMessage = session.prepare("insert into trace_tt_error_message"
-                + " (agent_rollup, transaction_type, capture_time, agent_id, trace_id,"
-                + " error_message) values (?, ?, ?, ?, ?, ?) using ttl ?");
+        insertTransactionErrorCount = session.prepare("insert into trace_tn_error_count_bucketed"
+                + " (agent_rollup, transaction_type, transaction_name, time_bucket, capture_time,"
+                + " agent_id, trace_id) values (?, ?, ?, ?, ?, ?, ?) using ttl ?");
 
-        insertTransactionErrorMessage = session.prepare("insert into trace_tn_error_message"
-                + " (agent_rollup, transaction_type, transaction_name, capture_time, agent_id,"
+        insertOverallErrorMessage = session.prepare("insert into trace_tt_error_message_bucketed"
+                + " (agent_rollup, transaction_type, time_bucket, capture_time, agent_id,"
                 + " trace_id, error_message) values (?, ?, ?, ?, ?, ?, ?) using ttl ?");
 
+        insertTransactionErrorMessage = session.prepare("insert into"
+                + " trace_tn_error_message_bucketed (agent_rollup, transaction_type,"
+                + " transaction_name, time_bucket, capture_time, agent_id, trace_id,"
+                + " error_message) values (?, ?, ?, ?, ?, ?, ?, ?) using ttl ?");
+
+        insertAttributeIndex = session.prepare("insert into trace_attribute_index_bucketed"
+                + " (agent_rollup, transaction_type, attribute_name, attribute_value, time_bucket,"
+                + " capture_time, agent_id, trace_id, transaction_name, duration_nanos, partial,"
+                + " slow, error, error_message, headline, user) values (?, ?, ?, ?, ?, ?, ?, ?, ?,"
+                + " ?, ?, ?, ?, ?, ?, ?) using ttl ?");
+
         insertHeader = session.prepare("insert into trace_header (agent_id, trace_id, header)"
                 + " values (?, ?, ?) using ttl ?");
 
@@ -308,31 +403,62 @@ public class TraceDao implements TraceRepository {
 
         readOverallSlowPoint = session.prepare("select agent_id, trace_id, capture_time,"
                 + " duration_nanos, partial, error, headline, user, attributes"
-                + " from trace_tt_slow_point where agent_rollup = ? and transaction_type = ?"
-                + " and capture_time > ? and capture_time <= ?");
+                + " from trace_tt_slow_point_bucketed where agent_rollup = ?"
+                + " and transaction_type = ? and time_bucket = ? and capture_time > ?"
+                + " and capture_time <= ?");
 
         readTransactionSlowPoint = session.prepare("select agent_id, trace_id, capture_time,"
                 + " duration_nanos, partial, error, headline, user, attributes"
-                + " from trace_tn_slow_point where agent_rollup = ? and transaction_type = ?"
-                + " and transaction_name = ? and capture_time > ? and capture_time <= ?");
+                + " from trace_tn_slow_point_bucketed where agent_rollup = ?"
+                + " and transaction_type = ? and transaction_name = ? and time_bucket = ?"
+                + " and capture_time > ? and capture_time <= ?");
 
         readOverallErrorPoint = session.prepare("select agent_id, trace_id, capture_time,"
                 + " duration_nanos, partial, error_message, headline, user, attributes"
-                + " from trace_tt_error_point where agent_rollup = ? and transaction_type = ?"
-                + " and capture_time > ? and capture_time <= ?");
+                + " from trace_tt_error_point_bucketed where agent_rollup = ?"
+                + " and transaction_type = ? and time_bucket = ? and capture_time > ?"
+                + " and capture_time <= ?");
 
         readTransactionErrorPoint = session.prepare("select agent_id, trace_id, capture_time,"
                 + " duration_nanos, partial, error_message, headline, user, attributes"
-                + " from trace_tn_error_point where agent_rollup = ? and transaction_type = ?"
-                + " and transaction_name = ? and capture_time > ? and capture_time <= ?");
+                + " from trace_tn_error_point_bucketed where agent_rollup = ?"
+                + " and transaction_type = ? and transaction_name = ? and time_bucket = ?"
+                + " and capture_time > ? and capture_time <= ?");
 
-        readOverallErrorMessage = session.prepare("select capture_time, error_message"
-                + " from trace_tt_error_message where agent_rollup = ? and transaction_type = ?"
+        readOverallSlowCount = session.prepare("select count(*) from trace_tt_slow_count_bucketed"
+                + " where agent_rollup = ? and transaction_type = ? and time_bucket = ?"
                 + " and capture_time > ? and capture_time <= ?");
 
+        readTransactionSlowCount = session.prepare("select count(*)"
+                + " from trace_tn_slow_count_bucketed where agent_rollup = ?"
+                + " and transaction_type = ? and transaction_name = ? and time_bucket = ?"
+                + " and capture_time > ? and capture_time <= ?");
+
+        readOverallErrorCount = session.prepare("select count(*)"
+                + " from trace_tt_error_count_bucketed where agent_rollup = ?"
+                + " and transaction_type = ? and time_bucket = ? and capture_time > ?"
+                + " and capture_time <= ?");
+
+        readTransactionErrorCount = session.prepare("select count(*)"
+                + " from trace_tn_error_count_bucketed where agent_rollup = ?"
+                + " and transaction_type = ? and transaction_name = ? and time_bucket = ?"
+                + " and capture_time > ? and capture_time <= ?");
+
+        readOverallErrorMessage = session.prepare("select capture_time, error_message"
+                + " from trace_tt_error_message_bucketed where agent_rollup = ?"
+                + " and transaction_type = ? and time_bucket = ? and capture_time > ?"
+                + " and capture_time <= ?");
+
         readTransactionErrorMessage = session.prepare("select capture_time, error_message"
-                + " from trace_tn_error_message where agent_rollup = ? and transaction_type = ?"
-                + " and transaction_name = ? and capture_time > ? and capture_time <= ?");
+                + " from trace_tn_error_message_bucketed where agent_rollup = ?"
+                + " and transaction_type = ? and transaction_name = ? and time_bucket = ?"
+                + " and capture_time > ? and capture_time <= ?");
+
+        readAttributeIndex = session.prepare("select transaction_name, capture_time, agent_id,"
+                + " trace_id, duration_nanos, partial, slow, error, error_message, headline, user"
+                + " from trace_attribute_index_bucketed where agent_rollup = ?"
+                + " and transaction_type = ? and attribute_name = ? and attribute_value = ?"
+                + " and time_bucket = ? and capture_time > ? and capture_time <= ?");
 
         readHeader = session
                 .prepare("select header from trace_header where agent_id = ? and trace_id = ?");
@@ -352,31 +478,96 @@ public class TraceDao implements TraceRepository {
         readAuxThreadProfile = session.prepare("select profile from trace_aux_thread_profile"
                 + " where agent_id = ? and trace_id = ?");
 
-        deletePartialOverallSlowPoint = session.prepare("delete from trace_tt_slow_point"
-                + " where agent_rollup = ? and transaction_type = ? and capture_time = ?"
+        deletePartialOverallSlowPoint = session.prepare("delete from trace_tt_slow_point_bucketed"
+                + " where agent_rollup = ? and transaction_type = ? and time_bucket = ?"
+                + " and capture_time = ? and agent_id = ? and trace_id = ?");
+
+        deletePartialTransactionSlowPoint = session.prepare("delete from"
+                + " trace_tn_slow_point_bucketed where agent_rollup = ? and transaction_type = ?"
+                + " and transaction_name = ? and time_bucket = ? and capture_time = ?"
                 + " and agent_id = ? and trace_id = ?");
 
-        deletePartialTransactionSlowPoint = session.prepare("delete from trace_tn_slow_point"
-                + " where agent_rollup = ? and transaction_type = ? and transaction_name = ?"
+        deletePartialOverallSlowCount = session.prepare("delete from trace_tt_slow_count_bucketed"
+                + " where agent_rollup = ? and transaction_type = ? and time_bucket = ?"
                 + " and capture_time = ? and agent_id = ? and trace_id = ?");
 
-        deletePartialOverallSlowCount = session.prepare("delete from trace_tt_slow_count"
-                + " where agent_rollup = ? and transaction_type = ? and capture_time = ?"
+        deletePartialTransactionSlowCount = session.prepare("delete from"
+                + " trace_tn_slow_count_bucketed where agent_rollup = ? and transaction_type = ?"
+                + " and transaction_name = ? and time_bucket = ? and capture_time = ?"
                 + " and agent_id = ? and trace_id = ?");
 
-        deletePartialTransactionSlowCount = session.prepare("delete from trace_tn_slow_count"
-                + " where agent_rollup = ? and transaction_type = ? and transaction_name = ?"
+        deletePartialAttributeIndex = session.prepare("delete from"
+                + " trace_attribute_index_bucketed where agent_rollup = ? and transaction_type = ?"
+                + " and attribute_name = ? and attribute_value = ? and time_bucket = ?"
                 + " and capture_time = ? and agent_id = ? and trace_id = ?");
+
+        // slow and error counts per rollup interval are computed from the count tables above the
+        // first time they are read, and then cached here, so that counts over long time ranges
+        // only need to read one row per rollup interval
+        List<PreparedStatement> insertOverallCountRollup = Lists.newArrayList();
+        List<PreparedStatement> insertTransactionCountRollup = Lists.newArrayList();
+        List<PreparedStatement> readOverallCountRollup = Lists.newArrayList();
+        List<PreparedStatement> readTransactionCountRollup = Lists.newArrayList();
+        List<PreparedStatement> deleteOverallCountRollup = Lists.newArrayList();
+        List<PreparedStatement> deleteTransactionCountRollup = Lists.newArrayList();
+        for (int i = 0; i < this.rollupIntervalMillis.size(); i++) {
+            Sessions.createTableWithTWCS(session, "create table if not exists "
+                    + getOverallCountRollupTableName(i) + " (agent_rollup varchar,"
+                    + " transaction_type varchar, capture_time timestamp, slow_count bigint,"
+                    + " error_count bigint, primary key ((agent_rollup, transaction_type),"
+                    + " capture_time))", expirationHours);
+            Sessions.createTableWithTWCS(session, "create table if not exists "
+                    + getTransactionCountRollupTableName(i) + " (agent_rollup varchar,"
+                    + " transaction_type varchar, transaction_name varchar,"
+                    + " capture_time timestamp, slow_count bigint, error_count bigint,"
+                    + " primary key ((agent_rollup, transaction_type, transaction_name),"
+                    + " capture_time))", expirationHours);
+            insertOverallCountRollup.add(session.prepare("insert into "
+                    + getOverallCountRollupTableName(i) + " (agent_rollup, transaction_type,"
+                    + " capture_time, slow_count, error_count) values (?, ?, ?, ?, ?)"
+                    + " using TTL ?"));
+            insertTransactionCountRollup.add(session.prepare("insert into "
+                    + getTransactionCountRollupTableName(i) + " (agent_rollup, transaction_type,"
+                    + " transaction_name, capture_time, slow_count, error_count) values"
+                    + " (?, ?, ?, ?, ?, ?) using TTL ?"));
+            readOverallCountRollup.add(session.prepare("select capture_time, slow_count,"
+                    + " error_count from " + getOverallCountRollupTableName(i)
+                    + " where agent_rollup = ? and transaction_type = ? and capture_time > ?"
+                    + " and capture_time <= ?"));
+            readTransactionCountRollup.add(session.prepare("select capture_time, slow_count,"
+                    + " error_count from " + getTransactionCountRollupTableName(i)
+                    + " where agent_rollup = ? and transaction_type = ? and transaction_name = ?"
+                    + " and capture_time > ? and capture_time <= ?"));
+            deleteOverallCountRollup.add(session.prepare("delete from "
+                    + getOverallCountRollupTableName(i) + " where agent_rollup = ?"
+                    + " and transaction_type = ? and capture_time = ?"));
+            deleteTransactionCountRollup.add(session.prepare("delete from "
+                    + getTransactionCountRollupTableName(i) + " where agent_rollup = ?"
+                    + " and transaction_type = ? and transaction_name = ? and capture_time = ?"));
+        }
+        this.insertOverallCountRollup = insertOverallCountRollup;
+        this.insertTransactionCountRollup = insertTransactionCountRollup;
+        this.readOverallCountRollup = readOverallCountRollup;
+        this.readTransactionCountRollup = readTransactionCountRollup;
+        this.deleteOverallCountRollup = deleteOverallCountRollup;
+        this.deleteTransactionCountRollup = deleteTransactionCountRollup;
     }
 
-    public void store(String agentId, Trace trace) throws Exception {
+    public ListenableFuture<?> store(String agentId, Trace trace) throws Exception {
         String traceId = trace.getId();
-        Trace.Header priorHeader = trace.getUpdate() ? readHeader(agentId, traceId) : null;
-        Trace.Header header = trace.getHeader();
-
         List<String> agentRollupIds = agentDao.readAgentRollupIds(agentId);
 
         List<ResultSetFuture> futures = Lists.newArrayList();
+        ResultSetFuture priorHeaderFuture;
+        if (trace.getUpdate()) {
+            BoundStatement boundStatement = readHeader.bind();
+            boundStatement.setString(0, agentId);
+            boundStatement.setString(1, traceId);
+            priorHeaderFuture = session.executeAsync(boundStatement);
+            futures.add(priorHeaderFuture);
+        } else {
+            priorHeaderFuture = null;
+        }
 
         List<Trace.SharedQueryText> sharedQueryTexts = Lists.newArrayList();
         for (Trace.SharedQueryText sharedQueryText : trace.getSharedQueryTextList()) {
@@ -414,10 +605,27 @@ public class TraceDao implements TraceRepository {
 
         // wait for success before proceeding in order to ensure cannot end up with orphaned
         // fullTextSha1
-        MoreFutures.waitForAll(futures);
-        futures.clear();
+        return MoreFutures.transformAsync(MoreFutures.allAsync(futures), ignored -> {
+            Trace.Header priorHeader = priorHeaderFuture == null ? null
+                    : getHeader(priorHeaderFuture.getUninterruptibly());
+            return storeTrace(agentId, trace, priorHeader, agentRollupIds, sharedQueryTexts);
+        }, asyncExecutor);
+    }
 
+    private ListenableFuture<?> storeTrace(String agentId, Trace trace,
+            @Nullable Trace.Header priorHeader, List<String> agentRollupIds,
+            List<Trace.SharedQueryText> sharedQueryTexts) throws Exception {
+        String traceId = trace.getId();
+        Trace.Header header = trace.getHeader();
+        List<ResultSetFuture> futures = Lists.newArrayList();
         int adjustedTTL = AggregateDao.getAdjustedTTL(getTTL(), header.getCaptureTime(), clock);
+        // only traces that are stored as slow or error points can be found by attribute search
+        Set<AttributeKey> indexedAttributes =
+                header.getSlow() || header.hasError() && !header.getPartial()
+                        ? getIndexedAttributes(header) : ImmutableSet.<AttributeKey>of();
+        Set<AttributeKey> priorIndexedAttributes =
+                priorHeader == null || priorHeader.getCaptureTime() == header.getCaptureTime()
+                        ? ImmutableSet.<AttributeKey>of() : getIndexedAttributes(priorHeader);
         for (String agentRollupId : agentRollupIds) {
 
             if (!agentRollupId.equals(agentId)) {
@@ -502,6 +710,28 @@ public class TraceDao implements TraceRepository {
                         false);
                 futures.add(session.executeAsync(boundStatement));
             }
+            for (AttributeKey attributeKey : indexedAttributes) {
+                BoundStatement boundStatement = insertAttributeIndex.bind();
+                bindAttributeIndex(boundStatement, agentRollupId, agentId, traceId, header,
+                        attributeKey, adjustedTTL);
+                futures.add(session.executeAsync(boundStatement));
+            }
+            if (priorHeader != null) {
+                for (AttributeKey attributeKey : priorIndexedAttributes) {
+                    BoundStatement boundStatement = deletePartialAttributeIndex.bind();
+                    int i = 0;
+                    boundStatement.setString(i++, agentRollupId);
+                    boundStatement.setString(i++, priorHeader.getTransactionType());
+                    boundStatement.setString(i++, attributeKey.name());
+                    boundStatement.setString(i++, attributeKey.value());
+                    boundStatement.setTimestamp(i++,
+                            new Date(getTimeBucket(priorHeader.getCaptureTime())));
+                    boundStatement.setTimestamp(i++, new Date(priorHeader.getCaptureTime()));
+                    boundStatement.setString(i++, agentId);
+                    boundStatement.setString(i++, traceId);
+                    futures.add(session.executeAsync(boundStatement));
+                }
+            }
             for (Trace.Attribute attributeName : header.getAttributeList()) {
                 traceAttributeNameDao.store(agentRollupId,
                         header.getTransactionType(), attributeName.getName(), futures);
@@ -597,97 +827,54 @@ public class TraceDao implements TraceRepository {
             futures.add(session.executeAsync(boundStatement));
         }
         futures.addAll(transactionTypeDao.store(agentRollupIds, header.getTransactionType()));
-        MoreFutures.waitForAll(futures);
+        // this is done after the count tables above have been updated, so that the cached counts
+        // will be re-computed from the updated count tables
+        return MoreFutures.transformAsync(MoreFutures.allAsync(futures),
+                ignored -> invalidateCountRollups(agentRollupIds, header, priorHeader),
+                asyncExecutor);
     }
 
     @Override
     public Result<TracePoint> readSlowPoints(String agentRollupId, TraceQuery query,
-            TracePointFilter filter, int limit) throws IOException {
-        BoundStatement boundStatement;
-        String transactionName = query.transactionName();
-        if (transactionName == null) {
-            boundStatement = readOverallSlowPoint.bind();
-            bindTraceQuery(boundStatement, agentRollupId, query, true);
-        } else {
-            boundStatement = readTransactionSlowPoint.bind();
-            bindTraceQuery(boundStatement, agentRollupId, query, false);
+            TracePointFilter filter, int limit) throws Exception {
+        AttributeKey attributeKey = getIndexedAttributeKey(filter);
+        if (attributeKey != null) {
+            return readIndexedPoints(agentRollupId, query, attributeKey, filter, limit, false);
         }
-        ResultSet results = session.execute(boundStatement);
-        return processPoints(results, filter, limit, false);
+        Iterable<Row> rows = readAcrossTimeBuckets(readOverallSlowPoint, readTransactionSlowPoint,
+                agentRollupId, query);
+        return processPoints(rows, filter, limit, false);
     }
 
     @Override
     public Result<TracePoint> readErrorPoints(String agentRollupId, TraceQuery query,
-            TracePointFilter filter, int limit) throws IOException {
-        BoundStatement boundStatement;
-        String transactionName = query.transactionName();
-        if (transactionName == null) {
-            boundStatement = readOverallErrorPoint.bind();
-            bindTraceQuery(boundStatement, agentRollupId, query, true);
-        } else {
-            boundStatement = readTransactionErrorPoint.bind();
-            bindTraceQuery(boundStatement, agentRollupId, query, false);
+            TracePointFilter filter, int limit) throws Exception {
+        AttributeKey attributeKey = getIndexedAttributeKey(filter);
+        if (attributeKey != null) {
+            return readIndexedPoints(agentRollupId, query, attributeKey, filter, limit, true);
         }
-        ResultSet results = session.execute(boundStatement);
-        return processPoints(results, filter, limit, true);
+        Iterable<Row> rows = readAcrossTimeBuckets(readOverallErrorPoint,
+                readTransactionErrorPoint, agentRollupId, query);
+        return processPoints(rows, filter, limit, true);
     }
 
     @Override
-    public long readSlowCount(String agentRollupId, TraceQuery query) {
-        String transactionName = query.transactionName();
-        if (transactionName == null) {
-            ResultSet results = session.execute(
-                    "select count(*) from trace_tt_slow_count where agent_rollup = ?"
-                            + " and transaction_type = ? and capture_time > ?"
-                            + " and capture_time <= ?",
-                    agentRollupId, query.transactionType(), query.from(), query.to());
-            return results.one().getLong(0);
-        } else {
-            ResultSet results = session.execute(
-                    "select count(*) from trace_tn_slow_count where agent_rollup = ?"
-                            + " and transaction_type = ? and transaction_name = ?"
-                            + " and capture_time > ? and capture_time <= ?",
-                    agentRollupId, query.transactionType(), transactionName, query.from(),
-                    query.to());
-            return results.one().getLong(0);
-        }
+    public long readSlowCount(String agentRollupId, TraceQuery query) throws Exception {
+        return readCount(agentRollupId, query, false);
     }
 
     @Override
-    public long readErrorCount(String agentRollupId, TraceQuery query) {
-        String transactionName = query.transactionName();
-        if (transactionName == null) {
-            ResultSet results = session.execute(
-                    "select count(*) from trace_tt_error_count where agent_rollup = ?"
-                            + " and transaction_type = ? and capture_time > ?"
-                            + " and capture_time <= ?",
-                    agentRollupId, query.transactionType(), query.from(), query.to());
-            return results.one().getLong(0);
-        } else {
-            ResultSet results = session.execute(
-                    "select count(*) from trace_tn_error_count where agent_rollup = ?"
-                            + " and transaction_type = ? and transaction_name = ?"
-                            + " and capture_time > ? and capture_time <= ?",
-                    agentRollupId, query.transactionType(), transactionName, query.from(),
-                    query.to());
-            return results.one().getLong(0);
-        }
+    public long readErrorCount(String agentRollupId, TraceQuery query) throws Exception {
+        return readCount(agentRollupId, query, true);
     }
 
     @Override
     public ErrorMessageResult readErrorMessages(String agentRollupId, TraceQuery query,
             ErrorMessageFilter filter, long resolutionMillis, int limit) throws Exception {
-        BoundStatement boundStatement;
-        String transactionName = query.transactionName();
-        if (transactionName == null) {
-            boundStatement = readOverallErrorMessage.bind();
-            bindTraceQuery(boundStatement, agentRollupId, query, true);
-        } else {
-            boundStatement = readTransactionErrorMessage.bind();
-            bindTraceQuery(boundStatement, agentRollupId, query, false);
-        }
-        ResultSet results = session.execute(boundStatement);
-        // rows are already in order by captureTime, so saving sort step by using linked hash map
+        Iterable<Row> results = readAcrossTimeBuckets(readOverallErrorMessage,
+                readTransactionErrorMessage, agentRollupId, query);
+        // rows are already in order by captureTime (time buckets are read in order), so saving
+        // sort step by using linked hash map
         Map<Long, MutableLong> pointCounts = Maps.newLinkedHashMap();
         Map<String, MutableLong> messageCounts = Maps.newHashMap();
         for (Row row : results) {
@@ -835,7 +1022,11 @@ public class TraceDao implements TraceRepository {
         BoundStatement boundStatement = readHeader.bind();
         boundStatement.setString(0, agentId);
         boundStatement.setString(1, traceId);
-        ResultSet results = session.execute(boundStatement);
+        return getHeader(session.execute(boundStatement));
+    }
+
+    private static @Nullable Trace.Header getHeader(ResultSet results)
+            throws InvalidProtocolBufferException {
         Row row = results.one();
         if (row == null) {
             return null;
@@ -919,6 +1110,343 @@ public class TraceDao implements TraceRepository {
         return sharedQueryTexts;
     }
 
+    private Result<TracePoint> readIndexedPoints(String agentRollupId, TraceQuery query,
+            AttributeKey attributeKey, TracePointFilter filter, int limit, boolean errorPoints)
+            throws Exception {
+        Iterable<Row> rows = readAcrossTimeBuckets(timeBucket -> {
+            BoundStatement boundStatement = readAttributeIndex.bind();
+            int i = 0;
+            boundStatement.setString(i++, agentRollupId);
+            boundStatement.setString(i++, query.transactionType());
+            boundStatement.setString(i++, attributeKey.name());
+            boundStatement.setString(i++, attributeKey.value());
+            boundStatement.setTimestamp(i++, new Date(timeBucket));
+            boundStatement.setTimestamp(i++, new Date(query.from()));
+            boundStatement.setTimestamp(i++, new Date(query.to()));
+            return boundStatement;
+        }, query);
+        String transactionName = query.transactionName();
+        TopTracePoints topTracePoints = new TopTracePoints(limit);
+        for (Row row : rows) {
+            int i = 0;
+            String rowTransactionName = row.getString(i++);
+            long captureTime = checkNotNull(row.getTimestamp(i++)).getTime();
+            String agentId = checkNotNull(row.getString(i++));
+            String traceId = checkNotNull(row.getString(i++));
+            long durationNanos = row.getLong(i++);
+            boolean partial = row.getBool(i++);
+            boolean slow = row.getBool(i++);
+            boolean error = row.getBool(i++);
+            // same as for error points, only complete traces with an error have an error message
+            String errorMessage = row.getString(i++);
+            String headline = Strings.nullToEmpty(row.getString(i++));
+            String user = Strings.nullToEmpty(row.getString(i++));
+            if (errorPoints ? errorMessage == null : !slow) {
+                continue;
+            }
+            if (transactionName != null && !transactionName.equals(rowTransactionName)) {
+                continue;
+            }
+            // the attribute filter is already satisfied by the index partition
+            if (!filter.matchesHeadline(headline)
+                    || !filter.matchesError(errorPoints ? checkNotNull(errorMessage) : "")
+                    || !filter.matchesUser(user)) {
+                continue;
+            }
+            topTracePoints.add(ImmutableTracePoint.builder()
+                    .agentId(agentId)
+                    .traceId(traceId)
+                    .captureTime(captureTime)
+                    .durationNanos(durationNanos)
+                    .partial(partial)
+                    .error(errorPoints || error)
+                    .build());
+        }
+        return topTracePoints.getResult();
+    }
+
+    private Iterable<Row> readAcrossTimeBuckets(PreparedStatement readOverall,
+            PreparedStatement readTransaction, String agentRollupId, TraceQuery query)
+            throws Exception {
+        PreparedStatement readStatement =
+                query.transactionName() == null ? readOverall : readTransaction;
+        return readAcrossTimeBuckets(timeBucket -> {
+            BoundStatement boundStatement = readStatement.bind();
+            bindTraceQuery(boundStatement, agentRollupId, query, timeBucket);
+            return boundStatement;
+        }, query);
+    }
+
+    private Iterable<Row> readAcrossTimeBuckets(
+            LongFunction<BoundStatement> boundStatementForTimeBucket, TraceQuery query)
+            throws Exception {
+        Iterator<ResultSet> results = new TimeBucketReads(boundStatementForTimeBucket,
+                getTimeBucket(getUnexpiredFrom(query)), getTimeBucket(query.to()));
+        return () -> Iterators.concat(Iterators.transform(results, ResultSet::iterator));
+    }
+
+    private long getUnexpiredFrom(TraceQuery query) throws Exception {
+        int expirationHours = configRepository.getStorageConfig().traceExpirationHours();
+        if (expirationHours == 0) {
+            return query.from();
+        }
+        // trace points older than the expiration are gone, so no need to read their time
+        // buckets, this bounds the number of time buckets read for very wide time ranges
+        return Math.max(query.from(), query.to() - HOURS.toMillis(expirationHours));
+    }
+
+    // the settled part of the time range is split into the coarsest rollup intervals that fit, and
+    // only the remaining edges (and the unsettled end) are counted from the raw count tables
+    private long readCount(String agentRollupId, TraceQuery query, boolean error)
+            throws Exception {
+        long from = getUnexpiredFrom(query);
+        long settledTo =
+                Math.min(query.to(), clock.currentTimeMillis() - COUNT_ROLLUP_SETTLE_MILLIS);
+        long count = 0;
+        for (RollupInterval rollupInterval : RollupIntervals.split(from, settledTo,
+                rollupIntervalMillis)) {
+            Integer rollupLevel = rollupInterval.rollupLevel();
+            if (rollupLevel == null) {
+                count += readRawCount(agentRollupId, withTimeRange(query, rollupInterval.from(),
+                        rollupInterval.to()), error);
+            } else {
+                count += readCountRollup(agentRollupId, query, rollupLevel, rollupInterval.from(),
+                        rollupInterval.to(), error);
+            }
+        }
+        long unsettledFrom = Math.max(from, settledTo);
+        if (unsettledFrom < query.to()) {
+            count += readRawCount(agentRollupId, withTimeRange(query, unsettledFrom, query.to()),
+                    error);
+        }
+        return count;
+    }
+
+    private long readRawCount(String agentRollupId, TraceQuery query, boolean error)
+            throws Exception {
+        Iterable<Row> rows;
+        if (error) {
+            rows = readAcrossTimeBuckets(readOverallErrorCount, readTransactionErrorCount,
+                    agentRollupId, query);
+        } else {
+            rows = readAcrossTimeBuckets(readOverallSlowCount, readTransactionSlowCount,
+                    agentRollupId, query);
+        }
+        return sumCounts(rows);
+    }
+
+    private long readCountRollup(String agentRollupId, TraceQuery query, int rollupLevel,
+            long from, long to, boolean error) throws Exception {
+        String transactionName = query.transactionName();
+        BoundStatement boundStatement;
+        if (transactionName == null) {
+            boundStatement = readOverallCountRollup.get(rollupLevel).bind();
+        } else {
+            boundStatement = readTransactionCountRollup.get(rollupLevel).bind();
+        }
+        int i = 0;
+        boundStatement.setString(i++, agentRollupId);
+        boundStatement.setString(i++, query.transactionType());
+        if (transactionName != null) {
+            boundStatement.setString(i++, transactionName);
+        }
+        boundStatement.setTimestamp(i++, new Date(from));
+        boundStatement.setTimestamp(i++, new Date(to));
+        ResultSet results = session.execute(boundStatement);
+        long intervalMillis = rollupIntervalMillis.get(rollupLevel);
+        long count = 0;
+        List<Long> missingCaptureTimes = Lists.newArrayList();
+        long nextCaptureTime = from + intervalMillis;
+        for (Row row : results) {
+            long captureTime = checkNotNull(row.getTimestamp(0)).getTime();
+            for (; nextCaptureTime < captureTime; nextCaptureTime += intervalMillis) {
+                missingCaptureTimes.add(nextCaptureTime);
+            }
+            count += row.getLong(error ? 2 : 1);
+            nextCaptureTime = captureTime + intervalMillis;
+        }
+        for (; nextCaptureTime <= to; nextCaptureTime += intervalMillis) {
+            missingCaptureTimes.add(nextCaptureTime);
+        }
+        if (!missingCaptureTimes.isEmpty()) {
+            count += populateCountRollup(agentRollupId, query, rollupLevel, missingCaptureTimes,
+                    error);
+        }
+        return count;
+    }
+
+    // computes the slow and error counts of each rollup interval from the raw count tables, and
+    // caches them (including zero counts, so that empty intervals are not re-computed)
+    //
+    // a trace that is stored concurrently into one of these (settled) rollup intervals (e.g. a
+    // late spill replay from an agent) can race with this: the raw counts are read before the
+    // trace's count rows are written, and the cached row is inserted after the trace's
+    // invalidation of the cached row, so the raw counts are re-read after inserting the cached
+    // rows, and any cached row that no longer matches is deleted (the store writes its count rows
+    // before invalidating, so the re-read is guaranteed to see them in this case)
+    private long populateCountRollup(String agentRollupId, TraceQuery query, int rollupLevel,
+            List<Long> captureTimes, boolean error) throws Exception {
+        String transactionName = query.transactionName();
+        List<BoundStatement> readStatements =
+                getRawCountReadStatements(agentRollupId, query, rollupLevel, captureTimes);
+        List<Counts> countsList = readRawCounts(readStatements, rollupLevel, captureTimes);
+        int ttl = getTTL();
+        List<ResultSetFuture> futures = Lists.newArrayList();
+        for (int j = 0; j < captureTimes.size(); j++) {
+            long captureTime = captureTimes.get(j);
+            Counts counts = countsList.get(j);
+            BoundStatement boundStatement;
+            if (transactionName == null) {
+                boundStatement = insertOverallCountRollup.get(rollupLevel).bind();
+            } else {
+                boundStatement = insertTransactionCountRollup.get(rollupLevel).bind();
+            }
+            int i = bindCountRollupKey(boundStatement, agentRollupId, query, captureTime);
+            boundStatement.setLong(i++, counts.slowCount);
+            boundStatement.setLong(i++, counts.errorCount);
+            boundStatement.setInt(i++, AggregateDao.getAdjustedTTL(ttl, captureTime, clock));
+            futures.add(session.executeAsync(boundStatement));
+        }
+        MoreFutures.waitForAll(futures);
+        List<Counts> recheckedCountsList =
+                readRawCounts(readStatements, rollupLevel, captureTimes);
+        long count = 0;
+        futures.clear();
+        for (int j = 0; j < captureTimes.size(); j++) {
+            Counts counts = countsList.get(j);
+            Counts recheckedCounts = recheckedCountsList.get(j);
+            count += error ? recheckedCounts.errorCount : recheckedCounts.slowCount;
+            if (recheckedCounts.slowCount != counts.slowCount
+                    || recheckedCounts.errorCount != counts.errorCount) {
+                BoundStatement boundStatement;
+                if (transactionName == null) {
+                    boundStatement = deleteOverallCountRollup.get(rollupLevel).bind();
+                } else {
+                    boundStatement = deleteTransactionCountRollup.get(rollupLevel).bind();
+                }
+                bindCountRollupKey(boundStatement, agentRollupId, query, captureTimes.get(j));
+                futures.add(session.executeAsync(boundStatement));
+            }
+        }
+        MoreFutures.waitForAll(futures);
+        return count;
+    }
+
+    private List<BoundStatement> getRawCountReadStatements(String agentRollupId,
+            TraceQuery query, int rollupLevel, List<Long> captureTimes) {
+        long intervalMillis = rollupIntervalMillis.get(rollupLevel);
+        String transactionName = query.transactionName();
+        PreparedStatement slowCountStatement =
+                transactionName == null ? readOverallSlowCount : readTransactionSlowCount;
+        PreparedStatement errorCountStatement =
+                transactionName == null ? readOverallErrorCount : readTransactionErrorCount;
+        List<BoundStatement> boundStatements = Lists.newArrayList();
+        for (long captureTime : captureTimes) {
+            TraceQuery intervalQuery =
+                    withTimeRange(query, captureTime - intervalMillis, captureTime);
+            for (long timeBucket = getTimeBucket(intervalQuery.from()); timeBucket <= captureTime;
+                    timeBucket += TIME_BUCKET_MILLIS) {
+                BoundStatement boundStatement = slowCountStatement.bind();
+                bindTraceQuery(boundStatement, agentRollupId, intervalQuery, timeBucket);
+                boundStatements.add(boundStatement);
+                boundStatement = errorCountStatement.bind();
+                bindTraceQuery(boundStatement, agentRollupId, intervalQuery, timeBucket);
+                boundStatements.add(boundStatement);
+            }
+        }
+        return boundStatements;
+    }
+
+    private List<Counts> readRawCounts(List<BoundStatement> boundStatements, int rollupLevel,
+            List<Long> captureTimes) {
+        long intervalMillis = rollupIntervalMillis.get(rollupLevel);
+        Iterator<ResultSet> results = executeBounded(boundStatements).iterator();
+        List<Counts> countsList = Lists.newArrayList();
+        for (long captureTime : captureTimes) {
+            Counts counts = new Counts();
+            for (long timeBucket = getTimeBucket(captureTime - intervalMillis);
+                    timeBucket <= captureTime; timeBucket += TIME_BUCKET_MILLIS) {
+                counts.slowCount += checkNotNull(results.next().one()).getLong(0);
+                counts.errorCount += checkNotNull(results.next().one()).getLong(0);
+            }
+            countsList.add(counts);
+        }
+        return countsList;
+    }
+
+    private static int bindCountRollupKey(BoundStatement boundStatement, String agentRollupId,
+            TraceQuery query, long captureTime) {
+        int i = 0;
+        boundStatement.setString(i++, agentRollupId);
+        boundStatement.setString(i++, query.transactionType());
+        String transactionName = query.transactionName();
+        if (transactionName != null) {
+            boundStatement.setString(i++, transactionName);
+        }
+        boundStatement.setTimestamp(i++, new Date(captureTime));
+        return i;
+    }
+
+    // the cached counts of settled rollup intervals that include the trace (or the prior partial
+    // trace that it replaced) are deleted, so that they will be re-computed on next read, this only
+    // happens for traces that are stored late, e.g. after an agent reconnects
+    private ListenableFuture<?> invalidateCountRollups(List<String> agentRollupIds,
+            Trace.Header header, @Nullable Trace.Header priorHeader) {
+        List<Trace.Header> headers = Lists.newArrayList();
+        if (header.getSlow() || header.hasError() && !header.getPartial()) {
+            headers.add(header);
+        }
+        if (priorHeader != null && header.getSlow()) {
+            headers.add(priorHeader);
+        }
+        long settledTo = clock.currentTimeMillis() - COUNT_ROLLUP_SETTLE_MILLIS;
+        List<ResultSetFuture> futures = Lists.newArrayList();
+        for (Trace.Header invalidHeader : headers) {
+            for (int rollupLevel = 0; rollupLevel < rollupIntervalMillis.size(); rollupLevel++) {
+                long captureTime = RollupLevelService.getCeilRollupTime(
+                        invalidHeader.getCaptureTime(), rollupIntervalMillis.get(rollupLevel));
+                if (captureTime > settledTo) {
+                    continue;
+                }
+                for (String agentRollupId : agentRollupIds) {
+                    BoundStatement boundStatement =
+                            deleteOverallCountRollup.get(rollupLevel).bind();
+                    int i = 0;
+                    boundStatement.setString(i++, agentRollupId);
+                    boundStatement.setString(i++, invalidHeader.getTransactionType());
+                    boundStatement.setTimestamp(i++, new Date(captureTime));
+                    futures.add(session.executeAsync(boundStatement));
+
+                    boundStatement = deleteTransactionCountRollup.get(rollupLevel).bind();
+                    i = 0;
+                    boundStatement.setString(i++, agentRollupId);
+                    boundStatement.setString(i++, invalidHeader.getTransactionType());
+                    boundStatement.setString(i++, invalidHeader.getTransactionName());
+                    boundStatement.setTimestamp(i++, new Date(captureTime));
+                    futures.add(session.executeAsync(boundStatement));
+                }
+            }
+        }
+        return MoreFutures.allAsync(futures);
+    }
+
+    // executes the statements with bounded concurrency (so that wide time ranges do not flood the
+    // driver request queue), returning the result sets in statement order
+    private List<ResultSet> executeBounded(List<BoundStatement> boundStatements) {
+        List<ResultSet> results = Lists.newArrayList();
+        Deque<ResultSetFuture> futures = new ArrayDeque<>();
+        for (BoundStatement boundStatement : boundStatements) {
+            if (futures.size() == MAX_CONCURRENT_TIME_BUCKET_READS) {
+                results.add(futures.remove().getUninterruptibly());
+            }
+            futures.add(session.executeAsync(boundStatement));
+        }
+        while (!futures.isEmpty()) {
+            results.add(futures.remove().getUninterruptibly());
+        }
+        return results;
+    }
+
     private int getTTL() throws Exception {
         return Ints.saturatedCast(
                 HOURS.toSeconds(configRepository.getStorageConfig().traceExpirationHours()));
@@ -981,12 +1509,40 @@ public class TraceDao implements TraceRepository {
         if (!overall) {
             boundStatement.setString(i++, header.getTransactionName());
         }
+        boundStatement.setTimestamp(i++, new Date(getTimeBucket(header.getCaptureTime())));
         boundStatement.setTimestamp(i++, new Date(header.getCaptureTime()));
         boundStatement.setString(i++, agentId);
         boundStatement.setString(i++, traceId);
         return i;
     }
 
+    private static void bindAttributeIndex(BoundStatement boundStatement, String agentRollupId,
+            String agentId, String traceId, Trace.Header header, AttributeKey attributeKey,
+            int adjustedTTL) {
+        int i = 0;
+        boundStatement.setString(i++, agentRollupId);
+        boundStatement.setString(i++, header.getTransactionType());
+        boundStatement.setString(i++, attributeKey.name());
+        boundStatement.setString(i++, attributeKey.value());
+        boundStatement.setTimestamp(i++, new Date(getTimeBucket(header.getCaptureTime())));
+        boundStatement.setTimestamp(i++, new Date(header.getCaptureTime()));
+        boundStatement.setString(i++, agentId);
+        boundStatement.setString(i++, traceId);
+        boundStatement.setString(i++, header.getTransactionName());
+        boundStatement.setLong(i++, header.getDurationNanos());
+        boundStatement.setBool(i++, header.getPartial());
+        boundStatement.setBool(i++, header.getSlow());
+        boundStatement.setBool(i++, header.hasError());
+        if (header.hasError() && !header.getPartial()) {
+            boundStatement.setString(i++, header.getError().getMessage());
+        } else {
+            boundStatement.setToNull(i++);
+        }
+        boundStatement.setString(i++, header.getHeadline());
+        boundStatement.setString(i++, Strings.emptyToNull(header.getUser()));
+        boundStatement.setInt(i++, adjustedTTL);
+    }
+
     private static void bindThreadProfile(BoundStatement boundStatement, String agentId,
             String traceId, Profile profile, int adjustedTTL) {
         int i = 0;
@@ -997,21 +1553,23 @@ public class TraceDao implements TraceRepository {
     }
 
     private static void bindTraceQuery(BoundStatement boundStatement, String agentRollupId,
-            TraceQuery query, boolean overall) {
+            TraceQuery query, long timeBucket) {
         int i = 0;
         boundStatement.setString(i++, agentRollupId);
         boundStatement.setString(i++, query.transactionType());
         String transactionName = query.transactionName();
-        if (!overall) {
+        if (transactionName != null) {
             boundStatement.setString(i++, transactionName);
         }
+        boundStatement.setTimestamp(i++, new Date(timeBucket));
         boundStatement.setTimestamp(i++, new Date(query.from()));
         boundStatement.setTimestamp(i++, new Date(query.to()));
     }
 
-    private static Result<TracePoint> processPoints(ResultSet results, TracePointFilter filter,
-            int limit, boolean errorPoints) throws IOException {
-        List<TracePoint> tracePoints = Lists.newArrayList();
+    private static Result<TracePoint> processPoints(Iterable<Row> results,
+            TracePointFilter filter, int limit, boolean errorPoints) throws IOException {
+        boolean hasAttributeFilter = filter.hasAttributeFilter();
+        TopTracePoints topTracePoints = new TopTracePoints(limit);
         for (Row row : results) {
             int i = 0;
             String agentId = checkNotNull(row.getString(i++));
@@ -1025,60 +1583,103 @@ public class TraceDao implements TraceRepository {
             // headline is null for data inserted prior to 0.9.7
             String headline = Strings.nullToEmpty(row.getString(i++));
             String user = Strings.nullToEmpty(row.getString(i++));
-            ByteBuffer attributeBytes = row.getBytes(i++);
-            List<Trace.Attribute> attrs =
-                    Messages.parseDelimitedFrom(attributeBytes, Trace.Attribute.parser());
-            Map<String, List<String>> attributes = attrs.stream().collect(
-                    Collectors.toMap(Trace.Attribute::getName, Trace.Attribute::getValueList));
-            if (filter.matchesHeadline(headline)
-                    && filter.matchesError(errorMessage)
-                    && filter.matchesUser(user)
-                    && filter.matchesAttributes(attributes)) {
-                tracePoints.add(ImmutableTracePoint.builder()
-                        .agentId(agentId)
-                        .traceId(traceId)
-                        .captureTime(captureTime)
-                        .durationNanos(durationNanos)
-                        .partial(partial)
-                        .error(error)
-                        .build());
+            // cheapest filters first, attributes are only parsed when there is an attribute filter
+            if (!filter.matchesHeadline(headline) || !filter.matchesError(errorMessage)
+                    || !filter.matchesUser(user)) {
+                continue;
             }
+            if (hasAttributeFilter) {
+                ByteBuffer attributeBytes = row.getBytes(i++);
+                List<Trace.Attribute> attrs =
+                        Messages.parseDelimitedFrom(attributeBytes, Trace.Attribute.parser());
+                Map<String, List<String>> attributes = attrs.stream().collect(
+                        Collectors.toMap(Trace.Attribute::getName, Trace.Attribute::getValueList));
+                if (!filter.matchesAttributes(attributes)) {
+                    continue;
+                }
+            }
+            topTracePoints.add(ImmutableTracePoint.builder()
+                    .agentId(agentId)
+                    .traceId(traceId)
+                    .captureTime(captureTime)
+                    .durationNanos(durationNanos)
+                    .partial(partial)
+                    .error(error)
+                    .build());
         }
-        // remove duplicates (partially stored traces) since there is (small) window between updated
-        // insert (with new capture time) and the delete of prior insert (with prior capture time)
-        Set<TraceKey> traceKeys = Sets.newHashSet();
-        ListIterator<TracePoint> i = tracePoints.listIterator(tracePoints.size());
-        while (i.hasPrevious()) {
-            TracePoint trace = i.previous();
-            TraceKey traceKey = ImmutableTraceKey.of(trace.agentId(), trace.traceId());
-            if (!traceKeys.add(traceKey)) {
-                i.remove();
+        return topTracePoints.getResult();
+    }
+
+    // attribute matching is case insensitive, so the index is keyed by upper case name and value
+    static Set<AttributeKey> getIndexedAttributes(List<Trace.Attribute> attributes) {
+        Set<AttributeKey> attributeKeys = Sets.newLinkedHashSet();
+        for (Trace.Attribute attribute : attributes) {
+            String name = upper(attribute.getName());
+            for (String value : attribute.getValueList()) {
+                if (!value.isEmpty() && value.length() <= MAX_INDEXED_ATTRIBUTE_VALUE_LENGTH) {
+                    attributeKeys.add(ImmutableAttributeKey.of(name, upper(value)));
+                }
             }
         }
-        // apply limit and re-sort if needed
-        if (tracePoints.size() > limit) {
-            tracePoints = tracePoints.stream()
-                    .sorted(Comparator.comparingLong(TracePoint::durationNanos).reversed())
-                    .limit(limit)
-                    .sorted(Comparator.comparingLong(TracePoint::captureTime))
-                    // explicit type on this line is needed for Checker Framework
-                    // see https://github.com/typetools/checker-framework/issues/531
-                    .collect(Collectors.<TracePoint>toList());
-            return new Result<>(tracePoints, true);
-        } else {
-            return new Result<>(tracePoints, false);
+        return attributeKeys;
+    }
+
+    private static Set<AttributeKey> getIndexedAttributes(Trace.Header header) {
+        return getIndexedAttributes(header.getAttributeList());
+    }
+
+    // only exact match attribute searches can use the attribute index
+    private static @Nullable AttributeKey getIndexedAttributeKey(TracePointFilter filter) {
+        String attributeName = filter.attributeName();
+        String attributeValue = filter.attributeValue();
+        if (Strings.isNullOrEmpty(attributeName) || Strings.isNullOrEmpty(attributeValue)
+                || filter.attributeValueComparator() != StringComparator.EQUALS
+                || attributeValue.length() > MAX_INDEXED_ATTRIBUTE_VALUE_LENGTH) {
+            return null;
+        }
+        return ImmutableAttributeKey.of(upper(attributeName), upper(attributeValue));
+    }
+
+    private static String upper(String str) {
+        return str.toUpperCase(Locale.ENGLISH);
+    }
+
+    private static TraceQuery withTimeRange(TraceQuery query, long from, long to) {
+        return ImmutableTraceQuery.builder()
+                .copyFrom(query)
+                .from(from)
+                .to(to)
+                .build();
+    }
+
+    private static String getOverallCountRollupTableName(int rollupLevel) {
+        return "trace_tt_count_rollup_" + rollupLevel;
+    }
+
+    private static String getTransactionCountRollupTableName(int rollupLevel) {
+        return "trace_tn_count_rollup_" + rollupLevel;
+    }
+
+    static long getTimeBucket(long captureTime) {
+        return captureTime - captureTime % TIME_BUCKET_MILLIS;
+    }
+
+    private static long sumCounts(Iterable<Row> rows) {
+        long count = 0;
+        for (Row row : rows) {
+            count += row.getLong(0);
         }
+        return count;
     }
 
     private static boolean matches(ErrorMessageFilter filter, String errorMessage) {
-        String upper = errorMessage.toUpperCase(Locale.ENGLISH);
         for (String include : filter.includes()) {
-            if (!upper.contains(include.toUpperCase(Locale.ENGLISH))) {
+            if (!StringComparator.CONTAINS.matches(errorMessage, include)) {
                 return false;
             }
         }
         for (String exclude : filter.excludes()) {
-            if (upper.contains(exclude.toUpperCase(Locale.ENGLISH))) {
+            if (StringComparator.CONTAINS.matches(errorMessage, exclude)) {
                 return false;
             }
         }
@@ -1092,6 +1693,112 @@ public class TraceDao implements TraceRepository {
         String traceId();
     }
 
+    @Value.Immutable
+    @Styles.AllParameters
+    interface AttributeKey {
+        String name();
+        String value();
+    }
+
+    // retains only the top trace points by duration, so that memory is bounded by the limit instead
+    // of by the number of matching trace points in the time range
+    private static class TopTracePoints {
+
+        private final int limit;
+
+        private final PriorityQueue<TracePoint> queue =
+                new PriorityQueue<>(Comparator.comparingLong(TracePoint::durationNanos));
+        private final Map<TraceKey, TracePoint> retained = Maps.newHashMap();
+
+        private boolean limitExceeded;
+
+        private TopTracePoints(int limit) {
+            this.limit = limit;
+        }
+
+        private void add(TracePoint tracePoint) {
+            TraceKey traceKey = ImmutableTraceKey.of(tracePoint.agentId(), tracePoint.traceId());
+            // remove duplicates (partially stored traces) since there is (small) window between
+            // updated insert (with new capture time) and the delete of prior insert (with prior
+            // capture time)
+            TracePoint priorTracePoint = retained.remove(traceKey);
+            if (priorTracePoint != null) {
+                queue.remove(priorTracePoint);
+            }
+            if (queue.size() < limit) {
+                queue.add(tracePoint);
+                retained.put(traceKey, tracePoint);
+                return;
+            }
+            limitExceeded = true;
+            TracePoint shortest = queue.peek();
+            if (shortest != null && tracePoint.durationNanos() > shortest.durationNanos()) {
+                queue.poll();
+                retained.remove(ImmutableTraceKey.of(shortest.agentId(), shortest.traceId()));
+                queue.add(tracePoint);
+                retained.put(traceKey, tracePoint);
+            }
+        }
+
+        private Result<TracePoint> getResult() {
+            List<TracePoint> tracePoints = queue.stream()
+                    .sorted(Comparator.comparingLong(TracePoint::captureTime))
+                    // explicit type on this line is needed for Checker Framework
+                    // see https://github.com/typetools/checker-framework/issues/531
+                    .collect(Collectors.<TracePoint>toList());
+            return new Result<>(tracePoints, limitExceeded);
+        }
+    }
+
+    // reads the time buckets in parallel (bounded, so that wide time ranges do not flood the
+    // driver request queue), returning the result sets in time bucket order so that rows are
+    // returned in capture time order
+    private class TimeBucketReads implements Iterator<ResultSet> {
+
+        private final LongFunction<BoundStatement> boundStatementForTimeBucket;
+        private final long lastTimeBucket;
+
+        private final Deque<ResultSetFuture> futures = new ArrayDeque<>();
+
+        private long nextTimeBucket;
+
+        private TimeBucketReads(LongFunction<BoundStatement> boundStatementForTimeBucket,
+                long firstTimeBucket, long lastTimeBucket) {
+            this.boundStatementForTimeBucket = boundStatementForTimeBucket;
+            this.lastTimeBucket = lastTimeBucket;
+            nextTimeBucket = firstTimeBucket;
+            while (nextTimeBucket <= lastTimeBucket
+                    && futures.size() < MAX_CONCURRENT_TIME_BUCKET_READS) {
+                readNextTimeBucket();
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !futures.isEmpty();
+        }
+
+        @Override
+        public ResultSet next() {
+            ResultSetFuture future = futures.remove();
+            if (nextTimeBucket <= lastTimeBucket) {
+                readNextTimeBucket();
+            }
+            return future.getUninterruptibly();
+        }
+
+        private void readNextTimeBucket() {
+            futures.add(session.executeAsync(
+                    boundStatementForTimeBucket.apply(nextTimeBucket)));
+            nextTimeBucket += TIME_BUCKET_MILLIS;
+        }
+    }
+
+    private static class Counts {
+        private long slowCount;
+        private long errorCount;
+    }
+
     private static class MutableLong {
         private long value;
         private void increment() {
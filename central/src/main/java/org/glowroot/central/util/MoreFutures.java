@@ -17,8 +17,18 @@ package org.glowroot.central.util;
 
 import java.util.List;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
+import javax.annotation.Nullable;
+
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -47,4 +57,56 @@ public class MoreFutures {
             throw exception;
         }
     }
+
+    // non-blocking version of waitForAll(), the returned future completes once all of the futures
+    // have completed, and fails with the first failure (if any)
+    public static ListenableFuture<?> allAsync(List<? extends ListenableFuture<?>> futures) {
+        if (futures.isEmpty()) {
+            return Futures.immediateFuture(null);
+        }
+        SettableFuture<?> result = SettableFuture.create();
+        AtomicInteger remaining = new AtomicInteger(futures.size());
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        for (ListenableFuture<?> future : futures) {
+            future.addListener(() -> {
+                try {
+                    future.get();
+                } catch (InterruptedException | ExecutionException e) {
+                    logger.debug(e.getMessage(), e);
+                    failure.compareAndSet(null, e instanceof ExecutionException
+                            && e.getCause() != null ? e.getCause() : e);
+                }
+                if (remaining.decrementAndGet() == 0) {
+                    Throwable t = failure.get();
+                    if (t == null) {
+                        result.set(null);
+                    } else {
+                        result.setException(t);
+                    }
+                }
+            }, MoreExecutors.directExecutor());
+        }
+        return result;
+    }
+
+    // the function is run on the given executor, and not on the thread that completes the future
+    // (typically a cassandra driver I/O thread), since functions can block (e.g. reading config)
+    //
+    // if the executor rejects the function, the returned future fails with
+    // RejectedExecutionException
+    public static <V> ListenableFuture<?> transformAsync(ListenableFuture<V> future,
+            DoAsync<V> function, Executor executor) {
+        return Futures.transformAsync(future, new AsyncFunction<V, Object>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public ListenableFuture<Object> apply(@Nullable V input) throws Exception {
+                return (ListenableFuture<Object>) function.apply(input);
+            }
+        }, executor);
+    }
+
+    @FunctionalInterface
+    public interface DoAsync<V> {
+        ListenableFuture<?> apply(@Nullable V input) throws Exception;
+    }
 }
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+import java.nio.ByteBuffer;
+
+import com.google.protobuf.ByteString;
+import org.HdrHistogram.Histogram;
+import org.junit.Test;
+
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AggregateDictionaryDecoderTest {
+
+    @Test
+    public void shouldDecode() throws Exception {
+        // given
+        AggregateDictionaryDecoder decoder = new AggregateDictionaryDecoder();
+        decoder.addSharedString("http request");
+        decoder.addSharedString("jdbc query");
+        decoder.addSharedString("HTTP");
+        Aggregate aggregate = Aggregate.newBuilder()
+                .addMainThreadRootTimer(Aggregate.Timer.newBuilder()
+                        .setNameIndex(0)
+                        .setCount(1)
+                        .addChildTimer(Aggregate.Timer.newBuilder()
+                                .setNameIndex(1)
+                                .setCount(2)))
+                .addServiceCallsByType(Aggregate.ServiceCallsByType.newBuilder()
+                        .setTypeIndex(2))
+                .setDurationNanosHistogram(Aggregate.Histogram.newBuilder()
+                        .addOrderedRawValueDelta(1000)
+                        .addOrderedRawValueDelta(500)
+                        .addOrderedRawValueDelta(2500))
+                .build();
+
+        // when
+        Aggregate decoded = decoder.decode(aggregate);
+
+        // then
+        Aggregate.Timer rootTimer = decoded.getMainThreadRootTimer(0);
+        assertThat(rootTimer.getName()).isEqualTo("http request");
+        assertThat(rootTimer.getChildTimer(0).getName()).isEqualTo("jdbc query");
+        assertThat(rootTimer.getChildTimer(0).getCount()).isEqualTo(2);
+        assertThat(decoded.getServiceCallsByType(0).getType()).isEqualTo("HTTP");
+        assertThat(decoded.getServiceCallsByType(0).getTypeIndex()).isEqualTo(0);
+        assertThat(decoded.getDurationNanosHistogram().getOrderedRawValueList())
+                .containsExactly(1000L, 1500L, 4000L);
+    }
+
+    @Test
+    public void shouldDecodeCompressedHistogram() throws Exception {
+        // given
+        Histogram histogram = new Histogram(1000, 2000, 5);
+        histogram.setAutoResize(true);
+        for (int i = 0; i < 10000; i++) {
+            histogram.recordValue(i * 1000);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(histogram.getNeededByteBufferCapacity());
+        int size = histogram.encodeIntoCompressedByteBuffer(buffer);
+        buffer.flip();
+        Aggregate aggregate = Aggregate.newBuilder()
+                .setDurationNanosHistogram(Aggregate.Histogram.newBuilder()
+                        .setCompressedEncodedBytes(ByteString.copyFrom(buffer, size)))
+                .build();
+
+        // when
+        Aggregate decoded = new AggregateDictionaryDecoder().decode(aggregate);
+
+        // then
+        ByteString encodedBytes = decoded.getDurationNanosHistogram().getEncodedBytes();
+        assertThat(decoded.getDurationNanosHistogram().getCompressedEncodedBytes()).isEmpty();
+        Histogram decodedHistogram =
+                Histogram.decodeFromByteBuffer(encodedBytes.asReadOnlyByteBuffer(), 0);
+        assertThat(decodedHistogram.getTotalCount()).isEqualTo(10000);
+        assertThat(decodedHistogram.getValueAtPercentile(50))
+                .isEqualTo(histogram.getValueAtPercentile(50));
+    }
+}
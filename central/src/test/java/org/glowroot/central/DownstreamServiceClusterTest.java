@@ -0,0 +1,349 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.Maps;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.ServerInterceptors;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.netty.NettyChannelBuilder;
+import io.grpc.netty.NettyServerBuilder;
+import io.grpc.stub.MetadataUtils;
+import io.grpc.stub.StreamObserver;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.central.repo.AgentDao;
+import org.glowroot.central.repo.AgentNodeRegistry;
+import org.glowroot.central.repo.ConfigDao;
+import org.glowroot.common.live.LiveJvmService.AgentNotConnectedException;
+import org.glowroot.common.live.LiveJvmService.AgentUnsupportedOperationException;
+import org.glowroot.wire.api.model.ClusterServiceGrpc;
+import org.glowroot.wire.api.model.ClusterServiceOuterClass.ForwardedDownstreamRequest;
+import org.glowroot.wire.api.model.DownstreamServiceGrpc;
+import org.glowroot.wire.api.model.DownstreamServiceOuterClass.AgentResponse;
+import org.glowroot.wire.api.model.DownstreamServiceOuterClass.CentralRequest;
+import org.glowroot.wire.api.model.DownstreamServiceOuterClass.Hello;
+import org.glowroot.wire.api.model.DownstreamServiceOuterClass.ThreadDump;
+import org.glowroot.wire.api.model.DownstreamServiceOuterClass.ThreadDumpRequest;
+import org.glowroot.wire.api.model.DownstreamServiceOuterClass.ThreadDumpResponse;
+import org.glowroot.wire.api.model.DownstreamServiceOuterClass.UnknownRequestResponse;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+// multiple central nodes in a single jvm, sharing an in-memory agent node registry
+public class DownstreamServiceClusterTest {
+
+    private static final String CLUSTER_SECRET = "abc";
+
+    private InMemoryAgentNodeRegistry agentNodeRegistry;
+    private Node node1;
+    private Node node2;
+    private Node node3;
+    private FakeAgent agent;
+
+    @Before
+    public void beforeEachTest() throws Exception {
+        agentNodeRegistry = new InMemoryAgentNodeRegistry();
+        node1 = new Node(agentNodeRegistry, CLUSTER_SECRET);
+        node2 = new Node(agentNodeRegistry, CLUSTER_SECRET);
+        node3 = new Node(agentNodeRegistry, CLUSTER_SECRET);
+        agent = new FakeAgent("agent1", node1.agentAddress);
+    }
+
+    @After
+    public void afterEachTest() throws Exception {
+        agent.close();
+        node1.close();
+        node2.close();
+        node3.close();
+    }
+
+    @Test
+    public void shouldRouteToNodeHoldingAgentConnection() throws Exception {
+        // when
+        ThreadDump threadDump1 = node1.downstreamService.threadDump("agent1");
+        ThreadDump threadDump2 = node2.downstreamService.threadDump("agent1");
+        ThreadDump threadDump3 = node3.downstreamService.threadDump("agent1");
+
+        // then
+        assertThat(agentNodeRegistry.getNodeAddress("agent1")).isEqualTo(node1.address);
+        assertThat(node2.downstreamService.isAvailable("agent1")).isTrue();
+        assertThat(threadDump1.getTransaction(0).getHeadline()).isEqualTo("agent1");
+        assertThat(threadDump2.getTransaction(0).getHeadline()).isEqualTo("agent1");
+        assertThat(threadDump3.getTransaction(0).getHeadline()).isEqualTo("agent1");
+    }
+
+    @Test
+    public void shouldPropagateUnsupportedOperation() throws Exception {
+        // when
+        Exception exception = null;
+        try {
+            node2.downstreamService.gc("agent1");
+        } catch (Exception e) {
+            exception = e;
+        }
+
+        // then
+        assertThat(exception).isInstanceOf(AgentUnsupportedOperationException.class);
+    }
+
+    @Test
+    public void shouldNotRouteAfterAgentDisconnects() throws Exception {
+        // when
+        agent.close();
+        for (int i = 0; i < 500 && agentNodeRegistry.getNodeAddress("agent1") != null; i++) {
+            Thread.sleep(10);
+        }
+        Exception exception = null;
+        try {
+            node2.downstreamService.threadDump("agent1");
+        } catch (Exception e) {
+            exception = e;
+        }
+
+        // then
+        assertThat(node2.downstreamService.isAvailable("agent1")).isFalse();
+        assertThat(exception).isInstanceOf(AgentNotConnectedException.class);
+    }
+
+    @Test
+    public void shouldNotRouteForUnknownAgent() throws Exception {
+        // when
+        Exception exception = null;
+        try {
+            node2.downstreamService.threadDump("agent2");
+        } catch (Exception e) {
+            exception = e;
+        }
+
+        // then
+        assertThat(node2.downstreamService.isAvailable("agent2")).isFalse();
+        assertThat(exception).isInstanceOf(AgentNotConnectedException.class);
+    }
+
+    @Test
+    public void shouldNotForwardToStaleNode() throws Exception {
+        // given
+        agentNodeRegistry.register("agent2", node3.address);
+
+        // when
+        Exception exception = null;
+        try {
+            node2.downstreamService.threadDump("agent2");
+        } catch (Exception e) {
+            exception = e;
+        }
+
+        // then
+        assertThat(exception).isInstanceOf(AgentNotConnectedException.class);
+    }
+
+    @Test
+    public void shouldNotForwardWithWrongClusterSecret() throws Exception {
+        // given
+        Node otherNode = new Node(agentNodeRegistry, "xyz");
+
+        // when
+        Exception exception = null;
+        try {
+            otherNode.downstreamService.threadDump("agent1");
+        } catch (Exception e) {
+            exception = e;
+        } finally {
+            otherNode.close();
+        }
+
+        // then
+        assertThat(exception).isInstanceOf(StatusRuntimeException.class);
+        assertThat(((StatusRuntimeException) exception).getStatus().getCode())
+                .isEqualTo(Status.Code.UNAUTHENTICATED);
+    }
+
+    @Test
+    public void shouldNotServeClusterServiceOnAgentPort() throws Exception {
+        // given
+        ManagedChannel channel = NettyChannelBuilder.forTarget(node1.agentAddress)
+                .usePlaintext(true)
+                .build();
+
+        // when
+        Exception exception = null;
+        try {
+            MetadataUtils.attachHeaders(ClusterServiceGrpc.newBlockingStub(channel),
+                    ClusterSecretInterceptor.createHeaders(CLUSTER_SECRET))
+                    .forwardDownstreamRequest(ForwardedDownstreamRequest.newBuilder()
+                            .setAgentId("agent1")
+                            .setRequest(CentralRequest.newBuilder()
+                                    .setThreadDumpRequest(ThreadDumpRequest.getDefaultInstance()))
+                            .build());
+        } catch (Exception e) {
+            exception = e;
+        } finally {
+            channel.shutdown();
+            channel.awaitTermination(10, SECONDS);
+        }
+
+        // then
+        assertThat(exception).isInstanceOf(StatusRuntimeException.class);
+        assertThat(((StatusRuntimeException) exception).getStatus().getCode())
+                .isEqualTo(Status.Code.UNIMPLEMENTED);
+    }
+
+    private static int getAvailablePort() throws IOException {
+        ServerSocket serverSocket = new ServerSocket(0);
+        int port = serverSocket.getLocalPort();
+        serverSocket.close();
+        return port;
+    }
+
+    private static class Node {
+
+        private final String agentAddress;
+        private final String address;
+        private final DownstreamServiceImpl downstreamService;
+        private final Server server;
+        private final Server clusterServer;
+
+        private Node(AgentNodeRegistry agentNodeRegistry, String clusterSecret)
+                throws IOException {
+            int agentPort = getAvailablePort();
+            int clusterPort = getAvailablePort();
+            agentAddress = "localhost:" + agentPort;
+            address = "localhost:" + clusterPort;
+            downstreamService = new DownstreamServiceImpl(mock(AgentDao.class),
+                    mock(ConfigDao.class), address, clusterSecret, agentNodeRegistry);
+            server = NettyServerBuilder.forAddress(new InetSocketAddress("localhost", agentPort))
+                    .addService(downstreamService.bindService())
+                    .build()
+                    .start();
+            clusterServer =
+                    NettyServerBuilder.forAddress(new InetSocketAddress("localhost", clusterPort))
+                            .addService(ServerInterceptors.intercept(
+                                    downstreamService.getClusterService().bindService(),
+                                    new ClusterSecretInterceptor(clusterSecret)))
+                            .build()
+                            .start();
+        }
+
+        private void close() throws InterruptedException {
+            downstreamService.close();
+            server.shutdownNow();
+            clusterServer.shutdownNow();
+            server.awaitTermination(10, SECONDS);
+            clusterServer.awaitTermination(10, SECONDS);
+        }
+    }
+
+    private static class FakeAgent implements StreamObserver<CentralRequest> {
+
+        private final String agentId;
+        private final ManagedChannel channel;
+        private final StreamObserver<AgentResponse> responseObserver;
+        private final CountDownLatch helloAckLatch = new CountDownLatch(1);
+
+        private FakeAgent(String agentId, String centralAddress) throws InterruptedException {
+            this.agentId = agentId;
+            channel = NettyChannelBuilder.forTarget(centralAddress)
+                    .usePlaintext(true)
+                    .build();
+            responseObserver = DownstreamServiceGrpc.newStub(channel).connect(this);
+            synchronized (responseObserver) {
+                responseObserver.onNext(AgentResponse.newBuilder()
+                        .setHello(Hello.newBuilder()
+                                .setAgentId(agentId))
+                        .build());
+            }
+            if (!helloAckLatch.await(10, SECONDS)) {
+                throw new IllegalStateException("Hello ack not received");
+            }
+        }
+
+        @Override
+        public void onNext(CentralRequest request) {
+            if (request.getMessageCase() == CentralRequest.MessageCase.HELLO_ACK) {
+                helloAckLatch.countDown();
+                return;
+            }
+            AgentResponse.Builder response = AgentResponse.newBuilder()
+                    .setRequestId(request.getRequestId());
+            if (request.getMessageCase() == CentralRequest.MessageCase.THREAD_DUMP_REQUEST) {
+                response.setThreadDumpResponse(ThreadDumpResponse.newBuilder()
+                        .setThreadDump(ThreadDump.newBuilder()
+                                .addTransaction(ThreadDump.Transaction.newBuilder()
+                                        .setHeadline(agentId))));
+            } else {
+                response.setUnknownRequestResponse(UnknownRequestResponse.getDefaultInstance());
+            }
+            synchronized (responseObserver) {
+                responseObserver.onNext(response.build());
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {}
+
+        @Override
+        public void onCompleted() {}
+
+        private void close() throws InterruptedException {
+            if (channel.isShutdown()) {
+                return;
+            }
+            synchronized (responseObserver) {
+                responseObserver.onCompleted();
+            }
+            channel.shutdown();
+            channel.awaitTermination(10, SECONDS);
+        }
+    }
+
+    private static class InMemoryAgentNodeRegistry implements AgentNodeRegistry {
+
+        private final Map<String, String> nodeAddresses = Maps.newConcurrentMap();
+
+        @Override
+        public void register(String agentId, String nodeAddress) {
+            nodeAddresses.put(agentId, nodeAddress);
+        }
+
+        @Override
+        public void unregister(String agentId, String nodeAddress) {
+            nodeAddresses.remove(agentId, nodeAddress);
+        }
+
+        @Override
+        public @Nullable String getNodeAddress(String agentId) {
+            return nodeAddresses.get(agentId);
+        }
+
+        @Override
+        public void invalidate(String agentId) {}
+    }
+}
@@ -23,6 +23,7 @@ import com.datastax.driver.core.KeyspaceMetadata;
 import com.datastax.driver.core.Session;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.MoreExecutors;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
@@ -104,7 +105,7 @@ public class AggregateDaoIT {
         TransactionTypeDao transactionTypeDao = new TransactionTypeDao(session, configRepository);
         FullQueryTextDao fullQueryTextDao = new FullQueryTextDao(session, configRepository);
         aggregateDao = new AggregateDao(session, agentDao, transactionTypeDao, fullQueryTextDao,
-                configRepository, Clock.systemClock());
+                configRepository, Clock.systemClock(), MoreExecutors.directExecutor());
     }
 
     @AfterClass
@@ -131,9 +132,9 @@ public class AggregateDaoIT {
         aggregateDao.truncateAll();
         List<Aggregate.SharedQueryText> sharedQueryText = ImmutableList
                 .of(Aggregate.SharedQueryText.newBuilder().setFullText("select 1").build());
-        aggregateDao.store("one", 60000, createData(), sharedQueryText);
-        aggregateDao.store("one", 120000, createData(), sharedQueryText);
-        aggregateDao.store("one", 360000, createData(), sharedQueryText);
+        aggregateDao.store("one", 60000, createData(), sharedQueryText).get();
+        aggregateDao.store("one", 120000, createData(), sharedQueryText).get();
+        aggregateDao.store("one", 360000, createData(), sharedQueryText).get();
 
         // check non-rolled up data
         OverallQuery overallQuery = ImmutableOverallQuery.builder()
@@ -306,9 +307,9 @@ public class AggregateDaoIT {
         aggregateDao.truncateAll();
         List<Aggregate.SharedQueryText> sharedQueryText = ImmutableList
                 .of(Aggregate.SharedQueryText.newBuilder().setFullText("select 1").build());
-        aggregateDao.store("one", 60000, createData(), sharedQueryText);
-        aggregateDao.store("one", 120000, createData(), sharedQueryText);
-        aggregateDao.store("one", 360000, createData(), sharedQueryText);
+        aggregateDao.store("one", 60000, createData(), sharedQueryText).get();
+        aggregateDao.store("one", 120000, createData(), sharedQueryText).get();
+        aggregateDao.store("one", 360000, createData(), sharedQueryText).get();
 
         // rollup
         aggregateDao.rollup("the parent", null, false);
@@ -483,9 +484,9 @@ public class AggregateDaoIT {
         aggregateDao.truncateAll();
         List<Aggregate.SharedQueryText> sharedQueryText = ImmutableList
                 .of(Aggregate.SharedQueryText.newBuilder().setFullText("select 1").build());
-        aggregateDao.store("one", 60000, createData(), sharedQueryText);
-        aggregateDao.store("one", 120000, createData(), sharedQueryText);
-        aggregateDao.store("one", 360000, createData(), sharedQueryText);
+        aggregateDao.store("one", 60000, createData(), sharedQueryText).get();
+        aggregateDao.store("one", 120000, createData(), sharedQueryText).get();
+        aggregateDao.store("one", 360000, createData(), sharedQueryText).get();
 
         // rollup
         aggregateDao.rollup("the gp/the parent", "the gp", false);
@@ -21,6 +21,7 @@ import com.datastax.driver.core.Cluster;
 import com.datastax.driver.core.KeyspaceMetadata;
 import com.datastax.driver.core.Session;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.MoreExecutors;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -62,7 +63,8 @@ public class GaugeValueDaoIT {
                         .copyOf(storageConfig)
                         .withRollupExpirationHours(0, 0, 0, 0),
                 storageConfig.version());
-        gaugeValueDao = new GaugeValueDao(session, agentDao, configRepository, Clock.systemClock());
+        gaugeValueDao = new GaugeValueDao(session, agentDao, configRepository, Clock.systemClock(),
+                MoreExecutors.directExecutor());
     }
 
     @AfterClass
@@ -75,9 +77,9 @@ public class GaugeValueDaoIT {
     @Test
     public void shouldRollup() throws Exception {
         gaugeValueDao.truncateAll();
-        gaugeValueDao.store("one", createData(60013));
-        gaugeValueDao.store("one", createData(65009));
-        gaugeValueDao.store("one", createData(360000));
+        gaugeValueDao.store("one", createData(60013)).get();
+        gaugeValueDao.store("one", createData(65009)).get();
+        gaugeValueDao.store("one", createData(360000)).get();
 
         // check non-rolled up data
         List<GaugeValue> gaugeValues =
@@ -109,9 +111,9 @@ public class GaugeValueDaoIT {
         agentDao.store("one", "the parent");
 
         gaugeValueDao.truncateAll();
-        gaugeValueDao.store("one", createData(60013));
-        gaugeValueDao.store("one", createData(65009));
-        gaugeValueDao.store("one", createData(360000));
+        gaugeValueDao.store("one", createData(60013)).get();
+        gaugeValueDao.store("one", createData(65009)).get();
+        gaugeValueDao.store("one", createData(360000)).get();
 
         // rollup
         gaugeValueDao.rollup("one", "the parent", true);
@@ -131,9 +133,9 @@ public class GaugeValueDaoIT {
         agentDao.store("one", "the gp/the parent");
 
         gaugeValueDao.truncateAll();
-        gaugeValueDao.store("one", createData(60013));
-        gaugeValueDao.store("one", createData(65009));
-        gaugeValueDao.store("one", createData(360000));
+        gaugeValueDao.store("one", createData(60013)).get();
+        gaugeValueDao.store("one", createData(65009)).get();
+        gaugeValueDao.store("one", createData(360000)).get();
 
         // rollup
         gaugeValueDao.rollup("one", "the gp/the parent", true);
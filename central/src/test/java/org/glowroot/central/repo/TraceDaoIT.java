@@ -1,5 +1,5 @@
 /*
- * Copyright 2016 the original author or authors.
+ * Copyright 2016-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,8 +15,11 @@
  */
 package org.glowroot.central.repo;
 
+import java.util.UUID;
+
 import com.datastax.driver.core.Cluster;
 import com.datastax.driver.core.Session;
+import com.google.common.util.concurrent.MoreExecutors;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -29,6 +32,7 @@ import org.glowroot.common.live.LiveTraceRepository.TracePointFilter;
 import org.glowroot.common.live.StringComparator;
 import org.glowroot.common.model.Result;
 import org.glowroot.common.repo.ConfigRepository;
+import org.glowroot.common.repo.ConfigRepository.RollupConfig;
 import org.glowroot.common.repo.ImmutableTraceQuery;
 import org.glowroot.common.repo.TraceRepository.TraceQuery;
 import org.glowroot.common.util.Clock;
@@ -59,9 +63,10 @@ public class TraceDaoIT {
         ConfigRepository configRepository = mock(ConfigRepository.class);
         when(configRepository.getStorageConfig())
                 .thenReturn(ImmutableCentralStorageConfig.builder().build());
+        when(configRepository.getRollupConfigs()).thenReturn(RollupConfig.buildRollupConfigs());
         traceDao = new TraceDao(session, new AgentDao(session), mock(TransactionTypeDao.class),
                 mock(FullQueryTextDao.class), mock(TraceAttributeNameDao.class), configRepository,
-                Clock.systemClock());
+                Clock.systemClock(), MoreExecutors.directExecutor());
     }
 
     @AfterClass
@@ -75,7 +80,7 @@ public class TraceDaoIT {
     public void shouldReadTrace() throws Exception {
         // given
         Trace trace = TraceTestData.createTrace();
-        traceDao.store(AGENT_ID, trace);
+        traceDao.store(AGENT_ID, trace).get();
         TraceQuery query = ImmutableTraceQuery.builder()
                 .transactionType("unit test")
                 .from(0)
@@ -98,11 +103,82 @@ public class TraceDaoIT {
         assertThat(header.getUser()).isEqualTo(trace.getHeader().getUser());
     }
 
+    @Test
+    public void shouldReadTracesAcrossTimeBuckets() throws Exception {
+        // given
+        Trace trace = TraceTestData.createTrace();
+        Trace laterTrace = trace.toBuilder()
+                .setId("later")
+                .setHeader(trace.getHeader().toBuilder()
+                        .setCaptureTime(trace.getHeader().getCaptureTime()
+                                + 2 * TraceDao.TIME_BUCKET_MILLIS))
+                .build();
+        traceDao.store(AGENT_ID, trace).get();
+        traceDao.store(AGENT_ID, laterTrace).get();
+        TraceQuery query = ImmutableTraceQuery.builder()
+                .transactionType("unit test")
+                .from(0)
+                .to(3 * TraceDao.TIME_BUCKET_MILLIS)
+                .build();
+        TracePointFilter filter = ImmutableTracePointFilter.builder().build();
+        TracePointFilter attributeFilter = ImmutableTracePointFilter.builder()
+                .attributeName("abc")
+                .attributeValueComparator(StringComparator.EQUALS)
+                .attributeValue("xyz")
+                .build();
+
+        // when
+        Result<TracePoint> queryResult = traceDao.readSlowPoints(AGENT_ROLLUP, query, filter, 10);
+        Result<TracePoint> indexedQueryResult =
+                traceDao.readSlowPoints(AGENT_ROLLUP, query, attributeFilter, 10);
+        long slowCount = traceDao.readSlowCount(AGENT_ROLLUP, query);
+
+        // then
+        assertThat(queryResult.records()).hasSize(2);
+        assertThat(queryResult.records().get(0).traceId()).isEqualTo(trace.getId());
+        assertThat(queryResult.records().get(1).traceId()).isEqualTo("later");
+        assertThat(indexedQueryResult.records()).hasSize(2);
+        assertThat(indexedQueryResult.records().get(0).traceId()).isEqualTo(trace.getId());
+        assertThat(indexedQueryResult.records().get(1).traceId()).isEqualTo("later");
+        assertThat(slowCount).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldReadCountsAcrossRollupIntervals() throws Exception {
+        // given
+        Trace trace = TraceTestData.createTrace();
+        for (long captureTime : new long[] {30000, 90000, 3 * 3600000 + 30000}) {
+            traceDao.store(AGENT_ID, createCountTestTrace(trace, captureTime)).get();
+        }
+        TraceQuery query = ImmutableTraceQuery.builder()
+                .transactionType("count test")
+                .from(0)
+                .to(7 * 86400000)
+                .build();
+        TraceQuery transactionQuery = ImmutableTraceQuery.builder()
+                .copyFrom(query)
+                .transactionName("test transaction name")
+                .build();
+
+        // when
+        long slowCount = traceDao.readSlowCount(AGENT_ROLLUP, query);
+        long cachedSlowCount = traceDao.readSlowCount(AGENT_ROLLUP, query);
+        long transactionSlowCount = traceDao.readSlowCount(AGENT_ROLLUP, transactionQuery);
+        traceDao.store(AGENT_ID, createCountTestTrace(trace, 2 * 3600000)).get();
+        long lateSlowCount = traceDao.readSlowCount(AGENT_ROLLUP, query);
+
+        // then
+        assertThat(slowCount).isEqualTo(3);
+        assertThat(cachedSlowCount).isEqualTo(3);
+        assertThat(transactionSlowCount).isEqualTo(3);
+        assertThat(lateSlowCount).isEqualTo(4);
+    }
+
     @Test
     public void shouldReadTraceWithAttributeQualifier() throws Exception {
         // given
         Trace trace = TraceTestData.createTrace();
-        traceDao.store(AGENT_ID, trace);
+        traceDao.store(AGENT_ID, trace).get();
         TraceQuery query = ImmutableTraceQuery.builder()
                 .transactionType("unit test")
                 .from(0)
@@ -121,11 +197,34 @@ public class TraceDaoIT {
         assertThat(queryResult.records()).hasSize(1);
     }
 
+    @Test
+    public void shouldReadTraceWithCaseInsensitiveAttributeQualifier() throws Exception {
+        // given
+        Trace trace = TraceTestData.createTrace();
+        traceDao.store(AGENT_ID, trace).get();
+        TraceQuery query = ImmutableTraceQuery.builder()
+                .transactionType("unit test")
+                .from(0)
+                .to(100)
+                .build();
+        TracePointFilter filter = ImmutableTracePointFilter.builder()
+                .attributeName("ABC")
+                .attributeValueComparator(StringComparator.EQUALS)
+                .attributeValue("XYZ")
+                .build();
+
+        // when
+        Result<TracePoint> queryResult = traceDao.readSlowPoints(AGENT_ROLLUP, query, filter, 1);
+
+        // then
+        assertThat(queryResult.records()).hasSize(1);
+    }
+
     @Test
     public void shouldReadTraceWithAttributeQualifier2() throws Exception {
         // given
         Trace trace = TraceTestData.createTrace();
-        traceDao.store(AGENT_ID, trace);
+        traceDao.store(AGENT_ID, trace).get();
         TraceQuery query = ImmutableTraceQuery.builder()
                 .transactionType("unit test")
                 .from(0)
@@ -148,7 +247,7 @@ public class TraceDaoIT {
     public void shouldReadTraceWithAttributeQualifier3() throws Exception {
         // given
         Trace trace = TraceTestData.createTrace();
-        traceDao.store(AGENT_ID, trace);
+        traceDao.store(AGENT_ID, trace).get();
         TraceQuery query = ImmutableTraceQuery.builder()
                 .transactionType("unit test")
                 .from(0)
@@ -171,7 +270,7 @@ public class TraceDaoIT {
     public void shouldNotReadTraceWithNonMatchingAttributeQualifier() throws Exception {
         // given
         Trace trace = TraceTestData.createTrace();
-        traceDao.store(AGENT_ID, trace);
+        traceDao.store(AGENT_ID, trace).get();
         TraceQuery query = ImmutableTraceQuery.builder()
                 .transactionType("unit test")
                 .from(0)
@@ -194,7 +293,7 @@ public class TraceDaoIT {
     public void shouldNotReadTraceWithNonMatchingAttributeQualifier2() throws Exception {
         // given
         Trace trace = TraceTestData.createTrace();
-        traceDao.store(AGENT_ID, trace);
+        traceDao.store(AGENT_ID, trace).get();
         TraceQuery query = ImmutableTraceQuery.builder()
                 .transactionType("unit test")
                 .from(0)
@@ -212,4 +311,13 @@ public class TraceDaoIT {
         // then
         assertThat(queryResult.records()).isEmpty();
     }
+
+    private static Trace createCountTestTrace(Trace trace, long captureTime) {
+        return trace.toBuilder()
+                .setId(UUID.randomUUID().toString())
+                .setHeader(trace.getHeader().toBuilder()
+                        .setTransactionType("count test")
+                        .setCaptureTime(captureTime))
+                .build();
+    }
 }
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.util.List;
+import java.util.UUID;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.Session;
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.central.util.Sessions;
+import org.glowroot.common.config.ImmutableCentralStorageConfig;
+import org.glowroot.common.live.ImmutableTracePointFilter;
+import org.glowroot.common.live.LiveTraceRepository.TracePointFilter;
+import org.glowroot.common.live.StringComparator;
+import org.glowroot.common.repo.ConfigRepository;
+import org.glowroot.common.repo.ConfigRepository.RollupConfig;
+import org.glowroot.common.repo.ImmutableTraceQuery;
+import org.glowroot.common.repo.TraceRepository.TraceQuery;
+import org.glowroot.common.util.Clock;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+// stores traces spread over a day of time buckets (all sharing the same indexed attribute value)
+// and then times trace point, count and indexed attribute reads over the whole day
+public class TraceDaoPerformanceMain {
+
+    private static final Logger logger = LoggerFactory.getLogger(TraceDaoPerformanceMain.class);
+
+    private static final String AGENT_ID = "xyz";
+
+    private static final int TRACE_COUNT = 100000;
+    private static final long TIME_RANGE_MILLIS = 24 * TraceDao.TIME_BUCKET_MILLIS;
+
+    private TraceDaoPerformanceMain() {}
+
+    public static void main(String... args) throws Exception {
+        SharedSetupRunListener.startCassandra();
+        Cluster cluster = Clusters.newCluster();
+        Session session = cluster.newSession();
+        Sessions.createKeyspaceIfNotExists(session, "glowroot_unit_tests");
+        session.execute("use glowroot_unit_tests");
+
+        ConfigRepository configRepository = mock(ConfigRepository.class);
+        when(configRepository.getStorageConfig())
+                .thenReturn(ImmutableCentralStorageConfig.builder().build());
+        when(configRepository.getRollupConfigs()).thenReturn(RollupConfig.buildRollupConfigs());
+        TraceDao traceDao = new TraceDao(session, new AgentDao(session),
+                mock(TransactionTypeDao.class), mock(FullQueryTextDao.class),
+                mock(TraceAttributeNameDao.class), configRepository, Clock.systemClock(),
+                MoreExecutors.directExecutor());
+
+        Trace trace = TraceTestData.createTrace();
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        List<ListenableFuture<?>> futures = Lists.newArrayList();
+        for (int i = 0; i < TRACE_COUNT; i++) {
+            futures.add(traceDao.store(AGENT_ID, trace.toBuilder()
+                    .setId(UUID.randomUUID().toString())
+                    .setHeader(trace.getHeader().toBuilder()
+                            .setCaptureTime(i * TIME_RANGE_MILLIS / TRACE_COUNT))
+                    .build()));
+            // limit the number of outstanding stores
+            if (futures.size() >= 100) {
+                Futures.allAsList(futures).get();
+                futures.clear();
+            }
+        }
+        Futures.allAsList(futures).get();
+        logger.info("store elapsed time: {}", stopwatch.elapsed(MILLISECONDS));
+
+        TraceQuery query = ImmutableTraceQuery.builder()
+                .transactionType("unit test")
+                .from(0)
+                .to(TIME_RANGE_MILLIS)
+                .build();
+        TracePointFilter filter = ImmutableTracePointFilter.builder().build();
+        TracePointFilter attributeFilter = ImmutableTracePointFilter.builder()
+                .attributeName("abc")
+                .attributeValueComparator(StringComparator.EQUALS)
+                .attributeValue("xyz")
+                .build();
+        for (int i = 0; i < 10; i++) {
+            stopwatch = Stopwatch.createStarted();
+            traceDao.readSlowPoints(AGENT_ID, query, filter, 500);
+            logger.info("read slow points elapsed time: {}", stopwatch.elapsed(MILLISECONDS));
+            stopwatch = Stopwatch.createStarted();
+            traceDao.readSlowPoints(AGENT_ID, query, attributeFilter, 500);
+            logger.info("read indexed slow points elapsed time: {}",
+                    stopwatch.elapsed(MILLISECONDS));
+            stopwatch = Stopwatch.createStarted();
+            traceDao.readSlowCount(AGENT_ID, query);
+            logger.info("read slow count elapsed time: {}", stopwatch.elapsed(MILLISECONDS));
+        }
+
+        session.close();
+        cluster.close();
+        SharedSetupRunListener.stopCassandra();
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2016 the original author or authors.
+ * Copyright 2016-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -96,6 +96,9 @@ public interface LiveAggregateRepository {
         // aggregates use double instead of long to avoid (unlikely) 292 year nanosecond rollover
         double totalDurationNanos();
         long transactionCount();
+        // number of slow and error traces that were not stored, e.g. due to the max traces stored
+        // per minute limit
+        long unstoredTraceCount();
         boolean asyncTransactions();
         List<Aggregate.Timer> mainThreadRootTimers();
         List<Aggregate.Timer> auxThreadRootTimers();
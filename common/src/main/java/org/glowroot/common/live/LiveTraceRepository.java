@@ -100,10 +100,15 @@ public interface LiveTraceRepository {
             return matchesUsingStringComparator(user, user(), userComparator());
         }
 
+        // attributes are the most expensive to match (and for stored trace points, to read), so
+        // this can be used to avoid reading them when there is no attribute filter
+        public boolean hasAttributeFilter() {
+            return !Strings.isNullOrEmpty(attributeName()) || (attributeValueComparator() != null
+                    && !Strings.isNullOrEmpty(attributeValue()));
+        }
+
         public boolean matchesAttributes(Map<String, ? extends Collection<String>> attributes) {
-            if (Strings.isNullOrEmpty(attributeName()) && (attributeValueComparator() == null
-                    || Strings.isNullOrEmpty(attributeValue()))) {
-                // no custom attribute filter
+            if (!hasAttributeFilter()) {
                 return true;
             }
             for (Entry<String, ? extends Collection<String>> entry : attributes.entrySet()) {
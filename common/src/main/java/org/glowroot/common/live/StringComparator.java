@@ -24,7 +24,7 @@ public enum StringComparator {
     BEGINS("like", "%s%%") {
         @Override
         public boolean matches(String text, String partial) {
-            return upper(text).startsWith(upper(partial));
+            return text.regionMatches(true, 0, partial, 0, partial.length());
         }
     },
     EQUALS("=", "%s") {
@@ -36,19 +36,20 @@ public enum StringComparator {
     ENDS("like", "%%%s") {
         @Override
         public boolean matches(String text, String partial) {
-            return upper(text).endsWith(upper(partial));
+            return text.regionMatches(true, text.length() - partial.length(), partial, 0,
+                    partial.length());
         }
     },
     CONTAINS("like", "%%%s%%") {
         @Override
         public boolean matches(String text, String partial) {
-            return upper(text).contains(upper(partial));
+            return containsIgnoringCase(text, partial);
         }
     },
     NOT_CONTAINS("not like", "%%%s%%") {
         @Override
         public boolean matches(String text, String partial) {
-            return !upper(text).contains(upper(partial));
+            return !containsIgnoringCase(text, partial);
         }
     };
 
@@ -69,8 +70,21 @@ public enum StringComparator {
         return comparator;
     }
 
+    // matching is case insensitive, and is performed without upper casing (copying) the text
+    // since this is applied to large numbers of trace points when filtering
     public abstract boolean matches(String text, String partial);
 
+    private static boolean containsIgnoringCase(String text, String partial) {
+        int partialLength = partial.length();
+        int max = text.length() - partialLength;
+        for (int i = 0; i <= max; i++) {
+            if (text.regionMatches(true, i, partial, 0, partialLength)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private static String upper(String str) {
         return str.toUpperCase(Locale.ENGLISH);
     }
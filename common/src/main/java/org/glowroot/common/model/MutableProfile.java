@@ -17,6 +17,8 @@ package org.glowroot.common.model;
 
 import java.io.IOException;
 import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Deque;
 import java.util.Iterator;
 import java.util.List;
@@ -27,6 +29,7 @@ import javax.annotation.Nullable;
 
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Joiner;
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
@@ -36,6 +39,7 @@ import com.google.common.collect.Maps;
 import com.google.common.collect.PeekingIterator;
 import com.google.common.collect.Queues;
 import com.google.common.io.CharStreams;
+import com.google.common.primitives.Longs;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -61,6 +65,8 @@ public class MutableProfile {
 
     private final List<ProfileNode> rootNodes = Lists.newArrayList();
 
+    private int nodeCount;
+
     // retain original sample count for in case of filtered profile
     private long unfilteredSampleCount = -1;
 
@@ -121,6 +127,7 @@ public class MutableProfile {
                 node = new ProfileNode(packageNameIndex, classNameIndex, methodNameIndex,
                         fileNameIndex, lineNumber, leafThreadState);
                 mergeIntoNodes.add(node);
+                nodeCount++;
             }
             node.sampleCount++;
             lastMatchedNode = node;
@@ -150,9 +157,10 @@ public class MutableProfile {
                 }
             }
         }
+        nodeCount = countNodes(rootNodes);
     }
 
-    public void truncateBranches(int minSamples) {
+    public void truncateBranches(long minSamples) {
         Deque<ProfileNode> toBeVisited = new ArrayDeque<ProfileNode>();
         for (ProfileNode rootNode : rootNodes) {
             toBeVisited.add(rootNode);
@@ -163,6 +171,7 @@ public class MutableProfile {
                 ProfileNode childNode = i.next();
                 if (childNode.sampleCount < minSamples) {
                     i.remove();
+                    nodeCount -= countNodes(ImmutableList.of(childNode));
                     // TODO capture sampleCount per timerName of non-ellipsed structure
                     // and use this in UI dropdown filter of timer names
                     // (currently sampleCount per timerName of ellipsed structure is used)
@@ -174,6 +183,10 @@ public class MutableProfile {
         }
     }
 
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
     public long getSampleCount() {
         long sampleCount = 0;
         for (ProfileNode rootNode : rootNodes) {
@@ -224,6 +237,11 @@ public class MutableProfile {
     }
 
     public String toFlameGraphJson() throws IOException {
+        return toFlameGraphJson(0);
+    }
+
+    // maxDepth 0 means no limit
+    public String toFlameGraphJson(int maxDepth) throws IOException {
         StringBuilder sb = new StringBuilder();
         JsonGenerator jg = mapper.getFactory().createGenerator(CharStreams.asWriter(sb));
         jg.writeStartObject();
@@ -232,7 +250,7 @@ public class MutableProfile {
         int height = 0;
         for (ProfileNode rootNode : rootNodes) {
             if (rootNode.sampleCount > rootNode.ellipsedSampleCount) {
-                FlameGraphWriter flameGraphWriter = new FlameGraphWriter(rootNode, jg);
+                FlameGraphWriter flameGraphWriter = new FlameGraphWriter(rootNode, jg, maxDepth);
                 flameGraphWriter.traverse();
                 height = Math.max(height, flameGraphWriter.height);
             }
@@ -244,6 +262,69 @@ public class MutableProfile {
         return sb.toString();
     }
 
+    // frames with the most self samples (samples where the frame is the top of the stack),
+    // which are aggregated across all of the places in the tree that the frame occurs
+    //
+    // samples from branches that have been truncated (e.g. by progressive pruning when merging
+    // profiles) cannot be attributed to a frame, so they are reported separately as
+    // prunedSampleCount instead
+    public String toTopFramesJson(int limit) throws IOException {
+        final Map<String, long[]> selfSampleCounts = Maps.newHashMap();
+        long prunedSampleCount = 0;
+        Deque<ProfileNode> toBeVisited = new ArrayDeque<ProfileNode>(rootNodes);
+        ProfileNode node;
+        while ((node = toBeVisited.poll()) != null) {
+            prunedSampleCount += node.ellipsedSampleCount;
+            long selfSampleCount = getSelfSampleCount(node);
+            if (selfSampleCount > 0) {
+                String text = node.getText();
+                long[] sampleCount = selfSampleCounts.get(text);
+                if (sampleCount == null) {
+                    sampleCount = new long[1];
+                    selfSampleCounts.put(text, sampleCount);
+                }
+                sampleCount[0] += selfSampleCount;
+            }
+            toBeVisited.addAll(node.childNodes);
+        }
+        List<String> frames = Lists.newArrayList(selfSampleCounts.keySet());
+        Collections.sort(frames, new Comparator<String>() {
+            @Override
+            public int compare(String left, String right) {
+                // sort descending
+                return Longs.compare(selfSampleCounts.get(right)[0],
+                        selfSampleCounts.get(left)[0]);
+            }
+        });
+        StringBuilder sb = new StringBuilder();
+        JsonGenerator jg = mapper.getFactory().createGenerator(CharStreams.asWriter(sb));
+        jg.writeStartObject();
+        jg.writeNumberField("totalSampleCount", getSampleCount());
+        jg.writeNumberField("prunedSampleCount", prunedSampleCount);
+        jg.writeArrayFieldStart("frames");
+        for (String frame : frames.subList(0, Math.min(limit, frames.size()))) {
+            jg.writeStartObject();
+            jg.writeStringField("name", frame);
+            jg.writeNumberField("selfSampleCount", selfSampleCounts.get(frame)[0]);
+            jg.writeEndObject();
+        }
+        jg.writeEndArray();
+        jg.writeEndObject();
+        jg.close();
+        return sb.toString();
+    }
+
+    // collapsed stack format (one line per distinct stack, with frames separated by semicolons
+    // followed by a space and the sample count), which is the input format of most external flame
+    // graph tools
+    public String toFoldedStacks() {
+        StringBuilder sb = new StringBuilder();
+        for (ProfileNode rootNode : rootNodes) {
+            new FoldedStackWriter(rootNode, sb).traverse();
+        }
+        return sb.toString();
+    }
+
     private static int getNameIndex(String name, Map<String, Integer> nameIndexes,
             List<String> names) {
         Integer index = nameIndexes.get(name);
@@ -255,6 +336,26 @@ public class MutableProfile {
         return index;
     }
 
+    // excludes samples from truncated branches, which are not attributable to this node
+    private static long getSelfSampleCount(ProfileNode node) {
+        long selfSampleCount = node.sampleCount - node.ellipsedSampleCount;
+        for (ProfileNode childNode : node.childNodes) {
+            selfSampleCount -= childNode.sampleCount;
+        }
+        return selfSampleCount;
+    }
+
+    private static int countNodes(List<ProfileNode> nodes) {
+        int count = 0;
+        Deque<ProfileNode> toBeVisited = new ArrayDeque<ProfileNode>(nodes);
+        ProfileNode node;
+        while ((node = toBeVisited.poll()) != null) {
+            count++;
+            toBeVisited.addAll(node.childNodes);
+        }
+        return count;
+    }
+
     private static Profile.LeafThreadState getThreadState(@Nullable Thread.State state) {
         if (state == null) {
             return Profile.LeafThreadState.NONE;
@@ -424,6 +525,7 @@ public class MutableProfile {
                     toBeMergedClassNameIndex, toBeMergedMethodNameIndex, toBeMergedFileNameIndex,
                     toBeMergedLineNumber, toBeMergedLeafThreadState);
             destinationNodes.add(destinationNode);
+            nodeCount++;
             merge(toBeMergedNode, destinationNode);
             return destinationNode;
         }
@@ -609,11 +711,17 @@ public class MutableProfile {
     private class FlameGraphWriter extends Traverser<ProfileNode, IOException> {
 
         private final JsonGenerator jg;
+        private final int maxDepth;
         private int height;
 
-        private FlameGraphWriter(ProfileNode rootNode, JsonGenerator jg) throws IOException {
+        // whether children were written, for each node that has not been revisited yet
+        private final Deque<Boolean> hasChildrenStack = new ArrayDeque<Boolean>();
+
+        private FlameGraphWriter(ProfileNode rootNode, JsonGenerator jg, int maxDepth)
+                throws IOException {
             super(rootNode);
             this.jg = jg;
+            this.maxDepth = maxDepth;
         }
 
         @Override
@@ -622,18 +730,61 @@ public class MutableProfile {
             jg.writeStartObject();
             jg.writeStringField("name", node.getText());
             jg.writeNumberField("value", node.sampleCount);
-            if (!node.childNodes.isEmpty()) {
+            List<ProfileNode> childNodes = node.childNodes;
+            if (maxDepth != 0 && depth + 1 >= maxDepth) {
+                childNodes = ImmutableList.of();
+            }
+            if (!childNodes.isEmpty()) {
                 jg.writeArrayFieldStart("children");
             }
-            return node.childNodes;
+            hasChildrenStack.push(!childNodes.isEmpty());
+            return childNodes;
         }
 
         @Override
         public void revisitAfterChildren(ProfileNode node) throws IOException {
-            if (!node.childNodes.isEmpty()) {
+            if (hasChildrenStack.pop()) {
                 jg.writeEndArray();
             }
             jg.writeEndObject();
         }
     }
+
+    private class FoldedStackWriter extends Traverser<ProfileNode, RuntimeException> {
+
+        private final StringBuilder sb;
+        private final List<String> frames = Lists.newArrayList();
+
+        private FoldedStackWriter(ProfileNode rootNode, StringBuilder sb) {
+            super(rootNode);
+            this.sb = sb;
+        }
+
+        @Override
+        public List<ProfileNode> visit(ProfileNode node, int depth) {
+            while (frames.size() > depth) {
+                frames.remove(frames.size() - 1);
+            }
+            frames.add(node.getText());
+            long selfSampleCount = getSelfSampleCount(node);
+            if (selfSampleCount > 0) {
+                appendLine(null, selfSampleCount);
+            }
+            if (node.ellipsedSampleCount > 0) {
+                appendLine("...", node.ellipsedSampleCount);
+            }
+            return node.childNodes;
+        }
+
+        private void appendLine(@Nullable String lastFrame, long sampleCount) {
+            Joiner.on(';').appendTo(sb, frames);
+            if (lastFrame != null) {
+                sb.append(';');
+                sb.append(lastFrame);
+            }
+            sb.append(' ');
+            sb.append(sampleCount);
+            sb.append('\n');
+        }
+    }
 }
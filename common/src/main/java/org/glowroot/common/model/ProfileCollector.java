@@ -1,5 +1,5 @@
 /*
- * Copyright 2015 the original author or authors.
+ * Copyright 2015-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,15 +15,51 @@
  */
 package org.glowroot.common.model;
 
+import com.google.common.annotations.VisibleForTesting;
+
 import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
 
+// merges profiles one at a time, pruning low-sample subtrees whenever the merged profile grows
+// beyond the max node count, so that merging profiles across a large time range does not require
+// holding every distinct stack trace in memory
+//
+// the max node count can only be exceeded by nodes that hold a significant fraction of all samples,
+// since those are never pruned
 public class ProfileCollector {
 
+    // 0 means no limit
+    private static final int MAX_NODE_COUNT =
+            Integer.getInteger("glowroot.profile.merge.maxNodes", 100000);
+
+    // sample count threshold of the first pass of each prune, which is then doubled on each
+    // subsequent pass of that same prune
+    private static final int SAMPLE_FLOOR =
+            Integer.getInteger("glowroot.profile.merge.sampleFloor", 2);
+
+    // nodes holding at least 1/N of all samples are never pruned
+    private static final int SIGNIFICANT_SAMPLE_FRACTION = 100;
+
     private final MutableProfile profile = new MutableProfile();
+    private final int sampleFloor;
+    private final int maxNodeCount;
+
     private long lastCaptureTime;
 
+    public ProfileCollector() {
+        this(SAMPLE_FLOOR, MAX_NODE_COUNT);
+    }
+
+    @VisibleForTesting
+    ProfileCollector(int sampleFloor, int maxNodeCount) {
+        this.sampleFloor = Math.max(sampleFloor, 1);
+        this.maxNodeCount = maxNodeCount;
+    }
+
     public void mergeProfile(Profile profile) {
         this.profile.merge(profile);
+        if (maxNodeCount != 0 && this.profile.getNodeCount() > maxNodeCount) {
+            prune();
+        }
     }
 
     public void updateLastCaptureTime(long captureTime) {
@@ -37,4 +73,18 @@ public class ProfileCollector {
     public MutableProfile getProfile() {
         return profile;
     }
+
+    // prunes down to half of the max node count, so that pruning is not needed again right away
+    //
+    // the threshold starts over from the sample floor on each prune (instead of carrying over from
+    // prior prunes), since samples that are pruned are permanently lost from the merged profile
+    private void prune() {
+        long maxMinSamples =
+                Math.max(sampleFloor, profile.getSampleCount() / SIGNIFICANT_SAMPLE_FRACTION);
+        long minSamples = sampleFloor;
+        while (profile.getNodeCount() > maxNodeCount / 2 && minSamples <= maxMinSamples) {
+            profile.truncateBranches(minSamples);
+            minSamples *= 2;
+        }
+    }
 }
@@ -45,8 +45,8 @@ public interface AggregateRepository {
 
     // query.from() is non-inclusive
     // sortOrder and limit are only used by embedded H2 repository, while the central cassandra
-    // repository which currently has to pull in all records anyways just delegates ordering and
-    // limit to TransactionSummaryCollector
+    // repository delegates ordering and limit to TransactionSummaryCollector (and only uses limit
+    // to decide whether it can read from its pre-sorted summary "top" tables)
     void mergeTransactionSummariesInto(String agentRollupId, OverallQuery query,
             SummarySortOrder sortOrder, int limit, TransactionSummaryCollector collector)
             throws Exception;
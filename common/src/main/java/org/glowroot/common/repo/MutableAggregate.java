@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2016 the original author or authors.
+ * Copyright 2015-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -32,6 +32,7 @@ import org.glowroot.common.live.LiveAggregateRepository.PercentileAggregate;
 import org.glowroot.common.model.LazyHistogram;
 import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
 import org.glowroot.common.model.MutableProfile;
+import org.glowroot.common.model.ProfileCollector;
 import org.glowroot.common.model.QueryCollector;
 import org.glowroot.common.model.ServiceCallCollector;
 import org.glowroot.common.util.Styles;
@@ -44,6 +45,7 @@ public class MutableAggregate {
     private double totalDurationNanos;
     private long transactionCount;
     private long errorCount;
+    private long unstoredTraceCount;
     private boolean asyncTransactions;
     private final List<MutableTimer> mainThreadRootTimers = Lists.newArrayList();
     private final List<MutableTimer> auxThreadRootTimers = Lists.newArrayList();
@@ -56,8 +58,9 @@ public class MutableAggregate {
     // lazy instantiated to reduce memory footprint
     private @MonotonicNonNull QueryCollector queries;
     private @MonotonicNonNull ServiceCallCollector serviceCalls;
-    private @MonotonicNonNull MutableProfile mainThreadProfile;
-    private @MonotonicNonNull MutableProfile auxThreadProfile;
+    // profiles are pruned as they are merged, so that rolled up profiles are stored pre-pruned
+    private @MonotonicNonNull ProfileCollector mainThreadProfile;
+    private @MonotonicNonNull ProfileCollector auxThreadProfile;
 
     private final int maxAggregateQueriesPerType;
     private final int maxAggregateServiceCallsPerType;
@@ -79,6 +82,10 @@ public class MutableAggregate {
         return errorCount;
     }
 
+    public long getUnstoredTraceCount() {
+        return unstoredTraceCount;
+    }
+
     public boolean isAsyncTransactions() {
         return asyncTransactions;
     }
@@ -120,11 +127,11 @@ public class MutableAggregate {
     }
 
     public @Nullable MutableProfile getMainThreadProfile() {
-        return mainThreadProfile;
+        return mainThreadProfile == null ? null : mainThreadProfile.getProfile();
     }
 
     public @Nullable MutableProfile getAuxThreadProfile() {
-        return auxThreadProfile;
+        return auxThreadProfile == null ? null : auxThreadProfile.getProfile();
     }
 
     public boolean isEmpty() {
@@ -143,6 +150,10 @@ public class MutableAggregate {
         this.errorCount += errorCount;
     }
 
+    public void addUnstoredTraceCount(long unstoredTraceCount) {
+        this.unstoredTraceCount += unstoredTraceCount;
+    }
+
     public void addAsyncTransactions(boolean asyncTransactions) {
         if (asyncTransactions) {
             this.asyncTransactions = true;
@@ -211,6 +222,7 @@ public class MutableAggregate {
                 .captureTime(captureTime)
                 .totalDurationNanos(totalDurationNanos)
                 .transactionCount(transactionCount)
+                .unstoredTraceCount(unstoredTraceCount)
                 .asyncTransactions(asyncTransactions)
                 .mainThreadRootTimers(toProto(mainThreadRootTimers))
                 .auxThreadRootTimers(toProto(auxThreadRootTimers))
@@ -253,16 +265,16 @@ public class MutableAggregate {
 
     public void mergeMainThreadProfile(Profile toBeMergedProfile) throws IOException {
         if (mainThreadProfile == null) {
-            mainThreadProfile = new MutableProfile();
+            mainThreadProfile = new ProfileCollector();
         }
-        mainThreadProfile.merge(toBeMergedProfile);
+        mainThreadProfile.mergeProfile(toBeMergedProfile);
     }
 
     public void mergeAuxThreadProfile(Profile toBeMergedProfile) throws IOException {
         if (auxThreadProfile == null) {
-            auxThreadProfile = new MutableProfile();
+            auxThreadProfile = new ProfileCollector();
         }
-        auxThreadProfile.merge(toBeMergedProfile);
+        auxThreadProfile.mergeProfile(toBeMergedProfile);
     }
 
     public static void mergeRootTimers(List<Aggregate.Timer> toBeMergedRootTimers,
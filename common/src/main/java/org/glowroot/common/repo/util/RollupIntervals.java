@@ -0,0 +1,73 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.repo.util;
+
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.Lists;
+import org.immutables.value.Value;
+
+import org.glowroot.common.util.Styles;
+
+// splits a time range into the coarsest rollup intervals that fit inside of it, so that a sum over
+// the time range can be read from pre-aggregated rollups, with only the ends of the time range
+// (which are shorter than the finest rollup interval) needing to be read from the raw data
+public class RollupIntervals {
+
+    private RollupIntervals() {}
+
+    // intervalMillis must be ordered from finest to coarsest rollup level, and the returned time
+    // ranges are in time order
+    public static List<RollupInterval> split(long from, long to, List<Long> intervalMillis) {
+        List<RollupInterval> rollupIntervals = Lists.newArrayList();
+        split(from, to, intervalMillis, intervalMillis.size() - 1, rollupIntervals);
+        return rollupIntervals;
+    }
+
+    private static void split(long from, long to, List<Long> intervalMillis, int rollupLevel,
+            List<RollupInterval> rollupIntervals) {
+        if (from >= to) {
+            return;
+        }
+        if (rollupLevel < 0) {
+            rollupIntervals.add(ImmutableRollupInterval.of(null, from, to));
+            return;
+        }
+        long interval = intervalMillis.get(rollupLevel);
+        // a rollup with capture time T covers the time range (T - interval, T]
+        long rollupFrom = RollupLevelService.getCeilRollupTime(from, interval);
+        long rollupTo = RollupLevelService.getFloorRollupTime(to, interval);
+        if (rollupFrom >= rollupTo) {
+            split(from, to, intervalMillis, rollupLevel - 1, rollupIntervals);
+            return;
+        }
+        split(from, rollupFrom, intervalMillis, rollupLevel - 1, rollupIntervals);
+        rollupIntervals.add(ImmutableRollupInterval.of(rollupLevel, rollupFrom, rollupTo));
+        split(rollupTo, to, intervalMillis, rollupLevel - 1, rollupIntervals);
+    }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    public interface RollupInterval {
+        // null means the time range needs to be read from the raw data
+        @Nullable
+        Integer rollupLevel();
+        long from(); // exclusive
+        long to(); // inclusive
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.live;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class StringComparatorTest {
+
+    @Test
+    public void shouldMatchBegins() {
+        assertThat(StringComparator.BEGINS.matches("Abcdef", "aBc")).isTrue();
+        assertThat(StringComparator.BEGINS.matches("Abcdef", "bcd")).isFalse();
+        assertThat(StringComparator.BEGINS.matches("Ab", "abc")).isFalse();
+    }
+
+    @Test
+    public void shouldMatchEquals() {
+        assertThat(StringComparator.EQUALS.matches("Abc", "aBC")).isTrue();
+        assertThat(StringComparator.EQUALS.matches("Abc", "ab")).isFalse();
+    }
+
+    @Test
+    public void shouldMatchEnds() {
+        assertThat(StringComparator.ENDS.matches("Abcdef", "DeF")).isTrue();
+        assertThat(StringComparator.ENDS.matches("Abcdef", "cde")).isFalse();
+        assertThat(StringComparator.ENDS.matches("ef", "def")).isFalse();
+    }
+
+    @Test
+    public void shouldMatchContains() {
+        assertThat(StringComparator.CONTAINS.matches("Abcdef", "CDe")).isTrue();
+        assertThat(StringComparator.CONTAINS.matches("Abcdef", "abcdef")).isTrue();
+        assertThat(StringComparator.CONTAINS.matches("Abcdef", "ce")).isFalse();
+        assertThat(StringComparator.CONTAINS.matches("Ab", "abc")).isFalse();
+        assertThat(StringComparator.CONTAINS.matches("", "")).isTrue();
+    }
+
+    @Test
+    public void shouldMatchNotContains() {
+        assertThat(StringComparator.NOT_CONTAINS.matches("Abcdef", "CDe")).isFalse();
+        assertThat(StringComparator.NOT_CONTAINS.matches("Abcdef", "ce")).isTrue();
+    }
+}
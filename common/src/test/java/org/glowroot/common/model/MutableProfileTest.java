@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2016 the original author or authors.
+ * Copyright 2015-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -66,6 +66,56 @@ public class MutableProfileTest {
                 + "}").replace(" ", ""));
     }
 
+    @Test
+    public void testFoldedStacks() throws IOException {
+        // given
+        MutableProfile profile = createProfile();
+        // when
+        String folded = profile.toFoldedStacks();
+        // then
+        assertThat(folded).isEqualTo(
+                "xx.yy.zz.Main.main(Main.java:789);aa.bb.cc.Def.ghi(Def.java:456);"
+                        + "aa.bb.cc.Def.ghi(Def.java:123) 2\n"
+                        + "xx.yy.zz.Main.main(Main.java:789);aa.bb.cc.Def.ghi(Def.java:456) 1\n");
+    }
+
+    @Test
+    public void testTopFrames() throws IOException {
+        // given
+        MutableProfile profile = createProfile();
+        // when
+        String json = profile.toTopFramesJson(1);
+        // then
+        assertThat(json).isEqualTo("{\"totalSampleCount\":3,\"prunedSampleCount\":0,"
+                + "\"frames\":[{\"name\":\"aa.bb.cc.Def.ghi(Def.java:123)\","
+                + "\"selfSampleCount\":2}]}");
+    }
+
+    @Test
+    public void testTopFramesAfterTruncation() throws IOException {
+        // given
+        MutableProfile profile = createProfile();
+        profile.truncateBranches(3);
+        // when
+        String json = profile.toTopFramesJson(10);
+        // then
+        assertThat(json).isEqualTo("{\"totalSampleCount\":3,\"prunedSampleCount\":3,"
+                + "\"frames\":[]}");
+    }
+
+    @Test
+    public void testDepthLimitedFlameGraph() throws IOException {
+        // given
+        MutableProfile profile = createProfile();
+        // when
+        String json = profile.toFlameGraphJson(2);
+        // then
+        assertThat(json).isEqualTo("{\"totalSampleCount\":3,\"rootNodes\":[{\"name\":"
+                + "\"xx.yy.zz.Main.main(Main.java:789)\",\"value\":3,\"children\":[{\"name\":"
+                + "\"aa.bb.cc.Def.ghi(Def.java:456)\",\"value\":2},{\"name\":"
+                + "\"aa.bb.cc.Def.ghi(Def.java:456)\",\"value\":1}]}],\"height\":2}");
+    }
+
     @Test
     public void testMerging() throws IOException {
         // given
@@ -190,4 +240,16 @@ public class MutableProfileTest {
             jg.writeRaw(": ");
         }
     }
+
+    private static MutableProfile createProfile() {
+        MutableProfile profile = new MutableProfile();
+        List<StackTraceElement> stackTraceElements = Lists.newArrayList();
+        stackTraceElements.add(new StackTraceElement("aa.bb.cc.Def", "ghi", "Def.java", 123));
+        stackTraceElements.add(new StackTraceElement("aa.bb.cc.Def", "ghi", "Def.java", 456));
+        stackTraceElements.add(new StackTraceElement("xx.yy.zz.Main", "main", "Main.java", 789));
+        profile.merge(stackTraceElements, Thread.State.RUNNABLE);
+        profile.merge(stackTraceElements, Thread.State.RUNNABLE);
+        profile.merge(stackTraceElements.subList(1, 3), Thread.State.RUNNABLE);
+        return profile;
+    }
 }
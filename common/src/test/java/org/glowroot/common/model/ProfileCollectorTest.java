@@ -0,0 +1,96 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.model;
+
+import java.util.List;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ProfileCollectorTest {
+
+    @Test
+    public void shouldNotPruneUnderMaxNodeCount() {
+        // given
+        ProfileCollector collector = new ProfileCollector(2, 100);
+        // when
+        for (int i = 0; i < 10; i++) {
+            collector.mergeProfile(createProfile("rare" + i, 1));
+        }
+        // then
+        assertThat(collector.getProfile().getNodeCount()).isEqualTo(11);
+        assertThat(collector.getProfile().getSampleCount()).isEqualTo(10);
+    }
+
+    @Test
+    public void shouldPruneLowSampleSubtreesOverMaxNodeCount() throws Exception {
+        // given
+        ProfileCollector collector = new ProfileCollector(2, 100);
+        // when
+        for (int i = 0; i < 1000; i++) {
+            collector.mergeProfile(createProfile("hot", 1));
+            collector.mergeProfile(createProfile("rare" + i, 1));
+            assertThat(collector.getProfile().getNodeCount()).isLessThanOrEqualTo(100);
+        }
+        // then
+        MutableProfile profile = collector.getProfile();
+        assertThat(profile.getSampleCount()).isEqualTo(2000);
+        assertThat(profile.toFoldedStacks()).contains(
+                "xx.yy.zz.Main.main(Main.java:789);aa.bb.cc.Def.hot(Def.java:123) 1000\n");
+    }
+
+    @Test
+    public void shouldNotLoseHotSamplesAcrossManyPrunes() throws Exception {
+        // given
+        ProfileCollector collector = new ProfileCollector(2, 100);
+        // when
+        for (int i = 0; i < 500; i++) {
+            MutableProfile profile = new MutableProfile();
+            for (int j = 0; j < 10; j++) {
+                profile.merge(createStackTrace("hot"), Thread.State.RUNNABLE);
+            }
+            for (int j = 0; j < 20; j++) {
+                profile.merge(createStackTrace("rare" + i + "_" + j), Thread.State.RUNNABLE);
+            }
+            collector.mergeProfile(profile.toProto());
+            assertThat(collector.getProfile().getNodeCount()).isLessThanOrEqualTo(100);
+        }
+        // then
+        MutableProfile profile = collector.getProfile();
+        assertThat(profile.getSampleCount()).isEqualTo(15000);
+        assertThat(profile.toFoldedStacks()).contains(
+                "xx.yy.zz.Main.main(Main.java:789);aa.bb.cc.Def.hot(Def.java:123) 5000\n");
+    }
+
+    private static Profile createProfile(String methodName, int sampleCount) {
+        MutableProfile profile = new MutableProfile();
+        for (int i = 0; i < sampleCount; i++) {
+            profile.merge(createStackTrace(methodName), Thread.State.RUNNABLE);
+        }
+        return profile.toProto();
+    }
+
+    private static List<StackTraceElement> createStackTrace(String methodName) {
+        List<StackTraceElement> stackTraceElements = Lists.newArrayList();
+        stackTraceElements.add(new StackTraceElement("aa.bb.cc.Def", methodName, "Def.java", 123));
+        stackTraceElements.add(new StackTraceElement("xx.yy.zz.Main", "main", "Main.java", 789));
+        return stackTraceElements;
+    }
+}
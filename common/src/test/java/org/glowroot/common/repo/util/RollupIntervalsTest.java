@@ -0,0 +1,72 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.repo.util;
+
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import org.glowroot.common.repo.util.RollupIntervals.RollupInterval;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RollupIntervalsTest {
+
+    private static final List<Long> INTERVALS = ImmutableList.of(60000L, 300000L, 1800000L);
+
+    @Test
+    public void shouldUseCoarsestIntervalsThatFit() {
+        // when
+        List<RollupInterval> rollupIntervals = RollupIntervals.split(30000, 3630000, INTERVALS);
+
+        // then
+        assertThat(rollupIntervals).containsExactly(
+                ImmutableRollupInterval.of(null, 30000, 60000),
+                ImmutableRollupInterval.of(0, 60000, 300000),
+                ImmutableRollupInterval.of(1, 300000, 1800000),
+                ImmutableRollupInterval.of(2, 1800000, 3600000),
+                ImmutableRollupInterval.of(null, 3600000, 3630000));
+    }
+
+    @Test
+    public void shouldUseRawDataWhenNoIntervalFits() {
+        // when
+        List<RollupInterval> rollupIntervals = RollupIntervals.split(61000, 119000, INTERVALS);
+
+        // then
+        assertThat(rollupIntervals)
+                .containsExactly(ImmutableRollupInterval.of(null, 61000, 119000));
+    }
+
+    @Test
+    public void shouldSplitAlignedTimeRange() {
+        // when
+        List<RollupInterval> rollupIntervals = RollupIntervals.split(0, 3600000, INTERVALS);
+
+        // then
+        assertThat(rollupIntervals).containsExactly(ImmutableRollupInterval.of(2, 0, 3600000));
+    }
+
+    @Test
+    public void shouldSplitEmptyTimeRange() {
+        // when
+        List<RollupInterval> rollupIntervals = RollupIntervals.split(60000, 60000, INTERVALS);
+
+        // then
+        assertThat(rollupIntervals).isEmpty();
+    }
+}
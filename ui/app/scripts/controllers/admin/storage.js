@@ -92,6 +92,13 @@ glowroot.controller('AdminStorageCtrl', [
           httpErrors.handle(response, $scope);
         });
 
+    $http.get('backend/admin/rollup-cache-stats')
+        .then(function (response) {
+          $scope.rollupCacheStats = response.data;
+        }, function (response) {
+          httpErrors.handle(response, $scope);
+        });
+
     // not using gt-form-autofocus-on-first-input in order to handle special case #rollup-capped-database-size and
     // #trace-capped-database-size urls
     var selector = 'input:not(.gt-autofocus-ignore)';
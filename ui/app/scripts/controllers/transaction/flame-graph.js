@@ -1,5 +1,5 @@
 /*
- * Copyright 2014-2016 the original author or authors.
+ * Copyright 2014-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -39,6 +39,8 @@ glowroot.controller('TransactionFlameGraphCtrl', [
     // (especially removing it from the dom when going to another page)
     // plus it's pretty confusing visually (and very tall vertically) with very fine grained leafs
     $scope.truncateBranchPercentage = $location.search()['truncate-branch-percentage'] || 1.0;
+    // when not specified, the server applies a bounded default depth
+    $scope.maxDepth = $location.search()['max-depth'];
 
     if (!$scope.last && (isNaN($scope.from) || isNaN($scope.to))) {
       $scope.last = 4 * 60 * 60 * 1000;
@@ -65,7 +67,8 @@ glowroot.controller('TransactionFlameGraphCtrl', [
         auxiliary: $scope.auxiliary,
         include: parseResult.includes,
         exclude: parseResult.excludes,
-        truncateBranchPercentage: $scope.truncateBranchPercentage
+        truncateBranchPercentage: $scope.truncateBranchPercentage,
+        maxDepth: $scope.maxDepth
       };
       $http.get('backend/transaction/flame-graph' + queryStrings.encodeObject(query))
           .then(function (response) {
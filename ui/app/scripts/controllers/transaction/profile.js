@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2016 the original author or authors.
+ * Copyright 2015-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -82,6 +82,42 @@ glowroot.controller('TransactionProfileCtrl', [
       return 'transaction/thread-flame-graph' + queryStrings.encodeObject(query);
     };
 
+    $scope.loadTopFrames = function () {
+      var query = buildProfileQuery(gtParseIncludesExcludes($scope.filter));
+      // top frames are always computed from the full (not truncated) profile
+      delete query.truncateBranchPercentage;
+      $scope.loadingTopFrames = true;
+      $http.get('backend/transaction/profile-top-frames' + queryStrings.encodeObject(query))
+          .then(function (response) {
+            $scope.loadingTopFrames = false;
+            $scope.topFrames = response.data;
+          }, function (response) {
+            $scope.loadingTopFrames = false;
+            httpErrors.handle(response, $scope);
+          });
+    };
+
+    $scope.downloadFoldedStacks = function () {
+      var query = buildProfileQuery(gtParseIncludesExcludes($scope.filter));
+      $http.get('backend/transaction/profile-folded' + queryStrings.encodeObject(query))
+          .then(function (response) {
+            var blob = new Blob([response.data.folded], {type: 'text/plain'});
+            if (window.navigator.msSaveBlob) {
+              window.navigator.msSaveBlob(blob, 'profile.folded');
+            } else {
+              var link = document.createElement('a');
+              link.href = window.URL.createObjectURL(blob);
+              link.download = 'profile.folded';
+              document.body.appendChild(link);
+              link.click();
+              document.body.removeChild(link);
+              window.URL.revokeObjectURL(link.href);
+            }
+          }, function (response) {
+            httpErrors.handle(response, $scope);
+          });
+    };
+
     $scope.refresh = function () {
       $scope.applyLast();
       appliedFilter = $scope.filter;
@@ -109,8 +145,23 @@ glowroot.controller('TransactionProfileCtrl', [
       response.handled = true;
     });
 
+    function buildProfileQuery(parseResult) {
+      return {
+        agentRollupId: $scope.agentRollupId,
+        transactionType: $scope.transactionType,
+        transactionName: $scope.transactionName,
+        from: $scope.range.chartFrom,
+        to: $scope.range.chartTo,
+        auxiliary: $scope.auxiliary,
+        include: parseResult.includes,
+        exclude: parseResult.excludes,
+        truncateBranchPercentage: $scope.truncateBranchPercentage
+      };
+    }
+
     function refreshData() {
       $scope.parsingError = undefined;
+      $scope.topFrames = undefined;
       var parseResult = gtParseIncludesExcludes($scope.filter);
       if (parseResult.error) {
         $scope.parsingError = parseResult.error;
@@ -120,17 +171,7 @@ glowroot.controller('TransactionProfileCtrl', [
         HandlebarsRendering.profileToggle(undefined, '#profileOuter', {stackTraceElement: '', sampleCount: 0});
         return;
       }
-      var query = {
-        agentRollupId: $scope.agentRollupId,
-        transactionType: $scope.transactionType,
-        transactionName: $scope.transactionName,
-        from: $scope.range.chartFrom,
-        to: $scope.range.chartTo,
-        auxiliary: $scope.auxiliary,
-        include: parseResult.includes,
-        exclude: parseResult.excludes,
-        truncateBranchPercentage: $scope.truncateBranchPercentage
-      };
+      var query = buildProfileQuery(parseResult);
       $scope.showSpinner++;
       $http.get('backend/transaction/profile' + queryStrings.encodeObject(query))
           .then(function (response) {
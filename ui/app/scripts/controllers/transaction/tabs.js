@@ -109,6 +109,7 @@ glowroot.controller('TransactionTabCtrl', [
       }
       if (($scope.layout.central && !$scope.agentRollupId) || !$scope.transactionType) {
         $scope.traceCount = 0;
+        $scope.unstoredTraceCount = 0;
         return;
       }
       var query = {
@@ -131,7 +132,9 @@ glowroot.controller('TransactionTabCtrl', [
             if ($scope.activeTabItem !== 'traces') {
               filteredTraceTabCount = undefined;
             }
-            $scope.traceCount = response.data;
+            $scope.traceCount = response.data.count;
+            // slow and error traces that were not stored, e.g. due to max traces stored per minute
+            $scope.unstoredTraceCount = response.data.unstoredCount;
           }, function (response) {
             concurrentUpdateCount--;
             httpErrors.handle(response, $scope);
@@ -62,6 +62,7 @@ import org.glowroot.ui.CommonHandler.CommonResponse;
 import org.glowroot.ui.HttpServer.PortChangeFailedException;
 import org.glowroot.ui.HttpSessionManager.Authentication;
 import org.glowroot.ui.LdapAuthentication.AuthenticationException;
+import org.glowroot.ui.RollupCache.RollupCacheStats;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
@@ -79,16 +80,21 @@ class AdminJsonService {
     private final ConfigRepository configRepository;
     private final RepoAdmin repoAdmin;
     private final LiveAggregateRepository liveAggregateRepository;
+    private final List<RollupCache<?, ?>> rollupCaches;
+    private final ProfileViewCache profileViewCache;
 
     private volatile @MonotonicNonNull HttpServer httpServer;
 
     AdminJsonService(boolean central, File certificateDir, ConfigRepository configRepository,
-            RepoAdmin repoAdmin, LiveAggregateRepository liveAggregateRepository) {
+            RepoAdmin repoAdmin, LiveAggregateRepository liveAggregateRepository,
+            List<RollupCache<?, ?>> rollupCaches, ProfileViewCache profileViewCache) {
         this.central = central;
         this.certificateDir = certificateDir;
         this.configRepository = configRepository;
         this.repoAdmin = repoAdmin;
         this.liveAggregateRepository = liveAggregateRepository;
+        this.rollupCaches = rollupCaches;
+        this.profileViewCache = profileViewCache;
     }
 
     void setHttpServer(HttpServer httpServer) {
@@ -132,6 +138,16 @@ class AdminJsonService {
         }
     }
 
+    @GET(path = "/backend/admin/rollup-cache-stats", permission = "admin:view:storage")
+    String getRollupCacheStats() throws Exception {
+        List<RollupCacheStats> stats = Lists.newArrayList();
+        for (RollupCache<?, ?> rollupCache : rollupCaches) {
+            stats.add(rollupCache.getStats());
+        }
+        stats.add(profileViewCache.getStats());
+        return mapper.writeValueAsString(stats);
+    }
+
     // only used by central
     @GET(path = "/backend/admin/smtp", permission = "admin:view:smtp")
     String getSmtpConfig() throws Exception {
@@ -291,6 +307,10 @@ class AdminJsonService {
     void deleteAllData() throws Exception {
         repoAdmin.deleteAllData();
         liveAggregateRepository.clearInMemoryAggregate();
+        for (RollupCache<?, ?> rollupCache : rollupCaches) {
+            rollupCache.invalidateAll();
+        }
+        profileViewCache.invalidateAll();
     }
 
     @POST(path = "/backend/admin/defrag-data", permission = "admin:edit:storage")
@@ -376,6 +376,7 @@ class ConfigJsonService {
         abstract @Nullable Integer maxTraceEntriesPerTransaction(); // null for rollup config
         abstract @Nullable Integer maxStackTraceSamplesPerTransaction(); // null for rollup config
         abstract @Nullable Integer mbeanGaugeNotFoundDelaySeconds(); // null for rollup config
+        abstract @Nullable Integer maxTracesStoredPerMinute(); // null for rollup config
         abstract String version();
 
         private AdvancedConfig convert(boolean agent) {
@@ -394,6 +395,8 @@ class ConfigJsonService {
                                 of(checkNotNull(maxStackTraceSamplesPerTransaction())))
                         .setMbeanGaugeNotFoundDelaySeconds(
                                 of(checkNotNull(mbeanGaugeNotFoundDelaySeconds())))
+                        .setMaxTracesStoredPerMinute(
+                                of(checkNotNull(maxTracesStoredPerMinute())))
                         .build();
             } else {
                 return AdvancedConfig.newBuilder()
@@ -421,6 +424,8 @@ class ConfigJsonService {
                                 config.getMaxStackTraceSamplesPerTransaction().getValue())
                         .mbeanGaugeNotFoundDelaySeconds(
                                 config.getMbeanGaugeNotFoundDelaySeconds().getValue())
+                        .maxTracesStoredPerMinute(
+                                config.getMaxTracesStoredPerMinute().getValue())
                         .version(Versions.getVersion(config))
                         .build();
             } else {
@@ -35,7 +35,10 @@ import org.glowroot.common.repo.GaugeValueRepository;
 import org.glowroot.common.repo.GaugeValueRepository.Gauge;
 import org.glowroot.common.repo.Utils;
 import org.glowroot.common.repo.util.RollupLevelService;
+import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.ObjectMappers;
+import org.glowroot.ui.RollupCache.GaugeCacheKey;
+import org.glowroot.ui.RollupCache.RowReader;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
 
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -50,13 +53,16 @@ class GaugeValueJsonService {
     private final AgentRepository agentRepository;
     private final ConfigRepository configRepository;
 
+    private final RollupCache<GaugeCacheKey, GaugeValue> rollupCache;
+
     GaugeValueJsonService(GaugeValueRepository gaugeValueRepository,
             RollupLevelService rollupLevelService, AgentRepository agentRepository,
-            ConfigRepository configRepository) {
+            ConfigRepository configRepository, Clock clock) {
         this.gaugeValueRepository = gaugeValueRepository;
         this.rollupLevelService = rollupLevelService;
         this.agentRepository = agentRepository;
         this.configRepository = configRepository;
+        rollupCache = new RollupCache<GaugeCacheKey, GaugeValue>("Gauge values", clock);
     }
 
     @GET(path = "/backend/jvm/gauges", permission = "agent:jvm:gauges")
@@ -81,8 +87,8 @@ class GaugeValueJsonService {
 
         Map<String, List<GaugeValue>> map = Maps.newLinkedHashMap();
         for (String gaugeName : request.gaugeName()) {
-            map.put(gaugeName,
-                    getGaugeValues(agentRollupId, revisedFrom, revisedTo, gaugeName, rollupLevel));
+            map.put(gaugeName, getGaugeValues(agentRollupId, revisedFrom, revisedTo, gaugeName,
+                    rollupLevel, intervalMillis));
         }
         if (rollupLevel != 0) {
             syncManualRollupCaptureTimes(map, rollupLevel);
@@ -108,13 +114,29 @@ class GaugeValueJsonService {
         return mapper.writeValueAsString(sortedGauges);
     }
 
-    private List<GaugeValue> getGaugeValues(String agentRollupId, long from, long to,
-            String gaugeName, int rollupLevel) throws Exception {
-        List<GaugeValue> gaugeValues = gaugeValueRepository.readGaugeValues(agentRollupId,
-                gaugeName, from, to, rollupLevel);
+    RollupCache<?, ?> getRollupCache() {
+        return rollupCache;
+    }
+
+    private List<GaugeValue> getGaugeValues(final String agentRollupId, long from, long to,
+            final String gaugeName, final int rollupLevel, long intervalMillis) throws Exception {
         if (rollupLevel == 0) {
-            return gaugeValues;
+            return gaugeValueRepository.readGaugeValues(agentRollupId, gaugeName, from, to, 0);
         }
+        List<GaugeValue> gaugeValues = rollupCache.read(
+                ImmutableGaugeCacheKey.of(agentRollupId, gaugeName, rollupLevel), from,
+                to, intervalMillis, new RowReader<GaugeValue>() {
+                    @Override
+                    public List<GaugeValue> read(long from, long to) throws Exception {
+                        return gaugeValueRepository.readGaugeValues(agentRollupId, gaugeName,
+                                from, to, rollupLevel);
+                    }
+
+                    @Override
+                    public long getCaptureTime(GaugeValue gaugeValue) {
+                        return gaugeValue.getCaptureTime();
+                    }
+                });
         long nonRolledUpFrom = from;
         if (!gaugeValues.isEmpty()) {
             long lastRolledUpTime = gaugeValues.get(gaugeValues.size() - 1).getCaptureTime();
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.ui;
+
+import java.util.concurrent.Callable;
+
+import javax.annotation.Nullable;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableList;
+import org.immutables.value.Value;
+
+import org.glowroot.common.util.Clock;
+import org.glowroot.ui.RollupCache.RollupCacheStats;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+// caches derived profile views (e.g. flame graph, top frames), which are expensive to compute
+// since they require merging all of the profiles in the time range
+//
+// views are only cached once the end of their time range is stable (see RollupCache), and (same as
+// RollupCache) they are re-computed once they are older than RollupCache.MAX_AGE_MILLIS since the
+// underlying profiles can still be rewritten later (e.g. on central when agent data arrives late)
+class ProfileViewCache {
+
+    // views are weighed by their length in chars
+    private static final long MAX_WEIGHT = 32 * 1024 * 1024;
+
+    private final Clock clock;
+
+    private final Cache<ProfileViewCacheKey, String> cache;
+
+    ProfileViewCache(Clock clock) {
+        this.clock = clock;
+        cache = CacheBuilder.newBuilder()
+                .maximumWeight(MAX_WEIGHT)
+                .weigher(new Weigher<ProfileViewCacheKey, String>() {
+                    @Override
+                    public int weigh(ProfileViewCacheKey key, String value) {
+                        return value.length();
+                    }
+                })
+                .expireAfterWrite(RollupCache.MAX_AGE_MILLIS, MILLISECONDS)
+                .recordStats()
+                .build();
+    }
+
+    String get(ProfileViewCacheKey key, long intervalMillis, Callable<String> viewLoader)
+            throws Exception {
+        String view = cache.getIfPresent(key);
+        if (view != null) {
+            return view;
+        }
+        view = viewLoader.call();
+        if (key.to() <= RollupCache.getStableTo(clock.currentTimeMillis(), intervalMillis)) {
+            cache.put(key, view);
+        }
+        return view;
+    }
+
+    RollupCacheStats getStats() {
+        CacheStats stats = cache.stats();
+        return ImmutableRollupCacheStats.builder()
+                .name("Profile views")
+                .size(cache.size())
+                .hitCount(stats.hitCount())
+                .missCount(stats.missCount())
+                .hitRate(stats.hitRate())
+                .evictionCount(stats.evictionCount())
+                .build();
+    }
+
+    void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    @Value.Immutable
+    interface ProfileViewCacheKey {
+        String agentRollupId();
+        String transactionType();
+        @Nullable
+        String transactionName();
+        long from();
+        long to();
+        int rollupLevel();
+        boolean auxiliary();
+        ImmutableList<String> include();
+        ImmutableList<String> exclude();
+        double truncateBranchPercentage();
+        // e.g. "flame-graph"
+        String view();
+        // view specific limit, e.g. max depth of flame graph
+        int limit();
+    }
+}
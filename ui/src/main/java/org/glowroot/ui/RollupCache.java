@@ -0,0 +1,224 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.ui;
+
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.immutables.value.Value;
+
+import org.glowroot.common.repo.Utils;
+import org.glowroot.common.util.Clock;
+import org.glowroot.common.util.Styles;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+// caches the stored (already rolled up) portion of rollup level > 0 chart data, so that repeated
+// dashboard refreshes only need to read the tail of the range that is not yet rolled up
+//
+// entries are keyed per data series (not per query range, since the sliding refresh changes the
+// query range on every request) and hold the rows for a contiguous range of capture times
+//
+// rows are only treated as complete once their capture time is at least one full rollup interval
+// in the past, and no later than the last row actually read, since rollups are written in capture
+// time order (this matters when background rollups are lagging, e.g. catching up after restart)
+//
+// rolled up rows can still be rewritten later (e.g. on central when agent data arrives late), so
+// cached rows are re-read once they are older than MAX_AGE_MILLIS
+class RollupCache<K, V> {
+
+    private static final int MAX_ENTRIES = 1000;
+
+    static final long MAX_AGE_MILLIS = MINUTES.toMillis(15);
+
+    private final String name;
+    private final Clock clock;
+
+    private final Cache<K, CachedRows<V>> cache;
+
+    RollupCache(String name, Clock clock) {
+        this(name, clock, MAX_ENTRIES);
+    }
+
+    RollupCache(String name, Clock clock, int maxEntries) {
+        this.name = name;
+        this.clock = clock;
+        cache = CacheBuilder.newBuilder()
+                .maximumSize(maxEntries)
+                .expireAfterWrite(MAX_AGE_MILLIS, MILLISECONDS)
+                .recordStats()
+                .build();
+    }
+
+    // from and to are both INCLUSIVE
+    List<V> read(K key, long from, long to, long intervalMillis, RowReader<V> rowReader)
+            throws Exception {
+        long currentTimeMillis = clock.currentTimeMillis();
+        CachedRows<V> cachedRows = cache.getIfPresent(key);
+        if (cachedRows != null && (currentTimeMillis - cachedRows.cachedTime > MAX_AGE_MILLIS
+                || from > cachedRows.coveredThrough + 1 || to < cachedRows.coveredFrom - 1)) {
+            // expired or not contiguous with the requested range
+            cachedRows = null;
+        }
+        if (cachedRows == null) {
+            List<V> rows = rowReader.read(from, to);
+            long coveredThrough = getCoveredThrough(rows, from - 1, to, currentTimeMillis,
+                    intervalMillis, rowReader);
+            if (coveredThrough >= from) {
+                cache.put(key, new CachedRows<V>(
+                        ImmutableList.copyOf(filter(rows, from, coveredThrough, rowReader)), from,
+                        coveredThrough, currentTimeMillis));
+            }
+            return rows;
+        }
+        List<V> allRows = Lists.newArrayList();
+        if (from < cachedRows.coveredFrom) {
+            allRows.addAll(rowReader.read(from, cachedRows.coveredFrom - 1));
+        }
+        allRows.addAll(filter(cachedRows.rows, from, to, rowReader));
+        if (to <= cachedRows.coveredThrough) {
+            if (from < cachedRows.coveredFrom) {
+                cache.put(key, new CachedRows<V>(ImmutableList.copyOf(allRows), from,
+                        cachedRows.coveredThrough, cachedRows.cachedTime));
+            }
+            return allRows;
+        }
+        List<V> tailRows = rowReader.read(cachedRows.coveredThrough + 1, to);
+        long coveredThrough = getCoveredThrough(tailRows, cachedRows.coveredThrough, to,
+                currentTimeMillis, intervalMillis, rowReader);
+        if (coveredThrough > cachedRows.coveredThrough || from != cachedRows.coveredFrom) {
+            // rows before from are dropped, which bounds the size of each entry to the size of
+            // the most recently requested range
+            List<V> revisedRows = Lists.newArrayList(allRows);
+            revisedRows.addAll(filter(tailRows, from, coveredThrough, rowReader));
+            cache.put(key, new CachedRows<V>(ImmutableList.copyOf(revisedRows), from,
+                    coveredThrough, cachedRows.cachedTime));
+        }
+        allRows.addAll(tailRows);
+        return allRows;
+    }
+
+    RollupCacheStats getStats() {
+        CacheStats stats = cache.stats();
+        return ImmutableRollupCacheStats.builder()
+                .name(name)
+                .size(cache.size())
+                .hitCount(stats.hitCount())
+                .missCount(stats.missCount())
+                .hitRate(stats.hitRate())
+                .evictionCount(stats.evictionCount())
+                .build();
+    }
+
+    void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    private static <V> long getCoveredThrough(List<V> rows, long coveredThrough, long to,
+            long currentTimeMillis, long intervalMillis, RowReader<V> rowReader) {
+        if (rows.isEmpty()) {
+            // no way to distinguish an interval with no data from an interval that is not rolled
+            // up yet
+            return coveredThrough;
+        }
+        long lastCaptureTime = rowReader.getCaptureTime(rows.get(rows.size() - 1));
+        long stableTo = getStableTo(currentTimeMillis, intervalMillis);
+        return Math.max(coveredThrough, Math.min(Math.min(stableTo, lastCaptureTime), to));
+    }
+
+    static long getStableTo(long currentTimeMillis, long intervalMillis) {
+        // the rollup row for the interval ending at capture time T is not written until after T,
+        // (and on central possibly later, when agent data arrives late), so only treat rows as
+        // stable once a full additional interval has passed
+        long currentRollupCaptureTime =
+                Utils.getRollupCaptureTime(currentTimeMillis, intervalMillis);
+        return currentRollupCaptureTime - 2 * intervalMillis;
+    }
+
+    private static <V> List<V> filter(List<V> rows, long from, long to, RowReader<V> rowReader) {
+        if (rows.isEmpty() || rowReader.getCaptureTime(rows.get(0)) >= from
+                && rowReader.getCaptureTime(rows.get(rows.size() - 1)) <= to) {
+            return rows;
+        }
+        List<V> filteredRows = Lists.newArrayList();
+        for (V row : rows) {
+            long captureTime = rowReader.getCaptureTime(row);
+            if (captureTime >= from && captureTime <= to) {
+                filteredRows.add(row);
+            }
+        }
+        return filteredRows;
+    }
+
+    interface RowReader<V> {
+        // from and to are both INCLUSIVE
+        List<V> read(long from, long to) throws Exception;
+        long getCaptureTime(V row);
+    }
+
+    @Value.Immutable
+    interface RollupCacheStats {
+        String name();
+        long size();
+        long hitCount();
+        long missCount();
+        double hitRate();
+        long evictionCount();
+    }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface AggregateCacheKey {
+        String agentRollupId();
+        String transactionType();
+        @Nullable
+        String transactionName();
+        int rollupLevel();
+    }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface GaugeCacheKey {
+        String agentRollupId();
+        String gaugeName();
+        int rollupLevel();
+    }
+
+    private static class CachedRows<V> {
+
+        private final ImmutableList<V> rows;
+        // capture time range (both INCLUSIVE) over which rows are complete
+        private final long coveredFrom;
+        private final long coveredThrough;
+        // time that the oldest of the rows were read
+        private final long cachedTime;
+
+        private CachedRows(ImmutableList<V> rows, long coveredFrom, long coveredThrough,
+                long cachedTime) {
+            this.rows = rows;
+            this.coveredFrom = coveredFrom;
+            this.coveredThrough = coveredThrough;
+            this.cachedTime = cachedTime;
+        }
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2016 the original author or authors.
+ * Copyright 2011-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -30,6 +30,9 @@ import com.google.common.io.CharStreams;
 import org.immutables.value.Value;
 
 import org.glowroot.common.live.ImmutableTracePointFilter;
+import org.glowroot.common.live.ImmutableTransactionQuery;
+import org.glowroot.common.live.LiveAggregateRepository.OverviewAggregate;
+import org.glowroot.common.live.LiveAggregateRepository.TransactionQuery;
 import org.glowroot.common.live.LiveTraceRepository;
 import org.glowroot.common.live.LiveTraceRepository.TraceKind;
 import org.glowroot.common.live.LiveTraceRepository.TracePoint;
@@ -40,6 +43,7 @@ import org.glowroot.common.repo.ConfigRepository;
 import org.glowroot.common.repo.ImmutableTraceQuery;
 import org.glowroot.common.repo.TraceRepository;
 import org.glowroot.common.repo.TraceRepository.TraceQuery;
+import org.glowroot.common.repo.util.RollupLevelService;
 import org.glowroot.common.util.Clock;
 import org.glowroot.ui.TransactionJsonService.TransactionDataRequest;
 
@@ -55,15 +59,20 @@ class TracePointJsonService {
     private final TraceRepository traceRepository;
     private final LiveTraceRepository liveTraceRepository;
     private final ConfigRepository configRepository;
+    private final TransactionCommonService transactionCommonService;
+    private final RollupLevelService rollupLevelService;
     // null in the central ui (due to shading issue, and not needed in the central ui anyways)
     private final @Nullable Ticker ticker;
     private final Clock clock;
 
     TracePointJsonService(TraceRepository traceRepository, LiveTraceRepository liveTraceRepository,
-            ConfigRepository configRepository, @Nullable Ticker ticker, Clock clock) {
+            ConfigRepository configRepository, TransactionCommonService transactionCommonService,
+            RollupLevelService rollupLevelService, @Nullable Ticker ticker, Clock clock) {
         this.traceRepository = traceRepository;
         this.liveTraceRepository = liveTraceRepository;
         this.configRepository = configRepository;
+        this.transactionCommonService = transactionCommonService;
+        this.rollupLevelService = rollupLevelService;
         this.ticker = ticker;
         this.clock = clock;
     }
@@ -83,13 +92,14 @@ class TracePointJsonService {
             traceCount += liveTraceRepository.getMatchingTraceCount(request.transactionType(),
                     request.transactionName());
         }
-        return Long.toString(traceCount);
+        return toTraceCountJson(traceCount, getUnstoredTraceCount(agentRollupId, query));
     }
 
     @GET(path = "/backend/error/trace-count", permission = "agent:error:traces")
     String getErrorTraceCount(@BindAgentRollupId String agentRollupId,
             @BindRequest TraceQuery query) throws Exception {
-        return Long.toString(traceRepository.readErrorCount(agentRollupId, query));
+        // the unstored trace count is not reported here since it combines slow and error traces
+        return toTraceCountJson(traceRepository.readErrorCount(agentRollupId, query), null);
     }
 
     @GET(path = "/backend/transaction/points", permission = "agent:transaction:traces")
@@ -104,12 +114,46 @@ class TracePointJsonService {
         return getPoints(TraceKind.ERROR, agentRollupId, request);
     }
 
+    // number of slow and error traces that were not stored (e.g. due to the max traces stored per
+    // minute limit), which is tracked in the aggregates
+    private long getUnstoredTraceCount(String agentRollupId, TraceQuery traceQuery)
+            throws Exception {
+        TransactionQuery query = ImmutableTransactionQuery.builder()
+                .transactionType(traceQuery.transactionType())
+                .transactionName(traceQuery.transactionName())
+                .from(traceQuery.from())
+                .to(traceQuery.to())
+                .rollupLevel(rollupLevelService.getRollupLevelForView(traceQuery.from(),
+                        traceQuery.to()))
+                .build();
+        long unstoredTraceCount = 0;
+        for (OverviewAggregate overviewAggregate : transactionCommonService
+                .getOverviewAggregates(agentRollupId, query, false)) {
+            unstoredTraceCount += overviewAggregate.unstoredTraceCount();
+        }
+        return unstoredTraceCount;
+    }
+
     private boolean shouldIncludeActiveTraces(TransactionDataRequest request) {
         long currentTimeMillis = clock.currentTimeMillis();
         return (request.to() == 0 || request.to() > currentTimeMillis)
                 && request.from() < currentTimeMillis;
     }
 
+    private static String toTraceCountJson(long traceCount, @Nullable Long unstoredTraceCount)
+            throws IOException {
+        StringBuilder sb = new StringBuilder();
+        JsonGenerator jg = jsonFactory.createGenerator(CharStreams.asWriter(sb));
+        jg.writeStartObject();
+        jg.writeNumberField("count", traceCount);
+        if (unstoredTraceCount != null) {
+            jg.writeNumberField("unstoredCount", unstoredTraceCount);
+        }
+        jg.writeEndObject();
+        jg.close();
+        return sb.toString();
+    }
+
     private String getPoints(TraceKind traceKind, String agentRollupId, TracePointRequest request)
             throws Exception {
         TraceQuery query = ImmutableTraceQuery.builder()
@@ -21,6 +21,7 @@ import java.util.Map;
 import javax.annotation.Nullable;
 
 import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 
 import org.glowroot.common.config.ConfigDefaults;
@@ -47,12 +48,19 @@ import org.glowroot.common.model.TransactionSummaryCollector.SummarySortOrder;
 import org.glowroot.common.model.TransactionSummaryCollector.TransactionSummary;
 import org.glowroot.common.repo.AggregateRepository;
 import org.glowroot.common.repo.ConfigRepository;
+import org.glowroot.common.repo.ConfigRepository.RollupConfig;
 import org.glowroot.common.repo.MutableAggregate;
 import org.glowroot.common.repo.Utils;
+import org.glowroot.common.repo.util.RollupIntervals;
+import org.glowroot.common.repo.util.RollupIntervals.RollupInterval;
 import org.glowroot.common.util.Clock;
+import org.glowroot.ui.RollupCache.AggregateCacheKey;
+import org.glowroot.ui.RollupCache.RowReader;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AdvancedConfig;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 
+import static java.util.concurrent.TimeUnit.HOURS;
+
 class TransactionCommonService {
 
     private final AggregateRepository aggregateRepository;
@@ -60,6 +68,10 @@ class TransactionCommonService {
     private final ConfigRepository configRepository;
     private final Clock clock;
 
+    private final RollupCache<AggregateCacheKey, OverviewAggregate> overviewCache;
+    private final RollupCache<AggregateCacheKey, PercentileAggregate> percentileCache;
+    private final RollupCache<AggregateCacheKey, ThroughputAggregate> throughputCache;
+
     TransactionCommonService(AggregateRepository aggregateRepository,
             LiveAggregateRepository liveAggregateRepository, ConfigRepository configRepository,
             Clock clock) {
@@ -67,6 +79,17 @@ class TransactionCommonService {
         this.liveAggregateRepository = liveAggregateRepository;
         this.configRepository = configRepository;
         this.clock = clock;
+        overviewCache = new RollupCache<AggregateCacheKey, OverviewAggregate>(
+                "Overview aggregates", clock);
+        percentileCache = new RollupCache<AggregateCacheKey, PercentileAggregate>(
+                "Percentile aggregates", clock);
+        throughputCache = new RollupCache<AggregateCacheKey, ThroughputAggregate>(
+                "Throughput aggregates", clock);
+    }
+
+    List<RollupCache<?, ?>> getRollupCaches() {
+        return ImmutableList.<RollupCache<?, ?>>of(overviewCache, percentileCache,
+                throughputCache);
     }
 
     // query.from() is non-inclusive
@@ -145,7 +168,7 @@ class TransactionCommonService {
                 .to(revisedTo)
                 .build();
         List<OverviewAggregate> aggregates =
-                aggregateRepository.readOverviewAggregates(agentRollupId, revisedQuery);
+                readOverviewAggregates(agentRollupId, revisedQuery);
         if (revisedQuery.rollupLevel() == 0) {
             if (liveResult != null) {
                 aggregates = Lists.newArrayList(aggregates);
@@ -203,7 +226,7 @@ class TransactionCommonService {
                 .to(revisedTo)
                 .build();
         List<PercentileAggregate> aggregates =
-                aggregateRepository.readPercentileAggregates(agentRollupId, revisedQuery);
+                readPercentileAggregates(agentRollupId, revisedQuery);
         if (revisedQuery.rollupLevel() == 0) {
             if (liveResult != null) {
                 aggregates = Lists.newArrayList(aggregates);
@@ -261,7 +284,7 @@ class TransactionCommonService {
                 .to(revisedTo)
                 .build();
         List<ThroughputAggregate> aggregates =
-                aggregateRepository.readThroughputAggregates(agentRollupId, revisedQuery);
+                readThroughputAggregates(agentRollupId, revisedQuery);
         if (revisedQuery.rollupLevel() == 0) {
             if (liveResult != null) {
                 aggregates = Lists.newArrayList(aggregates);
@@ -431,6 +454,8 @@ class TransactionCommonService {
                     .addTotalDurationNanos(nonRolledUpOverviewAggregate.totalDurationNanos());
             currMergedAggregate
                     .addTransactionCount(nonRolledUpOverviewAggregate.transactionCount());
+            currMergedAggregate
+                    .addUnstoredTraceCount(nonRolledUpOverviewAggregate.unstoredTraceCount());
             currMergedAggregate
                     .mergeMainThreadRootTimers(nonRolledUpOverviewAggregate.mainThreadRootTimers());
             currMergedAggregate
@@ -506,10 +531,93 @@ class TransactionCommonService {
         return rolledUpThroughputAggregates;
     }
 
+    // query.from() is INCLUSIVE
+    private List<OverviewAggregate> readOverviewAggregates(String agentRollupId,
+            TransactionQuery query) throws Exception {
+        return readAggregates(agentRollupId, query, overviewCache,
+                new AggregateReader<OverviewAggregate>() {
+                    @Override
+                    public List<OverviewAggregate> read(String agentRollupId,
+                            TransactionQuery query) throws Exception {
+                        return aggregateRepository.readOverviewAggregates(agentRollupId, query);
+                    }
+
+                    @Override
+                    public long getCaptureTime(OverviewAggregate aggregate) {
+                        return aggregate.captureTime();
+                    }
+                });
+    }
+
+    // query.from() is INCLUSIVE
+    private List<PercentileAggregate> readPercentileAggregates(String agentRollupId,
+            TransactionQuery query) throws Exception {
+        return readAggregates(agentRollupId, query, percentileCache,
+                new AggregateReader<PercentileAggregate>() {
+                    @Override
+                    public List<PercentileAggregate> read(String agentRollupId,
+                            TransactionQuery query) throws Exception {
+                        return aggregateRepository.readPercentileAggregates(agentRollupId, query);
+                    }
+
+                    @Override
+                    public long getCaptureTime(PercentileAggregate aggregate) {
+                        return aggregate.captureTime();
+                    }
+                });
+    }
+
+    // query.from() is INCLUSIVE
+    private List<ThroughputAggregate> readThroughputAggregates(String agentRollupId,
+            TransactionQuery query) throws Exception {
+        return readAggregates(agentRollupId, query, throughputCache,
+                new AggregateReader<ThroughputAggregate>() {
+                    @Override
+                    public List<ThroughputAggregate> read(String agentRollupId,
+                            TransactionQuery query) throws Exception {
+                        return aggregateRepository.readThroughputAggregates(agentRollupId, query);
+                    }
+
+                    @Override
+                    public long getCaptureTime(ThroughputAggregate aggregate) {
+                        return aggregate.captureTime();
+                    }
+                });
+    }
+
+    // query.from() is INCLUSIVE
+    private <V> List<V> readAggregates(final String agentRollupId, final TransactionQuery query,
+            RollupCache<AggregateCacheKey, V> rollupCache,
+            final AggregateReader<V> aggregateReader) throws Exception {
+        if (query.rollupLevel() == 0) {
+            return aggregateReader.read(agentRollupId, query);
+        }
+        long intervalMillis =
+                configRepository.getRollupConfigs().get(query.rollupLevel()).intervalMillis();
+        AggregateCacheKey key = ImmutableAggregateCacheKey.of(agentRollupId,
+                query.transactionType(), query.transactionName(), query.rollupLevel());
+        return rollupCache.read(key, query.from(), query.to(), intervalMillis,
+                new RowReader<V>() {
+                    @Override
+                    public List<V> read(long from, long to) throws Exception {
+                        return aggregateReader.read(agentRollupId,
+                                ImmutableTransactionQuery.builder()
+                                        .copyFrom(query)
+                                        .from(from)
+                                        .to(to)
+                                        .build());
+                    }
+
+                    @Override
+                    public long getCaptureTime(V aggregate) {
+                        return aggregateReader.getCaptureTime(aggregate);
+                    }
+                });
+    }
+
     private MutableProfile getMergedProfile(String agentRollupId, TransactionQuery query,
             boolean auxiliary) throws Exception {
         ProfileCollector collector = new ProfileCollector();
-        long revisedFrom = query.from();
         long revisedTo;
         if (auxiliary) {
             revisedTo =
@@ -519,11 +627,30 @@ class TransactionCommonService {
             revisedTo = liveAggregateRepository.mergeInMainThreadProfiles(agentRollupId, query,
                     collector);
         }
-        for (int rollupLevel = query.rollupLevel(); rollupLevel >= 0; rollupLevel--) {
+        // the view's rollup level is chosen for chart resolution, but profiles are merged into a
+        // single profile, so each part of the time range is read from the coarsest rollup level
+        // that covers it, which reads (and merges) far fewer profiles over large time ranges
+        List<Long> coarserIntervalMillis = getCoarserRollupIntervalMillis(query);
+        for (RollupInterval rollupInterval : RollupIntervals.split(query.from(), revisedTo,
+                coarserIntervalMillis)) {
+            Integer coarserRollupLevel = rollupInterval.rollupLevel();
+            int rollupLevel = coarserRollupLevel == null ? query.rollupLevel()
+                    : query.rollupLevel() + 1 + coarserRollupLevel;
+            mergeProfilesInto(agentRollupId, query, auxiliary, rollupLevel, rollupInterval.from(),
+                    rollupInterval.to(), collector);
+        }
+        return collector.getProfile();
+    }
+
+    private void mergeProfilesInto(String agentRollupId, TransactionQuery query,
+            boolean auxiliary, int fromRollupLevel, long from, long to,
+            ProfileCollector collector) throws Exception {
+        long revisedFrom = from;
+        for (int rollupLevel = fromRollupLevel; rollupLevel >= 0; rollupLevel--) {
             TransactionQuery revisedQuery = ImmutableTransactionQuery.builder()
                     .copyFrom(query)
                     .from(revisedFrom)
-                    .to(revisedTo)
+                    .to(to)
                     .rollupLevel(rollupLevel)
                     .build();
             if (auxiliary) {
@@ -535,11 +662,28 @@ class TransactionCommonService {
             }
             long lastRolledUpTime = collector.getLastCaptureTime();
             revisedFrom = Math.max(revisedFrom, lastRolledUpTime + 1);
-            if (revisedFrom > revisedTo) {
+            if (revisedFrom > to) {
                 break;
             }
         }
-        return collector.getProfile();
+    }
+
+    // returns the intervals of the rollup levels coarser than the query's rollup level whose data
+    // has not expired yet for the query's time range
+    private List<Long> getCoarserRollupIntervalMillis(TransactionQuery query) throws Exception {
+        long timeAgoMillis = clock.currentTimeMillis() - query.from();
+        List<Integer> rollupExpirationHours =
+                configRepository.getStorageConfig().rollupExpirationHours();
+        List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
+        List<Long> intervalMillis = Lists.newArrayList();
+        for (int i = query.rollupLevel() + 1; i < rollupConfigs.size(); i++) {
+            int expirationHours = rollupExpirationHours.get(i);
+            if (expirationHours != 0 && HOURS.toMillis(expirationHours) <= timeAgoMillis) {
+                break;
+            }
+            intervalMillis.add(rollupConfigs.get(i).intervalMillis());
+        }
+        return intervalMillis;
     }
 
     private int getMaxAggregateQueriesPerType(String agentRollupId) throws Exception {
@@ -573,4 +717,10 @@ class TransactionCommonService {
             return Utils.getRollupCaptureTime(captureTime, fixedIntervalMillis);
         }
     }
+
+    private interface AggregateReader<V> {
+        // query.from() is INCLUSIVE
+        List<V> read(String agentRollupId, TransactionQuery query) throws Exception;
+        long getCaptureTime(V aggregate);
+    }
 }
@@ -22,6 +22,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
 
 import javax.annotation.Nullable;
 
@@ -57,6 +58,7 @@ import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.ObjectMappers;
 import org.glowroot.ui.AggregateMerging.MergedAggregate;
 import org.glowroot.ui.AggregateMerging.PercentileValue;
+import org.glowroot.ui.ProfileViewCache.ProfileViewCacheKey;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -66,21 +68,27 @@ class TransactionJsonService {
 
     private static final double NANOSECONDS_PER_MILLISECOND = 1000000.0;
 
+    // svg flame graphs become very slow to render (and hard to read) beyond this depth
+    private static final int DEFAULT_FLAME_GRAPH_MAX_DEPTH = 100;
+
     private static final ObjectMapper mapper = ObjectMappers.create();
 
     private final TransactionCommonService transactionCommonService;
     private final AggregateRepository aggregateRepository;
     private final ConfigRepository configRepository;
     private final RollupLevelService rollupLevelService;
+    private final ProfileViewCache profileViewCache;
     private final Clock clock;
 
     TransactionJsonService(TransactionCommonService transactionCommonService,
             AggregateRepository aggregateRepository, ConfigRepository configRepository,
-            RollupLevelService rollupLevelService, Clock clock) {
+            RollupLevelService rollupLevelService, ProfileViewCache profileViewCache,
+            Clock clock) {
         this.transactionCommonService = transactionCommonService;
         this.aggregateRepository = aggregateRepository;
         this.configRepository = configRepository;
         this.rollupLevelService = rollupLevelService;
+        this.profileViewCache = profileViewCache;
         this.clock = clock;
     }
 
@@ -323,13 +331,70 @@ class TransactionJsonService {
     }
 
     @GET(path = "/backend/transaction/flame-graph", permission = "agent:transaction:profile")
-    String getFlameGraph(@BindAgentRollupId String agentRollupId,
-            @BindRequest FlameGraphRequest request) throws Exception {
-        TransactionQuery query = toQuery(request);
-        MutableProfile profile =
-                transactionCommonService.getMergedProfile(agentRollupId, query, request.auxiliary(),
-                        request.include(), request.exclude(), request.truncateBranchPercentage());
-        return profile.toFlameGraphJson();
+    String getFlameGraph(final @BindAgentRollupId String agentRollupId,
+            final @BindRequest FlameGraphRequest request) throws Exception {
+        final TransactionQuery query = toQuery(request);
+        ProfileViewCacheKey key = toProfileViewCacheKey(agentRollupId, query, request.auxiliary(),
+                request.include(), request.exclude(), request.truncateBranchPercentage(),
+                "flame-graph", request.maxDepth());
+        return profileViewCache.get(key, getIntervalMillis(query), new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                MutableProfile profile = transactionCommonService.getMergedProfile(agentRollupId,
+                        query, request.auxiliary(), request.include(), request.exclude(),
+                        request.truncateBranchPercentage());
+                return profile.toFlameGraphJson(request.maxDepth());
+            }
+        });
+    }
+
+    @GET(path = "/backend/transaction/profile-top-frames",
+            permission = "agent:transaction:profile")
+    String getProfileTopFrames(final @BindAgentRollupId String agentRollupId,
+            final @BindRequest ProfileTopFramesRequest request) throws Exception {
+        final TransactionQuery query = toQuery(request);
+        // no truncate branch percentage is applied here, but merged profiles can still have been
+        // pruned (see ProfileCollector), so self sample counts are not exact and the pruned
+        // samples are reported separately as prunedSampleCount
+        ProfileViewCacheKey key = toProfileViewCacheKey(agentRollupId, query, request.auxiliary(),
+                request.include(), request.exclude(), 0, "top-frames", request.limit());
+        return profileViewCache.get(key, getIntervalMillis(query), new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                MutableProfile profile = transactionCommonService.getMergedProfile(agentRollupId,
+                        query, request.auxiliary(), request.include(), request.exclude(), 0);
+                return profile.toTopFramesJson(request.limit());
+            }
+        });
+    }
+
+    @GET(path = "/backend/transaction/profile-folded", permission = "agent:transaction:profile")
+    String getProfileFolded(final @BindAgentRollupId String agentRollupId,
+            final @BindRequest TransactionProfileRequest request) throws Exception {
+        final TransactionQuery query = toQuery(request);
+        ProfileViewCacheKey key = toProfileViewCacheKey(agentRollupId, query, request.auxiliary(),
+                request.include(), request.exclude(), request.truncateBranchPercentage(),
+                "folded", 0);
+        return profileViewCache.get(key, getIntervalMillis(query), new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                MutableProfile profile = transactionCommonService.getMergedProfile(agentRollupId,
+                        query, request.auxiliary(), request.include(), request.exclude(),
+                        request.truncateBranchPercentage());
+                StringBuilder sb = new StringBuilder();
+                JsonGenerator jg = mapper.getFactory().createGenerator(CharStreams.asWriter(sb));
+                jg.writeStartObject();
+                jg.writeNumberField("totalSampleCount", profile.getSampleCount());
+                jg.writeStringField("folded", profile.toFoldedStacks());
+                jg.writeEndObject();
+                jg.close();
+                return sb.toString();
+            }
+        });
+    }
+
+    private long getIntervalMillis(TransactionQuery query) throws Exception {
+        return configRepository.getRollupConfigs().get(query.rollupLevel()).intervalMillis();
     }
 
     private TransactionQuery toChartQuery(RequestBase request) throws Exception {
@@ -359,6 +424,25 @@ class TransactionJsonService {
                 .build();
     }
 
+    private static ProfileViewCacheKey toProfileViewCacheKey(String agentRollupId,
+            TransactionQuery query, boolean auxiliary, List<String> include, List<String> exclude,
+            double truncateBranchPercentage, String view, int limit) {
+        return ImmutableProfileViewCacheKey.builder()
+                .agentRollupId(agentRollupId)
+                .transactionType(query.transactionType())
+                .transactionName(query.transactionName())
+                .from(query.from())
+                .to(query.to())
+                .rollupLevel(query.rollupLevel())
+                .auxiliary(auxiliary)
+                .addAllInclude(include)
+                .addAllExclude(exclude)
+                .truncateBranchPercentage(truncateBranchPercentage)
+                .view(view)
+                .limit(limit)
+                .build();
+    }
+
     private Map<Long, Long> getTransactionCounts(List<OverviewAggregate> overviewAggregates) {
         Map<Long, Long> transactionCounts = Maps.newHashMap();
         for (OverviewAggregate overviewAggregate : overviewAggregates) {
@@ -703,13 +787,31 @@ class TransactionJsonService {
     }
 
     @Value.Immutable
-    interface FlameGraphRequest extends RequestBase {
-        boolean auxiliary();
+    abstract static class FlameGraphRequest implements RequestBase {
+        abstract boolean auxiliary();
         // intentionally not plural since maps from query string
-        ImmutableList<String> include();
+        abstract ImmutableList<String> include();
         // intentionally not plural since maps from query string
-        ImmutableList<String> exclude();
-        double truncateBranchPercentage();
+        abstract ImmutableList<String> exclude();
+        abstract double truncateBranchPercentage();
+        // 0 means no limit (but only if explicitly requested)
+        @Value.Default
+        int maxDepth() {
+            return DEFAULT_FLAME_GRAPH_MAX_DEPTH;
+        }
+    }
+
+    @Value.Immutable
+    abstract static class ProfileTopFramesRequest implements RequestBase {
+        abstract boolean auxiliary();
+        // intentionally not plural since maps from query string
+        abstract ImmutableList<String> include();
+        // intentionally not plural since maps from query string
+        abstract ImmutableList<String> exclude();
+        @Value.Default
+        int limit() {
+            return 100;
+        }
     }
 
     @Value.Immutable
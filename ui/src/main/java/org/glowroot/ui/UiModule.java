@@ -93,11 +93,13 @@ public class UiModule {
                 aggregateRepository, liveAggregateRepository, configRepository, clock);
         TraceCommonService traceCommonService =
                 new TraceCommonService(traceRepository, liveTraceRepository, agentRepository);
+        ProfileViewCache profileViewCache = new ProfileViewCache(clock);
         TransactionJsonService transactionJsonService =
                 new TransactionJsonService(transactionCommonService, aggregateRepository,
-                        configRepository, rollupLevelService, clock);
+                        configRepository, rollupLevelService, profileViewCache, clock);
         TracePointJsonService tracePointJsonService = new TracePointJsonService(traceRepository,
-                liveTraceRepository, configRepository, ticker, clock);
+                liveTraceRepository, configRepository, transactionCommonService,
+                rollupLevelService, ticker, clock);
         TraceJsonService traceJsonService = new TraceJsonService(traceCommonService);
         TraceDetailHttpService traceDetailHttpService =
                 new TraceDetailHttpService(traceCommonService);
@@ -109,11 +111,15 @@ public class UiModule {
         ErrorJsonService errorJsonService = new ErrorJsonService(errorCommonService,
                 transactionCommonService, traceRepository, rollupLevelService, clock);
         GaugeValueJsonService gaugeValueJsonService = new GaugeValueJsonService(
-                gaugeValueRepository, rollupLevelService, agentRepository, configRepository);
+                gaugeValueRepository, rollupLevelService, agentRepository, configRepository, clock);
         ConfigJsonService configJsonService =
                 new ConfigJsonService(agentRepository, configRepository);
+        List<RollupCache<?, ?>> rollupCaches = Lists.newArrayList();
+        rollupCaches.addAll(transactionCommonService.getRollupCaches());
+        rollupCaches.add(gaugeValueJsonService.getRollupCache());
         AdminJsonService adminJsonService = new AdminJsonService(central, certificateDir,
-                configRepository, repoAdmin, liveAggregateRepository);
+                configRepository, repoAdmin, liveAggregateRepository, rollupCaches,
+                profileViewCache);
 
         List<Object> jsonServices = Lists.newArrayList();
         jsonServices.add(transactionJsonService);
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.ui;
+
+import java.util.List;
+
+import com.google.common.collect.Lists;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.common.util.Clock;
+import org.glowroot.ui.RollupCache.RowReader;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class RollupCacheTest {
+
+    private static final long INTERVAL = 60000;
+
+    private Clock clock;
+    private RollupCache<String, Long> rollupCache;
+    private TestRowReader rowReader;
+
+    @Before
+    public void beforeEachTest() {
+        clock = mock(Clock.class);
+        rollupCache = new RollupCache<String, Long>("test", clock);
+        rowReader = new TestRowReader();
+    }
+
+    @Test
+    public void shouldOnlyReadTailOnSecondRead() throws Exception {
+        // given
+        when(clock.currentTimeMillis()).thenReturn(10 * INTERVAL + 1);
+        rowReader.rows.add(INTERVAL);
+        rowReader.rows.add(2 * INTERVAL);
+        rowReader.rows.add(9 * INTERVAL);
+        rowReader.rows.add(10 * INTERVAL);
+        // when
+        List<Long> first = rollupCache.read("key", 0, 11 * INTERVAL, INTERVAL, rowReader);
+        rowReader.rows.add(11 * INTERVAL);
+        List<Long> second = rollupCache.read("key", 0, 11 * INTERVAL, INTERVAL, rowReader);
+        // then
+        assertThat(first).containsExactly(INTERVAL, 2 * INTERVAL, 9 * INTERVAL, 10 * INTERVAL);
+        assertThat(second).containsExactly(INTERVAL, 2 * INTERVAL, 9 * INTERVAL, 10 * INTERVAL,
+                11 * INTERVAL);
+        assertThat(rowReader.lastFrom).isEqualTo(9 * INTERVAL + 1);
+        assertThat(rollupCache.getStats().hitCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldReReadRecentRows() throws Exception {
+        // given
+        when(clock.currentTimeMillis()).thenReturn(INTERVAL + 1);
+        rowReader.rows.add(INTERVAL);
+        // when
+        rollupCache.read("key", 0, 2 * INTERVAL, INTERVAL, rowReader);
+        List<Long> rows = rollupCache.read("key", 0, 2 * INTERVAL, INTERVAL, rowReader);
+        // then
+        assertThat(rows).containsExactly(INTERVAL);
+        assertThat(rowReader.lastFrom).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldFilterCachedRowsBeyondTo() throws Exception {
+        // given
+        when(clock.currentTimeMillis()).thenReturn(10 * INTERVAL + 1);
+        rowReader.rows.add(INTERVAL);
+        rowReader.rows.add(2 * INTERVAL);
+        rollupCache.read("key", 0, 5 * INTERVAL, INTERVAL, rowReader);
+        // when
+        List<Long> rows = rollupCache.read("key", 0, INTERVAL, INTERVAL, rowReader);
+        // then
+        assertThat(rows).containsExactly(INTERVAL);
+    }
+
+    @Test
+    public void shouldHitOnSlidingRange() throws Exception {
+        // given
+        when(clock.currentTimeMillis()).thenReturn(10 * INTERVAL + 1);
+        for (int i = 1; i <= 10; i++) {
+            rowReader.rows.add(i * INTERVAL);
+        }
+        rollupCache.read("key", 0, 10 * INTERVAL, INTERVAL, rowReader);
+        // when
+        when(clock.currentTimeMillis()).thenReturn(11 * INTERVAL + 1);
+        rowReader.rows.add(11 * INTERVAL);
+        List<Long> rows = rollupCache.read("key", INTERVAL, 11 * INTERVAL, INTERVAL, rowReader);
+        // then
+        assertThat(rows).hasSize(11);
+        assertThat(rows.get(0)).isEqualTo(INTERVAL);
+        assertThat(rows.get(10)).isEqualTo(11 * INTERVAL);
+        assertThat(rowReader.lastFrom).isEqualTo(9 * INTERVAL + 1);
+        assertThat(rollupCache.getStats().hitCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldNotCacheBeyondLastRolledUpRow() throws Exception {
+        // given
+        when(clock.currentTimeMillis()).thenReturn(10 * INTERVAL + 1);
+        // rollups are lagging behind
+        rowReader.rows.add(INTERVAL);
+        rowReader.rows.add(2 * INTERVAL);
+        rollupCache.read("key", 0, 10 * INTERVAL, INTERVAL, rowReader);
+        // when
+        rowReader.rows.add(3 * INTERVAL);
+        List<Long> rows = rollupCache.read("key", 0, 10 * INTERVAL, INTERVAL, rowReader);
+        // then
+        assertThat(rows).containsExactly(INTERVAL, 2 * INTERVAL, 3 * INTERVAL);
+        assertThat(rowReader.lastFrom).isEqualTo(2 * INTERVAL + 1);
+    }
+
+    @Test
+    public void shouldReReadAfterMaxAge() throws Exception {
+        // given
+        when(clock.currentTimeMillis()).thenReturn(10 * INTERVAL + 1);
+        rowReader.rows.add(INTERVAL);
+        rowReader.rows.add(10 * INTERVAL);
+        rollupCache.read("key", 0, 10 * INTERVAL, INTERVAL, rowReader);
+        // when
+        when(clock.currentTimeMillis())
+                .thenReturn(10 * INTERVAL + 1 + RollupCache.MAX_AGE_MILLIS + 1);
+        rollupCache.read("key", 0, 10 * INTERVAL, INTERVAL, rowReader);
+        // then
+        assertThat(rowReader.lastFrom).isEqualTo(0);
+    }
+
+    private static class TestRowReader implements RowReader<Long> {
+
+        private final List<Long> rows = Lists.newArrayList();
+        private long lastFrom = -1;
+
+        @Override
+        public List<Long> read(long from, long to) {
+            lastFrom = from;
+            List<Long> matchingRows = Lists.newArrayList();
+            for (Long row : rows) {
+                if (row >= from && row <= to) {
+                    matchingRows.add(row);
+                }
+            }
+            return matchingRows;
+        }
+
+        @Override
+        public long getCaptureTime(Long row) {
+            return row;
+        }
+    }
+}